@@ -0,0 +1,12 @@
+precision mediump float;
+
+uniform float u_Opacity;
+
+varying vec3 v_Normal;
+
+void main() {
+    // Colors the surface by its world normal, lit from above.
+    vec3 normal = normalize(v_Normal);
+    float light = 0.6 + 0.4 * max(normal.y, 0.0);
+    gl_FragColor = vec4((normal * 0.5 + 0.5) * light, u_Opacity);
+}
@@ -0,0 +1,11 @@
+uniform mat4 u_ModelViewProjection;
+
+attribute vec4 a_Position;
+attribute vec3 a_Normal;
+
+varying vec3 v_Normal;
+
+void main() {
+    v_Normal = a_Normal;
+    gl_Position = u_ModelViewProjection * a_Position;
+}
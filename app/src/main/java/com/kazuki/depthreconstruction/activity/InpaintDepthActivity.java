@@ -2,6 +2,7 @@ package com.kazuki.depthreconstruction.activity;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import android.media.Image;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
@@ -14,24 +15,46 @@ import com.google.ar.core.ArCoreApk;
 import com.google.ar.core.Camera;
 import com.google.ar.core.Config;
 import com.google.ar.core.Frame;
+import com.google.ar.core.Pose;
 import com.google.ar.core.Session;
+import com.google.ar.core.TrackingState;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
+import com.google.ar.core.exceptions.NotYetAvailableException;
 import com.google.ar.core.exceptions.UnavailableApkTooOldException;
 import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
 import com.google.ar.core.exceptions.UnavailableDeviceNotCompatibleException;
 import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import com.google.ar.core.exceptions.UnavailableUserDeclinedInstallationException;
+import com.kazuki.depthreconstruction.BuildConfig;
 import com.kazuki.depthreconstruction.R;
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.DepthFramePool;
+import com.kazuki.depthreconstruction.depth.PooledDepthFrame;
+import com.kazuki.depthreconstruction.depth.filter.GuidedDepthFilter;
+import com.kazuki.depthreconstruction.depth.filter.JointBilateralUpsampler;
+import com.kazuki.depthreconstruction.depth.filter.TemporalDepthFilter;
+import com.kazuki.depthreconstruction.depth.fusion.TsdfFusionEngine;
+import com.kazuki.depthreconstruction.depth.fusion.TsdfVolume;
+import com.kazuki.depthreconstruction.depth.inpaint.HoleFillingEngine;
+import com.kazuki.depthreconstruction.depth.mesh.IncrementalMesher;
+import com.kazuki.depthreconstruction.depth.mesh.MarchingCubesMesher;
+import com.kazuki.depthreconstruction.depth.mesh.SurfaceNetsMesher;
 import com.kazuki.depthreconstruction.helper.CameraPermissionHelper;
+import com.kazuki.depthreconstruction.helper.DepthImageHelper;
 import com.kazuki.depthreconstruction.helper.DepthSettings;
 import com.kazuki.depthreconstruction.helper.DisplayRotationHelper;
 import com.kazuki.depthreconstruction.helper.FullScreenHelper;
 import com.kazuki.depthreconstruction.helper.SnackbarHelper;
 import com.kazuki.depthreconstruction.rendering.BackgroundRenderer;
+import com.kazuki.depthreconstruction.rendering.FusedMeshRenderer;
+import com.kazuki.depthreconstruction.rendering.GlStateTracker;
 import com.kazuki.depthreconstruction.rendering.InpaintRenderer;
+import com.kazuki.depthreconstruction.rendering.ShaderUtil;
+import com.kazuki.depthreconstruction.rendering.ShaderWarmUp;
 import com.kazuki.depthreconstruction.rendering.Texture;
 
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -39,6 +62,42 @@ import javax.microedition.khronos.opengles.GL10;
 public class InpaintDepthActivity extends AppCompatActivity implements GLSurfaceView.Renderer {
   private static final String TAG = InpaintDepthActivity.class.getSimpleName();
 
+  // Depth frames held for longer than this are reported as leaked in debug builds.
+  private static final long DEPTH_FRAME_LEAK_AGE_NANOS = 5_000_000_000L;
+  // Debug builds log the per-frame metrics at most this often.
+  private static final long DEBUG_LOG_INTERVAL_NANOS = 1_000_000_000L;
+
+  // Joint bilateral upsampling parameters, in low resolution pixels and luma levels.
+  private static final int UPSAMPLING_RADIUS = 2;
+  private static final float UPSAMPLING_SPATIAL_SIGMA = 1.0f;
+  private static final float UPSAMPLING_RANGE_SIGMA = 12.0f;
+
+  // Number of depth frames the temporal filter keeps per pixel.
+  private static final int TEMPORAL_HISTORY_LENGTH = 5;
+
+  // Window radius of the guided filter, and its regularization for depth noise of about 5 cm.
+  private static final int SMOOTHING_RADIUS = 4;
+  private static final float SMOOTHING_EPSILON = 50.0f * 50.0f;
+
+  // The dense uniform mesh has four times the vertices of the default grid.
+  private static final int DENSE_GRID_ROWS = 2 * InpaintRenderer.DEFAULT_GRID_ROWS;
+  private static final int DENSE_GRID_COLS = 2 * InpaintRenderer.DEFAULT_GRID_COLS;
+
+  // 4 cm voxels with a truncation of three voxels; 8192 blocks take about 12 MiB.
+  private static final float FUSION_VOXEL_SIZE = 0.04f;
+  private static final float FUSION_TRUNCATION = 3 * FUSION_VOXEL_SIZE;
+  private static final int FUSION_MAX_BLOCK_COUNT = 8192;
+
+  private static final float Z_NEAR = 0.1f;
+  private static final float Z_FAR = 100.0f;
+
+  // Builds the shader programs on a worker thread while the session starts, instead of in
+  // onSurfaceCreated.
+  private static final boolean IS_SHADER_WARM_UP_ENABLED = true;
+  // Draws the background and the depth mesh through vertex array objects; off passes the vertex
+  // attributes on every draw, for comparison.
+  private static final boolean IS_VERTEX_ARRAY_OBJECT_ENABLED = true;
+
   private GLSurfaceView surfaceView;
 
   private boolean installRequested;
@@ -47,18 +106,88 @@ public class InpaintDepthActivity extends AppCompatActivity implements GLSurface
   private final SnackbarHelper messageSnackbarHelper = new SnackbarHelper();
   private DisplayRotationHelper displayRotationHelper;
 
-  private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
+  // Skips the GL state changes the renderers make that change nothing.
+  private final GlStateTracker glState = new GlStateTracker();
+  private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer(glState);
   private final Texture depthTexture = new Texture();
 
   private final DepthSettings depthSettings = new DepthSettings();
   private Switch depthModeSwitch;
 
-  private final InpaintRenderer inpaintRenderer = new InpaintRenderer();
+  private final InpaintRenderer inpaintRenderer = new InpaintRenderer(glState);
   private Switch inpaintModeSwitch;
   private boolean isInpaintModeChecked;
+  private Switch fastMarchingSwitch;
+  private final Texture inpaintedDepthTexture = new Texture();
+  private final DepthFramePool depthFramePool =
+          new DepthFramePool(/*maxPooledPerSize=*/ 3, /*isLeakTrackingEnabled=*/ BuildConfig.DEBUG);
+  private final HoleFillingEngine holeFillingEngine = new HoleFillingEngine();
+  // The last hole-filled depth, kept so the inpaint mesh can be rebuilt from it when the mesh
+  // settings change, without running the depth stages on an image they already saw.
+  private PooledDepthFrame lastFilledDepth;
+  private boolean isInpaintMeshUpdatePending = false;
+
+  private Switch upsampleModeSwitch;
+  private boolean isUpsampleModeChecked;
+  private final Texture upsampledDepthTexture = new Texture();
+  // Created on the first frame, once the camera and depth resolutions are known.
+  private JointBilateralUpsampler depthUpsampler;
+
+  private Switch temporalFilterSwitch;
+  private boolean isTemporalFilterChecked;
+  private final Texture stabilizedDepthTexture = new Texture();
+  private final TemporalDepthFilter temporalDepthFilter =
+          new TemporalDepthFilter(
+                  ForkJoinPool.commonPool(),
+                  TEMPORAL_HISTORY_LENGTH,
+                  TemporalDepthFilter.Mode.EXPONENTIAL_MOVING_AVERAGE);
+  // Camera pose of the previous stabilized depth image.
+  private Pose previousDepthPose;
+
+  private Switch smoothingSwitch;
+  private boolean isSmoothingChecked;
+  private final Texture smoothedDepthTexture = new Texture();
+  private final GuidedDepthFilter guidedDepthFilter =
+          new GuidedDepthFilter(ForkJoinPool.commonPool(), SMOOTHING_RADIUS, SMOOTHING_EPSILON);
+
+  private Switch adaptiveMeshSwitch;
+  private Switch denseMeshSwitch;
+
+  private Switch fusionSwitch;
+  private boolean isFusionChecked;
+  private final TsdfFusionEngine fusionEngine =
+          new TsdfFusionEngine(
+                  new TsdfVolume(FUSION_VOXEL_SIZE, FUSION_TRUNCATION, FUSION_MAX_BLOCK_COUNT),
+                  ForkJoinPool.commonPool());
+  private final float[] depthCameraToWorld = new float[16];
+  private final float[] depthIntrinsics = new float[6];
+  // Meshes the blocks each integration touched, on the fusion worker.
+  private final MarchingCubesMesher marchingCubesMesher = new MarchingCubesMesher();
+  private final SurfaceNetsMesher surfaceNetsMesher = new SurfaceNetsMesher();
+  private final IncrementalMesher fusedMesher =
+          new IncrementalMesher(ForkJoinPool.commonPool(), marchingCubesMesher);
+  private Switch surfaceNetsSwitch;
+  private final FusedMeshRenderer fusedMeshRenderer = new FusedMeshRenderer(glState);
+  private final float[] viewMatrix = new float[16];
+  private final float[] projectionMatrix = new float[16];
+
+  // Set when the depth texture received a depth image the CPU depth stages have not run on yet.
+  // Cleared once they ran, so no image is fed to the temporal filter or to fusion twice.
+  private boolean isDepthProcessingPending = false;
+
+  private ShaderWarmUp shaderWarmUp;
+  // When onCreate started, to measure the time until the first camera image is drawn.
+  private long createNanos;
+  private boolean isFirstFrameDrawn = false;
+  // When the GL state and the depth stage metrics were last logged, and whether the depth stages
+  // of the current depth image log theirs.
+  private long lastFrameLogNanos = 0;
+  private long lastDepthLogNanos = 0;
+  private boolean isDepthLogDue = false;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
+    createNanos = System.nanoTime();
     super.onCreate(savedInstanceState);
     setContentView(R.layout.activity_inpaint_depth);
     surfaceView = findViewById(R.id.surfaceview);
@@ -67,12 +196,24 @@ public class InpaintDepthActivity extends AppCompatActivity implements GLSurface
     //Set up renderer
     surfaceView.setPreserveEGLContextOnPause(true);
     surfaceView.setEGLContextClientVersion(3);
+    if (IS_SHADER_WARM_UP_ENABLED) {
+      shaderWarmUp = new ShaderWarmUp(this);
+      BackgroundRenderer.addProgramsTo(shaderWarmUp);
+      InpaintRenderer.addProgramsTo(shaderWarmUp);
+      FusedMeshRenderer.addProgramsTo(shaderWarmUp);
+      // The GL thread's context is created in the warm-up's share group to use its programs.
+      surfaceView.setEGLContextFactory(shaderWarmUp);
+      shaderWarmUp.start();
+    }
     surfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0); // Alpha used for plane blending.
     surfaceView.setRenderer(this);
     surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
     surfaceView.setWillNotDraw(false);
 
     installRequested = false;
+    glState.setValidationEnabled(BuildConfig.DEBUG);
+    backgroundRenderer.setVertexArrayObjectEnabled(IS_VERTEX_ARRAY_OBJECT_ENABLED);
+    inpaintRenderer.setVertexArrayObjectEnabled(IS_VERTEX_ARRAY_OBJECT_ENABLED);
 
     depthSettings.onCreate(this);
     depthModeSwitch = (Switch) findViewById(R.id.switch1);
@@ -80,6 +221,38 @@ public class InpaintDepthActivity extends AppCompatActivity implements GLSurface
 
     inpaintModeSwitch = (Switch) findViewById(R.id.switch2);
     inpaintModeSwitch.setOnCheckedChangeListener(this::onInpaintModeChanged);
+    holeFillingEngine.setAlgorithm(HoleFillingEngine.Algorithm.PUSH_PULL);
+
+    fastMarchingSwitch = (Switch) findViewById(R.id.switch3);
+    fastMarchingSwitch.setOnCheckedChangeListener(this::onFastMarchingChanged);
+
+    upsampleModeSwitch = (Switch) findViewById(R.id.switch4);
+    upsampleModeSwitch.setOnCheckedChangeListener(this::onUpsampleModeChanged);
+
+    temporalFilterSwitch = (Switch) findViewById(R.id.switch5);
+    temporalFilterSwitch.setOnCheckedChangeListener(this::onTemporalFilterChanged);
+
+    smoothingSwitch = (Switch) findViewById(R.id.switch6);
+    smoothingSwitch.setOnCheckedChangeListener(this::onSmoothingChanged);
+
+    adaptiveMeshSwitch = (Switch) findViewById(R.id.switch7);
+    adaptiveMeshSwitch.setOnCheckedChangeListener(this::onAdaptiveMeshChanged);
+
+    fusionSwitch = (Switch) findViewById(R.id.switch8);
+    fusionSwitch.setOnCheckedChangeListener(this::onFusionChanged);
+    fusionEngine.setIntegrationListener(fusedMesher::update);
+
+    surfaceNetsSwitch = (Switch) findViewById(R.id.switch9);
+    surfaceNetsSwitch.setOnCheckedChangeListener(this::onSurfaceNetsChanged);
+
+    denseMeshSwitch = (Switch) findViewById(R.id.switch10);
+    denseMeshSwitch.setOnCheckedChangeListener(this::onDenseMeshChanged);
+  }
+
+  @Override
+  protected void onDestroy() {
+    fusionEngine.shutdown();
+    super.onDestroy();
   }
 
   @Override
@@ -161,6 +334,14 @@ public class InpaintDepthActivity extends AppCompatActivity implements GLSurface
       surfaceView.onPause();
       session.pause();
     }
+    // The GL thread is paused, so it no longer uses the frame.
+    if (lastFilledDepth != null) {
+      lastFilledDepth.release();
+      lastFilledDepth = null;
+    }
+    for (Throwable leak : depthFramePool.findLeaks(DEPTH_FRAME_LEAK_AGE_NANOS)) {
+      Log.w(TAG, "Depth frame was never released", leak);
+    }
   }
 
   @Override
@@ -187,14 +368,25 @@ public class InpaintDepthActivity extends AppCompatActivity implements GLSurface
   public void onSurfaceCreated(GL10 gl10, EGLConfig eglConfig) {
     GLES20.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
 
+    if (shaderWarmUp != null) {
+      shaderWarmUp.awaitProgramsOnGlThread();
+    }
+
     // Prepare the rendering objects
     try {
       depthTexture.createOnGlThread();
       backgroundRenderer.createOnGlThread(this, depthTexture.getTextureId());
-      inpaintRenderer.createOnGlThread(this, depthTexture.getTextureId());
+      inpaintedDepthTexture.createOnGlThread();
+      upsampledDepthTexture.createOnGlThread();
+      stabilizedDepthTexture.createOnGlThread();
+      smoothedDepthTexture.createOnGlThread();
+      inpaintRenderer.createOnGlThread(this, inpaintedDepthTexture.getTextureId());
+      fusedMeshRenderer.createOnGlThread(this);
     } catch (IOException e) {
       Log.e(TAG, "Failed to read an asset file", e);
     }
+    // The context is new, and creating the renderers changed state behind the tracker's back.
+    glState.invalidate();
   }
 
   @Override
@@ -205,7 +397,24 @@ public class InpaintDepthActivity extends AppCompatActivity implements GLSurface
 
   @Override
   public void onDrawFrame(GL10 gl10) {
-    // Clear screen
+    glState.beginFrame();
+    if (BuildConfig.DEBUG && System.nanoTime() - lastFrameLogNanos >= DEBUG_LOG_INTERVAL_NANOS) {
+      lastFrameLogNanos = System.nanoTime();
+      Log.v(
+              TAG,
+              "GL state: "
+                      + glState.getLastFrameIssuedCallCount()
+                      + " calls issued, "
+                      + glState.getLastFrameElidedCallCount()
+                      + " elided; depth images: "
+                      + depthTexture.getUploadCount()
+                      + " uploaded, "
+                      + depthTexture.getSkippedUploadCount()
+                      + " repeated and skipped");
+    }
+
+    // Clear screen. The depth buffer is only cleared while depth writes are on.
+    glState.depthMask(true);
     GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
     if (session == null) {
@@ -225,10 +434,36 @@ public class InpaintDepthActivity extends AppCompatActivity implements GLSurface
 
       if (session.isDepthModeSupported(Config.DepthMode.AUTOMATIC)) {
         depthTexture.updateWithDepthImageOnGlThread(frame);
+
+        // The CPU depth stages only need to run again when the depth image changed.
+        if (depthTexture.isNewDepthAvailable()) {
+          isDepthProcessingPending = true;
+        }
+        if (isDepthProcessingPending
+                && (isTemporalFilterChecked
+                        || isSmoothingChecked
+                        || isInpaintModeChecked
+                        || isUpsampleModeChecked
+                        || isFusionChecked)) {
+          processDepth(frame, camera);
+        }
       }
+      if (isInpaintMeshUpdatePending) {
+        updateInpaintMesh();
+      }
+      backgroundRenderer.setDepthTextureId(getDisplayedDepthTextureId());
+      // ARCore and the depth texture uploads bind textures without the tracker.
+      glState.invalidateTextureBindings();
 
       // If frame is ready, render camera preview image to the GL surface.
       backgroundRenderer.draw(frame, depthSettings.depthColorVisualizationEnabled());
+      if (!isFirstFrameDrawn && frame.getTimestamp() != 0) {
+        isFirstFrameDrawn = true;
+        logTimeToFirstFrame();
+      }
+      if (isFusionChecked && camera.getTrackingState() == TrackingState.TRACKING) {
+        drawFusedMesh(camera);
+      }
       inpaintRenderer.draw(frame, depthSettings.depthColorVisualizationEnabled(), isInpaintModeChecked);
     } catch (Throwable t) {
       // Avoid crashing the application due to unhandled exceptions.
@@ -236,6 +471,213 @@ public class InpaintDepthActivity extends AppCompatActivity implements GLSurface
     }
   }
 
+  private void logTimeToFirstFrame() {
+    Log.i(
+            TAG,
+            "First camera frame drawn "
+                    + (System.nanoTime() - createNanos) / 1_000_000
+                    + " ms after onCreate, shader warm-up "
+                    + (shaderWarmUp != null ? shaderWarmUp.getWarmUpNanos() / 1000 + " us" : "off")
+                    + ", "
+                    + ShaderUtil.getProgramCacheHitCount()
+                    + " programs loaded from cache and "
+                    + ShaderUtil.getProgramCacheMissCount()
+                    + " compiled in "
+                    + ShaderUtil.getTotalProgramLoadNanos() / 1000
+                    + " us");
+  }
+
+  /**
+   * Runs the enabled CPU depth stages on the current depth image and uploads their results. When
+   * the temporal filter or smoothing is enabled, the later stages work on the filtered depth.
+   */
+  private void processDepth(Frame frame, Camera camera) {
+    try (Image depthImage = frame.acquireDepthImage()) {
+      DepthFrame depthFrame = DepthImageHelper.wrapDepthImage(depthImage);
+      isDepthLogDue =
+              BuildConfig.DEBUG
+                      && System.nanoTime() - lastDepthLogNanos >= DEBUG_LOG_INTERVAL_NANOS;
+      if (isDepthLogDue) {
+        lastDepthLogNanos = System.nanoTime();
+      }
+      PooledDepthFrame stabilizedDepth = null;
+      PooledDepthFrame smoothedDepth = null;
+      try {
+        if (isTemporalFilterChecked) {
+          stabilizedDepth = depthFramePool.acquire(depthFrame.getWidth(), depthFrame.getHeight());
+          stabilizeDepth(depthFrame, camera.getPose(), stabilizedDepth.getFrame());
+          depthFrame = stabilizedDepth.getFrame();
+        } else if (previousDepthPose != null) {
+          temporalDepthFilter.reset();
+          previousDepthPose = null;
+        }
+        if (isSmoothingChecked) {
+          smoothedDepth = depthFramePool.acquire(depthFrame.getWidth(), depthFrame.getHeight());
+          guidedDepthFilter.filter(depthFrame, smoothedDepth.getFrame());
+          smoothedDepthTexture.updateWithDepthFrameOnGlThread(smoothedDepth.getFrame());
+          depthFrame = smoothedDepth.getFrame();
+        }
+        if (isFusionChecked && camera.getTrackingState() == TrackingState.TRACKING) {
+          fuseDepth(depthFrame, camera);
+        }
+        if (isInpaintModeChecked) {
+          fillDepthHoles(depthFrame);
+        }
+        if (isUpsampleModeChecked) {
+          upsampleDepth(frame, depthFrame);
+        }
+      } finally {
+        if (stabilizedDepth != null) {
+          stabilizedDepth.release();
+        }
+        if (smoothedDepth != null) {
+          smoothedDepth.release();
+        }
+      }
+      isDepthProcessingPending = false;
+    } catch (NotYetAvailableException e) {
+      // Depth is not available yet, keep showing the last processed depth.
+    }
+  }
+
+  /** Returns the depth texture the depth map view shows, the most refined one enabled. */
+  private int getDisplayedDepthTextureId() {
+    if (isUpsampleModeChecked) {
+      return upsampledDepthTexture.getTextureId();
+    } else if (isSmoothingChecked) {
+      return smoothedDepthTexture.getTextureId();
+    } else if (isTemporalFilterChecked) {
+      return stabilizedDepthTexture.getTextureId();
+    }
+    return depthTexture.getTextureId();
+  }
+
+  /** Adds the depth to the temporal filter, dropping its history when the camera moved fast. */
+  private void stabilizeDepth(DepthFrame depthFrame, Pose pose, DepthFrame stabilizedDepth) {
+    float translation = 0.0f;
+    float rotation = 0.0f;
+    if (previousDepthPose != null) {
+      Pose delta = previousDepthPose.inverse().compose(pose);
+      translation =
+              (float) Math.sqrt(
+                      delta.tx() * delta.tx() + delta.ty() * delta.ty() + delta.tz() * delta.tz());
+      rotation = 2.0f * (float) Math.acos(Math.min(1.0f, Math.abs(delta.qw())));
+    }
+    previousDepthPose = pose;
+    temporalDepthFilter.update(depthFrame, translation, rotation, stabilizedDepth);
+    stabilizedDepthTexture.updateWithDepthFrameOnGlThread(stabilizedDepth);
+  }
+
+  /**
+   * Hands the depth to the fusion worker, before hole filling so only measured depth is fused. The
+   * render thread only copies the frame; if the worker is still busy, the frame replaces the one
+   * waiting for it.
+   */
+  private void fuseDepth(DepthFrame depthFrame, Camera camera) {
+    DepthImageHelper.getImageIntrinsics(camera, depthIntrinsics);
+    camera.getPose().toMatrix(depthCameraToWorld, 0);
+    fusionEngine.submit(depthFrame, depthCameraToWorld, depthIntrinsics);
+    if (isDepthLogDue) {
+      Log.v(
+              TAG,
+              "Depth fused in "
+                      + fusionEngine.getLastIntegrationNanos() / 1000
+                      + " us, "
+                      + fusionEngine.getBlockCount()
+                      + " blocks, "
+                      + fusionEngine.getMemoryBytes() / 1024
+                      + " KiB, "
+                      + fusionEngine.getDroppedFrameCount()
+                      + " frames dropped, handoff "
+                      + fusionEngine.getHandoff().getLastHandoffNanos() / 1000
+                      + " us with "
+                      + fusionEngine.getHandoff().getQueueDepth()
+                      + " queued");
+      Log.v(
+              TAG,
+              "Fused mesh: "
+                      + fusedMesher.getLastMeshedBlockCount()
+                      + " blocks meshed in "
+                      + fusedMesher.getLastUpdateNanos() / 1000
+                      + " us, "
+                      + fusedMesher.getTriangleCount()
+                      + " triangles");
+    }
+  }
+
+  /** Uploads the blocks the fusion worker meshed again and draws the fused mesh. */
+  private void drawFusedMesh(Camera camera) {
+    fusedMeshRenderer.updateOnGlThread(fusedMesher);
+    camera.getViewMatrix(viewMatrix, 0);
+    camera.getProjectionMatrix(projectionMatrix, 0, Z_NEAR, Z_FAR);
+    fusedMeshRenderer.draw(viewMatrix, projectionMatrix);
+  }
+
+  /** Fills the holes of the depth and uploads the result for the inpaint renderer. */
+  private void fillDepthHoles(DepthFrame depthFrame) {
+    PooledDepthFrame filledDepth =
+            depthFramePool.acquire(depthFrame.getWidth(), depthFrame.getHeight());
+    try {
+      holeFillingEngine.fill(depthFrame, filledDepth.getFrame());
+      if (isDepthLogDue) {
+        Log.v(TAG, "Depth holes filled in " + holeFillingEngine.getLastFillNanos() / 1000 + " us");
+      }
+      inpaintedDepthTexture.updateWithDepthFrameOnGlThread(filledDepth.getFrame());
+      inpaintRenderer.updateDepthOnGlThread(filledDepth.getFrame());
+      isInpaintMeshUpdatePending = false;
+      if (lastFilledDepth != null) {
+        lastFilledDepth.release();
+      }
+      lastFilledDepth = filledDepth.retain();
+    } finally {
+      filledDepth.release();
+    }
+  }
+
+  /** Rebuilds the inpaint mesh from the last hole-filled depth after its settings changed. */
+  private void updateInpaintMesh() {
+    isInpaintMeshUpdatePending = false;
+    if (lastFilledDepth != null) {
+      inpaintRenderer.updateDepthOnGlThread(lastFilledDepth.getFrame());
+    }
+  }
+
+  /** Upsamples the depth, guided by the camera image, for the depth map view. */
+  private void upsampleDepth(Frame frame, DepthFrame depthFrame) {
+    try (Image cameraImage = frame.acquireCameraImage()) {
+      if (depthUpsampler == null) {
+        int factor = cameraImage.getWidth() >= 4 * depthFrame.getWidth() ? 4 : 2;
+        depthUpsampler =
+                new JointBilateralUpsampler(
+                        ForkJoinPool.commonPool(),
+                        factor,
+                        UPSAMPLING_RADIUS,
+                        UPSAMPLING_SPATIAL_SIGMA,
+                        UPSAMPLING_RANGE_SIGMA);
+      }
+      int factor = depthUpsampler.getFactor();
+      PooledDepthFrame upsampledDepth =
+              depthFramePool.acquire(
+                      depthFrame.getWidth() * factor, depthFrame.getHeight() * factor);
+      try {
+        // The Y plane of the YUV_420_888 camera image is its luma.
+        Image.Plane lumaPlane = cameraImage.getPlanes()[0];
+        depthUpsampler.upsample(
+                depthFrame,
+                lumaPlane.getBuffer(),
+                cameraImage.getWidth(),
+                cameraImage.getHeight(),
+                lumaPlane.getRowStride(),
+                upsampledDepth.getFrame());
+        upsampledDepthTexture.updateWithDepthFrameOnGlThread(upsampledDepth.getFrame());
+      } finally {
+        upsampledDepth.release();
+      }
+    } catch (NotYetAvailableException e) {
+      // The camera image is not available yet, keep showing the last upsampled depth.
+    }
+  }
+
   /**
    * Swich effect
    **/
@@ -246,4 +688,53 @@ public class InpaintDepthActivity extends AppCompatActivity implements GLSurface
   private void onInpaintModeChanged(CompoundButton unusedButton, boolean isChecked) {
     isInpaintModeChecked = isChecked;
   }
+
+  private void onUpsampleModeChanged(CompoundButton unusedButton, boolean isChecked) {
+    isUpsampleModeChecked = isChecked;
+  }
+
+  private void onTemporalFilterChanged(CompoundButton unusedButton, boolean isChecked) {
+    isTemporalFilterChecked = isChecked;
+  }
+
+  private void onSmoothingChanged(CompoundButton unusedButton, boolean isChecked) {
+    isSmoothingChecked = isChecked;
+  }
+
+  private void onAdaptiveMeshChanged(CompoundButton unusedButton, boolean isChecked) {
+    inpaintRenderer.setAdaptiveTessellationEnabled(isChecked);
+    // Tessellate the current depth right away instead of waiting for the next depth image.
+    surfaceView.queueEvent(() -> isInpaintMeshUpdatePending = true);
+  }
+
+  private void onDenseMeshChanged(CompoundButton unusedButton, boolean isChecked) {
+    // Grids are cached by size, so switching back and forth allocates each one only once.
+    if (isChecked) {
+      inpaintRenderer.setGridSize(DENSE_GRID_ROWS, DENSE_GRID_COLS);
+    } else {
+      inpaintRenderer.setGridSize(
+              InpaintRenderer.DEFAULT_GRID_ROWS, InpaintRenderer.DEFAULT_GRID_COLS);
+    }
+    // Filter the new grid's triangles with the current depth right away.
+    surfaceView.queueEvent(() -> isInpaintMeshUpdatePending = true);
+  }
+
+  private void onFusionChanged(CompoundButton unusedButton, boolean isChecked) {
+    isFusionChecked = isChecked;
+  }
+
+  private void onSurfaceNetsChanged(CompoundButton unusedButton, boolean isChecked) {
+    // The whole volume is meshed again with the new algorithm after the next integrated frame.
+    fusedMesher.setMesher(isChecked ? surfaceNetsMesher : marchingCubesMesher);
+  }
+
+  private void onFastMarchingChanged(CompoundButton unusedButton, boolean isChecked) {
+    // The engine is only used on the GL thread.
+    surfaceView.queueEvent(
+            () ->
+                    holeFillingEngine.setAlgorithm(
+                            isChecked
+                                    ? HoleFillingEngine.Algorithm.FAST_MARCHING
+                                    : HoleFillingEngine.Algorithm.PUSH_PULL));
+  }
 }
@@ -0,0 +1,47 @@
+package com.kazuki.depthreconstruction.helper;
+
+import android.media.Image;
+
+import com.google.ar.core.Camera;
+import com.google.ar.core.CameraIntrinsics;
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.DepthFrameHandoff;
+import com.kazuki.depthreconstruction.depth.fusion.TsdfFusionEngine;
+
+/** Adapts ARCore depth images to the Android independent {@link DepthFrame}. */
+public final class DepthImageHelper {
+  private DepthImageHelper() {}
+
+  /**
+   * Wraps the DEPTH16 plane of a depth image without copying it. The returned frame reads the
+   * image's memory directly, so it must not be used after the image is closed; copy it with {@link
+   * DepthFrame#copyTo(short[])} to keep the data.
+   */
+  public static DepthFrame wrapDepthImage(Image depthImage) {
+    Image.Plane plane = depthImage.getPlanes()[0];
+    return DepthFrame.wrapDepth16(
+            plane.getBuffer(),
+            depthImage.getWidth(),
+            depthImage.getHeight(),
+            plane.getRowStride(),
+            depthImage.getTimestamp());
+  }
+
+  /**
+   * Writes the focal lengths, principal point and size of the CPU camera image, which the depth
+   * image is aligned with, into a 6 float array, as {@link DepthFrameHandoff#publish} and {@link
+   * TsdfFusionEngine#submit} take them.
+   */
+  public static void getImageIntrinsics(Camera camera, float[] intrinsics) {
+    CameraIntrinsics imageIntrinsics = camera.getImageIntrinsics();
+    float[] focalLength = imageIntrinsics.getFocalLength();
+    float[] principalPoint = imageIntrinsics.getPrincipalPoint();
+    int[] dimensions = imageIntrinsics.getImageDimensions();
+    intrinsics[0] = focalLength[0];
+    intrinsics[1] = focalLength[1];
+    intrinsics[2] = principalPoint[0];
+    intrinsics[3] = principalPoint[1];
+    intrinsics[4] = dimensions[0];
+    intrinsics[5] = dimensions[1];
+  }
+}
@@ -0,0 +1,233 @@
+package com.kazuki.depthreconstruction.rendering;
+
+import android.opengl.GLES30;
+
+import com.google.ar.core.Coordinates2d;
+import com.google.ar.core.Frame;
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.mesh.QuadtreeTessellator;
+import com.kazuki.depthreconstruction.depth.mesh.StretchedTriangleFilter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A depth mesh tessellated by a {@link QuadtreeTessellator} over a rectangle in normalized device
+ * coordinates. The vertex buffer holds every vertex slot of the tessellator and only changes with
+ * the display geometry. New depth filters the stretched triangles out of the tiles the tessellator
+ * rebuilt, and re-uploads just the index slots that changed.
+ */
+final class AdaptiveMesh {
+  private static final String TAG = AdaptiveMesh.class.getSimpleName();
+
+  private static final int FLOAT_SIZE = 4;
+
+  private final QuadtreeTessellator tessellator;
+  private final float left;
+  private final float bottom;
+  private final float right;
+  private final float top;
+
+  private final FloatBuffer cornerPositions;
+  private final FloatBuffer cornerTexCoords;
+  private final FloatBuffer vertices;
+  private final FilteredIndexBuffer indexBuffer;
+  // Lattice depth of every vertex slot of the tiles filtered so far.
+  private final int[] vertexDepth;
+  private boolean areAllTilesDirty = false;
+
+  private int vertexBufferId = -1;
+  private int vertexArrayId = -1;
+
+  private int texCoordsGeneration = -1;
+
+  AdaptiveMesh(
+          QuadtreeTessellator tessellator,
+          float left,
+          float bottom,
+          float right,
+          float top,
+          int maxSpreadMillimeters) {
+    this.tessellator = tessellator;
+    this.left = left;
+    this.bottom = bottom;
+    this.right = right;
+    this.top = top;
+
+    // The (s, t) = (0, 0), (1, 0) and (0, 1) corners, enough to recover the affine mapping.
+    cornerPositions = allocateFloats(3 * GridMesh.COORDS_PER_VERTEX);
+    cornerPositions.put(new float[] {left, bottom, right, bottom, left, top});
+    cornerPositions.position(0);
+    cornerTexCoords = allocateFloats(3 * GridMesh.TEXCOORDS_PER_VERTEX);
+    vertices = allocateFloats(tessellator.getVertexCapacity() * GridMesh.FLOATS_PER_VERTEX);
+    // Starts out all degenerate, until the first depth arrives.
+    indexBuffer =
+            new FilteredIndexBuffer(
+                    new StretchedTriangleFilter(
+                            tessellator.getTileCount(),
+                            tessellator.getIndicesPerTile(),
+                            maxSpreadMillimeters));
+    vertexDepth = new int[tessellator.getVertexCapacity()];
+  }
+
+  int getVertexCount() {
+    return tessellator.getVertexCount();
+  }
+
+  /** Returns the number of triangles drawn, after dropping stretched ones. */
+  int getTriangleCount() {
+    return indexBuffer.getFilter().getTriangleCount();
+  }
+
+  int getDroppedTriangleCount() {
+    return indexBuffer.getFilter().getDroppedTriangleCount();
+  }
+
+  long getUploadedIndexCount() {
+    return indexBuffer.getUploadedIndexCount();
+  }
+
+  /** Sets the largest depth spread of a drawn triangle. Takes effect on the next depth update. */
+  void setMaxSpreadMillimeters(int maxSpreadMillimeters) {
+    StretchedTriangleFilter filter = indexBuffer.getFilter();
+    if (filter.getMaxSpreadMillimeters() != maxSpreadMillimeters) {
+      filter.setMaxSpreadMillimeters(maxSpreadMillimeters);
+      areAllTilesDirty = true;
+    }
+  }
+
+  void createOnGlThread() {
+    int[] buffers = new int[1];
+    GLES30.glGenBuffers(1, buffers, 0);
+    vertexBufferId = buffers[0];
+
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBufferId);
+    GLES30.glBufferData(
+            GLES30.GL_ARRAY_BUFFER, vertices.capacity() * FLOAT_SIZE, null, GLES30.GL_STATIC_DRAW);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+
+    indexBuffer.createOnGlThread();
+
+    ShaderUtil.checkGLError(TAG, "Adaptive mesh creation");
+  }
+
+  /**
+   * Maps the mesh onto the camera image for the given display geometry, uploads the vertices and
+   * points the tessellator at the matching part of the depth image.
+   */
+  void updateTexCoords(Frame frame, int displayGeometryGeneration) {
+    if (texCoordsGeneration == displayGeometryGeneration) {
+      return;
+    }
+    cornerPositions.position(0);
+    cornerTexCoords.position(0);
+    frame.transformCoordinates2d(
+            Coordinates2d.OPENGL_NORMALIZED_DEVICE_COORDINATES,
+            cornerPositions,
+            Coordinates2d.TEXTURE_NORMALIZED,
+            cornerTexCoords);
+    float originU = cornerTexCoords.get(0);
+    float originV = cornerTexCoords.get(1);
+    float sAxisU = cornerTexCoords.get(2) - originU;
+    float sAxisV = cornerTexCoords.get(3) - originV;
+    float tAxisU = cornerTexCoords.get(4) - originU;
+    float tAxisV = cornerTexCoords.get(5) - originV;
+    tessellator.setTextureTransform(
+            originU,
+            originV,
+            cornerTexCoords.get(2),
+            cornerTexCoords.get(3),
+            cornerTexCoords.get(4),
+            cornerTexCoords.get(5));
+
+    vertices.position(0);
+    for (int i = 0; i < tessellator.getVertexCapacity(); i++) {
+      float s = tessellator.getVertexS(i);
+      float t = tessellator.getVertexT(i);
+      vertices.put(left + s * (right - left)).put(bottom + t * (top - bottom));
+      vertices.put(originU + s * sAxisU + t * tAxisU).put(originV + s * sAxisV + t * tAxisV);
+    }
+    vertices.position(0);
+
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBufferId);
+    GLES30.glBufferSubData(GLES30.GL_ARRAY_BUFFER, 0, vertices.capacity() * FLOAT_SIZE, vertices);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+    texCoordsGeneration = displayGeometryGeneration;
+  }
+
+  /**
+   * Tessellates new depth, filters the stretched triangles out of the rebuilt tiles and uploads the
+   * index slots that changed.
+   */
+  void updateDepth(DepthFrame depthFrame) {
+    tessellator.update(depthFrame);
+    StretchedTriangleFilter filter = indexBuffer.getFilter();
+    if (areAllTilesDirty) {
+      for (int tile = 0; tile < tessellator.getTileCount(); tile++) {
+        filterTile(filter, tile);
+      }
+      areAllTilesDirty = false;
+    } else {
+      for (int i = 0; i < tessellator.getChangedTileCount(); i++) {
+        filterTile(filter, tessellator.getChangedTile(i));
+      }
+    }
+    indexBuffer.uploadChangedSlotsOnGlThread();
+  }
+
+  private void filterTile(StretchedTriangleFilter filter, int tile) {
+    int verticesPerTile = tessellator.getVerticesPerTile();
+    int firstVertex = tile * verticesPerTile;
+    for (int vertex = firstVertex; vertex < firstVertex + verticesPerTile; vertex++) {
+      vertexDepth[vertex] =
+              tessellator.getLatticeMillimeters(
+                      tessellator.getVertexLatticeX(vertex), tessellator.getVertexLatticeY(vertex));
+    }
+    int indicesPerTile = tessellator.getIndicesPerTile();
+    filter.filterSlot(
+            tile,
+            tessellator.getIndices(),
+            tile * indicesPerTile,
+            indicesPerTile,
+            vertexDepth,
+            (short) firstVertex);
+  }
+
+  /**
+   * Draws every tile with one call, through a vertex array object set up on the first draw if
+   * {@code isVertexArrayObjectEnabled}. Returns the number of draw calls issued.
+   */
+  int draw(
+          GlStateTracker glState,
+          int positionAttrib,
+          int texCoordAttrib,
+          boolean isVertexArrayObjectEnabled) {
+    if (isVertexArrayObjectEnabled) {
+      if (vertexArrayId == -1) {
+        vertexArrayId =
+                GridMesh.createVertexArrayOnGlThread(
+                        vertexBufferId, indexBuffer, positionAttrib, texCoordAttrib);
+      }
+      glState.bindVertexArray(vertexArrayId);
+      indexBuffer.drawBoundOnGlThread();
+      glState.bindVertexArray(0);
+      return 1;
+    }
+
+    glState.useVertexAttribArrays(1 << positionAttrib | 1 << texCoordAttrib);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBufferId);
+    GridMesh.setVertexAttribPointers(positionAttrib, texCoordAttrib);
+
+    indexBuffer.drawOnGlThread();
+
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+    return 1;
+  }
+
+  private static FloatBuffer allocateFloats(int count) {
+    return ByteBuffer.allocateDirect(count * FLOAT_SIZE)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+  }
+}
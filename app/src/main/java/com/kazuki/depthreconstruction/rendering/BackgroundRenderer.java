@@ -55,6 +55,13 @@ public class BackgroundRenderer {
   private FloatBuffer quadCoords;
   private FloatBuffer quadTexCoords;
 
+  // The quad in vertex buffers, and a vertex array object for each program reading them.
+  private int quadCoordsBufferId;
+  private int quadTexCoordsBufferId;
+  private int cameraVertexArrayId;
+  private int depthVertexArrayId;
+  private volatile boolean isVertexArrayObjectEnabled = true;
+
   private int cameraProgram;
   private int depthProgram;
 
@@ -69,10 +76,22 @@ public class BackgroundRenderer {
   private int depthTextureUniform;
   private int depthTextureId = -1;
 
+  private final GlStateTracker glState;
+
+  public BackgroundRenderer(GlStateTracker glState) {
+    this.glState = glState;
+  }
+
   public int getTextureId() {
     return cameraTextureId;
   }
 
+  /** Adds the camera and depth visualization programs to a warm-up. */
+  public static void addProgramsTo(ShaderWarmUp warmUp) {
+    warmUp.addProgram(CAMERA_VERTEX_SHADER_NAME, CAMERA_FRAGMENT_SHADER_NAME);
+    warmUp.addProgram(DEPTH_VISUALIZER_VERTEX_SHADER_NAME, DEPTH_VISUALIZER_FRAGMENT_SHADER_NAME);
+  }
+
   /**
    * Allocates and initializes OpenGL resources needed by the background renderer. Must be called on
    * the OpenGL thread, typically in {@link GLSurfaceView.Renderer#onSurfaceCreated(GL10,
@@ -110,17 +129,9 @@ public class BackgroundRenderer {
 
     // Load render camera feed shader.
     {
-      int vertexShader =
-              ShaderUtil.loadGLShader(TAG, context, GLES30.GL_VERTEX_SHADER, CAMERA_VERTEX_SHADER_NAME);
-      int fragmentShader =
-              ShaderUtil.loadGLShader(
-                      TAG, context, GLES30.GL_FRAGMENT_SHADER, CAMERA_FRAGMENT_SHADER_NAME);
-
-      cameraProgram = GLES30.glCreateProgram();
-      GLES30.glAttachShader(cameraProgram, vertexShader);
-      GLES30.glAttachShader(cameraProgram, fragmentShader);
-      GLES30.glLinkProgram(cameraProgram);
-      GLES30.glUseProgram(cameraProgram);
+      cameraProgram =
+              ShaderUtil.createProgram(
+                      TAG, context, CAMERA_VERTEX_SHADER_NAME, CAMERA_FRAGMENT_SHADER_NAME);
       cameraPositionAttrib = GLES30.glGetAttribLocation(cameraProgram, "a_Position");
       cameraTexCoordAttrib = GLES30.glGetAttribLocation(cameraProgram, "a_TexCoord");
       ShaderUtil.checkGLError(TAG, "Program creation");
@@ -131,18 +142,12 @@ public class BackgroundRenderer {
 
     // Load render depth map shader.
     {
-      int vertexShader =
-              ShaderUtil.loadGLShader(
-                      TAG, context, GLES30.GL_VERTEX_SHADER, DEPTH_VISUALIZER_VERTEX_SHADER_NAME);
-      int fragmentShader =
-              ShaderUtil.loadGLShader(
-                      TAG, context, GLES30.GL_FRAGMENT_SHADER, DEPTH_VISUALIZER_FRAGMENT_SHADER_NAME);
-
-      depthProgram = GLES30.glCreateProgram();
-      GLES30.glAttachShader(depthProgram, vertexShader);
-      GLES30.glAttachShader(depthProgram, fragmentShader);
-      GLES30.glLinkProgram(depthProgram);
-      GLES30.glUseProgram(depthProgram);
+      depthProgram =
+              ShaderUtil.createProgram(
+                      TAG,
+                      context,
+                      DEPTH_VISUALIZER_VERTEX_SHADER_NAME,
+                      DEPTH_VISUALIZER_FRAGMENT_SHADER_NAME);
       depthPositionAttrib = GLES30.glGetAttribLocation(depthProgram, "a_Position");
       depthTexCoordAttrib = GLES30.glGetAttribLocation(depthProgram, "a_TexCoord");
       ShaderUtil.checkGLError(TAG, "Program creation");
@@ -151,6 +156,31 @@ public class BackgroundRenderer {
       ShaderUtil.checkGLError(TAG, "Program parameters");
     }
 
+    // Upload the positions once; the texture coordinates follow whenever they are transformed.
+    {
+      int[] buffers = new int[2];
+      GLES30.glGenBuffers(2, buffers, 0);
+      quadCoordsBufferId = buffers[0];
+      quadTexCoordsBufferId = buffers[1];
+      GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, quadCoordsBufferId);
+      GLES30.glBufferData(
+              GLES30.GL_ARRAY_BUFFER,
+              QUAD_COORDS.length * FLOAT_SIZE,
+              quadCoords,
+              GLES30.GL_STATIC_DRAW);
+      GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, quadTexCoordsBufferId);
+      GLES30.glBufferData(
+              GLES30.GL_ARRAY_BUFFER,
+              numVertices * TEXCOORDS_PER_VERTEX * FLOAT_SIZE,
+              quadTexCoords,
+              GLES30.GL_DYNAMIC_DRAW);
+      GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+
+      cameraVertexArrayId = createVertexArray(cameraPositionAttrib, cameraTexCoordAttrib);
+      depthVertexArrayId = createVertexArray(depthPositionAttrib, depthTexCoordAttrib);
+      ShaderUtil.checkGLError(TAG, "Vertex array creation");
+    }
+
     this.depthTextureId = depthTextureId;
   }
 
@@ -158,10 +188,23 @@ public class BackgroundRenderer {
     createOnGlThread(context, /*depthTextureId=*/ -1);
   }
 
+  /** Selects the depth texture shown when the depth map visualization is enabled. */
+  public void setDepthTextureId(int depthTextureId) {
+    this.depthTextureId = depthTextureId;
+  }
+
   public void suppressTimestampZeroRendering(boolean suppressTimestampZeroRendering) {
     this.suppressTimestampZeroRendering = suppressTimestampZeroRendering;
   }
 
+  /**
+   * Switches between drawing from vertex buffers through vertex array objects and passing the
+   * client-side coordinate arrays on every draw, for benchmarks. May be called from any thread.
+   */
+  public void setVertexArrayObjectEnabled(boolean enabled) {
+    isVertexArrayObjectEnabled = enabled;
+  }
+
   /**
    * Draws the AR background image. The image will be drawn such that virtual content rendered with
    * the matrices provided by {@link com.google.ar.core.Camera#getViewMatrix(float[], int)} and
@@ -181,6 +224,7 @@ public class BackgroundRenderer {
               quadCoords,
               Coordinates2d.TEXTURE_NORMALIZED,
               quadTexCoords);
+      uploadQuadTexCoords();
       Log.d(TAG, "draw: !!!!!!!!! is changed !!!!!!!!!");
     }
 
@@ -243,6 +287,7 @@ public class BackgroundRenderer {
     // Write image texture coordinates.
     quadTexCoords.position(0);
     quadTexCoords.put(texCoordTransformed);
+    uploadQuadTexCoords();
 
     draw(/*debugShowDepthMap=*/ false);
   }
@@ -256,56 +301,91 @@ public class BackgroundRenderer {
     quadTexCoords.position(0);
 
     // No need to test or write depth, the screen quad has arbitrary depth, and is expected
-    // to be drawn first.
-    GLES30.glDisable(GLES30.GL_DEPTH_TEST);
-    GLES30.glDepthMask(false);
-
-    GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
+    // to be drawn first. Later draws set the depth state they need themselves.
+    glState.disable(GLES30.GL_DEPTH_TEST);
+    glState.depthMask(false);
+    glState.disable(GLES30.GL_BLEND);
 
+    boolean isVertexArrayObject = isVertexArrayObjectEnabled;
     if (debugShowDepthMap) {
-      GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, depthTextureId);
-      GLES30.glUseProgram(depthProgram);
+      glState.bindTexture(0, GLES30.GL_TEXTURE_2D, depthTextureId);
+      glState.useProgram(depthProgram);
       GLES30.glUniform1i(depthTextureUniform, 0);
 
       // Set the vertex positions and texture coordinates.
-      GLES30.glVertexAttribPointer(
-              depthPositionAttrib, COORDS_PER_VERTEX, GLES30.GL_FLOAT, false, 0, quadCoords);
-      GLES30.glVertexAttribPointer(
-              depthTexCoordAttrib, TEXCOORDS_PER_VERTEX, GLES30.GL_FLOAT, false, 0, quadTexCoords);
-      GLES30.glEnableVertexAttribArray(depthPositionAttrib);
-      GLES30.glEnableVertexAttribArray(depthTexCoordAttrib);
+      if (isVertexArrayObject) {
+        glState.bindVertexArray(depthVertexArrayId);
+      } else {
+        glState.useVertexAttribArrays(1 << depthPositionAttrib | 1 << depthTexCoordAttrib);
+        GLES30.glVertexAttribPointer(
+                depthPositionAttrib, COORDS_PER_VERTEX, GLES30.GL_FLOAT, false, 0, quadCoords);
+        GLES30.glVertexAttribPointer(
+                depthTexCoordAttrib,
+                TEXCOORDS_PER_VERTEX,
+                GLES30.GL_FLOAT,
+                false,
+                0,
+                quadTexCoords);
+      }
     } else {
-      GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTextureId);
-      GLES30.glUseProgram(cameraProgram);
+      glState.bindTexture(0, GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTextureId);
+      glState.useProgram(cameraProgram);
       GLES30.glUniform1i(cameraTextureUniform, 0);
 
       // Set the vertex positions and texture coordinates.
-      GLES30.glVertexAttribPointer(
-              cameraPositionAttrib, COORDS_PER_VERTEX, GLES30.GL_FLOAT, false, 0, quadCoords);
-      GLES30.glVertexAttribPointer(
-              cameraTexCoordAttrib, TEXCOORDS_PER_VERTEX, GLES30.GL_FLOAT, false, 0, quadTexCoords);
-      GLES30.glEnableVertexAttribArray(cameraPositionAttrib);
-      GLES30.glEnableVertexAttribArray(cameraTexCoordAttrib);
+      if (isVertexArrayObject) {
+        glState.bindVertexArray(cameraVertexArrayId);
+      } else {
+        glState.useVertexAttribArrays(1 << cameraPositionAttrib | 1 << cameraTexCoordAttrib);
+        GLES30.glVertexAttribPointer(
+                cameraPositionAttrib, COORDS_PER_VERTEX, GLES30.GL_FLOAT, false, 0, quadCoords);
+        GLES30.glVertexAttribPointer(
+                cameraTexCoordAttrib,
+                TEXCOORDS_PER_VERTEX,
+                GLES30.GL_FLOAT,
+                false,
+                0,
+                quadTexCoords);
+      }
     }
 
     GLES30.glDrawArrays(GLES30.GL_TRIANGLE_STRIP, 0, 4);
-
-    // Disable vertex arrays
-    if (debugShowDepthMap) {
-      GLES30.glDisableVertexAttribArray(depthPositionAttrib);
-      GLES30.glDisableVertexAttribArray(depthTexCoordAttrib);
-    } else {
-      GLES30.glDisableVertexAttribArray(cameraPositionAttrib);
-      GLES30.glDisableVertexAttribArray(cameraTexCoordAttrib);
+    if (isVertexArrayObject) {
+      glState.bindVertexArray(0);
     }
 
-    // Restore the depth state for further drawing.
-    GLES30.glDepthMask(true);
-    GLES30.glEnable(GLES30.GL_DEPTH_TEST);
-
     ShaderUtil.checkGLError(TAG, "BackgroundRendererDraw");
   }
 
+  /** Copies the transformed texture coordinates to their vertex buffer. */
+  private void uploadQuadTexCoords() {
+    quadTexCoords.position(0);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, quadTexCoordsBufferId);
+    GLES30.glBufferSubData(
+            GLES30.GL_ARRAY_BUFFER, 0, quadTexCoords.capacity() * FLOAT_SIZE, quadTexCoords);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+  }
+
+  /**
+   * Creates a vertex array object reading the quad's vertex buffers into the given attributes, and
+   * leaves the default one bound.
+   */
+  private int createVertexArray(int positionAttrib, int texCoordAttrib) {
+    int[] vertexArrays = new int[1];
+    GLES30.glGenVertexArrays(1, vertexArrays, 0);
+    GLES30.glBindVertexArray(vertexArrays[0]);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, quadCoordsBufferId);
+    GLES30.glVertexAttribPointer(positionAttrib, COORDS_PER_VERTEX, GLES30.GL_FLOAT, false, 0, 0);
+    GLES30.glEnableVertexAttribArray(positionAttrib);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, quadTexCoordsBufferId);
+    GLES30.glVertexAttribPointer(
+            texCoordAttrib, TEXCOORDS_PER_VERTEX, GLES30.GL_FLOAT, false, 0, 0);
+    GLES30.glEnableVertexAttribArray(texCoordAttrib);
+    GLES30.glBindVertexArray(0);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+    return vertexArrays[0];
+  }
+
   /**
    * (-1, 1) ------- (1, 1)
    *   |    \           |
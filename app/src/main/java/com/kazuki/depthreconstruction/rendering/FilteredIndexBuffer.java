@@ -0,0 +1,115 @@
+package com.kazuki.depthreconstruction.rendering;
+
+import android.opengl.GLES30;
+
+import com.kazuki.depthreconstruction.depth.mesh.StretchedTriangleFilter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * An index buffer object mirroring the slots of a {@link StretchedTriangleFilter}. Only the slots
+ * the filter reports as changed are uploaded, adjacent ones merged into one {@code
+ * glBufferSubData} call.
+ */
+final class FilteredIndexBuffer {
+  private static final String TAG = FilteredIndexBuffer.class.getSimpleName();
+
+  private static final int SHORT_SIZE = 2;
+
+  private final StretchedTriangleFilter filter;
+  private final ShortBuffer staging;
+  private int bufferId = -1;
+
+  private long uploadedIndexCount = 0;
+
+  FilteredIndexBuffer(StretchedTriangleFilter filter) {
+    this.filter = filter;
+    staging =
+            ByteBuffer.allocateDirect(getIndexCount() * SHORT_SIZE)
+                    .order(ByteOrder.nativeOrder())
+                    .asShortBuffer();
+  }
+
+  StretchedTriangleFilter getFilter() {
+    return filter;
+  }
+
+  /** Returns the number of indices in the buffer, degenerate padding included. */
+  int getIndexCount() {
+    return filter.getSlotCount() * filter.getIndicesPerSlot();
+  }
+
+  /** Returns the number of indices uploaded since creation, for profiling. */
+  long getUploadedIndexCount() {
+    return uploadedIndexCount;
+  }
+
+  void createOnGlThread() {
+    int[] buffers = new int[1];
+    GLES30.glGenBuffers(1, buffers, 0);
+    bufferId = buffers[0];
+
+    staging.put(filter.getIndices());
+    staging.position(0);
+    GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, bufferId);
+    GLES30.glBufferData(
+            GLES30.GL_ELEMENT_ARRAY_BUFFER,
+            getIndexCount() * SHORT_SIZE,
+            staging,
+            GLES30.GL_DYNAMIC_DRAW);
+    GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
+    filter.clearChangedSlots();
+
+    ShaderUtil.checkGLError(TAG, "Index buffer creation");
+  }
+
+  /** Uploads the slots that changed since the last upload. */
+  void uploadChangedSlotsOnGlThread() {
+    int changedCount = filter.getChangedSlotCount();
+    if (changedCount == 0) {
+      return;
+    }
+    short[] indices = filter.getIndices();
+    int indicesPerSlot = filter.getIndicesPerSlot();
+    GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, bufferId);
+    int i = 0;
+    while (i < changedCount) {
+      int firstSlot = filter.getChangedSlot(i);
+      int lastSlot = firstSlot;
+      while (i + 1 < changedCount && filter.getChangedSlot(i + 1) == lastSlot + 1) {
+        lastSlot = filter.getChangedSlot(++i);
+      }
+      i++;
+      int offset = firstSlot * indicesPerSlot;
+      int count = (lastSlot - firstSlot + 1) * indicesPerSlot;
+      staging.position(offset);
+      staging.put(indices, offset, count);
+      staging.position(offset);
+      GLES30.glBufferSubData(
+              GLES30.GL_ELEMENT_ARRAY_BUFFER, offset * SHORT_SIZE, count * SHORT_SIZE, staging);
+      uploadedIndexCount += count;
+    }
+    staging.position(0);
+    GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
+    filter.clearChangedSlots();
+  }
+
+  /** Draws all triangles in the buffer with the currently bound vertex attributes. */
+  void drawOnGlThread() {
+    bindOnGlThread();
+    drawBoundOnGlThread();
+    GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
+  }
+
+  /** Binds the buffer as the element array buffer, to record it in a vertex array object. */
+  void bindOnGlThread() {
+    GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, bufferId);
+  }
+
+  /** Draws all triangles with the buffer already bound, by a vertex array object. */
+  void drawBoundOnGlThread() {
+    GLES30.glDrawElements(GLES30.GL_TRIANGLES, getIndexCount(), GLES30.GL_UNSIGNED_SHORT, 0);
+  }
+}
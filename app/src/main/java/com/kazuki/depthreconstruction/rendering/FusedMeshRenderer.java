@@ -0,0 +1,315 @@
+package com.kazuki.depthreconstruction.rendering;
+
+import android.content.Context;
+import android.opengl.GLES30;
+import android.opengl.Matrix;
+
+import com.kazuki.depthreconstruction.depth.mesh.IncrementalMesher;
+import com.kazuki.depthreconstruction.depth.mesh.MeshChunk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Draws the mesh of the fused volume from the chunks of an {@link IncrementalMesher}.
+ *
+ * <p>Every block with a surface gets a slot of fixed size in a page of vertex and index buffers, so
+ * a changed chunk is uploaded with {@code glBufferSubData} into its own slot and the rest of the
+ * mesh stays untouched. Unused indices of a slot are degenerate, and each page is drawn with one
+ * call. Chunks larger than a slot are drawn truncated.
+ */
+public class FusedMeshRenderer {
+  private static final String TAG = FusedMeshRenderer.class.getSimpleName();
+
+  // Shader names.
+  private static final String VERTEX_SHADER_NAME = "shaders/fused_mesh.vert";
+  private static final String FRAGMENT_SHADER_NAME = "shaders/fused_mesh.frag";
+
+  // A page holds exactly as many vertices as unsigned short indices can address.
+  private static final int SLOTS_PER_PAGE = 128;
+  private static final int VERTICES_PER_SLOT = 512;
+  private static final int INDICES_PER_SLOT = 3 * 1024;
+
+  // Position as 3 floats, normal as 3 normalized bytes and a padding byte.
+  private static final int VERTEX_STRIDE = 16;
+  private static final int NORMAL_OFFSET = 12;
+  private static final int SHORT_SIZE = 2;
+
+  private static final float OPACITY = 0.85f;
+
+  /** Vertex and index buffers of {@link #SLOTS_PER_PAGE} slots. */
+  private static final class Page {
+    int vertexBufferId;
+    int indexBufferId;
+    // One past the highest slot of the page ever used, which bounds the draw.
+    int usedSlotCount = 0;
+  }
+
+  private final List<Page> pages = new ArrayList<>();
+  // Slot of every block, or -1.
+  private int[] blockSlots = new int[0];
+  private int[] slotIndexCounts = new int[0];
+  private int slotCount = 0;
+  private int[] freeSlots = new int[0];
+  private int freeSlotCount = 0;
+
+  private final ByteBuffer vertexStaging =
+          ByteBuffer.allocateDirect(VERTICES_PER_SLOT * VERTEX_STRIDE)
+                  .order(ByteOrder.nativeOrder());
+  private final ShortBuffer indexStaging =
+          ByteBuffer.allocateDirect(INDICES_PER_SLOT * SHORT_SIZE)
+                  .order(ByteOrder.nativeOrder())
+                  .asShortBuffer();
+  private final IncrementalMesher.ChunkConsumer uploadChunk = this::uploadChunkOnGlThread;
+
+  private final float[] modelViewProjection = new float[16];
+
+  private int program;
+  private int positionAttrib;
+  private int normalAttrib;
+  private int modelViewProjectionUniform;
+  private int opacityUniform;
+
+  private int truncatedChunkCount = 0;
+  private long uploadedBytes = 0;
+
+  private final GlStateTracker glState;
+
+  public FusedMeshRenderer(GlStateTracker glState) {
+    this.glState = glState;
+  }
+
+  /** Adds the mesh program to a warm-up. */
+  public static void addProgramsTo(ShaderWarmUp warmUp) {
+    warmUp.addProgram(VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME);
+  }
+
+  public void createOnGlThread(Context context) throws IOException {
+    program = ShaderUtil.createProgram(TAG, context, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME);
+    positionAttrib = GLES30.glGetAttribLocation(program, "a_Position");
+    normalAttrib = GLES30.glGetAttribLocation(program, "a_Normal");
+    modelViewProjectionUniform = GLES30.glGetUniformLocation(program, "u_ModelViewProjection");
+    opacityUniform = GLES30.glGetUniformLocation(program, "u_Opacity");
+    ShaderUtil.checkGLError(TAG, "Program creation");
+  }
+
+  /** Returns the number of pages, each one draw call. */
+  public int getPageCount() {
+    return pages.size();
+  }
+
+  /** Returns the number of blocks with a surface. */
+  public int getChunkCount() {
+    return slotCount - freeSlotCount;
+  }
+
+  /** Returns the number of chunk uploads that did not fit their slot. */
+  public int getTruncatedChunkCount() {
+    return truncatedChunkCount;
+  }
+
+  /** Returns the bytes uploaded since creation, for profiling. */
+  public long getUploadedBytes() {
+    return uploadedBytes;
+  }
+
+  /** Uploads the chunks that changed since the last call. */
+  public void updateOnGlThread(IncrementalMesher mesher) {
+    mesher.drainChangedChunks(uploadChunk);
+  }
+
+  /**
+   * Draws the mesh.
+   *
+   * @param viewMatrix The camera's view matrix.
+   * @param projectionMatrix The camera's projection matrix.
+   */
+  public void draw(float[] viewMatrix, float[] projectionMatrix) {
+    if (pages.isEmpty()) {
+      return;
+    }
+    // The mesh is in world space.
+    Matrix.multiplyMM(modelViewProjection, 0, projectionMatrix, 0, viewMatrix, 0);
+
+    glState.enable(GLES30.GL_DEPTH_TEST);
+    glState.depthMask(true);
+    glState.enable(GLES30.GL_BLEND);
+    glState.blendFunc(GLES30.GL_SRC_ALPHA, GLES30.GL_ONE_MINUS_SRC_ALPHA);
+    glState.useProgram(program);
+    GLES30.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjection, 0);
+    GLES30.glUniform1f(opacityUniform, OPACITY);
+    glState.useVertexAttribArrays(1 << positionAttrib | 1 << normalAttrib);
+
+    for (Page page : pages) {
+      GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, page.vertexBufferId);
+      GLES30.glVertexAttribPointer(
+              positionAttrib, 3, GLES30.GL_FLOAT, false, VERTEX_STRIDE, 0);
+      GLES30.glVertexAttribPointer(
+              normalAttrib, 3, GLES30.GL_BYTE, true, VERTEX_STRIDE, NORMAL_OFFSET);
+      GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, page.indexBufferId);
+      GLES30.glDrawElements(
+              GLES30.GL_TRIANGLES,
+              page.usedSlotCount * INDICES_PER_SLOT,
+              GLES30.GL_UNSIGNED_SHORT,
+              0);
+    }
+
+    GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+
+    ShaderUtil.checkGLError(TAG, "Fused mesh draw");
+  }
+
+  private void uploadChunkOnGlThread(int block, MeshChunk chunk) {
+    if (block >= blockSlots.length) {
+      int oldLength = blockSlots.length;
+      blockSlots = Arrays.copyOf(blockSlots, Math.max(256, Math.max(block + 1, oldLength * 2)));
+      Arrays.fill(blockSlots, oldLength, blockSlots.length, -1);
+    }
+    int slot = blockSlots[block];
+    if (chunk.isEmpty()) {
+      if (slot >= 0) {
+        clearSlotOnGlThread(slot);
+        freeSlots[freeSlotCount++] = slot;
+        blockSlots[block] = -1;
+      }
+      return;
+    }
+    if (slot < 0) {
+      slot = allocateSlotOnGlThread();
+      blockSlots[block] = slot;
+    }
+
+    Page page = pages.get(slot / SLOTS_PER_PAGE);
+    int slotInPage = slot % SLOTS_PER_PAGE;
+    int baseVertex = slotInPage * VERTICES_PER_SLOT;
+    int vertexCount = Math.min(chunk.getVertexCount(), VERTICES_PER_SLOT);
+
+    float[] positions = chunk.getPositions();
+    float[] normals = chunk.getNormals();
+    vertexStaging.clear();
+    for (int i = 0; i < vertexCount * 3; i += 3) {
+      vertexStaging.putFloat(positions[i]);
+      vertexStaging.putFloat(positions[i + 1]);
+      vertexStaging.putFloat(positions[i + 2]);
+      vertexStaging.put((byte) Math.round(normals[i] * 127.0f));
+      vertexStaging.put((byte) Math.round(normals[i + 1] * 127.0f));
+      vertexStaging.put((byte) Math.round(normals[i + 2] * 127.0f));
+      vertexStaging.put((byte) 0);
+    }
+    vertexStaging.flip();
+
+    // Triangles referring to vertices beyond the slot are dropped.
+    short[] indices = chunk.getIndices();
+    indexStaging.clear();
+    int chunkIndexCount = chunk.getIndexCount();
+    for (int i = 0; i < chunkIndexCount && indexStaging.position() < INDICES_PER_SLOT; i += 3) {
+      int a = indices[i] & 0xFFFF;
+      int b = indices[i + 1] & 0xFFFF;
+      int c = indices[i + 2] & 0xFFFF;
+      if (a < vertexCount && b < vertexCount && c < vertexCount) {
+        indexStaging.put((short) (baseVertex + a));
+        indexStaging.put((short) (baseVertex + b));
+        indexStaging.put((short) (baseVertex + c));
+      }
+    }
+    int indexCount = indexStaging.position();
+    if (indexCount < chunk.getIndexCount()) {
+      truncatedChunkCount++;
+    }
+    // Only the indices the previous chunk of the slot used need to be made degenerate.
+    int uploadIndexCount = Math.max(indexCount, slotIndexCounts[slot]);
+    while (indexStaging.position() < uploadIndexCount) {
+      indexStaging.put((short) baseVertex);
+    }
+    indexStaging.flip();
+    slotIndexCounts[slot] = indexCount;
+
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, page.vertexBufferId);
+    GLES30.glBufferSubData(
+            GLES30.GL_ARRAY_BUFFER,
+            baseVertex * VERTEX_STRIDE,
+            vertexCount * VERTEX_STRIDE,
+            vertexStaging);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+    GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, page.indexBufferId);
+    GLES30.glBufferSubData(
+            GLES30.GL_ELEMENT_ARRAY_BUFFER,
+            slotInPage * INDICES_PER_SLOT * SHORT_SIZE,
+            uploadIndexCount * SHORT_SIZE,
+            indexStaging);
+    GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
+    uploadedBytes += vertexCount * VERTEX_STRIDE + uploadIndexCount * SHORT_SIZE;
+  }
+
+  /** Makes every index of the slot degenerate. */
+  private void clearSlotOnGlThread(int slot) {
+    Page page = pages.get(slot / SLOTS_PER_PAGE);
+    int slotInPage = slot % SLOTS_PER_PAGE;
+    int count = slotIndexCounts[slot];
+    indexStaging.clear();
+    for (int i = 0; i < count; i++) {
+      indexStaging.put((short) (slotInPage * VERTICES_PER_SLOT));
+    }
+    indexStaging.flip();
+    GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, page.indexBufferId);
+    GLES30.glBufferSubData(
+            GLES30.GL_ELEMENT_ARRAY_BUFFER,
+            slotInPage * INDICES_PER_SLOT * SHORT_SIZE,
+            count * SHORT_SIZE,
+            indexStaging);
+    GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
+    slotIndexCounts[slot] = 0;
+    uploadedBytes += count * SHORT_SIZE;
+  }
+
+  private int allocateSlotOnGlThread() {
+    if (freeSlotCount > 0) {
+      return freeSlots[--freeSlotCount];
+    }
+    if (slotCount == pages.size() * SLOTS_PER_PAGE) {
+      pages.add(createPageOnGlThread());
+      int capacity = pages.size() * SLOTS_PER_PAGE;
+      slotIndexCounts = Arrays.copyOf(slotIndexCounts, capacity);
+      freeSlots = Arrays.copyOf(freeSlots, capacity);
+    }
+    int slot = slotCount++;
+    Page page = pages.get(slot / SLOTS_PER_PAGE);
+    page.usedSlotCount = Math.max(page.usedSlotCount, slot % SLOTS_PER_PAGE + 1);
+    return slot;
+  }
+
+  /** Creates a page whose indices are all degenerate. */
+  private static Page createPageOnGlThread() {
+    Page page = new Page();
+    int[] buffers = new int[2];
+    GLES30.glGenBuffers(2, buffers, 0);
+    page.vertexBufferId = buffers[0];
+    page.indexBufferId = buffers[1];
+
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, page.vertexBufferId);
+    GLES30.glBufferData(
+            GLES30.GL_ARRAY_BUFFER,
+            SLOTS_PER_PAGE * VERTICES_PER_SLOT * VERTEX_STRIDE,
+            null,
+            GLES30.GL_DYNAMIC_DRAW);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+
+    // Zero filled memory makes every triangle degenerate at vertex 0.
+    GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, page.indexBufferId);
+    GLES30.glBufferData(
+            GLES30.GL_ELEMENT_ARRAY_BUFFER,
+            SLOTS_PER_PAGE * INDICES_PER_SLOT * SHORT_SIZE,
+            ByteBuffer.allocateDirect(SLOTS_PER_PAGE * INDICES_PER_SLOT * SHORT_SIZE),
+            GLES30.GL_DYNAMIC_DRAW);
+    GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+    ShaderUtil.checkGLError(TAG, "Fused mesh page creation");
+    return page;
+  }
+}
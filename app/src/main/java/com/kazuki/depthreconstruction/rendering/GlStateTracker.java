@@ -0,0 +1,304 @@
+package com.kazuki.depthreconstruction.rendering;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the GL state the renderers set, so that calls setting a value that is already current
+ * can be skipped. Renderers state what they need before drawing instead of restoring what they
+ * changed afterwards, and the calls that do not change anything are elided.
+ *
+ * <p>The tracker only knows about changes made through it. Code that changes tracked state
+ * directly must be followed by {@link #invalidate()} or {@link #invalidateTextureBindings()}; in
+ * particular, ARCore and texture uploads bind textures on their own. Enabled vertex attribute
+ * arrays are tracked for the default vertex array object only. Other vertex array objects record
+ * theirs when they are set up and must be unbound after drawing, since buffer uploads elsewhere
+ * bind element buffers into whichever vertex array object is bound.
+ *
+ * <p>In validation mode, every elided call first checks the cached value against {@code glGet*}
+ * and logs a mismatch, which finds missing invalidations at the cost of a pipeline stall per call,
+ * and issues the call after all; it is meant for debug builds only. Must only be used on the GL
+ * thread.
+ */
+public final class GlStateTracker {
+  private static final String TAG = GlStateTracker.class.getSimpleName();
+
+  // Marks state that is not known, so that the next call is always issued.
+  private static final int UNKNOWN = -1;
+  // Capabilities and texture units the tracker caches.
+  private static final int[] CAPABILITIES = {
+    GLES30.GL_DEPTH_TEST, GLES30.GL_BLEND, GLES30.GL_CULL_FACE
+  };
+  private static final int TEXTURE_UNIT_COUNT = 8;
+  private static final int[] TEXTURE_TARGETS = {
+    GLES30.GL_TEXTURE_2D, GLES11Ext.GL_TEXTURE_EXTERNAL_OES
+  };
+  private static final int[] TEXTURE_BINDINGS = {
+    GLES30.GL_TEXTURE_BINDING_2D, GLES11Ext.GL_TEXTURE_BINDING_EXTERNAL_OES
+  };
+  private static final int VERTEX_ATTRIB_COUNT = 16;
+
+  // 1 enabled, 0 disabled, or UNKNOWN, indexed like CAPABILITIES.
+  private final int[] capabilities = new int[CAPABILITIES.length];
+  private int depthMask;
+  private int blendSource;
+  private int blendDestination;
+  private int program;
+  private int activeTexture;
+  private int vertexArray;
+  // Bound texture per unit and target, indexed by unit * TEXTURE_TARGETS.length + target.
+  private final int[] textures = new int[TEXTURE_UNIT_COUNT * TEXTURE_TARGETS.length];
+  // Bit i is set if vertex attribute array i is enabled; only valid if the mask is known.
+  private int enabledVertexAttribArrays;
+  private boolean isVertexAttribMaskKnown;
+
+  private boolean isValidationEnabled = false;
+  private int issuedCallCount = 0;
+  private int elidedCallCount = 0;
+  private int lastFrameIssuedCallCount = 0;
+  private int lastFrameElidedCallCount = 0;
+
+  public GlStateTracker() {
+    invalidate();
+  }
+
+  /** Checks every elided call against the actual GL state. */
+  public void setValidationEnabled(boolean isValidationEnabled) {
+    this.isValidationEnabled = isValidationEnabled;
+  }
+
+  /** Forgets all state, for example for a new context. */
+  public void invalidate() {
+    Arrays.fill(capabilities, UNKNOWN);
+    depthMask = UNKNOWN;
+    blendSource = UNKNOWN;
+    blendDestination = UNKNOWN;
+    program = UNKNOWN;
+    activeTexture = UNKNOWN;
+    vertexArray = UNKNOWN;
+    isVertexAttribMaskKnown = false;
+    invalidateTextureBindings();
+  }
+
+  /** Forgets the bound textures, after textures were bound without the tracker. */
+  public void invalidateTextureBindings() {
+    Arrays.fill(textures, UNKNOWN);
+  }
+
+  /** Starts counting calls for a new frame. */
+  public void beginFrame() {
+    lastFrameIssuedCallCount = issuedCallCount;
+    lastFrameElidedCallCount = elidedCallCount;
+    issuedCallCount = 0;
+    elidedCallCount = 0;
+  }
+
+  /** Returns the number of GL calls issued through the tracker in the last complete frame. */
+  public int getLastFrameIssuedCallCount() {
+    return lastFrameIssuedCallCount;
+  }
+
+  /** Returns the number of GL calls skipped in the last complete frame. */
+  public int getLastFrameElidedCallCount() {
+    return lastFrameElidedCallCount;
+  }
+
+  public void enable(int capability) {
+    setCapability(capability, true);
+  }
+
+  public void disable(int capability) {
+    setCapability(capability, false);
+  }
+
+  public void depthMask(boolean isEnabled) {
+    int value = isEnabled ? 1 : 0;
+    if (depthMask == value
+            && !(isValidationEnabled
+                    && isStale("depth mask", value, getBoolean(GLES30.GL_DEPTH_WRITEMASK)))) {
+      elidedCallCount++;
+      return;
+    }
+    GLES30.glDepthMask(isEnabled);
+    depthMask = value;
+    issuedCallCount++;
+  }
+
+  public void blendFunc(int source, int destination) {
+    if (blendSource == source
+            && blendDestination == destination
+            && !(isValidationEnabled
+                    && isStale("blend source", source, getInteger(GLES30.GL_BLEND_SRC_RGB)))
+            && !(isValidationEnabled
+                    && isStale(
+                            "blend destination",
+                            destination,
+                            getInteger(GLES30.GL_BLEND_DST_RGB)))) {
+      elidedCallCount++;
+      return;
+    }
+    GLES30.glBlendFunc(source, destination);
+    blendSource = source;
+    blendDestination = destination;
+    issuedCallCount++;
+  }
+
+  public void useProgram(int program) {
+    if (this.program == program
+            && !(isValidationEnabled
+                    && isStale("program", program, getInteger(GLES30.GL_CURRENT_PROGRAM)))) {
+      elidedCallCount++;
+      return;
+    }
+    GLES30.glUseProgram(program);
+    this.program = program;
+    issuedCallCount++;
+  }
+
+  /** Binds a texture to a unit, making that unit active. */
+  public void bindTexture(int unit, int target, int texture) {
+    activeTexture(GLES30.GL_TEXTURE0 + unit);
+    int targetIndex = indexOf(TEXTURE_TARGETS, target);
+    if (targetIndex < 0 || unit >= TEXTURE_UNIT_COUNT) {
+      GLES30.glBindTexture(target, texture);
+      issuedCallCount++;
+      return;
+    }
+    int binding = unit * TEXTURE_TARGETS.length + targetIndex;
+    if (textures[binding] == texture
+            && !(isValidationEnabled
+                    && isStale("texture", texture, getInteger(TEXTURE_BINDINGS[targetIndex])))) {
+      elidedCallCount++;
+      return;
+    }
+    GLES30.glBindTexture(target, texture);
+    textures[binding] = texture;
+    issuedCallCount++;
+  }
+
+  /** Binds a vertex array object, or the default one for 0. */
+  public void bindVertexArray(int vertexArray) {
+    if (this.vertexArray == vertexArray
+            && !(isValidationEnabled
+                    && isStale(
+                            "vertex array",
+                            vertexArray,
+                            getInteger(GLES30.GL_VERTEX_ARRAY_BINDING)))) {
+      elidedCallCount++;
+      return;
+    }
+    GLES30.glBindVertexArray(vertexArray);
+    this.vertexArray = vertexArray;
+    issuedCallCount++;
+  }
+
+  /**
+   * Binds the default vertex array object and enables exactly the vertex attribute arrays whose
+   * bits are set, disabling any other that is enabled.
+   */
+  public void useVertexAttribArrays(int attribMask) {
+    bindVertexArray(0);
+    for (int attrib = 0; attrib < VERTEX_ATTRIB_COUNT; attrib++) {
+      int value = attribMask >> attrib & 1;
+      if (isVertexAttribMaskKnown
+              && (enabledVertexAttribArrays >> attrib & 1) == value
+              && !(isValidationEnabled
+                      && isStale(
+                              "vertex attrib array " + attrib,
+                              value,
+                              getVertexAttribEnabled(attrib)))) {
+        // Arrays that stay disabled are not counted; nobody would have disabled them.
+        if (value == 1) {
+          elidedCallCount++;
+        }
+        continue;
+      }
+      if (value == 1) {
+        GLES30.glEnableVertexAttribArray(attrib);
+      } else {
+        GLES30.glDisableVertexAttribArray(attrib);
+      }
+      issuedCallCount++;
+    }
+    enabledVertexAttribArrays = attribMask;
+    isVertexAttribMaskKnown = true;
+  }
+
+  private void activeTexture(int textureUnit) {
+    if (activeTexture == textureUnit
+            && !(isValidationEnabled
+                    && isStale(
+                            "active texture",
+                            textureUnit,
+                            getInteger(GLES30.GL_ACTIVE_TEXTURE)))) {
+      elidedCallCount++;
+      return;
+    }
+    GLES30.glActiveTexture(textureUnit);
+    activeTexture = textureUnit;
+    issuedCallCount++;
+  }
+
+  private void setCapability(int capability, boolean isEnabled) {
+    int index = indexOf(CAPABILITIES, capability);
+    int value = isEnabled ? 1 : 0;
+    if (index >= 0
+            && capabilities[index] == value
+            && !(isValidationEnabled
+                    && isStale(
+                            "capability " + capability,
+                            value,
+                            GLES30.glIsEnabled(capability) ? 1 : 0))) {
+      elidedCallCount++;
+      return;
+    }
+    if (isEnabled) {
+      GLES30.glEnable(capability);
+    } else {
+      GLES30.glDisable(capability);
+    }
+    if (index >= 0) {
+      capabilities[index] = value;
+    }
+    issuedCallCount++;
+  }
+
+  /** Logs a cached value that does not match the GL state, which is then set again. */
+  private static boolean isStale(String state, int cached, int actual) {
+    if (cached == actual) {
+      return false;
+    }
+    Log.e(TAG, "Stale " + state + ": cached " + cached + " but GL has " + actual);
+    return true;
+  }
+
+  private static int getInteger(int name) {
+    int[] value = new int[1];
+    GLES30.glGetIntegerv(name, value, 0);
+    return value[0];
+  }
+
+  private static int getBoolean(int name) {
+    boolean[] value = new boolean[1];
+    GLES30.glGetBooleanv(name, value, 0);
+    return value[0] ? 1 : 0;
+  }
+
+  private static int getVertexAttribEnabled(int attrib) {
+    int[] value = new int[1];
+    GLES30.glGetVertexAttribiv(attrib, GLES30.GL_VERTEX_ATTRIB_ARRAY_ENABLED, value, 0);
+    return value[0] != 0 ? 1 : 0;
+  }
+
+  private static int indexOf(int[] values, int value) {
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,333 @@
+package com.kazuki.depthreconstruction.rendering;
+
+import android.opengl.GLES30;
+
+import com.google.ar.core.Coordinates2d;
+import com.google.ar.core.Frame;
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.mesh.StretchedTriangleFilter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A grid of rows x cols quads over a rectangle in normalized device coordinates. Vertices are
+ * interleaved as (x, y, u, v) in a vertex buffer object and the triangles are indexed with
+ * unsigned shorts in an index buffer object, so the grid can have at most 65536 vertices.
+ *
+ * <p>The index buffer is split into bands of rows. When new depth moves the vertices of a band, the
+ * band's triangles are filtered again by a {@link StretchedTriangleFilter} and only the bands whose
+ * triangles changed are uploaded.
+ */
+final class GridMesh {
+  private static final String TAG = GridMesh.class.getSimpleName();
+
+  private static final int FLOAT_SIZE = 4;
+  static final int COORDS_PER_VERTEX = 2;
+  static final int TEXCOORDS_PER_VERTEX = 2;
+  static final int FLOATS_PER_VERTEX = COORDS_PER_VERTEX + TEXCOORDS_PER_VERTEX;
+  static final int VERTEX_STRIDE = FLOATS_PER_VERTEX * FLOAT_SIZE;
+  static final int MAX_VERTICES = 1 << 16;
+  private static final int ROWS_PER_BAND = 8;
+  // Vertex depth changes below this do not trigger filtering the band again.
+  private static final int DEPTH_CHANGE_MILLIMETERS = 10;
+
+  private final int rows;
+  private final int cols;
+  private final int vertexCount;
+
+  // Positions alone, as Frame.transformCoordinates2d expects them, and the matching texture
+  // coordinates.
+  private final FloatBuffer positions;
+  private final FloatBuffer texCoords;
+  private final FloatBuffer vertices;
+  // Unfiltered triangles, row by row.
+  private final short[] indices;
+  private final FilteredIndexBuffer indexBuffer;
+
+  private int vertexBufferId = -1;
+  // Set up on the first draw through a vertex array object.
+  private int vertexArrayId = -1;
+
+  // Depth of every vertex when its band was last filtered, and as sampled from the latest depth.
+  private final int[] vertexDepth;
+  private final int[] sampledDepth;
+  private final boolean[] isBandDirty;
+  private boolean areAllBandsDirty = true;
+
+  // Display geometry the texture coordinates were last transformed for, -1 before the first time.
+  private int texCoordsGeneration = -1;
+
+  GridMesh(
+          int rows,
+          int cols,
+          float left,
+          float bottom,
+          float right,
+          float top,
+          int maxSpreadMillimeters) {
+    if (rows < 1 || cols < 1 || (rows + 1) * (cols + 1) > MAX_VERTICES) {
+      throw new IllegalArgumentException("Unsupported grid size: " + rows + "x" + cols);
+    }
+    this.rows = rows;
+    this.cols = cols;
+    this.vertexCount = (rows + 1) * (cols + 1);
+    int indexCount = rows * cols * 6;
+
+    positions = allocateFloats(vertexCount * COORDS_PER_VERTEX);
+    texCoords = allocateFloats(vertexCount * TEXCOORDS_PER_VERTEX);
+    vertices = allocateFloats(vertexCount * FLOATS_PER_VERTEX);
+    for (int row = 0; row <= rows; row++) {
+      float y = bottom + (top - bottom) * row / rows;
+      for (int col = 0; col <= cols; col++) {
+        positions.put(left + (right - left) * col / cols).put(y);
+      }
+    }
+    positions.position(0);
+
+    indices = new short[indexCount];
+    int i = 0;
+    for (int row = 0; row < rows; row++) {
+      for (int col = 0; col < cols; col++) {
+        int bottomLeft = row * (cols + 1) + col;
+        int topLeft = bottomLeft + cols + 1;
+        indices[i++] = (short) bottomLeft;
+        indices[i++] = (short) (bottomLeft + 1);
+        indices[i++] = (short) topLeft;
+        indices[i++] = (short) topLeft;
+        indices[i++] = (short) (bottomLeft + 1);
+        indices[i++] = (short) (topLeft + 1);
+      }
+    }
+
+    int bandCount = (rows + ROWS_PER_BAND - 1) / ROWS_PER_BAND;
+    StretchedTriangleFilter filter =
+            new StretchedTriangleFilter(
+                    bandCount, ROWS_PER_BAND * cols * 6, maxSpreadMillimeters);
+    // Every triangle is kept until there is depth.
+    for (int band = 0; band < bandCount; band++) {
+      filterBand(filter, band, null);
+    }
+    indexBuffer = new FilteredIndexBuffer(filter);
+    vertexDepth = new int[vertexCount];
+    sampledDepth = new int[vertexCount];
+    isBandDirty = new boolean[bandCount];
+  }
+
+  int getRows() {
+    return rows;
+  }
+
+  int getCols() {
+    return cols;
+  }
+
+  int getVertexCount() {
+    return vertexCount;
+  }
+
+  /** Returns the number of triangles drawn, after dropping stretched ones. */
+  int getTriangleCount() {
+    return indexBuffer.getFilter().getTriangleCount();
+  }
+
+  int getDroppedTriangleCount() {
+    return indexBuffer.getFilter().getDroppedTriangleCount();
+  }
+
+  long getUploadedIndexCount() {
+    return indexBuffer.getUploadedIndexCount();
+  }
+
+  /** Sets the largest depth spread of a drawn triangle. Takes effect on the next depth update. */
+  void setMaxSpreadMillimeters(int maxSpreadMillimeters) {
+    StretchedTriangleFilter filter = indexBuffer.getFilter();
+    if (filter.getMaxSpreadMillimeters() != maxSpreadMillimeters) {
+      filter.setMaxSpreadMillimeters(maxSpreadMillimeters);
+      areAllBandsDirty = true;
+    }
+  }
+
+  void createOnGlThread() {
+    int[] buffers = new int[1];
+    GLES30.glGenBuffers(1, buffers, 0);
+    vertexBufferId = buffers[0];
+
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBufferId);
+    GLES30.glBufferData(
+            GLES30.GL_ARRAY_BUFFER, vertexCount * VERTEX_STRIDE, null, GLES30.GL_DYNAMIC_DRAW);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+
+    indexBuffer.createOnGlThread();
+
+    ShaderUtil.checkGLError(TAG, "Grid mesh creation");
+  }
+
+  /**
+   * Maps the grid onto the camera image for the given display geometry and uploads the interleaved
+   * vertices. Does nothing if they are already up to date for that geometry.
+   */
+  void updateTexCoords(Frame frame, int displayGeometryGeneration) {
+    if (texCoordsGeneration == displayGeometryGeneration) {
+      return;
+    }
+    positions.position(0);
+    texCoords.position(0);
+    frame.transformCoordinates2d(
+            Coordinates2d.OPENGL_NORMALIZED_DEVICE_COORDINATES,
+            positions,
+            Coordinates2d.TEXTURE_NORMALIZED,
+            texCoords);
+
+    vertices.position(0);
+    for (int i = 0; i < vertexCount; i++) {
+      vertices.put(positions.get(2 * i)).put(positions.get(2 * i + 1));
+      vertices.put(texCoords.get(2 * i)).put(texCoords.get(2 * i + 1));
+    }
+    vertices.position(0);
+
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBufferId);
+    GLES30.glBufferSubData(GLES30.GL_ARRAY_BUFFER, 0, vertexCount * VERTEX_STRIDE, vertices);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+    texCoordsGeneration = displayGeometryGeneration;
+    // The vertices now sample different depth.
+    areAllBandsDirty = true;
+  }
+
+  /**
+   * Samples new depth at every vertex, filters the triangles of the bands whose vertex depth
+   * changed and uploads the bands whose triangles changed.
+   */
+  void updateDepth(DepthFrame depthFrame) {
+    int width = depthFrame.getWidth();
+    int height = depthFrame.getHeight();
+    for (int i = 0; i < vertexCount; i++) {
+      int x = Math.max(0, Math.min(width - 1, (int) (texCoords.get(2 * i) * width)));
+      int y = Math.max(0, Math.min(height - 1, (int) (texCoords.get(2 * i + 1) * height)));
+      sampledDepth[i] = depthFrame.getMillimeters(x, y);
+    }
+
+    // Both bands that share a row of vertices see its change, so decide before copying any.
+    int bandCount = isBandDirty.length;
+    for (int band = 0; band < bandCount; band++) {
+      isBandDirty[band] = areAllBandsDirty || hasBandDepthChanged(band);
+    }
+    areAllBandsDirty = false;
+    StretchedTriangleFilter filter = indexBuffer.getFilter();
+    for (int band = 0; band < bandCount; band++) {
+      if (!isBandDirty[band]) {
+        continue;
+      }
+      int first = band * ROWS_PER_BAND * (cols + 1);
+      int end = Math.min(rows, (band + 1) * ROWS_PER_BAND) * (cols + 1) + cols + 1;
+      System.arraycopy(sampledDepth, first, vertexDepth, first, end - first);
+      filterBand(filter, band, vertexDepth);
+    }
+    indexBuffer.uploadChangedSlotsOnGlThread();
+  }
+
+  private boolean hasBandDepthChanged(int band) {
+    int first = band * ROWS_PER_BAND * (cols + 1);
+    int end = Math.min(rows, (band + 1) * ROWS_PER_BAND) * (cols + 1) + cols + 1;
+    for (int i = first; i < end; i++) {
+      int now = sampledDepth[i];
+      int then = vertexDepth[i];
+      if ((now == 0) != (then == 0) || Math.abs(now - then) > DEPTH_CHANGE_MILLIMETERS) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void filterBand(StretchedTriangleFilter filter, int band, int[] depth) {
+    int indicesPerRow = cols * 6;
+    int firstRow = band * ROWS_PER_BAND;
+    int bandRows = Math.min(ROWS_PER_BAND, rows - firstRow);
+    filter.filterSlot(
+            band,
+            indices,
+            firstRow * indicesPerRow,
+            bandRows * indicesPerRow,
+            depth,
+            (short) (firstRow * (cols + 1)));
+  }
+
+  /**
+   * Draws every triangle of the grid with one call. Returns the number of draw calls issued.
+   *
+   * @param isVertexArrayObjectEnabled Whether to draw through a vertex array object, which is set
+   *     up with the given attribute locations the first time, or to set up the attributes of the
+   *     default vertex array object on every draw.
+   */
+  int draw(
+          GlStateTracker glState,
+          int positionAttrib,
+          int texCoordAttrib,
+          boolean isVertexArrayObjectEnabled) {
+    if (isVertexArrayObjectEnabled) {
+      if (vertexArrayId == -1) {
+        vertexArrayId =
+                createVertexArrayOnGlThread(
+                        vertexBufferId, indexBuffer, positionAttrib, texCoordAttrib);
+      }
+      glState.bindVertexArray(vertexArrayId);
+      indexBuffer.drawBoundOnGlThread();
+      glState.bindVertexArray(0);
+      return 1;
+    }
+
+    glState.useVertexAttribArrays(1 << positionAttrib | 1 << texCoordAttrib);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBufferId);
+    setVertexAttribPointers(positionAttrib, texCoordAttrib);
+
+    indexBuffer.drawOnGlThread();
+
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+    return 1;
+  }
+
+  /**
+   * Creates a vertex array object drawing the interleaved vertices of a vertex buffer with the
+   * triangles of an index buffer. Leaves the default vertex array object bound.
+   */
+  static int createVertexArrayOnGlThread(
+          int vertexBufferId,
+          FilteredIndexBuffer indexBuffer,
+          int positionAttrib,
+          int texCoordAttrib) {
+    int[] vertexArrays = new int[1];
+    GLES30.glGenVertexArrays(1, vertexArrays, 0);
+    GLES30.glBindVertexArray(vertexArrays[0]);
+
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBufferId);
+    setVertexAttribPointers(positionAttrib, texCoordAttrib);
+    GLES30.glEnableVertexAttribArray(positionAttrib);
+    GLES30.glEnableVertexAttribArray(texCoordAttrib);
+    indexBuffer.bindOnGlThread();
+
+    GLES30.glBindVertexArray(0);
+    GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+    ShaderUtil.checkGLError(TAG, "Vertex array creation");
+    return vertexArrays[0];
+  }
+
+  /** Points the attributes at the (x, y, u, v) vertices of the bound vertex buffer. */
+  static void setVertexAttribPointers(int positionAttrib, int texCoordAttrib) {
+    GLES30.glVertexAttribPointer(
+            positionAttrib, COORDS_PER_VERTEX, GLES30.GL_FLOAT, false, VERTEX_STRIDE, 0);
+    GLES30.glVertexAttribPointer(
+            texCoordAttrib,
+            TEXCOORDS_PER_VERTEX,
+            GLES30.GL_FLOAT,
+            false,
+            VERTEX_STRIDE,
+            COORDS_PER_VERTEX * FLOAT_SIZE);
+  }
+
+  private static FloatBuffer allocateFloats(int count) {
+    return ByteBuffer.allocateDirect(count * FLOAT_SIZE)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+  }
+}
@@ -2,17 +2,16 @@ package com.kazuki.depthreconstruction.rendering;
 
 import android.content.Context;
 import android.opengl.GLES30;
-import android.util.Log;
+import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 
-import com.google.ar.core.Coordinates2d;
 import com.google.ar.core.Frame;
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.mesh.QuadtreeTessellator;
+import com.kazuki.depthreconstruction.depth.mesh.StretchedTriangleFilter;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 
 public class InpaintRenderer {
   private static final String TAG = InpaintRenderer.class.getSimpleName();
@@ -21,16 +20,41 @@ public class InpaintRenderer {
   private static final String INPAINT_VERTEX_SHADER_NAME = "shaders/inpaintquad.vert";
   private static final String INPAINT_FRAGMENT_SHADER_NAME = "shaders/inpaintquad.frag";
 
-  private static final int COORDS_PER_VERTEX = 2;
-  private static final int FLOAT_SIZE = 4;
+  // Rectangle the depth mesh covers, in normalized device coordinates.
+  private static final float QUAD_LEFT = -0.6f;
+  private static final float QUAD_BOTTOM = -0.4f;
+  private static final float QUAD_RIGHT = +0.6f;
+  private static final float QUAD_TOP = +0.4f;
 
-  private static final float[] QUAD_COORDS =
-          new float[]{
-                  -0.6f, -0.4f, +0.6f, -0.4f, -0.6f, +0.4f, +0.6f, +0.4f
-          };
+  public static final int DEFAULT_GRID_ROWS = 30;
+  public static final int DEFAULT_GRID_COLS = 40;
 
-  private FloatBuffer quadCoords;
-  private FloatBuffer quadTexCoords;
+  // The adaptive mesh is as fine as a 96x64 grid where the depth needs it.
+  private static final int ADAPTIVE_TILES_X = 12;
+  private static final int ADAPTIVE_TILES_Y = 8;
+  private static final int ADAPTIVE_LEVELS = 3;
+  private static final float ADAPTIVE_TOLERANCE_MILLIMETERS = 20.0f;
+  private static final int ADAPTIVE_VERTEX_BUDGET = 4000;
+
+  // Triangles whose vertex depth spreads further than this are not drawn.
+  private static final int DEFAULT_MAX_TRIANGLE_DEPTH_SPREAD_MILLIMETERS = 300;
+
+  // Meshes generated so far, keyed by grid size, so changing the density never reallocates.
+  private final SparseArray<GridMesh> meshCache = new SparseArray<>();
+  private GridMesh mesh;
+  private volatile int gridRows = DEFAULT_GRID_ROWS;
+  private volatile int gridCols = DEFAULT_GRID_COLS;
+
+  private AdaptiveMesh adaptiveMesh;
+  private volatile boolean isAdaptiveTessellationEnabled = false;
+  private volatile int maxTriangleDepthSpread = DEFAULT_MAX_TRIANGLE_DEPTH_SPREAD_MILLIMETERS;
+  private volatile boolean isVertexArrayObjectEnabled = true;
+
+  // Bumped whenever the display geometry changes, so every cached mesh knows whether its texture
+  // coordinates are stale.
+  private int displayGeometryGeneration = 0;
+
+  private final GlStateTracker glState;
 
   private int inpaintProgram;
 
@@ -39,37 +63,23 @@ public class InpaintRenderer {
   private int depthTextureUniform;
   private int depthTextureId = -1;
 
-  private int slice = 5;
-
-  private boolean isNeedTexCoordsTransformed = true;
+  private long drawCallCount = 0;
 
-  public void createOnGlThread(Context context, int depthTextureId) throws IOException {
-    // 矩形を分割
-    float[] SPLIT_QUAD_COODS = splitQuad(slice);
-
-    ByteBuffer bbCoords = ByteBuffer.allocateDirect(SPLIT_QUAD_COODS.length * FLOAT_SIZE);
-    bbCoords.order(ByteOrder.nativeOrder());
-    quadCoords = bbCoords.asFloatBuffer();
-    quadCoords.put(SPLIT_QUAD_COODS);
-    quadCoords.position(0);
-
-    ByteBuffer bbTexCoords = ByteBuffer.allocateDirect(SPLIT_QUAD_COODS.length * FLOAT_SIZE);
-    bbTexCoords.order(ByteOrder.nativeOrder());
-    quadTexCoords = bbTexCoords.asFloatBuffer();
+  public InpaintRenderer(GlStateTracker glState) {
+    this.glState = glState;
+  }
 
+  /** Adds the depth mesh program to a warm-up. */
+  public static void addProgramsTo(ShaderWarmUp warmUp) {
+    warmUp.addProgram(INPAINT_VERTEX_SHADER_NAME, INPAINT_FRAGMENT_SHADER_NAME);
+  }
 
+  public void createOnGlThread(Context context, int depthTextureId) throws IOException {
     // load shader
     {
-      int vertexShader =
-              ShaderUtil.loadGLShader(TAG, context, GLES30.GL_VERTEX_SHADER, INPAINT_VERTEX_SHADER_NAME);
-      int fragmentShader =
-              ShaderUtil.loadGLShader(TAG, context, GLES30.GL_FRAGMENT_SHADER, INPAINT_FRAGMENT_SHADER_NAME);
-
-      inpaintProgram = GLES30.glCreateProgram();
-      GLES30.glAttachShader(inpaintProgram, vertexShader);
-      GLES30.glAttachShader(inpaintProgram, fragmentShader);
-      GLES30.glLinkProgram(inpaintProgram);
-      GLES30.glUseProgram(inpaintProgram);
+      inpaintProgram =
+              ShaderUtil.createProgram(
+                      TAG, context, INPAINT_VERTEX_SHADER_NAME, INPAINT_FRAGMENT_SHADER_NAME);
       positionAttrib = GLES30.glGetAttribLocation(inpaintProgram, "a_Position");
       texCoordAttrib = GLES30.glGetAttribLocation(inpaintProgram, "a_TexCoord");
       ShaderUtil.checkGLError(TAG, "Program creation");
@@ -79,81 +89,173 @@ public class InpaintRenderer {
     }
 
     this.depthTextureId = depthTextureId;
+    mesh = getMeshOnGlThread(gridRows, gridCols);
+    adaptiveMesh =
+            new AdaptiveMesh(
+                    new QuadtreeTessellator(
+                            ADAPTIVE_TILES_X,
+                            ADAPTIVE_TILES_Y,
+                            ADAPTIVE_LEVELS,
+                            ADAPTIVE_TOLERANCE_MILLIMETERS,
+                            ADAPTIVE_VERTEX_BUDGET),
+                    QUAD_LEFT,
+                    QUAD_BOTTOM,
+                    QUAD_RIGHT,
+                    QUAD_TOP,
+                    maxTriangleDepthSpread);
+    adaptiveMesh.createOnGlThread();
   }
 
-  public void draw(@NonNull Frame frame, boolean debugShowDepthMap, boolean isInpaintModeChecked) {
-    if (debugShowDepthMap && isInpaintModeChecked) {
-      if (isNeedTexCoordsTransformed) {
-        frame.transformCoordinates2d(
-                Coordinates2d.OPENGL_NORMALIZED_DEVICE_COORDINATES,
-                quadCoords,
-                Coordinates2d.TEXTURE_NORMALIZED,
-                quadTexCoords);
-        isNeedTexCoordsTransformed = false;
-        Log.d(TAG, "draw: !!!!!!!!! is changed !!!!!!!!!");
-      }
+  /**
+   * Switches between the uniform grid and a mesh tessellated adaptively from the depth passed to
+   * {@link #updateDepthOnGlThread(DepthFrame)}. May be called from any thread.
+   */
+  public void setAdaptiveTessellationEnabled(boolean enabled) {
+    isAdaptiveTessellationEnabled = enabled;
+  }
 
-      // Ensure position is rewound before use.
-      quadTexCoords.position(0);
+  /**
+   * Sets the largest depth spread of a drawn triangle, so triangles across depth edges are not
+   * stretched between foreground and background. {@link StretchedTriangleFilter#DISABLED} draws
+   * every triangle. May be called from any thread.
+   */
+  public void setMaxTriangleDepthSpread(int millimeters) {
+    maxTriangleDepthSpread = millimeters;
+  }
 
-      GLES30.glDisable(GLES30.GL_DEPTH_TEST);
-      GLES30.glDepthMask(false);
+  /**
+   * Switches between drawing the meshes through vertex array objects and setting up their vertex
+   * attributes on every draw, to compare the two. May be called from any thread.
+   */
+  public void setVertexArrayObjectEnabled(boolean enabled) {
+    isVertexArrayObjectEnabled = enabled;
+  }
 
-      GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, depthTextureId);
-      GLES30.glUseProgram(inpaintProgram);
-      GLES30.glUniform1i(depthTextureUniform, 0);
+  /**
+   * Updates the mesh currently drawn for new depth, which must be the depth the depth texture
+   * holds: the adaptive mesh is tessellated again where the depth changed, and stretched triangles
+   * are filtered out of the tiles or bands of either mesh whose depth changed.
+   */
+  public void updateDepthOnGlThread(DepthFrame depthFrame) {
+    int maxSpread = maxTriangleDepthSpread;
+    if (isAdaptiveTessellationEnabled) {
+      adaptiveMesh.setMaxSpreadMillimeters(maxSpread);
+      adaptiveMesh.updateDepth(depthFrame);
+    } else if (mesh != null) {
+      updateGridSizeOnGlThread();
+      mesh.setMaxSpreadMillimeters(maxSpread);
+      mesh.updateDepth(depthFrame);
+    }
+  }
+
+  /**
+   * Sets the density of the depth mesh. May be called from any thread; the mesh is switched on the
+   * next draw, and grids of a size used before are taken from the cache.
+   */
+  public void setGridSize(int rows, int cols) {
+    if (rows < 1 || cols < 1 || (rows + 1) * (cols + 1) > GridMesh.MAX_VERTICES) {
+      throw new IllegalArgumentException("Unsupported grid size: " + rows + "x" + cols);
+    }
+    gridRows = rows;
+    gridCols = cols;
+  }
+
+  /** Returns the number of vertices in the mesh currently drawn. */
+  public int getVertexCount() {
+    if (mesh == null) {
+      return 0;
+    }
+    return isAdaptiveTessellationEnabled ? adaptiveMesh.getVertexCount() : mesh.getVertexCount();
+  }
+
+  /** Returns the number of triangles in the mesh currently drawn. */
+  public int getTriangleCount() {
+    if (mesh == null) {
+      return 0;
+    }
+    return isAdaptiveTessellationEnabled
+            ? adaptiveMesh.getTriangleCount()
+            : mesh.getTriangleCount();
+  }
+
+  /** Returns the number of triangles of the current mesh dropped for spanning a depth edge. */
+  public int getDroppedTriangleCount() {
+    if (mesh == null) {
+      return 0;
+    }
+    return isAdaptiveTessellationEnabled
+            ? adaptiveMesh.getDroppedTriangleCount()
+            : mesh.getDroppedTriangleCount();
+  }
 
-      // Set the vertex positions
-      GLES30.glVertexAttribPointer(
-              positionAttrib, COORDS_PER_VERTEX, GLES30.GL_FLOAT, false, 0, quadCoords);
-      GLES30.glVertexAttribPointer(
-              texCoordAttrib, COORDS_PER_VERTEX, GLES30.GL_FLOAT, false, 0, quadTexCoords);
-      GLES30.glEnableVertexAttribArray(positionAttrib);
-      GLES30.glEnableVertexAttribArray(texCoordAttrib);
+  /** Returns the number of draw calls issued since the renderer was created. */
+  public long getDrawCallCount() {
+    return drawCallCount;
+  }
 
-      // draw quad
-      GLES30.glDrawArrays(GLES30.GL_TRIANGLE_STRIP, 0, 4 + slice * 2);
+  /** Returns the number of grid sizes generated so far. */
+  public int getCachedMeshCount() {
+    return meshCache.size();
+  }
 
-      // Disable vertex arrays
-      GLES30.glDisableVertexAttribArray(positionAttrib);
-      GLES30.glDisableVertexAttribArray(texCoordAttrib);
+  public void draw(@NonNull Frame frame, boolean debugShowDepthMap, boolean isInpaintModeChecked) {
+    if (frame.hasDisplayGeometryChanged()) {
+      displayGeometryGeneration++;
+    }
+    if (debugShowDepthMap && isInpaintModeChecked) {
+      boolean isAdaptive = isAdaptiveTessellationEnabled;
+      if (isAdaptive) {
+        adaptiveMesh.updateTexCoords(frame, displayGeometryGeneration);
+      } else {
+        updateGridSizeOnGlThread();
+        mesh.updateTexCoords(frame, displayGeometryGeneration);
+      }
 
-      GLES30.glDepthMask(true);
-      GLES30.glEnable(GLES30.GL_DEPTH_TEST);
+      // Drawn over everything else, like the background.
+      glState.disable(GLES30.GL_DEPTH_TEST);
+      glState.depthMask(false);
+      glState.disable(GLES30.GL_BLEND);
+
+      glState.bindTexture(0, GLES30.GL_TEXTURE_2D, depthTextureId);
+      glState.useProgram(inpaintProgram);
+      GLES30.glUniform1i(depthTextureUniform, 0);
+
+      boolean isVertexArrayObject = isVertexArrayObjectEnabled;
+      drawCallCount +=
+              isAdaptive
+                      ? adaptiveMesh.draw(
+                              glState, positionAttrib, texCoordAttrib, isVertexArrayObject)
+                      : mesh.draw(glState, positionAttrib, texCoordAttrib, isVertexArrayObject);
 
       ShaderUtil.checkGLError(TAG, "InpaintRendererDraw");
     }
   }
 
-  // 矩形を分割する
-  private float[] splitQuad(int slice) {
-    if (slice == 0) {
-      return QUAD_COORDS;
+  /** Switches to the grid of the size last set by {@link #setGridSize}. */
+  private void updateGridSizeOnGlThread() {
+    int rows = gridRows;
+    int cols = gridCols;
+    if (mesh.getRows() != rows || mesh.getCols() != cols) {
+      mesh = getMeshOnGlThread(rows, cols);
     }
+  }
 
-    float[] quad_coords = QUAD_COORDS;
-    int num = 4 * slice + 8;
-    float[] splitQuadCoords = new float[num];
-
-    // 四隅の座標を求める（左下・右下・左上・右上）
-    splitQuadCoords[0] = quad_coords[0];
-    splitQuadCoords[1] = quad_coords[1];
-    splitQuadCoords[2] = quad_coords[2];
-    splitQuadCoords[3] = quad_coords[3];
-    splitQuadCoords[num - 4] = quad_coords[4];
-    splitQuadCoords[num - 3] = quad_coords[5];
-    splitQuadCoords[num - 2] = quad_coords[6];
-    splitQuadCoords[num - 1] = quad_coords[7];
-
-    // 中間の座標を求める
-    float step = (quad_coords[5] - quad_coords[1]) / (slice + 1);
-    for (int i = 1; i <= slice; i++) {
-      splitQuadCoords[4 * i] = quad_coords[0];
-      splitQuadCoords[4 * i + 1] = quad_coords[1] + i * step;
-      splitQuadCoords[4 * i + 2] = quad_coords[2];
-      splitQuadCoords[4 * i + 3] = quad_coords[3] + i * step;
+  private GridMesh getMeshOnGlThread(int rows, int cols) {
+    int key = (rows << 16) | cols;
+    GridMesh cached = meshCache.get(key);
+    if (cached == null) {
+      cached =
+              new GridMesh(
+                      rows,
+                      cols,
+                      QUAD_LEFT,
+                      QUAD_BOTTOM,
+                      QUAD_RIGHT,
+                      QUAD_TOP,
+                      maxTriangleDepthSpread);
+      cached.createOnGlThread();
+      meshCache.put(key, cached);
     }
-
-    return splitQuadCoords;
+    return cached;
   }
 }
@@ -0,0 +1,144 @@
+package com.kazuki.depthreconstruction.rendering;
+
+import android.content.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads shader sources from the assets with their {@code #include "file"} lines expanded, once per
+ * process.
+ *
+ * <p>Every file is read from the assets only the first time it is needed, and the source of every
+ * shader with a given set of #define values is assembled only once; later requests return the same
+ * string. Identical sources are also shared, so shaders that end up the same after preprocessing
+ * hold one copy. An include is inlined only the first time it appears in a shader, so shared
+ * snippets may include each other freely, and a file that includes itself, directly or through
+ * others, is reported as an error. This class is thread safe.
+ */
+final class ShaderSourceRegistry {
+  private static final String INCLUDE_DIRECTIVE = "#include";
+
+  // Raw file contents by asset name.
+  private static final Map<String, String> files = new HashMap<>();
+  // Preprocessed sources by asset name and #define values.
+  private static final Map<String, String> sources = new HashMap<>();
+  // Every distinct preprocessed source, mapped to itself.
+  private static final Map<String, String> internedSources = new HashMap<>();
+
+  private ShaderSourceRegistry() {}
+
+  /**
+   * Returns the source of a shader with its includes expanded and the #define values prepended.
+   *
+   * @param filename The asset name of the shader.
+   * @param defineValuesMap The #define values to add to the top of the shader source code.
+   */
+  static synchronized String getSource(
+          Context context, String filename, Map<String, Integer> defineValuesMap)
+          throws IOException {
+    StringBuilder defines = new StringBuilder();
+    for (Map.Entry<String, Integer> entry : defineValuesMap.entrySet()) {
+      defines.append("#define ").append(entry.getKey()).append(' ').append(entry.getValue());
+      defines.append('\n');
+    }
+    // Asset names and #define lines never contain a NUL, so the key is unambiguous.
+    String key = filename + '\0' + defines;
+    String source = sources.get(key);
+    if (source == null) {
+      StringBuilder code = new StringBuilder(defines);
+      expand(context, filename, code, new ArrayList<>(), new HashSet<>());
+      source = intern(code.toString());
+      sources.put(key, source);
+    }
+    return source;
+  }
+
+  /**
+   * Appends a file to the code, replacing its #include lines by the included files.
+   *
+   * @param includeStack The files being expanded, outermost first, to detect cycles.
+   * @param includedFiles The files already inlined in this shader, which are not inlined again.
+   */
+  private static void expand(
+          Context context,
+          String filename,
+          StringBuilder code,
+          List<String> includeStack,
+          Set<String> includedFiles)
+          throws IOException {
+    if (includeStack.contains(filename)) {
+      throw new IOException("Shader include cycle: " + includeStack + " -> " + filename);
+    }
+    if (!includedFiles.add(filename)) {
+      return;
+    }
+    includeStack.add(filename);
+    String file = readFile(context, filename);
+    int lineStart = 0;
+    while (lineStart < file.length()) {
+      int lineEnd = file.indexOf('\n', lineStart);
+      if (lineEnd < 0) {
+        lineEnd = file.length();
+      }
+      if (file.startsWith(INCLUDE_DIRECTIVE, lineStart)) {
+        expand(
+                context,
+                parseIncludeFilename(file, lineStart, lineEnd, filename),
+                code,
+                includeStack,
+                includedFiles);
+      } else {
+        code.append(file, lineStart, lineEnd).append('\n');
+      }
+      lineStart = lineEnd + 1;
+    }
+    includeStack.remove(includeStack.size() - 1);
+  }
+
+  /** Returns the file name between the quotes of an #include line. */
+  private static String parseIncludeFilename(
+          String file, int lineStart, int lineEnd, String filename) throws IOException {
+    int open = file.indexOf('"', lineStart + INCLUDE_DIRECTIVE.length());
+    int close = open < 0 ? -1 : file.indexOf('"', open + 1);
+    if (open < 0 || close < 0 || close > lineEnd) {
+      throw new IOException(
+              "Malformed include in " + filename + ": " + file.substring(lineStart, lineEnd));
+    }
+    return file.substring(open + 1, close);
+  }
+
+  private static String readFile(Context context, String filename) throws IOException {
+    String file = files.get(filename);
+    if (file == null) {
+      try (InputStream inputStream = context.getAssets().open(filename)) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(inputStream.available());
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+          bytes.write(buffer, 0, count);
+        }
+        file = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+      }
+      files.put(filename, file);
+    }
+    return file;
+  }
+
+  private static String intern(String source) {
+    String interned = internedSources.get(source);
+    if (interned == null) {
+      internedSources.put(source, source);
+      interned = source;
+    }
+    return interned;
+  }
+}
@@ -18,15 +18,36 @@ import android.content.Context;
 import android.opengl.GLES30;
 import android.util.Log;
 
-import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** Shader helper functions. */
 public class ShaderUtil {
+  // Linked program binaries are kept in this directory under the app's cache directory.
+  private static final String PROGRAM_CACHE_DIRECTORY = "shader_programs";
+  // Written at the start of every cache file, to be bumped whenever the file layout changes.
+  private static final int PROGRAM_CACHE_FILE_VERSION = 1;
+
+  private static final AtomicInteger programCacheHitCount = new AtomicInteger();
+  private static final AtomicInteger programCacheMissCount = new AtomicInteger();
+  private static final AtomicLong totalProgramLoadNanos = new AtomicLong();
+  // Programs a ShaderWarmUp linked in a context shared with the GL thread, by shader names.
+  private static final Map<String, Integer> preparedPrograms = new HashMap<>();
+
   /**
    * Converts a raw text file, saved as a resource, into an OpenGL ES shader.
    *
@@ -38,44 +59,112 @@ public class ShaderUtil {
   public static int loadGLShader(
           String tag, Context context, int type, String filename, Map<String, Integer> defineValuesMap)
           throws IOException {
-    // Load shader source code.
-    String code = readShaderFileFromAssets(context, filename);
-
-    // Prepend any #define values specified during this run.
-    String defines = "";
-    for (Map.Entry<String, Integer> entry : defineValuesMap.entrySet()) {
-      defines += "#define " + entry.getKey() + " " + entry.getValue() + "\n";
-    }
-    code = defines + code;
-
-    // Compiles shader code.
-    int shader = GLES30.glCreateShader(type);
-    GLES30.glShaderSource(shader, code);
-    GLES30.glCompileShader(shader);
+    return compileShader(
+            tag, type, ShaderSourceRegistry.getSource(context, filename, defineValuesMap));
+  }
 
-    // Get the compilation status.
-    final int[] compileStatus = new int[1];
-    GLES30.glGetShaderiv(shader, GLES30.GL_COMPILE_STATUS, compileStatus, 0);
+  /** Overload of loadGLShader that assumes no additional #define values to add. */
+  public static int loadGLShader(String tag, Context context, int type, String filename)
+          throws IOException {
+    Map<String, Integer> emptyDefineValuesMap = new TreeMap<>();
+    return loadGLShader(tag, context, type, filename, emptyDefineValuesMap);
+  }
 
-    // If the compilation failed, delete the shader.
-    if (compileStatus[0] == 0) {
-      Log.e(tag, "Error compiling shader: " + GLES30.glGetShaderInfoLog(shader));
-      GLES30.glDeleteShader(shader);
-      shader = 0;
+  /**
+   * Creates and links a program from a vertex and a fragment shader, reusing the program binary
+   * cached by an earlier run if there is one.
+   *
+   * <p>The cache is keyed by a hash of the preprocessed sources, which include the #define values,
+   * and of the GL vendor, renderer and version, so a driver update or a changed shader never loads
+   * a stale binary. If the driver rejects a cached binary anyway, the program is compiled from
+   * source and the cache entry replaced. Failing to write the cache is logged and otherwise
+   * ignored.
+   *
+   * <p>If a {@link ShaderWarmUp} already linked the program on another thread, that program is
+   * returned without any work.
+   *
+   * @param defineValuesMap The #define values to add to the top of both shaders.
+   * @return The linked program, current so that attributes and uniforms can be looked up.
+   */
+  public static int createProgram(
+          String tag,
+          Context context,
+          String vertexFilename,
+          String fragmentFilename,
+          Map<String, Integer> defineValuesMap)
+          throws IOException {
+    if (defineValuesMap.isEmpty()) {
+      int program = takePreparedProgram(vertexFilename, fragmentFilename);
+      if (program != 0) {
+        GLES30.glUseProgram(program);
+        Log.d(tag, "Program " + vertexFilename + " + " + fragmentFilename + " was prepared");
+        return program;
+      }
     }
+    long startNanos = System.nanoTime();
+    String vertexCode = ShaderSourceRegistry.getSource(context, vertexFilename, defineValuesMap);
+    String fragmentCode =
+            ShaderSourceRegistry.getSource(context, fragmentFilename, defineValuesMap);
+    File cacheFile =
+            new File(
+                    new File(context.getCacheDir(), PROGRAM_CACHE_DIRECTORY),
+                    hashProgram(vertexCode, fragmentCode) + ".bin");
 
-    if (shader == 0) {
-      throw new RuntimeException("Error creating shader.");
+    int program = loadCachedProgram(tag, cacheFile);
+    boolean isCacheHit = program != 0;
+    if (!isCacheHit) {
+      program = compileProgram(tag, vertexCode, fragmentCode);
+      storeCachedProgram(tag, program, cacheFile);
     }
+    GLES30.glUseProgram(program);
 
-    return shader;
+    long nanos = System.nanoTime() - startNanos;
+    totalProgramLoadNanos.addAndGet(nanos);
+    (isCacheHit ? programCacheHitCount : programCacheMissCount).incrementAndGet();
+    Log.d(
+            tag,
+            "Program "
+                    + vertexFilename
+                    + " + "
+                    + fragmentFilename
+                    + (isCacheHit ? " loaded from cache in " : " compiled in ")
+                    + nanos / 1000
+                    + " us");
+    return program;
   }
 
-  /** Overload of loadGLShader that assumes no additional #define values to add. */
-  public static int loadGLShader(String tag, Context context, int type, String filename)
+  /** Overload of createProgram that assumes no additional #define values to add. */
+  public static int createProgram(
+          String tag, Context context, String vertexFilename, String fragmentFilename)
           throws IOException {
-    Map<String, Integer> emptyDefineValuesMap = new TreeMap<>();
-    return loadGLShader(tag, context, type, filename, emptyDefineValuesMap);
+    return createProgram(tag, context, vertexFilename, fragmentFilename, new TreeMap<>());
+  }
+
+  /** Returns the number of programs loaded from a cached binary since the process started. */
+  public static int getProgramCacheHitCount() {
+    return programCacheHitCount.get();
+  }
+
+  /** Returns the number of programs that had to be compiled since the process started. */
+  public static int getProgramCacheMissCount() {
+    return programCacheMissCount.get();
+  }
+
+  /** Returns the time spent in {@link #createProgram} since the process started. */
+  public static long getTotalProgramLoadNanos() {
+    return totalProgramLoadNanos.get();
+  }
+
+  /** Makes {@link #createProgram} return a program linked ahead of time, once. */
+  static synchronized void addPreparedProgram(
+          String vertexFilename, String fragmentFilename, int program) {
+    preparedPrograms.put(vertexFilename + '\0' + fragmentFilename, program);
+  }
+
+  private static synchronized int takePreparedProgram(
+          String vertexFilename, String fragmentFilename) {
+    Integer program = preparedPrograms.remove(vertexFilename + '\0' + fragmentFilename);
+    return program == null ? 0 : program;
   }
 
   /**
@@ -97,32 +186,151 @@ public class ShaderUtil {
     }
   }
 
-  /**
-   * Converts a raw shader file into a string.
-   *
-   * @param filename The filename of the shader file about to be turned into a shader.
-   * @return The context of the text file, or null in case of error.
-   */
-  private static String readShaderFileFromAssets(Context context, String filename)
-          throws IOException {
-    try (InputStream inputStream = context.getAssets().open(filename);
-         BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
-      StringBuilder sb = new StringBuilder();
-      String line;
-      while ((line = reader.readLine()) != null) {
-        String[] tokens = line.split(" ", -1);
-        if (tokens[0].equals("#include")) {
-          String includeFilename = tokens[1];
-          includeFilename = includeFilename.replace("\"", "");
-          if (includeFilename.equals(filename)) {
-            throw new IOException("Do not include the calling file.");
-          }
-          sb.append(readShaderFileFromAssets(context, includeFilename));
-        } else {
-          sb.append(line).append("\n");
-        }
+  private static int compileShader(String tag, int type, String code) {
+    int shader = GLES30.glCreateShader(type);
+    GLES30.glShaderSource(shader, code);
+    GLES30.glCompileShader(shader);
+
+    // Get the compilation status.
+    final int[] compileStatus = new int[1];
+    GLES30.glGetShaderiv(shader, GLES30.GL_COMPILE_STATUS, compileStatus, 0);
+
+    // If the compilation failed, delete the shader.
+    if (compileStatus[0] == 0) {
+      Log.e(tag, "Error compiling shader: " + GLES30.glGetShaderInfoLog(shader));
+      GLES30.glDeleteShader(shader);
+      shader = 0;
+    }
+
+    if (shader == 0) {
+      throw new RuntimeException("Error creating shader.");
+    }
+
+    return shader;
+  }
+
+  private static int compileProgram(String tag, String vertexCode, String fragmentCode) {
+    int vertexShader = compileShader(tag, GLES30.GL_VERTEX_SHADER, vertexCode);
+    int fragmentShader = compileShader(tag, GLES30.GL_FRAGMENT_SHADER, fragmentCode);
+    int program = GLES30.glCreateProgram();
+    GLES30.glAttachShader(program, vertexShader);
+    GLES30.glAttachShader(program, fragmentShader);
+    GLES30.glProgramParameteri(
+            program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES30.GL_TRUE);
+    GLES30.glLinkProgram(program);
+    // The linked program keeps what it needs, so the shaders can go right away.
+    GLES30.glDetachShader(program, vertexShader);
+    GLES30.glDetachShader(program, fragmentShader);
+    GLES30.glDeleteShader(vertexShader);
+    GLES30.glDeleteShader(fragmentShader);
+
+    final int[] linkStatus = new int[1];
+    GLES30.glGetProgramiv(program, GLES30.GL_LINK_STATUS, linkStatus, 0);
+    if (linkStatus[0] == 0) {
+      Log.e(tag, "Error linking program: " + GLES30.glGetProgramInfoLog(program));
+      GLES30.glDeleteProgram(program);
+      throw new RuntimeException("Error linking program.");
+    }
+    return program;
+  }
+
+  /** Returns the program restored from a cache file, or 0 if there is none or it is unusable. */
+  private static int loadCachedProgram(String tag, File cacheFile) {
+    if (!cacheFile.isFile()) {
+      return 0;
+    }
+    int format;
+    ByteBuffer binary;
+    try (DataInputStream input = new DataInputStream(new FileInputStream(cacheFile))) {
+      if (input.readInt() != PROGRAM_CACHE_FILE_VERSION) {
+        return 0;
       }
-      return sb.toString();
+      format = input.readInt();
+      byte[] bytes = new byte[input.readInt()];
+      input.readFully(bytes);
+      binary = ByteBuffer.allocateDirect(bytes.length).order(ByteOrder.nativeOrder());
+      binary.put(bytes).position(0);
+    } catch (IOException e) {
+      Log.w(tag, "Failed to read cached program " + cacheFile.getName(), e);
+      return 0;
+    }
+
+    int program = GLES30.glCreateProgram();
+    GLES30.glProgramBinary(program, format, binary, binary.capacity());
+    final int[] linkStatus = new int[1];
+    GLES30.glGetProgramiv(program, GLES30.GL_LINK_STATUS, linkStatus, 0);
+    // An unknown format raises an error that must not reach the caller's checks.
+    GLES30.glGetError();
+    if (linkStatus[0] == 0) {
+      // Drivers may also reject a binary they wrote themselves, for example after an update.
+      Log.w(tag, "Cached program " + cacheFile.getName() + " was rejected, compiling instead");
+      GLES30.glDeleteProgram(program);
+      cacheFile.delete();
+      return 0;
+    }
+    return program;
+  }
+
+  private static void storeCachedProgram(String tag, int program, File cacheFile) {
+    final int[] length = new int[1];
+    GLES30.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+    if (length[0] == 0) {
+      // The driver offers no binary formats.
+      return;
+    }
+    ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+    final int[] format = new int[1];
+    GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, binary);
+    if (GLES30.glGetError() != GLES30.GL_NO_ERROR) {
+      return;
+    }
+    byte[] bytes = new byte[length[0]];
+    binary.position(0);
+    binary.get(bytes);
+
+    // Written to a temporary file first so a crash never leaves a truncated entry behind.
+    File directory = cacheFile.getParentFile();
+    File temporaryFile = new File(directory, cacheFile.getName() + ".tmp");
+    directory.mkdirs();
+    try (DataOutputStream output = new DataOutputStream(new FileOutputStream(temporaryFile))) {
+      output.writeInt(PROGRAM_CACHE_FILE_VERSION);
+      output.writeInt(format[0]);
+      output.writeInt(bytes.length);
+      output.write(bytes);
+    } catch (IOException e) {
+      Log.w(tag, "Failed to cache program " + cacheFile.getName(), e);
+      temporaryFile.delete();
+      return;
+    }
+    if (!temporaryFile.renameTo(cacheFile)) {
+      temporaryFile.delete();
+    }
+  }
+
+  /** Hashes what decides the program binary: the sources and the driver that compiles them. */
+  private static String hashProgram(String vertexCode, String fragmentCode) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    String[] parts = {
+      vertexCode,
+      fragmentCode,
+      GLES30.glGetString(GLES30.GL_VENDOR),
+      GLES30.glGetString(GLES30.GL_RENDERER),
+      GLES30.glGetString(GLES30.GL_VERSION)
+    };
+    for (String part : parts) {
+      digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+      // Separates the parts so that moving text from one to the next changes the hash.
+      digest.update((byte) 0);
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
     }
+    return hex.toString();
   }
 }
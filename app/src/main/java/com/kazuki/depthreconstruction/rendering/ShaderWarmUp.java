@@ -0,0 +1,283 @@
+package com.kazuki.depthreconstruction.rendering;
+
+import android.content.Context;
+import android.opengl.GLES30;
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+/**
+ * Compiles and links shader programs on a worker thread while the activity is still starting, so
+ * the GL thread only has to bind them.
+ *
+ * <p>The worker creates its own EGL context on a 1x1 pbuffer surface. Installed as the {@link
+ * GLSurfaceView}'s context factory, this class then creates the GL thread's context in the same
+ * share group, so programs linked by the worker can be used there. {@link
+ * #awaitProgramsOnGlThread} hands the finished programs to {@link ShaderUtil#createProgram}, which
+ * returns them instead of building new ones. Whatever goes wrong, whether the worker cannot create
+ * a context or takes too long, the GL thread falls back to creating the programs itself, which
+ * still benefits from the program binaries the worker cached. Programs the GL thread did not take
+ * are deleted by the worker before it lets go of its context.
+ */
+public final class ShaderWarmUp implements GLSurfaceView.EGLContextFactory {
+  private static final String TAG = ShaderWarmUp.class.getSimpleName();
+
+  // EGL 1.4 and EGL_KHR_create_context values, which EGL10 does not name.
+  private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+  private static final int EGL_OPENGL_ES3_BIT_KHR = 0x40;
+  private static final int GLES_VERSION = 3;
+
+  // How long the GL thread waits for the worker before doing the work itself.
+  private static final long CONTEXT_TIMEOUT_MILLIS = 500;
+  private static final long PROGRAMS_TIMEOUT_MILLIS = 2000;
+
+  private final Context context;
+  private final List<String[]> programShaders = new ArrayList<>();
+  private final CountDownLatch contextLatch = new CountDownLatch(1);
+  private final CountDownLatch programsLatch = new CountDownLatch(1);
+
+  // Set by the worker before the context latch opens.
+  private EGL10 egl;
+  private EGLDisplay display;
+  private volatile long warmUpNanos = 0;
+
+  // The worker's context is kept until the GL thread no longer needs to share with it.
+  private final Object lock = new Object();
+  private EGLContext workerContext;
+  // Programs the worker built and the GL thread has not taken yet.
+  private final List<Integer> programs = new ArrayList<>();
+  private boolean isWarmUpDone = false;
+  // Set when the GL thread gave up waiting; the worker then deletes what it built.
+  private boolean isCancelled = false;
+  private boolean isGlContextCreated = false;
+  // Whether the GL thread's context shares the programs and has not taken them yet.
+  private boolean isGlContextShared = false;
+
+  public ShaderWarmUp(Context context) {
+    this.context = context.getApplicationContext();
+  }
+
+  /** Adds a program to build. Must be called before {@link #start}. */
+  public void addProgram(String vertexFilename, String fragmentFilename) {
+    programShaders.add(new String[] {vertexFilename, fragmentFilename});
+  }
+
+  /** Starts building the programs on a new thread. */
+  public void start() {
+    Thread thread = new Thread(this::warmUp, "ShaderWarmUp");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Returns how long the worker took to build all programs, or 0 until it is done. */
+  public long getWarmUpNanos() {
+    return warmUpNanos;
+  }
+
+  @Override
+  public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig eglConfig) {
+    try {
+      contextLatch.await(CONTEXT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    int[] attributes = {EGL_CONTEXT_CLIENT_VERSION, GLES_VERSION, EGL10.EGL_NONE};
+    synchronized (lock) {
+      EGLContext shareContext = EGL10.EGL_NO_CONTEXT;
+      // Only the first context shares, since the programs are handed over once.
+      if (!isGlContextCreated && workerContext != null && display.equals(this.display)) {
+        shareContext = workerContext;
+      }
+      EGLContext glContext = egl.eglCreateContext(display, eglConfig, shareContext, attributes);
+      if (glContext == EGL10.EGL_NO_CONTEXT && shareContext != EGL10.EGL_NO_CONTEXT) {
+        Log.w(TAG, "Could not share a context with the warm-up thread");
+        shareContext = EGL10.EGL_NO_CONTEXT;
+        glContext = egl.eglCreateContext(display, eglConfig, shareContext, attributes);
+      }
+      isGlContextCreated = true;
+      isGlContextShared = shareContext != EGL10.EGL_NO_CONTEXT;
+      releaseWorkerContextIfUnused();
+      return glContext;
+    }
+  }
+
+  @Override
+  public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+    if (!egl.eglDestroyContext(display, context)) {
+      Log.e(TAG, "eglDestroyContext failed: " + egl.eglGetError());
+    }
+    stopSharing();
+  }
+
+  /**
+   * Waits for the worker and lets {@link ShaderUtil#createProgram} return its programs. Called on
+   * the GL thread before the renderers create their programs; does nothing if the GL thread's
+   * context does not share them.
+   */
+  public void awaitProgramsOnGlThread() {
+    synchronized (lock) {
+      if (!isGlContextShared) {
+        return;
+      }
+    }
+    long startNanos = System.nanoTime();
+    try {
+      programsLatch.await(PROGRAMS_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    boolean isHandedOver;
+    synchronized (lock) {
+      // Decided under the lock, so the worker either finished or sees the cancellation while
+      // its context is still current to delete the programs.
+      isHandedOver = isWarmUpDone;
+      if (isHandedOver) {
+        for (int i = 0; i < programs.size(); i++) {
+          String[] shaders = programShaders.get(i);
+          ShaderUtil.addPreparedProgram(shaders[0], shaders[1], programs.get(i));
+        }
+        programs.clear();
+      } else {
+        isCancelled = true;
+      }
+    }
+    stopSharing();
+    if (isHandedOver) {
+      Log.d(
+              TAG,
+              "Waited " + (System.nanoTime() - startNanos) / 1000 + " us for shader warm-up");
+    } else {
+      Log.w(TAG, "Shader warm-up is still running, creating programs on the GL thread");
+    }
+  }
+
+  private void stopSharing() {
+    synchronized (lock) {
+      isGlContextShared = false;
+      releaseWorkerContextIfUnused();
+    }
+  }
+
+  /** Destroys the worker's context once neither the worker nor the GL thread needs it. */
+  private void releaseWorkerContextIfUnused() {
+    if (workerContext != null && isWarmUpDone && isGlContextCreated && !isGlContextShared) {
+      egl.eglDestroyContext(display, workerContext);
+      workerContext = null;
+    }
+  }
+
+  private void warmUp() {
+    long startNanos = System.nanoTime();
+    EGLSurface surface = EGL10.EGL_NO_SURFACE;
+    try {
+      surface = createWorkerContext();
+    } finally {
+      contextLatch.countDown();
+    }
+    if (surface == EGL10.EGL_NO_SURFACE) {
+      programsLatch.countDown();
+      return;
+    }
+    boolean isFailed = false;
+    int programCount = 0;
+    try {
+      for (String[] shaders : programShaders) {
+        int program = ShaderUtil.createProgram(TAG, context, shaders[0], shaders[1]);
+        programCount++;
+        synchronized (lock) {
+          programs.add(program);
+          if (isCancelled) {
+            break;
+          }
+        }
+      }
+      // Makes sure the programs are complete before another context uses them.
+      GLES30.glFinish();
+      warmUpNanos = System.nanoTime() - startNanos;
+      Log.d(TAG, "Built " + programCount + " programs in " + warmUpNanos / 1000 + " us");
+    } catch (IOException | RuntimeException e) {
+      Log.e(TAG, "Shader warm-up failed", e);
+      isFailed = true;
+    } finally {
+      synchronized (lock) {
+        // The programs can only be deleted while the worker's context is current.
+        if (isFailed || isCancelled) {
+          for (int program : programs) {
+            GLES30.glDeleteProgram(program);
+          }
+          programs.clear();
+        }
+        egl.eglMakeCurrent(
+                display, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+        isWarmUpDone = true;
+        releaseWorkerContextIfUnused();
+      }
+      egl.eglDestroySurface(display, surface);
+      programsLatch.countDown();
+    }
+  }
+
+  /** Creates the worker's context and makes it current, returning its surface. */
+  private EGLSurface createWorkerContext() {
+    egl = (EGL10) EGLContext.getEGL();
+    display = egl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+    if (!egl.eglInitialize(display, new int[2])) {
+      Log.e(TAG, "eglInitialize failed: " + egl.eglGetError());
+      return EGL10.EGL_NO_SURFACE;
+    }
+    // The same format as the surface view's, so drivers that require it can share.
+    int[] configAttributes = {
+      EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES3_BIT_KHR,
+      EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
+      EGL10.EGL_RED_SIZE, 8,
+      EGL10.EGL_GREEN_SIZE, 8,
+      EGL10.EGL_BLUE_SIZE, 8,
+      EGL10.EGL_ALPHA_SIZE, 8,
+      EGL10.EGL_DEPTH_SIZE, 16,
+      EGL10.EGL_NONE
+    };
+    EGLConfig[] configs = new EGLConfig[1];
+    int[] configCount = new int[1];
+    if (!egl.eglChooseConfig(display, configAttributes, configs, 1, configCount)
+            || configCount[0] == 0) {
+      Log.e(TAG, "No EGL config for shader warm-up");
+      return EGL10.EGL_NO_SURFACE;
+    }
+    EGLContext context =
+            egl.eglCreateContext(
+                    display,
+                    configs[0],
+                    EGL10.EGL_NO_CONTEXT,
+                    new int[] {EGL_CONTEXT_CLIENT_VERSION, GLES_VERSION, EGL10.EGL_NONE});
+    if (context == EGL10.EGL_NO_CONTEXT) {
+      Log.e(TAG, "eglCreateContext failed: " + egl.eglGetError());
+      return EGL10.EGL_NO_SURFACE;
+    }
+    EGLSurface surface =
+            egl.eglCreatePbufferSurface(
+                    display,
+                    configs[0],
+                    new int[] {EGL10.EGL_WIDTH, 1, EGL10.EGL_HEIGHT, 1, EGL10.EGL_NONE});
+    if (surface == EGL10.EGL_NO_SURFACE
+            || !egl.eglMakeCurrent(display, surface, surface, context)) {
+      Log.e(TAG, "Could not make the warm-up context current: " + egl.eglGetError());
+      egl.eglDestroyContext(display, context);
+      return EGL10.EGL_NO_SURFACE;
+    }
+    synchronized (lock) {
+      workerContext = context;
+    }
+    return surface;
+  }
+}
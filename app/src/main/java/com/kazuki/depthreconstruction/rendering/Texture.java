@@ -21,27 +21,86 @@ import android.opengl.GLES30;
 
 import com.google.ar.core.Frame;
 import com.google.ar.core.exceptions.NotYetAvailableException;
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 
 import static android.opengl.GLES30.GL_CLAMP_TO_EDGE;
+import static android.opengl.GLES30.GL_MAP_INVALIDATE_BUFFER_BIT;
+import static android.opengl.GLES30.GL_MAP_WRITE_BIT;
+import static android.opengl.GLES30.GL_NO_ERROR;
+import static android.opengl.GLES30.GL_PIXEL_UNPACK_BUFFER;
+import static android.opengl.GLES30.GL_STREAM_DRAW;
 import static android.opengl.GLES30.GL_TEXTURE_2D;
 import static android.opengl.GLES30.GL_TEXTURE_MAG_FILTER;
 import static android.opengl.GLES30.GL_TEXTURE_MIN_FILTER;
 import static android.opengl.GLES30.GL_TEXTURE_WRAP_S;
 import static android.opengl.GLES30.GL_TEXTURE_WRAP_T;
+import static android.opengl.GLES30.GL_UNPACK_ROW_LENGTH;
 import static android.opengl.GLES30.GL_UNSIGNED_BYTE;
+import static android.opengl.GLES30.glBindBuffer;
 import static android.opengl.GLES30.glBindTexture;
+import static android.opengl.GLES30.glBufferData;
+import static android.opengl.GLES30.glBufferSubData;
+import static android.opengl.GLES30.glGenBuffers;
 import static android.opengl.GLES30.glGenTextures;
+import static android.opengl.GLES30.glGetError;
+import static android.opengl.GLES30.glMapBufferRange;
+import static android.opengl.GLES30.glPixelStorei;
 import static android.opengl.GLES30.glTexImage2D;
 import static android.opengl.GLES30.glTexParameteri;
+import static android.opengl.GLES30.glTexSubImage2D;
+import static android.opengl.GLES30.glUnmapBuffer;
 import static android.opengl.GLES30.GL_RG;
 import static android.opengl.GLES30.GL_RG8;
 
 /** Handle the creation and update of a GPU texture. */
 public final class Texture {
+  /** Selects how depth images are transferred from the CPU to the texture. */
+  public enum UploadMode {
+    /** Re-specifies the whole texture with glTexImage2D from client memory on every update. */
+    DIRECT,
+    /**
+     * Allocates the texture storage once per resolution and streams every update through a ring of
+     * pixel buffer objects with glTexSubImage2D, so the copy does not stall the GL thread.
+     */
+    PIXEL_BUFFER_RING
+  }
+
+  // Number of pixel buffer objects the uploads rotate through.
+  private static final int PIXEL_BUFFER_COUNT = 3;
+  // DEPTH16 stores one 16 bit value per pixel, uploaded as the two bytes of a GL_RG8 texel.
+  private static final int BYTES_PER_DEPTH_PIXEL = 2;
+
   // Stores the latest provided texture id.
   private int textureId = -1;
   private int width = -1;
   private int height = -1;
+  // Timestamp of the depth image currently held by the texture.
+  private long depthTimestamp = -1;
+  // Whether the last update call uploaded a depth image that had not been seen before.
+  private boolean isNewDepthAvailable = false;
+
+  private UploadMode uploadMode = UploadMode.PIXEL_BUFFER_RING;
+  private final int[] pixelBufferIds = new int[PIXEL_BUFFER_COUNT];
+  private int pixelBufferIndex = 0;
+  private int pixelBufferSize = 0;
+  // Width and height of the currently allocated texture storage.
+  private int storageWidth = -1;
+  private int storageHeight = -1;
+  // Cleared the first time glMapBufferRange fails, after which uploads use glBufferSubData.
+  private boolean isMapBufferRangeSupported = true;
+
+  // Upload timing counters, measured on the GL thread.
+  private long uploadCount = 0;
+  private long lastUploadNanos = 0;
+  private long maxUploadNanos = 0;
+  private long totalUploadNanos = 0;
+  // Number of updates skipped because the depth image had not changed since the last upload.
+  private long skippedUploadCount = 0;
 
   /**
    * Creates and initializes the texture. This method needs to be called on a thread with a EGL
@@ -56,19 +115,76 @@ public final class Texture {
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);
+
+    glGenBuffers(PIXEL_BUFFER_COUNT, pixelBufferIds, 0);
+    pixelBufferSize = 0;
+    storageWidth = -1;
+    storageHeight = -1;
   }
 
   /**
    * Updates the texture with the content from acquireDepthImage, which provides an image in DEPTH16
    * format, representing each pixel as a depth measurement in millimeters. This method needs to be
    * called on a thread with a EGL context attached.
+   *
+   * <p>ARCore produces depth at a lower rate than camera frames, so the same depth image is usually
+   * returned for several frames in a row. Those are recognized by their timestamp and not uploaded
+   * again; {@link #isNewDepthAvailable()} tells callers whether anything changed.
    */
   public void updateWithDepthImageOnGlThread(final Frame frame) {
+    isNewDepthAvailable = false;
     try {
       Image depthImage = frame.acquireDepthImage();
+      if (depthImage.getTimestamp() == depthTimestamp) {
+        skippedUploadCount++;
+        depthImage.close();
+        return;
+      }
+      depthTimestamp = depthImage.getTimestamp();
       width = depthImage.getWidth();
       height = depthImage.getHeight();
-      glBindTexture(GL_TEXTURE_2D, textureId);
+      Image.Plane plane = depthImage.getPlanes()[0];
+      uploadDepthOnGlThread(plane.getBuffer(), plane.getRowStride() / BYTES_PER_DEPTH_PIXEL);
+      depthImage.close();
+      isNewDepthAvailable = true;
+    } catch (NotYetAvailableException e) {
+      // This normally means that depth data is not available yet. This is normal so we will not
+      // spam the logcat with this.
+    }
+  }
+
+  /**
+   * Updates the texture with a depth frame produced on the CPU, for example by a filter. Frames
+   * whose timestamp matches the uploaded one are skipped like repeated depth images. This method
+   * needs to be called on a thread with a EGL context attached.
+   */
+  public void updateWithDepthFrameOnGlThread(final DepthFrame depthFrame) {
+    isNewDepthAvailable = false;
+    if (depthFrame.getTimestamp() == depthTimestamp) {
+      skippedUploadCount++;
+      return;
+    }
+    depthTimestamp = depthFrame.getTimestamp();
+    width = depthFrame.getWidth();
+    height = depthFrame.getHeight();
+    uploadDepthOnGlThread(depthFrame.getDepthBuffer(), depthFrame.getStride());
+    isNewDepthAvailable = true;
+  }
+
+  /**
+   * Uploads {@code width * height} DEPTH16 pixels using the current {@link UploadMode}.
+   *
+   * @param rowLength Distance between the starts of two rows, in pixels.
+   */
+  private void uploadDepthOnGlThread(Buffer pixels, int rowLength) {
+    long startNanos = System.nanoTime();
+    glBindTexture(GL_TEXTURE_2D, textureId);
+    if (rowLength != width) {
+      glPixelStorei(GL_UNPACK_ROW_LENGTH, rowLength);
+    }
+    if (uploadMode == UploadMode.PIXEL_BUFFER_RING) {
+      uploadThroughPixelBuffers(pixels, rowLength);
+    } else {
       glTexImage2D(
               GL_TEXTURE_2D,
               0,
@@ -78,12 +194,85 @@ public final class Texture {
               0,
               GL_RG,
               GL_UNSIGNED_BYTE,
-              depthImage.getPlanes()[0].getBuffer());
-      depthImage.close();
-    } catch (NotYetAvailableException e) {
-      // This normally means that depth data is not available yet. This is normal so we will not
-      // spam the logcat with this.
+              pixels);
+      // The next ring upload has to allocate its own storage again.
+      storageWidth = -1;
+      storageHeight = -1;
+    }
+    if (rowLength != width) {
+      glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+    }
+    recordUploadTime(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Copies the pixels into the next pixel buffer of the ring and lets the driver transfer them into
+   * the texture asynchronously. Texture storage and pixel buffers are only (re)allocated when the
+   * depth resolution changes.
+   */
+  private void uploadThroughPixelBuffers(Buffer pixels, int rowLength) {
+    // The last row is not padded to the full row length in image planes.
+    int byteCount = ((height - 1) * rowLength + width) * BYTES_PER_DEPTH_PIXEL;
+    if (width != storageWidth || height != storageHeight) {
+      glTexImage2D(GL_TEXTURE_2D, 0, GL_RG8, width, height, 0, GL_RG, GL_UNSIGNED_BYTE, null);
+      storageWidth = width;
+      storageHeight = height;
     }
+
+    pixelBufferIndex = (pixelBufferIndex + 1) % PIXEL_BUFFER_COUNT;
+    glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pixelBufferIds[pixelBufferIndex]);
+    if (byteCount != pixelBufferSize) {
+      for (int pixelBufferId : pixelBufferIds) {
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pixelBufferId);
+        glBufferData(GL_PIXEL_UNPACK_BUFFER, byteCount, null, GL_STREAM_DRAW);
+      }
+      glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pixelBufferIds[pixelBufferIndex]);
+      pixelBufferSize = byteCount;
+    }
+
+    // GLES 3.0 has no persistent mapping, so each slot is mapped with an invalidating write which
+    // lets the driver hand out fresh memory instead of waiting for the GPU to finish reading.
+    ByteBuffer mapped = null;
+    if (isMapBufferRangeSupported) {
+      mapped =
+              (ByteBuffer)
+                      glMapBufferRange(
+                              GL_PIXEL_UNPACK_BUFFER,
+                              0,
+                              byteCount,
+                              GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT);
+      if (mapped == null) {
+        // Drain the error raised by the failed mapping and stop trying on this driver.
+        while (glGetError() != GL_NO_ERROR) {}
+        isMapBufferRangeSupported = false;
+      }
+    }
+
+    if (mapped != null) {
+      if (pixels instanceof ShortBuffer) {
+        ShortBuffer source = ((ShortBuffer) pixels).duplicate();
+        source.limit(source.position() + byteCount / BYTES_PER_DEPTH_PIXEL);
+        mapped.order(ByteOrder.nativeOrder()).asShortBuffer().put(source);
+      } else {
+        ByteBuffer source = ((ByteBuffer) pixels).duplicate();
+        source.limit(source.position() + byteCount);
+        mapped.put(source);
+      }
+      glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+    } else {
+      glBufferSubData(GL_PIXEL_UNPACK_BUFFER, 0, byteCount, pixels);
+    }
+
+    // With a pixel unpack buffer bound the last argument is an offset into that buffer.
+    glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, width, height, GL_RG, GL_UNSIGNED_BYTE, 0);
+    glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+  }
+
+  private void recordUploadTime(long nanos) {
+    uploadCount++;
+    lastUploadNanos = nanos;
+    totalUploadNanos += nanos;
+    maxUploadNanos = Math.max(maxUploadNanos, nanos);
   }
 
   public int getTextureId() {
@@ -97,4 +286,60 @@ public final class Texture {
   public int getHeight() {
     return height;
   }
+
+  /**
+   * Returns whether the last {@link #updateWithDepthImageOnGlThread(Frame)} call uploaded a new
+   * depth image. Stages that derive data from the depth image only need to run again when this is
+   * set.
+   */
+  public boolean isNewDepthAvailable() {
+    return isNewDepthAvailable;
+  }
+
+  /** Returns the timestamp of the uploaded depth image, or -1 if none has been uploaded yet. */
+  public long getDepthTimestamp() {
+    return depthTimestamp;
+  }
+
+  public UploadMode getUploadMode() {
+    return uploadMode;
+  }
+
+  public void setUploadMode(UploadMode uploadMode) {
+    this.uploadMode = uploadMode;
+  }
+
+  /** Returns false once the driver has rejected glMapBufferRange and uploads fell back. */
+  public boolean isMapBufferRangeSupported() {
+    return isMapBufferRangeSupported;
+  }
+
+  public long getUploadCount() {
+    return uploadCount;
+  }
+
+  public long getSkippedUploadCount() {
+    return skippedUploadCount;
+  }
+
+  /** Returns the GL thread time spent in the most recent upload, in nanoseconds. */
+  public long getLastUploadNanos() {
+    return lastUploadNanos;
+  }
+
+  public long getMaxUploadNanos() {
+    return maxUploadNanos;
+  }
+
+  public long getAverageUploadNanos() {
+    return uploadCount == 0 ? 0 : totalUploadNanos / uploadCount;
+  }
+
+  public void resetUploadStats() {
+    uploadCount = 0;
+    lastUploadNanos = 0;
+    maxUploadNanos = 0;
+    totalUploadNanos = 0;
+    skippedUploadCount = 0;
+  }
 }
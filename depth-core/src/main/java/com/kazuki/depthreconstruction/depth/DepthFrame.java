@@ -0,0 +1,181 @@
+package com.kazuki.depthreconstruction.depth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * A depth image in millimeters that does not depend on {@code android.media.Image}. Pixels are
+ * stored as unsigned 16 bit values, either on the Java heap in a {@code short[]} or off-heap in a
+ * direct buffer, so the same kernels can run on the device and on a plain JVM.
+ *
+ * <p>Pixel (x, y) lives at index {@code y * stride + x}. An optional confidence plane uses the same
+ * layout with one byte per pixel, where 0 means no confidence and 255 full confidence.
+ */
+public final class DepthFrame {
+  /** DEPTH16 stores one 16 bit value per pixel. */
+  public static final int BYTES_PER_PIXEL = 2;
+
+  private final int width;
+  private final int height;
+  private final int stride;
+  private final ShortBuffer depth;
+  private final ByteBuffer confidence;
+  private long timestamp;
+
+  /**
+   * Creates a frame over existing buffers without copying them.
+   *
+   * @param stride Distance between the starts of two rows, in pixels.
+   * @param depth Depth in millimeters, starting at the buffer's current position.
+   * @param confidence Per pixel confidence, or null if the source has none.
+   * @param timestamp Timestamp of the source image, in nanoseconds.
+   */
+  public DepthFrame(
+          int width,
+          int height,
+          int stride,
+          ShortBuffer depth,
+          ByteBuffer confidence,
+          long timestamp) {
+    if (width <= 0 || height <= 0 || stride < width) {
+      throw new IllegalArgumentException(
+              "Invalid depth frame size: " + width + "x" + height + ", stride " + stride);
+    }
+    if (depth.remaining() < requiredLength(width, height, stride)) {
+      throw new IllegalArgumentException("Depth buffer is too small for " + width + "x" + height);
+    }
+    if (confidence != null && confidence.remaining() < requiredLength(width, height, stride)) {
+      throw new IllegalArgumentException(
+              "Confidence buffer is too small for " + width + "x" + height);
+    }
+    this.width = width;
+    this.height = height;
+    this.stride = stride;
+    this.depth = depth.slice();
+    this.confidence = confidence == null ? null : confidence.slice();
+    this.timestamp = timestamp;
+  }
+
+  /** Allocates a frame backed by a {@code short[]} on the Java heap. */
+  public static DepthFrame allocate(int width, int height) {
+    return wrap(new short[width * height], width, height, /*timestamp=*/ 0);
+  }
+
+  /** Allocates a frame backed by native-order direct memory, which GL can read without a copy. */
+  public static DepthFrame allocateDirect(int width, int height) {
+    ShortBuffer depth =
+            ByteBuffer.allocateDirect(width * height * BYTES_PER_PIXEL)
+                    .order(ByteOrder.nativeOrder())
+                    .asShortBuffer();
+    return new DepthFrame(width, height, width, depth, /*confidence=*/ null, /*timestamp=*/ 0);
+  }
+
+  /** Wraps a tightly packed array of millimeters without copying it. */
+  public static DepthFrame wrap(short[] millimeters, int width, int height, long timestamp) {
+    return new DepthFrame(
+            width, height, width, ShortBuffer.wrap(millimeters), /*confidence=*/ null, timestamp);
+  }
+
+  /**
+   * Wraps the plane of a DEPTH16 image without copying it. The frame is only valid for as long as
+   * the plane's memory is, which for camera images means until the image is closed.
+   *
+   * @param plane The plane buffer, positioned at the first pixel.
+   * @param rowStrideBytes Distance between the starts of two rows, in bytes.
+   */
+  public static DepthFrame wrapDepth16(
+          ByteBuffer plane, int width, int height, int rowStrideBytes, long timestamp) {
+    // DEPTH16 is little endian, which is also how the GL_RG8 depth texture unpacks it. The last
+    // row of an image plane is often not padded to the full stride, so only require what is read.
+    ShortBuffer depth = plane.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    int stride = rowStrideBytes / BYTES_PER_PIXEL;
+    return new DepthFrame(width, height, stride, depth, /*confidence=*/ null, timestamp);
+  }
+
+  private static int requiredLength(int width, int height, int stride) {
+    return (height - 1) * stride + width;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Returns the distance between the starts of two rows, in pixels. */
+  public int getStride() {
+    return stride;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  /** Returns the depth buffer. Its position and limit are independent of the frame's view. */
+  public ShortBuffer getDepthBuffer() {
+    return depth.duplicate();
+  }
+
+  /** Returns true if the pixels live in an accessible {@code short[]}. */
+  public boolean hasArray() {
+    return depth.hasArray();
+  }
+
+  /** Returns the backing array. Only valid when {@link #hasArray()} is true. */
+  public short[] array() {
+    return depth.array();
+  }
+
+  /** Returns the offset of pixel (0, 0) in {@link #array()}. */
+  public int arrayOffset() {
+    return depth.arrayOffset();
+  }
+
+  public boolean hasConfidence() {
+    return confidence != null;
+  }
+
+  /** Returns the confidence plane, or null if the frame has none. */
+  public ByteBuffer getConfidenceBuffer() {
+    return confidence == null ? null : confidence.duplicate();
+  }
+
+  /** Returns the depth at (x, y) in millimeters, or 0 where the depth is unknown. */
+  public int getMillimeters(int x, int y) {
+    return depth.get(y * stride + x) & 0xFFFF;
+  }
+
+  public void setMillimeters(int x, int y, int millimeters) {
+    depth.put(y * stride + x, (short) millimeters);
+  }
+
+  /** Returns the confidence at (x, y) in [0, 255], or 255 if the frame has no confidence plane. */
+  public int getConfidence(int x, int y) {
+    return confidence == null ? 255 : confidence.get(y * stride + x) & 0xFF;
+  }
+
+  /** Copies the pixels row by row into a tightly packed {@code width * height} array. */
+  public void copyTo(short[] destination) {
+    ShortBuffer source = depth.duplicate();
+    for (int y = 0; y < height; y++) {
+      source.position(y * stride);
+      source.get(destination, y * width, width);
+    }
+  }
+
+  /** Overwrites the pixels with a tightly packed {@code width * height} array. */
+  public void copyFrom(short[] source) {
+    ShortBuffer destination = depth.duplicate();
+    for (int y = 0; y < height; y++) {
+      destination.position(y * stride);
+      destination.put(source, y * width, width);
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package com.kazuki.depthreconstruction.depth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands depth frames with their camera pose and intrinsics from the render thread to worker
+ * threads without locks.
+ *
+ * <p>There is one producer, the render thread, which calls {@link #publish} and never blocks: the
+ * frame is copied into one of a fixed set of preallocated frames and queued. When the queue is
+ * full, the {@link DropPolicy} decides which frame is lost. Any number of consumers, up to the
+ * count given at construction, take frames with {@link #poll} at their own rate and give each back
+ * with {@link #release} before taking the next. Every frame goes to exactly one consumer.
+ *
+ * <p>Both the queue and the free list are bounded ring buffers in which every cell carries a
+ * sequence number, so producers and consumers only contend on a compare-and-set of the ring
+ * position and nothing allocates after construction.
+ */
+public final class DepthFrameHandoff {
+  /** What happens to queued frames when a new one is published. */
+  public enum DropPolicy {
+    /** Keeps up to the capacity of frames, dropping the oldest one when full. */
+    DROP_OLDEST,
+    /** Keeps only the newest frame, so consumers always see the latest depth. */
+    LATEST_ONLY
+  }
+
+  /** A published frame. Only valid between {@link #poll} and {@link #release}. */
+  public static final class Frame {
+    private DepthFrame depth;
+    private final float[] cameraToWorld = new float[16];
+    private final float[] intrinsics = new float[6];
+    private long publishNanos;
+
+    private Frame() {}
+
+    public DepthFrame getDepth() {
+      return depth;
+    }
+
+    /** Returns the column-major 4x4 camera pose. */
+    public float[] getCameraToWorld() {
+      return cameraToWorld;
+    }
+
+    /**
+     * Returns the focal lengths, principal point and size of the camera image the depth is aligned
+     * with, in that order.
+     */
+    public float[] getIntrinsics() {
+      return intrinsics;
+    }
+
+    public long getTimestamp() {
+      return depth.getTimestamp();
+    }
+  }
+
+  private final DropPolicy dropPolicy;
+  private final int capacity;
+  private final Ring queue;
+  private final Ring freeFrames;
+
+  // Written by the producer only.
+  private volatile long publishedFrameCount = 0;
+  private volatile long droppedFrameCount = 0;
+  // Written by the consumers.
+  private final AtomicLong takenFrameCount = new AtomicLong();
+  private final AtomicLong totalHandoffNanos = new AtomicLong();
+  private volatile long lastHandoffNanos = 0;
+
+  /**
+   * @param dropPolicy What to drop when the queue is full.
+   * @param capacity Number of frames that may wait in the queue; ignored for {@link
+   *     DropPolicy#LATEST_ONLY}, which keeps one.
+   * @param consumerCount Largest number of frames taken and not yet released at any time.
+   */
+  public DepthFrameHandoff(DropPolicy dropPolicy, int capacity, int consumerCount) {
+    this.dropPolicy = dropPolicy;
+    this.capacity = dropPolicy == DropPolicy.LATEST_ONLY ? 1 : capacity;
+    // Consumers that claimed a cell but did not free it yet occupy room in the ring.
+    queue = new Ring(this.capacity + consumerCount);
+    // Queued frames, frames held by consumers and the one the producer is writing.
+    int frameCount = this.capacity + consumerCount + 1;
+    freeFrames = new Ring(frameCount);
+    for (int i = 0; i < frameCount; i++) {
+      freeFrames.offer(new Frame());
+    }
+  }
+
+  public DropPolicy getDropPolicy() {
+    return dropPolicy;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Copies a frame into the queue. Called from the single producer thread; never blocks.
+   *
+   * @param cameraToWorld Column-major 4x4 camera pose, as written by ARCore's {@code
+   *     Pose.toMatrix}.
+   * @param intrinsics Focal lengths, principal point and size of the camera image the depth is
+   *     aligned with.
+   * @return Whether the frame was queued. It is not if every frame is held by consumers.
+   */
+  public boolean publish(DepthFrame depthFrame, float[] cameraToWorld, float[] intrinsics) {
+    publishedFrameCount++;
+    while (queue.size() >= capacity) {
+      Frame oldest = (Frame) queue.poll();
+      if (oldest == null) {
+        // Consumers emptied the queue in the meantime.
+        break;
+      }
+      droppedFrameCount++;
+      freeFrames.offer(oldest);
+    }
+    Frame frame = (Frame) freeFrames.poll();
+    if (frame == null) {
+      droppedFrameCount++;
+      return false;
+    }
+    if (frame.depth == null
+            || frame.depth.getWidth() != depthFrame.getWidth()
+            || frame.depth.getHeight() != depthFrame.getHeight()) {
+      frame.depth = DepthFrame.allocate(depthFrame.getWidth(), depthFrame.getHeight());
+    }
+    depthFrame.copyTo(frame.depth.array());
+    frame.depth.setTimestamp(depthFrame.getTimestamp());
+    System.arraycopy(cameraToWorld, 0, frame.cameraToWorld, 0, 16);
+    System.arraycopy(intrinsics, 0, frame.intrinsics, 0, 6);
+    frame.publishNanos = System.nanoTime();
+    if (!queue.offer(frame)) {
+      droppedFrameCount++;
+      freeFrames.offer(frame);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Takes the oldest queued frame, or returns null if there is none. The frame must be given back
+   * with {@link #release} before the same consumer takes another.
+   */
+  public Frame poll() {
+    Frame frame = (Frame) queue.poll();
+    if (frame != null) {
+      long nanos = System.nanoTime() - frame.publishNanos;
+      lastHandoffNanos = nanos;
+      totalHandoffNanos.addAndGet(nanos);
+      takenFrameCount.incrementAndGet();
+    }
+    return frame;
+  }
+
+  /** Gives a frame taken with {@link #poll} back for reuse. */
+  public void release(Frame frame) {
+    freeFrames.offer(frame);
+  }
+
+  /** Returns the number of frames waiting for a consumer. */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public long getPublishedFrameCount() {
+    return publishedFrameCount;
+  }
+
+  /** Returns the number of frames dropped unconsumed, by the drop policy or for want of room. */
+  public long getDroppedFrameCount() {
+    return droppedFrameCount;
+  }
+
+  public long getTakenFrameCount() {
+    return takenFrameCount.get();
+  }
+
+  /** Returns the time between publishing and taking the last frame taken. */
+  public long getLastHandoffNanos() {
+    return lastHandoffNanos;
+  }
+
+  public long getAverageHandoffNanos() {
+    long count = takenFrameCount.get();
+    return count == 0 ? 0 : totalHandoffNanos.get() / count;
+  }
+
+  /**
+   * A bounded multi-producer multi-consumer ring buffer. Each cell's sequence number tells whether
+   * it is ready to be written or read at a given ring position, so a thread owns a cell once it
+   * has advanced the position past it.
+   */
+  private static final class Ring {
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong writePosition = new AtomicLong();
+    private final AtomicLong readPosition = new AtomicLong();
+
+    Ring(int minimumCapacity) {
+      int capacity = Integer.highestOneBit(Math.max(2, minimumCapacity) * 2 - 1);
+      items = new Object[capacity];
+      sequences = new AtomicLongArray(capacity);
+      mask = capacity - 1;
+      for (int i = 0; i < capacity; i++) {
+        sequences.set(i, i);
+      }
+    }
+
+    /** Adds an item unless the ring is full. */
+    boolean offer(Object item) {
+      long position = writePosition.get();
+      while (true) {
+        int cell = (int) position & mask;
+        long difference = sequences.get(cell) - position;
+        if (difference == 0) {
+          if (writePosition.compareAndSet(position, position + 1)) {
+            items[cell] = item;
+            sequences.set(cell, position + 1);
+            return true;
+          }
+          position = writePosition.get();
+        } else if (difference < 0) {
+          return false;
+        } else {
+          position = writePosition.get();
+        }
+      }
+    }
+
+    /** Removes the oldest item, or returns null if the ring is empty. */
+    Object poll() {
+      long position = readPosition.get();
+      while (true) {
+        int cell = (int) position & mask;
+        long difference = sequences.get(cell) - (position + 1);
+        if (difference == 0) {
+          if (readPosition.compareAndSet(position, position + 1)) {
+            Object item = items[cell];
+            items[cell] = null;
+            sequences.set(cell, position + mask + 1);
+            return item;
+          }
+          position = readPosition.get();
+        } else if (difference < 0) {
+          return null;
+        } else {
+          position = readPosition.get();
+        }
+      }
+    }
+
+    int size() {
+      return (int) Math.max(0, writePosition.get() - readPosition.get());
+    }
+  }
+}
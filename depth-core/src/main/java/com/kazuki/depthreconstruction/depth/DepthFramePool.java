@@ -0,0 +1,140 @@
+package com.kazuki.depthreconstruction.depth;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Recycles direct depth frames so per-frame processing does not allocate. Frames are kept per
+ * resolution and handed out as {@link PooledDepthFrame}s with a single reference. This class is
+ * thread safe; frames may be released on a different thread than they were acquired on.
+ */
+public final class DepthFramePool {
+  private static final int DEFAULT_MAX_POOLED_PER_SIZE = 4;
+
+  // Released frames per resolution. Depth only comes in a handful of resolutions, so a linear scan
+  // is cheaper than a map and does not box the key on every acquisition.
+  private final List<SizeBucket> buckets = new ArrayList<>();
+  private final int maxPooledPerSize;
+  private final boolean isLeakTrackingEnabled;
+  private final Set<PooledDepthFrame> outstandingFrames =
+          Collections.newSetFromMap(new IdentityHashMap<PooledDepthFrame, Boolean>());
+
+  private long hitCount = 0;
+  private long missCount = 0;
+  private int outstandingCount = 0;
+
+  public DepthFramePool() {
+    this(DEFAULT_MAX_POOLED_PER_SIZE, /*isLeakTrackingEnabled=*/ false);
+  }
+
+  /**
+   * @param maxPooledPerSize Number of released frames kept per resolution; further frames are left
+   *     to the garbage collector.
+   * @param isLeakTrackingEnabled Records where each frame was acquired so {@link #findLeaks(long)}
+   *     can report frames that were never released. Meant for debug builds only.
+   */
+  public DepthFramePool(int maxPooledPerSize, boolean isLeakTrackingEnabled) {
+    this.maxPooledPerSize = maxPooledPerSize;
+    this.isLeakTrackingEnabled = isLeakTrackingEnabled;
+  }
+
+  /** Returns a frame of the given resolution with a reference count of one. */
+  public synchronized PooledDepthFrame acquire(int width, int height) {
+    PooledDepthFrame pooledFrame = getBucket(width, height).frames.pollFirst();
+    if (pooledFrame != null) {
+      hitCount++;
+    } else {
+      missCount++;
+      pooledFrame = new PooledDepthFrame(this, DepthFrame.allocateDirect(width, height));
+    }
+    pooledFrame.reset();
+    outstandingCount++;
+    if (isLeakTrackingEnabled) {
+      pooledFrame.acquireSite = new Throwable("Depth frame acquired here");
+      pooledFrame.acquireNanos = System.nanoTime();
+      outstandingFrames.add(pooledFrame);
+    }
+    return pooledFrame;
+  }
+
+  synchronized void recycle(PooledDepthFrame pooledFrame) {
+    outstandingCount--;
+    if (isLeakTrackingEnabled) {
+      outstandingFrames.remove(pooledFrame);
+      pooledFrame.acquireSite = null;
+    }
+    DepthFrame frame = pooledFrame.getFrameUnchecked();
+    ArrayDeque<PooledDepthFrame> frames = getBucket(frame.getWidth(), frame.getHeight()).frames;
+    if (frames.size() < maxPooledPerSize) {
+      frames.addFirst(pooledFrame);
+    }
+  }
+
+  /**
+   * Returns the acquisition stack traces of frames that have been held for longer than the given
+   * age. Always empty unless leak tracking is enabled.
+   */
+  public synchronized List<Throwable> findLeaks(long maxAgeNanos) {
+    List<Throwable> leaks = new ArrayList<>();
+    long now = System.nanoTime();
+    for (PooledDepthFrame pooledFrame : outstandingFrames) {
+      if (now - pooledFrame.acquireNanos > maxAgeNanos) {
+        leaks.add(pooledFrame.acquireSite);
+      }
+    }
+    return leaks;
+  }
+
+  /** Drops all released frames, for example after the depth resolution changed. */
+  public synchronized void clear() {
+    buckets.clear();
+  }
+
+  /** Returns how many acquisitions were served from a released frame. */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /** Returns how many acquisitions had to allocate a new frame. */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /** Returns the number of frames acquired and not yet released. */
+  public synchronized int getOutstandingCount() {
+    return outstandingCount;
+  }
+
+  public synchronized void resetStats() {
+    hitCount = 0;
+    missCount = 0;
+  }
+
+  private SizeBucket getBucket(int width, int height) {
+    for (int i = 0; i < buckets.size(); i++) {
+      SizeBucket bucket = buckets.get(i);
+      if (bucket.width == width && bucket.height == height) {
+        return bucket;
+      }
+    }
+    SizeBucket bucket = new SizeBucket(width, height, maxPooledPerSize);
+    buckets.add(bucket);
+    return bucket;
+  }
+
+  private static final class SizeBucket {
+    final int width;
+    final int height;
+    final ArrayDeque<PooledDepthFrame> frames;
+
+    SizeBucket(int width, int height, int capacity) {
+      this.width = width;
+      this.height = height;
+      this.frames = new ArrayDeque<>(capacity);
+    }
+  }
+}
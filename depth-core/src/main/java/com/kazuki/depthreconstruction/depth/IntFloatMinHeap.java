@@ -0,0 +1,127 @@
+package com.kazuki.depthreconstruction.depth;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of {@code int} elements in [0, capacity) ordered by {@code float} keys. Each
+ * element is in the heap at most once; pushing an element that is already queued lowers its key
+ * instead. Everything lives in preallocated primitive arrays, so no operation allocates.
+ */
+public final class IntFloatMinHeap {
+  private final int[] elements;
+  private final float[] keys;
+  // Heap slot of every element, or -1 when it is not queued.
+  private final int[] slots;
+  private int size = 0;
+
+  public IntFloatMinHeap(int capacity) {
+    elements = new int[capacity];
+    keys = new float[capacity];
+    slots = new int[capacity];
+    Arrays.fill(slots, -1);
+  }
+
+  public int getCapacity() {
+    return elements.length;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean contains(int element) {
+    return slots[element] >= 0;
+  }
+
+  /** Queues the element, or lowers its key if it is queued with a larger one. */
+  public void push(int element, float key) {
+    int slot = slots[element];
+    if (slot < 0) {
+      slot = size++;
+      elements[slot] = element;
+      slots[element] = slot;
+    } else if (key >= keys[slot]) {
+      return;
+    }
+    keys[slot] = key;
+    siftUp(slot);
+  }
+
+  /** Returns the element with the smallest key without removing it. */
+  public int peek() {
+    return elements[0];
+  }
+
+  /** Returns the smallest key. */
+  public float peekKey() {
+    return keys[0];
+  }
+
+  /** Removes and returns the element with the smallest key. */
+  public int pop() {
+    int top = elements[0];
+    slots[top] = -1;
+    size--;
+    if (size > 0) {
+      move(size, 0);
+      siftDown(0);
+    }
+    return top;
+  }
+
+  /** Empties the heap in O(size). */
+  public void clear() {
+    for (int i = 0; i < size; i++) {
+      slots[elements[i]] = -1;
+    }
+    size = 0;
+  }
+
+  private void siftUp(int slot) {
+    int element = elements[slot];
+    float key = keys[slot];
+    while (slot > 0) {
+      int parent = (slot - 1) >>> 1;
+      if (keys[parent] <= key) {
+        break;
+      }
+      move(parent, slot);
+      slot = parent;
+    }
+    place(element, key, slot);
+  }
+
+  private void siftDown(int slot) {
+    int element = elements[slot];
+    float key = keys[slot];
+    int half = size >>> 1;
+    while (slot < half) {
+      int child = 2 * slot + 1;
+      if (child + 1 < size && keys[child + 1] < keys[child]) {
+        child++;
+      }
+      if (key <= keys[child]) {
+        break;
+      }
+      move(child, slot);
+      slot = child;
+    }
+    place(element, key, slot);
+  }
+
+  private void move(int from, int to) {
+    elements[to] = elements[from];
+    keys[to] = keys[from];
+    slots[elements[to]] = to;
+  }
+
+  private void place(int element, float key, int slot) {
+    elements[slot] = element;
+    keys[slot] = key;
+    slots[element] = slot;
+  }
+}
@@ -0,0 +1,142 @@
+package com.kazuki.depthreconstruction.depth;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from {@code long} keys to non-negative {@code int} values, with
+ * linear probing in primitive arrays, so lookups never box. {@link Long#MIN_VALUE} is reserved as
+ * the empty slot marker and cannot be used as a key. The table doubles when it is half full.
+ * Removal shifts the following entries of the probe run back, so no tombstones slow lookups down.
+ */
+public final class LongIntHashMap {
+  private static final long EMPTY = Long.MIN_VALUE;
+
+  private long[] keys;
+  private int[] values;
+  private int mask;
+  private int size = 0;
+
+  /** @param expectedSize Number of entries the map holds before it first grows. */
+  public LongIntHashMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+    keys = new long[capacity];
+    values = new int[capacity];
+    mask = capacity - 1;
+    Arrays.fill(keys, EMPTY);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** Returns the number of slots, for reporting memory use. */
+  public int getCapacity() {
+    return keys.length;
+  }
+
+  /** Returns the value of the key, or -1 if the map does not contain it. */
+  public int get(long key) {
+    int slot = slotOf(key);
+    while (true) {
+      long slotKey = keys[slot];
+      if (slotKey == key) {
+        return values[slot];
+      } else if (slotKey == EMPTY) {
+        return -1;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /** Maps the key to the value, replacing any previous value. */
+  public void put(long key, int value) {
+    if (key == EMPTY) {
+      throw new IllegalArgumentException("Reserved key: " + key);
+    }
+    if (value < 0) {
+      throw new IllegalArgumentException("Values must not be negative: " + value);
+    }
+    if ((size + 1) * 2 > keys.length) {
+      grow();
+    }
+    int slot = slotOf(key);
+    while (true) {
+      long slotKey = keys[slot];
+      if (slotKey == key) {
+        values[slot] = value;
+        return;
+      } else if (slotKey == EMPTY) {
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /** Removes the key and returns its value, or -1 if the map does not contain it. */
+  public int remove(long key) {
+    int slot = slotOf(key);
+    while (true) {
+      long slotKey = keys[slot];
+      if (slotKey == EMPTY) {
+        return -1;
+      } else if (slotKey == key) {
+        break;
+      }
+      slot = (slot + 1) & mask;
+    }
+    int value = values[slot];
+    // Moves later entries of the run into the hole unless that would put them before their home.
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (keys[next] != EMPTY) {
+      int home = slotOf(keys[next]);
+      // Whether home lies cyclically in (hole, next], in which case the entry must stay.
+      boolean staysPut = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+      if (!staysPut) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[hole] = EMPTY;
+    size--;
+    return value;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, EMPTY);
+    size = 0;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new int[oldValues.length * 2];
+    mask = keys.length - 1;
+    Arrays.fill(keys, EMPTY);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = slotOf(oldKeys[i]);
+        while (keys[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private int slotOf(long key) {
+    // The finalizer of SplitMix64, so keys that differ in a few bits spread over the table.
+    long h = key;
+    h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+    h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+    h = h ^ (h >>> 31);
+    return (int) h & mask;
+  }
+}
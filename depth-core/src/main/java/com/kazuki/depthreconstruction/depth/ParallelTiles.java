@@ -0,0 +1,129 @@
+package com.kazuki.depthreconstruction.depth;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Splits an image into square tiles and runs a body for every tile on a {@link ForkJoinPool}. Tile
+ * indices run row-major; {@link #getX0(int)} and friends turn an index back into pixel bounds.
+ */
+public final class ParallelTiles {
+  private final int width;
+  private final int height;
+  private final int tileSize;
+  private final int tilesX;
+  private final int tilesY;
+
+  public ParallelTiles(int width, int height, int tileSize) {
+    this.width = width;
+    this.height = height;
+    this.tileSize = tileSize;
+    this.tilesX = (width + tileSize - 1) / tileSize;
+    this.tilesY = (height + tileSize - 1) / tileSize;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getTileSize() {
+    return tileSize;
+  }
+
+  public int getTilesX() {
+    return tilesX;
+  }
+
+  public int getTilesY() {
+    return tilesY;
+  }
+
+  public int getTileCount() {
+    return tilesX * tilesY;
+  }
+
+  /** Returns the first column of the tile. */
+  public int getX0(int tile) {
+    return (tile % tilesX) * tileSize;
+  }
+
+  /** Returns the first row of the tile. */
+  public int getY0(int tile) {
+    return (tile / tilesX) * tileSize;
+  }
+
+  /** Returns one past the last column of the tile. */
+  public int getX1(int tile) {
+    return Math.min(getX0(tile) + tileSize, width);
+  }
+
+  /** Returns one past the last row of the tile. */
+  public int getY1(int tile) {
+    return Math.min(getY0(tile) + tileSize, height);
+  }
+
+  /** Runs the body once for every tile and waits until all of them are done. */
+  public void forEach(ForkJoinPool pool, IntConsumer body) {
+    forEach(pool, getTileCount(), body);
+  }
+
+  /**
+   * Runs the body for every index in [0, count) on the pool and waits until all of them are done.
+   * Also usable for row bands or other work that is not laid out as tiles.
+   */
+  public static void forEach(ForkJoinPool pool, int count, IntConsumer body) {
+    if (count <= 0) {
+      return;
+    }
+    if (count == 1 || pool.getParallelism() == 1) {
+      for (int i = 0; i < count; i++) {
+        body.accept(i);
+      }
+      return;
+    }
+    RangeAction action = new RangeAction(body, 0, count);
+    if (isRunningIn(pool)) {
+      // Already on one of the pool's workers, e.g. a stage nested in another parallel stage.
+      action.invoke();
+    } else {
+      pool.invoke(action);
+    }
+  }
+
+  private static boolean isRunningIn(ForkJoinPool pool) {
+    Thread thread = Thread.currentThread();
+    return thread instanceof ForkJoinWorkerThread
+            && ((ForkJoinWorkerThread) thread).getPool() == pool;
+  }
+
+  /** Recursively halves an index range until single indices are left. */
+  private static final class RangeAction extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final IntConsumer body;
+    private final int from;
+    private final int to;
+
+    RangeAction(IntConsumer body, int from, int to) {
+      this.body = body;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        body.accept(from);
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new RangeAction(body, from, middle), new RangeAction(body, middle, to));
+    }
+  }
+}
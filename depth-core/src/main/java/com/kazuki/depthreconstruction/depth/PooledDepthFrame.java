@@ -0,0 +1,67 @@
+package com.kazuki.depthreconstruction.depth;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted {@link DepthFrame} handed out by a {@link DepthFramePool}. Every consumer
+ * that keeps the frame beyond the call it received it in calls {@link #retain()}, and every owner
+ * calls {@link #release()} when done. The frame goes back to its pool when the last reference is
+ * released, so it must not be touched afterwards.
+ */
+public final class PooledDepthFrame {
+  private final DepthFramePool pool;
+  private final DepthFrame frame;
+  private final AtomicInteger referenceCount = new AtomicInteger();
+
+  // Leak tracking state, only filled in when the pool tracks leaks.
+  Throwable acquireSite;
+  long acquireNanos;
+
+  PooledDepthFrame(DepthFramePool pool, DepthFrame frame) {
+    this.pool = pool;
+    this.frame = frame;
+  }
+
+  /** Called by the pool when the frame is handed out again. */
+  void reset() {
+    referenceCount.set(1);
+  }
+
+  public DepthFrame getFrame() {
+    if (referenceCount.get() <= 0) {
+      throw new IllegalStateException("Depth frame used after it was released.");
+    }
+    return frame;
+  }
+
+  /** Returns the frame regardless of its reference count, for the pool's own bookkeeping. */
+  DepthFrame getFrameUnchecked() {
+    return frame;
+  }
+
+  /** Adds a reference for another consumer and returns this frame. */
+  public PooledDepthFrame retain() {
+    int count;
+    do {
+      count = referenceCount.get();
+      if (count <= 0) {
+        throw new IllegalStateException("Cannot retain a released depth frame.");
+      }
+    } while (!referenceCount.compareAndSet(count, count + 1));
+    return this;
+  }
+
+  /** Drops a reference, returning the frame to its pool when it was the last one. */
+  public void release() {
+    int count = referenceCount.decrementAndGet();
+    if (count == 0) {
+      pool.recycle(this);
+    } else if (count < 0) {
+      throw new IllegalStateException("Depth frame released more often than retained.");
+    }
+  }
+
+  public int getReferenceCount() {
+    return referenceCount.get();
+  }
+}
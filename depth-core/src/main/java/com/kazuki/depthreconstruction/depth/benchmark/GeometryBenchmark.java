@@ -0,0 +1,107 @@
+package com.kazuki.depthreconstruction.depth.benchmark;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.geometry.DepthUnprojector;
+import com.kazuki.depthreconstruction.depth.geometry.NormalEstimator;
+import com.kazuki.depthreconstruction.depth.geometry.NormalGrid;
+import com.kazuki.depthreconstruction.depth.geometry.PointGrid;
+import com.kazuki.depthreconstruction.depth.geometry.VoxelGridDownsampler;
+
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures the per-frame geometry stages on synthetic depth at ARCore's depth resolution and at the
+ * camera resolutions upsampled depth reaches, from about 20k to 300k points: unprojecting the
+ * depth to world space, estimating normals with and without octahedral encoding, and downsampling
+ * the points into a voxel grid. The camera slides sideways between frames, so the grid keeps
+ * allocating voxels and, once full, evicting them. Run with {@code ./gradlew
+ * :depth-core:geometryBenchmark}.
+ */
+public final class GeometryBenchmark {
+  private static final int[][] RESOLUTIONS = {{160, 120}, {320, 240}, {640, 480}};
+  // Intrinsics of a 640x480 camera image the depth is aligned with.
+  private static final float FOCAL_LENGTH = 500.0f;
+  private static final int IMAGE_WIDTH = 640;
+  private static final int IMAGE_HEIGHT = 480;
+  private static final int WARM_UP_ITERATIONS = 50;
+  private static final int MEASURED_ITERATIONS = 100;
+  private static final float CAMERA_STEP_METERS = 0.01f;
+  private static final float VOXEL_SIZE = 0.02f;
+  private static final int VOXEL_CAPACITY = 100000;
+
+  private GeometryBenchmark() {}
+
+  public static void main(String[] args) {
+    float[] cameraToWorld = new float[16];
+    cameraToWorld[0] = 1.0f;
+    cameraToWorld[5] = 1.0f;
+    cameraToWorld[10] = 1.0f;
+    cameraToWorld[13] = 1.5f;
+    cameraToWorld[15] = 1.0f;
+    for (int[] resolution : RESOLUTIONS) {
+      int width = resolution[0];
+      int height = resolution[1];
+      SyntheticDepthScene scene = new SyntheticDepthScene(width, height, /*seed=*/ 42);
+      DepthFrame depthFrame =
+              DepthFrame.wrap(scene.getDepthWithHoles().clone(), width, height, 1);
+      DepthUnprojector unprojector = new DepthUnprojector(ForkJoinPool.commonPool());
+      unprojector.setIntrinsics(
+              FOCAL_LENGTH,
+              FOCAL_LENGTH,
+              IMAGE_WIDTH / 2.0f,
+              IMAGE_HEIGHT / 2.0f,
+              IMAGE_WIDTH,
+              IMAGE_HEIGHT);
+      NormalEstimator estimator = new NormalEstimator(ForkJoinPool.commonPool());
+      PointGrid points = new PointGrid(width, height);
+      NormalGrid normals = new NormalGrid(width, height);
+      VoxelGridDownsampler downsampler = new VoxelGridDownsampler(VOXEL_SIZE, VOXEL_CAPACITY);
+
+      long unprojectNanos = 0;
+      long normalNanos = 0;
+      long encodedNormalNanos = 0;
+      long downsampleNanos = 0;
+      long warmUpEvictedVoxelCount = 0;
+      cameraToWorld[12] = 0.3f;
+      for (int i = 0; i < WARM_UP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+        boolean isMeasured = i >= WARM_UP_ITERATIONS;
+        cameraToWorld[12] += CAMERA_STEP_METERS;
+        unprojector.unproject(depthFrame, cameraToWorld, points);
+        estimator.setEncodingEnabled(false);
+        estimator.estimate(points, normals);
+        long plainNanos = estimator.getLastEstimateNanos();
+        estimator.setEncodingEnabled(true);
+        estimator.estimate(points, normals);
+        downsampler.add(points);
+        if (i == WARM_UP_ITERATIONS - 1) {
+          warmUpEvictedVoxelCount = downsampler.getEvictedVoxelCount();
+        }
+        if (isMeasured) {
+          unprojectNanos += unprojector.getLastUnprojectNanos();
+          normalNanos += plainNanos;
+          encodedNormalNanos += estimator.getLastEstimateNanos();
+          downsampleNanos += downsampler.getLastAddNanos();
+        }
+      }
+
+      System.out.println(
+              String.format(
+                      Locale.US,
+                      "%4dx%-4d %6d points  unproject %.3f ms  normals %.3f ms"
+                              + "  normals encoded %.3f ms  %d valid normals"
+                              + "  downsample %.3f ms  %d voxels  %d evicted per frame",
+                      width,
+                      height,
+                      points.getValidCount(),
+                      unprojectNanos / 1e6 / MEASURED_ITERATIONS,
+                      normalNanos / 1e6 / MEASURED_ITERATIONS,
+                      encodedNormalNanos / 1e6 / MEASURED_ITERATIONS,
+                      normals.getValidCount(),
+                      downsampleNanos / 1e6 / MEASURED_ITERATIONS,
+                      downsampler.getVoxelCount(),
+                      (downsampler.getEvictedVoxelCount() - warmUpEvictedVoxelCount)
+                              / MEASURED_ITERATIONS));
+    }
+  }
+}
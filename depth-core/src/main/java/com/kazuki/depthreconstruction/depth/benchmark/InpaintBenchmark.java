@@ -0,0 +1,59 @@
+package com.kazuki.depthreconstruction.depth.benchmark;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.inpaint.HoleFillingEngine;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compares the hole filling algorithms on synthetic depth at the ARCore depth resolution and at
+ * VGA. Nearest-valid propagation serves as the naive baseline. Run with {@code ./gradlew
+ * :depth-core:inpaintBenchmark}.
+ */
+public final class InpaintBenchmark {
+  private static final int WARMUP_ITERATIONS = 50;
+  private static final int MEASURED_ITERATIONS = 200;
+  private static final int[][] RESOLUTIONS = {{160, 120}, {640, 480}};
+
+  private InpaintBenchmark() {}
+
+  public static void main(String[] args) {
+    for (int[] resolution : RESOLUTIONS) {
+      int width = resolution[0];
+      int height = resolution[1];
+      SyntheticDepthScene scene = new SyntheticDepthScene(width, height, /*seed=*/ 42);
+      DepthFrame source = DepthFrame.wrap(scene.getDepthWithHoles(), width, height, 1);
+      DepthFrame destination = DepthFrame.allocateDirect(width, height);
+      short[] filled = new short[width * height];
+      long budgetNanos = HoleFillingEngine.getLatencyBudgetNanos(width, height);
+
+      for (HoleFillingEngine.Algorithm algorithm : HoleFillingEngine.Algorithm.values()) {
+        HoleFillingEngine engine = new HoleFillingEngine();
+        engine.setAlgorithm(algorithm);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+          engine.fill(source, destination);
+        }
+        long[] nanos = new long[MEASURED_ITERATIONS];
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+          engine.fill(source, destination);
+          nanos[i] = engine.getLastFillNanos();
+        }
+        Arrays.sort(nanos);
+        destination.copyTo(filled);
+        System.out.println(
+                String.format(
+                        Locale.US,
+                        "%dx%d %-14s median %6.2f ms  p95 %6.2f ms  budget %4.1f ms"
+                                + "  hole error %7.1f mm",
+                        width,
+                        height,
+                        algorithm,
+                        nanos[MEASURED_ITERATIONS / 2] / 1e6,
+                        nanos[MEASURED_ITERATIONS * 95 / 100] / 1e6,
+                        budgetNanos / 1e6,
+                        scene.getHoleError(filled)));
+      }
+    }
+  }
+}
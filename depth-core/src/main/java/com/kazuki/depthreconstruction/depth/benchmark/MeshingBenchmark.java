@@ -0,0 +1,125 @@
+package com.kazuki.depthreconstruction.depth.benchmark;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.fusion.TsdfFusionEngine;
+import com.kazuki.depthreconstruction.depth.fusion.TsdfVolume;
+import com.kazuki.depthreconstruction.depth.mesh.BlockMesher;
+import com.kazuki.depthreconstruction.depth.mesh.IncrementalMesher;
+import com.kazuki.depthreconstruction.depth.mesh.MarchingCubesMesher;
+import com.kazuki.depthreconstruction.depth.mesh.SurfaceNetsMesher;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares marching cubes and surface nets on a volume fused from synthetic depth seen by a camera
+ * sliding sideways, once exact and once with per-frame sensor noise: latency and throughput of
+ * meshing the whole volume, the size of the buffers the fused mesh renderer would upload, and the
+ * latency of the incremental update after each new frame.
+ * Run with {@code ./gradlew :depth-core:meshingBenchmark}.
+ */
+public final class MeshingBenchmark {
+  private static final int WIDTH = 160;
+  private static final int HEIGHT = 120;
+  // Intrinsics of a 640x480 camera image the depth is aligned with.
+  private static final float[] INTRINSICS = {500.0f, 500.0f, 320.0f, 240.0f, 640.0f, 480.0f};
+  private static final float VOXEL_SIZE = 0.04f;
+  private static final float TRUNCATION = 3 * VOXEL_SIZE;
+  private static final int MAX_BLOCK_COUNT = 8192;
+  private static final int FUSED_FRAMES = 20;
+  private static final int INCREMENTAL_FRAMES = 20;
+  private static final float CAMERA_STEP_METERS = 0.01f;
+  private static final int MEASURED_ITERATIONS = 20;
+  private static final double NOISE_MILLIMETERS = 20.0;
+  // Bytes per vertex and per index in the fused mesh renderer's buffers.
+  private static final int VERTEX_BYTES = 16;
+  private static final int INDEX_BYTES = 2;
+
+  private MeshingBenchmark() {}
+
+  public static void main(String[] args) {
+    // The first round only warms up the JIT.
+    run("marching cubes", new MarchingCubesMesher(), 0.0, /*isPrinted=*/ false);
+    run("surface nets", new SurfaceNetsMesher(), 0.0, /*isPrinted=*/ false);
+    for (double noise : new double[] {0.0, NOISE_MILLIMETERS}) {
+      System.out.println(String.format(Locale.US, "depth noise %.0f mm:", noise));
+      run("marching cubes", new MarchingCubesMesher(), noise, /*isPrinted=*/ true);
+      run("surface nets", new SurfaceNetsMesher(), noise, /*isPrinted=*/ true);
+    }
+  }
+
+  private static void run(
+          String name, BlockMesher blockMesher, double noiseMillimeters, boolean isPrinted) {
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    SyntheticDepthScene scene = new SyntheticDepthScene(WIDTH, HEIGHT, /*seed=*/ 42);
+    short[] depth = new short[WIDTH * HEIGHT];
+    DepthFrame depthFrame = DepthFrame.wrap(depth, WIDTH, HEIGHT, 1);
+    Random random = new Random(7);
+    TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, MAX_BLOCK_COUNT);
+    TsdfFusionEngine engine = new TsdfFusionEngine(volume, pool);
+    float[] cameraToWorld = new float[16];
+    cameraToWorld[0] = 1.0f;
+    cameraToWorld[5] = 1.0f;
+    cameraToWorld[10] = 1.0f;
+    cameraToWorld[15] = 1.0f;
+    for (int i = 0; i < FUSED_FRAMES; i++) {
+      addNoise(scene.getDepthWithHoles(), noiseMillimeters, random, depth);
+      cameraToWorld[12] = i * CAMERA_STEP_METERS;
+      engine.integrate(depthFrame, cameraToWorld, INTRINSICS);
+    }
+
+    IncrementalMesher mesher = new IncrementalMesher(pool, blockMesher);
+    mesher.update(volume);
+    long fullNanos = 0;
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      mesher.requestRemeshAll();
+      mesher.update(volume);
+      fullNanos += mesher.getLastUpdateNanos();
+    }
+    double fullMillis = fullNanos / 1e6 / MEASURED_ITERATIONS;
+    int triangles = mesher.getTriangleCount();
+    int vertices = mesher.getVertexCount();
+
+    engine.setIntegrationListener(mesher::update);
+    long incrementalNanos = 0;
+    int incrementalBlocks = 0;
+    for (int i = 0; i < INCREMENTAL_FRAMES; i++) {
+      addNoise(scene.getDepthWithHoles(), noiseMillimeters, random, depth);
+      cameraToWorld[12] = (FUSED_FRAMES + i) * CAMERA_STEP_METERS;
+      engine.integrate(depthFrame, cameraToWorld, INTRINSICS);
+      incrementalNanos += mesher.getLastUpdateNanos();
+      incrementalBlocks += mesher.getLastMeshedBlockCount();
+    }
+
+    if (!isPrinted) {
+      return;
+    }
+    System.out.println(
+            String.format(
+                    Locale.US,
+                    "  %-15s %6d triangles %6d vertices %5d KiB  full %.2f ms (%.0fk triangles/s)"
+                            + "  incremental %.2f ms for %.0f of %d blocks",
+                    name,
+                    triangles,
+                    vertices,
+                    (vertices * VERTEX_BYTES + triangles * 3 * INDEX_BYTES) / 1024,
+                    fullMillis,
+                    triangles / fullMillis,
+                    incrementalNanos / 1e6 / INCREMENTAL_FRAMES,
+                    (double) incrementalBlocks / INCREMENTAL_FRAMES,
+                    volume.getBlockCount()));
+  }
+
+  /** Copies the depth with Gaussian noise added to every valid pixel. */
+  private static void addNoise(
+          short[] depth, double noiseMillimeters, Random random, short[] noisyDepth) {
+    for (int i = 0; i < depth.length; i++) {
+      int millimeters = depth[i] & 0xFFFF;
+      if (millimeters != 0 && noiseMillimeters > 0.0) {
+        millimeters += (int) Math.round(random.nextGaussian() * noiseMillimeters);
+      }
+      noisyDepth[i] = (short) millimeters;
+    }
+  }
+}
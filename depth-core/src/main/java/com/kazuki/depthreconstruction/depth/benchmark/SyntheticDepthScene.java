@@ -0,0 +1,90 @@
+package com.kazuki.depthreconstruction.depth.benchmark;
+
+import java.util.Random;
+
+/**
+ * Generates reproducible depth images for benchmarks: a slanted floor-to-wall background with a box
+ * in front of it, so there are both smooth regions and sharp depth edges. Holes are punched in the
+ * shape ARCore typically produces, a band along one border plus scattered blobs.
+ */
+public final class SyntheticDepthScene {
+  private final int width;
+  private final int height;
+  private final short[] groundTruth;
+  private final short[] depthWithHoles;
+
+  public SyntheticDepthScene(int width, int height, long seed) {
+    this.width = width;
+    this.height = height;
+    groundTruth = new short[width * height];
+    depthWithHoles = new short[width * height];
+
+    int boxX0 = width / 3;
+    int boxX1 = width * 2 / 3;
+    int boxY0 = height / 3;
+    int boxY1 = height * 3 / 4;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int millimeters = 3000 + 1500 * y / height + 200 * x / width;
+        if (x >= boxX0 && x < boxX1 && y >= boxY0 && y < boxY1) {
+          millimeters = 1200 + 100 * x / width;
+        }
+        groundTruth[y * width + x] = (short) millimeters;
+      }
+    }
+
+    System.arraycopy(groundTruth, 0, depthWithHoles, 0, groundTruth.length);
+    Random random = new Random(seed);
+    int band = Math.max(1, width / 40);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < band; x++) {
+        depthWithHoles[y * width + x] = 0;
+      }
+    }
+    int blobCount = width * height / 2000;
+    int maxRadius = Math.max(2, width / 40);
+    for (int i = 0; i < blobCount; i++) {
+      int cx = random.nextInt(width);
+      int cy = random.nextInt(height);
+      int radius = 1 + random.nextInt(maxRadius);
+      for (int y = Math.max(0, cy - radius); y < Math.min(height, cy + radius); y++) {
+        for (int x = Math.max(0, cx - radius); x < Math.min(width, cx + radius); x++) {
+          if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= radius * radius) {
+            depthWithHoles[y * width + x] = 0;
+          }
+        }
+      }
+    }
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Returns the complete depth image in millimeters. Do not modify. */
+  public short[] getGroundTruth() {
+    return groundTruth;
+  }
+
+  /** Returns the depth image with holes set to zero. Do not modify. */
+  public short[] getDepthWithHoles() {
+    return depthWithHoles;
+  }
+
+  /** Returns the mean absolute error in millimeters over the pixels that were holes. */
+  public double getHoleError(short[] filled) {
+    long errorSum = 0;
+    int holeCount = 0;
+    for (int i = 0; i < groundTruth.length; i++) {
+      if (depthWithHoles[i] == 0) {
+        errorSum += Math.abs((filled[i] & 0xFFFF) - (groundTruth[i] & 0xFFFF));
+        holeCount++;
+      }
+    }
+    return holeCount == 0 ? 0.0 : (double) errorSum / holeCount;
+  }
+}
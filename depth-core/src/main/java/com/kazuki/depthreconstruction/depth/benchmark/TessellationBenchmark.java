@@ -0,0 +1,180 @@
+package com.kazuki.depthreconstruction.depth.benchmark;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.mesh.QuadtreeTessellator;
+
+import java.util.Locale;
+
+/**
+ * Compares the adaptive quadtree mesh against uniform grids on synthetic depth. The error of a mesh
+ * is how far its linearly interpolated depth is from the depth sampled at the finest lattice, which
+ * is what the inpaint renderer shows per vertex. Run with {@code ./gradlew
+ * :depth-core:tessellationBenchmark}.
+ */
+public final class TessellationBenchmark {
+  private static final int WIDTH = 160;
+  private static final int HEIGHT = 120;
+  private static final int TILES_X = 12;
+  private static final int TILES_Y = 8;
+  private static final int LEVELS = 3;
+  private static final float TOLERANCE_MILLIMETERS = 20.0f;
+  private static final int VERTEX_BUDGET = 8000;
+  private static final int MEASURED_ITERATIONS = 200;
+
+  private TessellationBenchmark() {}
+
+  public static void main(String[] args) {
+    SyntheticDepthScene scene = new SyntheticDepthScene(WIDTH, HEIGHT, /*seed=*/ 42);
+    short[] depth = scene.getGroundTruth().clone();
+    DepthFrame depthFrame = DepthFrame.wrap(depth, WIDTH, HEIGHT, 1);
+    QuadtreeTessellator tessellator =
+            new QuadtreeTessellator(TILES_X, TILES_Y, LEVELS, TOLERANCE_MILLIMETERS, VERTEX_BUDGET);
+    tessellator.update(depthFrame);
+    int latticeWidth = tessellator.getLatticeWidth();
+    int latticeHeight = tessellator.getLatticeHeight();
+
+    MeshError adaptiveError = new MeshError(tessellator);
+    short[] indices = tessellator.getIndices();
+    for (int i = 0; i + 2 < indices.length; i += 3) {
+      int a = indices[i] & 0xFFFF;
+      int b = indices[i + 1] & 0xFFFF;
+      int c = indices[i + 2] & 0xFFFF;
+      adaptiveError.addTriangle(
+              tessellator.getVertexLatticeX(a),
+              tessellator.getVertexLatticeY(a),
+              tessellator.getVertexLatticeX(b),
+              tessellator.getVertexLatticeY(b),
+              tessellator.getVertexLatticeX(c),
+              tessellator.getVertexLatticeY(c));
+    }
+    print("adaptive", tessellator.getVertexCount(), tessellator.getTriangleCount(), adaptiveError);
+
+    int matchingUniformVertices = -1;
+    for (int step = 1 << LEVELS; step >= 1; step /= 2) {
+      MeshError uniformError = new MeshError(tessellator);
+      int cols = (latticeWidth - 1) / step;
+      int rows = (latticeHeight - 1) / step;
+      for (int row = 0; row < rows; row++) {
+        for (int col = 0; col < cols; col++) {
+          int x = col * step;
+          int y = row * step;
+          uniformError.addTriangle(x, y, x + step, y, x, y + step);
+          uniformError.addTriangle(x, y + step, x + step, y, x + step, y + step);
+        }
+      }
+      int vertices = (rows + 1) * (cols + 1);
+      print("uniform " + cols + "x" + rows, vertices, rows * cols * 2, uniformError);
+      if (matchingUniformVertices < 0 && uniformError.getMax() <= adaptiveError.getMax()) {
+        matchingUniformVertices = vertices;
+      }
+    }
+    System.out.println(
+            String.format(
+                    Locale.US,
+                    "vertices at equal max error: adaptive %d, uniform %d (%.1fx fewer)",
+                    tessellator.getVertexCount(),
+                    matchingUniformVertices,
+                    (double) matchingUniformVertices / tessellator.getVertexCount()));
+
+    // Incremental updates: unchanged depth, then a moving object covering a few tiles.
+    long unchangedNanos = 0;
+    int unchangedTiles = 0;
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      tessellator.update(depthFrame);
+      unchangedNanos += tessellator.getLastUpdateNanos();
+      unchangedTiles += tessellator.getLastSubdividedTileCount();
+    }
+    long movingNanos = 0;
+    int movingTiles = 0;
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      System.arraycopy(scene.getGroundTruth(), 0, depth, 0, depth.length);
+      int x0 = i % (WIDTH - 20);
+      for (int y = 10; y < 30; y++) {
+        for (int x = x0; x < x0 + 20; x++) {
+          depth[y * WIDTH + x] = 800;
+        }
+      }
+      tessellator.update(depthFrame);
+      movingNanos += tessellator.getLastUpdateNanos();
+      movingTiles += tessellator.getLastSubdividedTileCount();
+    }
+    System.out.println(
+            String.format(
+                    Locale.US,
+                    "update: unchanged %.3f ms, %.1f of %d tiles rebuilt;"
+                            + " moving object %.3f ms, %.1f tiles rebuilt",
+                    unchangedNanos / 1e6 / MEASURED_ITERATIONS,
+                    (double) unchangedTiles / MEASURED_ITERATIONS,
+                    tessellator.getTileCount(),
+                    movingNanos / 1e6 / MEASURED_ITERATIONS,
+                    (double) movingTiles / MEASURED_ITERATIONS));
+  }
+
+  private static void print(String name, int vertices, int triangles, MeshError error) {
+    System.out.println(
+            String.format(
+                    Locale.US,
+                    "%-14s %6d vertices %6d triangles  mean error %6.2f mm  max error %7.1f mm",
+                    name,
+                    vertices,
+                    triangles,
+                    error.getMean(),
+                    error.getMax()));
+  }
+
+  /** Rasterizes triangles onto the lattice and compares their interpolated depth with it. */
+  private static final class MeshError {
+    private final QuadtreeTessellator tessellator;
+    private double errorSum = 0.0;
+    private double maxError = 0.0;
+    private int sampleCount = 0;
+
+    MeshError(QuadtreeTessellator tessellator) {
+      this.tessellator = tessellator;
+    }
+
+    void addTriangle(int ax, int ay, int bx, int by, int cx, int cy) {
+      float area = (bx - ax) * (cy - ay) - (cx - ax) * (by - ay);
+      if (area == 0.0f) {
+        return;
+      }
+      int da = tessellator.getLatticeMillimeters(ax, ay);
+      int db = tessellator.getLatticeMillimeters(bx, by);
+      int dc = tessellator.getLatticeMillimeters(cx, cy);
+      if (da == 0 || db == 0 || dc == 0) {
+        return;
+      }
+      int x0 = Math.min(ax, Math.min(bx, cx));
+      int x1 = Math.max(ax, Math.max(bx, cx));
+      int y0 = Math.min(ay, Math.min(by, cy));
+      int y1 = Math.max(ay, Math.max(by, cy));
+      for (int y = y0; y <= y1; y++) {
+        for (int x = x0; x <= x1; x++) {
+          float wa = ((bx - x) * (cy - y) - (cx - x) * (by - y)) / area;
+          float wb = ((cx - x) * (ay - y) - (ax - x) * (cy - y)) / area;
+          float wc = 1.0f - wa - wb;
+          // Points on a shared edge are counted for both triangles, which does not bias the mean.
+          if (wa < -1e-4f || wb < -1e-4f || wc < -1e-4f) {
+            continue;
+          }
+          int millimeters = tessellator.getLatticeMillimeters(x, y);
+          if (millimeters == 0) {
+            continue;
+          }
+          double error = Math.abs(wa * da + wb * db + wc * dc - millimeters);
+          errorSum += error;
+          maxError = Math.max(maxError, error);
+          sampleCount++;
+        }
+      }
+    }
+
+    double getMean() {
+      return sampleCount == 0 ? 0.0 : errorSum / sampleCount;
+    }
+
+    double getMax() {
+      return maxError;
+    }
+  }
+}
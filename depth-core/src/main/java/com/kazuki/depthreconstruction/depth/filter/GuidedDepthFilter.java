@@ -0,0 +1,236 @@
+package com.kazuki.depthreconstruction.depth.filter;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.ParallelTiles;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+/**
+ * Edge-aware depth smoothing with a guided filter that uses the depth itself as the guide. Every
+ * window fits depth as a linear function of the guide: flat windows, whose variance is small next
+ * to {@code epsilon}, are replaced by their mean, while windows across a depth step much larger
+ * than {@code sqrt(epsilon)} keep it. Invalid pixels are left out of every window and stay
+ * invalid; hole filling is a separate stage.
+ *
+ * <p>All window sums are read from integral images, so the cost per pixel does not depend on the
+ * radius. The integral images are built separably, rows first and then columns, and the per-pixel
+ * passes run in parallel tiles. The coefficients of the second pass are integrated in fixed point
+ * so every table is an exact {@code long[]}, reused between frames of the same resolution.
+ */
+public final class GuidedDepthFilter {
+  private static final int TILE_SIZE = 64;
+  private static final int ROWS_PER_BAND = 16;
+  private static final int COLUMNS_PER_BAND = 64;
+  // Fixed point scales of the slope (in [0, 1]) and offset (in millimeters) coefficients.
+  private static final double SLOPE_SCALE = 65536.0;
+  private static final double OFFSET_SCALE = 256.0;
+  // Slope of a window without any valid depth.
+  private static final float NO_COEFFICIENTS = -1.0f;
+
+  private final ForkJoinPool pool;
+  private final int radius;
+  private final double epsilon;
+  private final IntConsumer loadDepthTile = this::loadDepthTile;
+  private final IntConsumer computeCoefficientsTile = this::computeCoefficientsTile;
+  private final IntConsumer loadCoefficientsTile = this::loadCoefficientsTile;
+  private final IntConsumer applyCoefficientsTile = this::applyCoefficientsTile;
+  private final IntConsumer integrateRowBand = this::integrateRowBand;
+  private final IntConsumer integrateColumnBand = this::integrateColumnBand;
+
+  private int width = -1;
+  private int height = -1;
+  private ParallelTiles tiles;
+  private short[] depth = new short[0];
+  private short[] output = new short[0];
+  private float[] slopes = new float[0];
+  private float[] offsets = new float[0];
+  // Integral images with a zero first row and column, (width + 1) x (height + 1). The first pass
+  // integrates valid counts, depth and squared depth; the second pass reuses them for the number
+  // of windows with valid depth, and the fixed point slopes and offsets.
+  private long[] countTable = new long[0];
+  private long[] sumTable = new long[0];
+  private long[] squareTable = new long[0];
+
+  private long lastFilterNanos = 0;
+
+  /**
+   * @param radius Radius of the square window in pixels.
+   * @param epsilon Regularization in square millimeters. Depth steps much larger than its square
+   *     root are preserved.
+   */
+  public GuidedDepthFilter(ForkJoinPool pool, int radius, float epsilon) {
+    if (radius < 1) {
+      throw new IllegalArgumentException("Radius must be at least 1: " + radius);
+    }
+    this.pool = pool;
+    this.radius = radius;
+    this.epsilon = epsilon;
+  }
+
+  /** Writes the smoothed depth into the output, which may be the input frame itself. */
+  public void filter(DepthFrame depthFrame, DepthFrame outputFrame) {
+    long startNanos = System.nanoTime();
+    if (outputFrame.getWidth() != depthFrame.getWidth()
+            || outputFrame.getHeight() != depthFrame.getHeight()) {
+      throw new IllegalArgumentException("Output must have the depth resolution.");
+    }
+    ensureCapacity(depthFrame.getWidth(), depthFrame.getHeight());
+    depthFrame.copyTo(depth);
+
+    tiles.forEach(pool, loadDepthTile);
+    integrate();
+    tiles.forEach(pool, computeCoefficientsTile);
+    tiles.forEach(pool, loadCoefficientsTile);
+    integrate();
+    tiles.forEach(pool, applyCoefficientsTile);
+
+    outputFrame.copyFrom(output);
+    outputFrame.setTimestamp(depthFrame.getTimestamp());
+    lastFilterNanos = System.nanoTime() - startNanos;
+  }
+
+  /** Returns how long the last call to filter took, in nanoseconds. */
+  public long getLastFilterNanos() {
+    return lastFilterNanos;
+  }
+
+  private void ensureCapacity(int width, int height) {
+    if (width == this.width && height == this.height) {
+      return;
+    }
+    this.width = width;
+    this.height = height;
+    tiles = new ParallelTiles(width, height, TILE_SIZE);
+    depth = new short[width * height];
+    output = new short[width * height];
+    slopes = new float[width * height];
+    offsets = new float[width * height];
+    int tableSize = (width + 1) * (height + 1);
+    countTable = new long[tableSize];
+    sumTable = new long[tableSize];
+    squareTable = new long[tableSize];
+  }
+
+  /** Turns the per-pixel values stored in the tables into integral images, in place. */
+  private void integrate() {
+    ParallelTiles.forEach(pool, (height + ROWS_PER_BAND - 1) / ROWS_PER_BAND, integrateRowBand);
+    ParallelTiles.forEach(
+            pool, (width + COLUMNS_PER_BAND - 1) / COLUMNS_PER_BAND, integrateColumnBand);
+  }
+
+  private void integrateRowBand(int band) {
+    int stride = width + 1;
+    int y1 = Math.min(height, (band + 1) * ROWS_PER_BAND);
+    for (int y = band * ROWS_PER_BAND; y < y1; y++) {
+      int row = (y + 1) * stride;
+      for (int x = 1; x <= width; x++) {
+        countTable[row + x] += countTable[row + x - 1];
+        sumTable[row + x] += sumTable[row + x - 1];
+        squareTable[row + x] += squareTable[row + x - 1];
+      }
+    }
+  }
+
+  private void integrateColumnBand(int band) {
+    int stride = width + 1;
+    int x0 = band * COLUMNS_PER_BAND + 1;
+    int x1 = Math.min(width, (band + 1) * COLUMNS_PER_BAND) + 1;
+    // Row by row within the band, so the reads of the row above stay sequential.
+    for (int y = 2; y <= height; y++) {
+      int row = y * stride;
+      for (int x = x0; x < x1; x++) {
+        countTable[row + x] += countTable[row - stride + x];
+        sumTable[row + x] += sumTable[row - stride + x];
+        squareTable[row + x] += squareTable[row - stride + x];
+      }
+    }
+  }
+
+  private void loadDepthTile(int tile) {
+    int stride = width + 1;
+    for (int y = tiles.getY0(tile); y < tiles.getY1(tile); y++) {
+      int row = (y + 1) * stride + 1;
+      for (int x = tiles.getX0(tile); x < tiles.getX1(tile); x++) {
+        long millimeters = depth[y * width + x] & 0xFFFF;
+        countTable[row + x] = millimeters != 0 ? 1 : 0;
+        sumTable[row + x] = millimeters;
+        squareTable[row + x] = millimeters * millimeters;
+      }
+    }
+  }
+
+  /** Fits the slope and offset of the window centred on every pixel of the tile. */
+  private void computeCoefficientsTile(int tile) {
+    int stride = width + 1;
+    for (int y = tiles.getY0(tile); y < tiles.getY1(tile); y++) {
+      int top = Math.max(0, y - radius) * stride;
+      int bottom = Math.min(height, y + radius + 1) * stride;
+      for (int x = tiles.getX0(tile); x < tiles.getX1(tile); x++) {
+        int left = Math.max(0, x - radius);
+        int right = Math.min(width, x + radius + 1);
+        long count = boxSum(countTable, top, bottom, left, right);
+        int i = y * width + x;
+        if (count == 0) {
+          slopes[i] = NO_COEFFICIENTS;
+          continue;
+        }
+        double mean = (double) boxSum(sumTable, top, bottom, left, right) / count;
+        double meanSquare = (double) boxSum(squareTable, top, bottom, left, right) / count;
+        double variance = Math.max(0.0, meanSquare - mean * mean);
+        double slope = variance / (variance + epsilon);
+        slopes[i] = (float) slope;
+        offsets[i] = (float) ((1.0 - slope) * mean);
+      }
+    }
+  }
+
+  private void loadCoefficientsTile(int tile) {
+    int stride = width + 1;
+    for (int y = tiles.getY0(tile); y < tiles.getY1(tile); y++) {
+      int row = (y + 1) * stride + 1;
+      for (int x = tiles.getX0(tile); x < tiles.getX1(tile); x++) {
+        int i = y * width + x;
+        if (slopes[i] == NO_COEFFICIENTS) {
+          countTable[row + x] = 0;
+          sumTable[row + x] = 0;
+          squareTable[row + x] = 0;
+          continue;
+        }
+        countTable[row + x] = 1;
+        sumTable[row + x] = Math.round(slopes[i] * SLOPE_SCALE);
+        squareTable[row + x] = Math.round(offsets[i] * OFFSET_SCALE);
+      }
+    }
+  }
+
+  /** Averages the coefficients of every window that covers a pixel and applies them. */
+  private void applyCoefficientsTile(int tile) {
+    int stride = width + 1;
+    for (int y = tiles.getY0(tile); y < tiles.getY1(tile); y++) {
+      int top = Math.max(0, y - radius) * stride;
+      int bottom = Math.min(height, y + radius + 1) * stride;
+      for (int x = tiles.getX0(tile); x < tiles.getX1(tile); x++) {
+        int i = y * width + x;
+        int millimeters = depth[i] & 0xFFFF;
+        if (millimeters == 0) {
+          output[i] = 0;
+          continue;
+        }
+        int left = Math.max(0, x - radius);
+        int right = Math.min(width, x + radius + 1);
+        // Every valid pixel lies in its own window, so the count is at least one.
+        long count = boxSum(countTable, top, bottom, left, right);
+        double slope = boxSum(sumTable, top, bottom, left, right) / (SLOPE_SCALE * count);
+        double offset = boxSum(squareTable, top, bottom, left, right) / (OFFSET_SCALE * count);
+        long smoothed = Math.round(slope * millimeters + offset);
+        output[i] = (short) Math.max(1, Math.min(0xFFFF, smoothed));
+      }
+    }
+  }
+
+  /** Returns the table sum over rows [top, bottom) and columns [left, right), given row offsets. */
+  private static long boxSum(long[] table, int top, int bottom, int left, int right) {
+    return table[bottom + right] - table[top + right] - table[bottom + left] + table[top + left];
+  }
+}
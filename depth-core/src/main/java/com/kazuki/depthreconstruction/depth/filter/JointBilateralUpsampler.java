@@ -0,0 +1,212 @@
+package com.kazuki.depthreconstruction.depth.filter;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.ParallelTiles;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+/**
+ * Upsamples depth by 2x or 4x with a joint bilateral filter guided by the camera luma plane. Every
+ * output pixel averages the nearby low resolution depth samples, weighted by their distance and by
+ * how similar the camera brightness at the sample is to the brightness at the output pixel, so
+ * depth edges snap to the edges visible in the camera image.
+ *
+ * <p>Spatial weights for every sub-pixel phase and range weights for every brightness difference
+ * are tabulated up front, so the inner loop does not call {@link Math#exp(double)}. Output tiles
+ * run in parallel; all working arrays are reused between frames of the same resolution.
+ */
+public final class JointBilateralUpsampler {
+  private static final int TILE_SIZE = 64;
+  private static final int LUMA_LEVELS = 256;
+  private static final double MIN_RANGE_WEIGHT = 1.0e-4;
+
+  private final ForkJoinPool pool;
+  private final int factor;
+  private final int radius;
+  private final int taps;
+  // Spatial weight of tap (dx, dy) for output pixels at sub-pixel phase (px, py).
+  private final float[] spatialWeights;
+  // Range weight of an absolute luma difference.
+  private final float[] rangeWeights = new float[LUMA_LEVELS];
+  private final IntConsumer upsampleTile = this::upsampleTile;
+
+  private int depthWidth = -1;
+  private int depthHeight = -1;
+  private ParallelTiles tiles;
+  private short[] depth = new short[0];
+  private short[] output = new short[0];
+  // Luma at output resolution, and at the centre of every low resolution depth pixel.
+  private byte[] guide = new byte[0];
+  private byte[] lowResolutionGuide = new byte[0];
+
+  private long lastUpsampleNanos = 0;
+
+  /**
+   * @param factor Upsampling factor, 2 or 4.
+   * @param radius Radius of the filter footprint in low resolution pixels.
+   * @param spatialSigma Standard deviation of the spatial kernel in low resolution pixels.
+   * @param rangeSigma Standard deviation of the range kernel in luma levels.
+   */
+  public JointBilateralUpsampler(
+          ForkJoinPool pool, int factor, int radius, float spatialSigma, float rangeSigma) {
+    if (factor != 2 && factor != 4) {
+      throw new IllegalArgumentException("Unsupported upsampling factor: " + factor);
+    }
+    this.pool = pool;
+    this.factor = factor;
+    this.radius = radius;
+    this.taps = 2 * radius + 1;
+
+    spatialWeights = new float[factor * factor * taps * taps];
+    for (int py = 0; py < factor; py++) {
+      for (int px = 0; px < factor; px++) {
+        // Offset of the output pixel centre from the centre of its low resolution pixel.
+        float offsetX = (px + 0.5f) / factor - 0.5f;
+        float offsetY = (py + 0.5f) / factor - 0.5f;
+        for (int dy = -radius; dy <= radius; dy++) {
+          for (int dx = -radius; dx <= radius; dx++) {
+            float distanceX = dx - offsetX;
+            float distanceY = dy - offsetY;
+            spatialWeights[spatialIndex(px, py, dx, dy)] =
+                    (float)
+                            Math.exp(
+                                    -(distanceX * distanceX + distanceY * distanceY)
+                                            / (2.0 * spatialSigma * spatialSigma));
+          }
+        }
+      }
+    }
+    for (int difference = 0; difference < LUMA_LEVELS; difference++) {
+      // Floored so an output pixel surrounded only by dissimilar samples still gets depth.
+      double exponent = -(difference * difference) / (2.0 * rangeSigma * rangeSigma);
+      rangeWeights[difference] = (float) Math.max(MIN_RANGE_WEIGHT, Math.exp(exponent));
+    }
+  }
+
+  public int getFactor() {
+    return factor;
+  }
+
+  /**
+   * Writes the upsampled depth into the output, which must be {@code factor} times the size of the
+   * depth. The luma plane must cover the same field of view as the depth image, at any resolution.
+   *
+   * @param luma The camera's Y plane, positioned at the first pixel.
+   * @param lumaRowStride Distance between the starts of two luma rows, in bytes.
+   */
+  public void upsample(
+          DepthFrame depthFrame,
+          ByteBuffer luma,
+          int lumaWidth,
+          int lumaHeight,
+          int lumaRowStride,
+          DepthFrame outputFrame) {
+    long startNanos = System.nanoTime();
+    int width = depthFrame.getWidth();
+    int height = depthFrame.getHeight();
+    if (outputFrame.getWidth() != width * factor || outputFrame.getHeight() != height * factor) {
+      throw new IllegalArgumentException("Output must be " + factor + "x the depth resolution.");
+    }
+    ensureCapacity(width, height);
+    depthFrame.copyTo(depth);
+    resampleGuide(luma, lumaWidth, lumaHeight, lumaRowStride);
+    tiles.forEach(pool, upsampleTile);
+    outputFrame.copyFrom(output);
+    outputFrame.setTimestamp(depthFrame.getTimestamp());
+    lastUpsampleNanos = System.nanoTime() - startNanos;
+  }
+
+  /** Returns how long the last call to upsample took, in nanoseconds. */
+  public long getLastUpsampleNanos() {
+    return lastUpsampleNanos;
+  }
+
+  private void ensureCapacity(int width, int height) {
+    if (width == depthWidth && height == depthHeight) {
+      return;
+    }
+    depthWidth = width;
+    depthHeight = height;
+    int outputWidth = width * factor;
+    int outputHeight = height * factor;
+    tiles = new ParallelTiles(outputWidth, outputHeight, TILE_SIZE);
+    depth = new short[width * height];
+    output = new short[outputWidth * outputHeight];
+    guide = new byte[outputWidth * outputHeight];
+    lowResolutionGuide = new byte[width * height];
+  }
+
+  /** Samples the luma plane at the output resolution and at the low resolution pixel centres. */
+  private void resampleGuide(ByteBuffer luma, int lumaWidth, int lumaHeight, int lumaRowStride) {
+    int outputWidth = depthWidth * factor;
+    int outputHeight = depthHeight * factor;
+    int base = luma.position();
+    ByteBuffer source = luma.duplicate();
+    for (int y = 0; y < outputHeight; y++) {
+      int lumaY = Math.min(lumaHeight - 1, (int) ((y + 0.5f) * lumaHeight / outputHeight));
+      int row = base + lumaY * lumaRowStride;
+      if (lumaWidth == outputWidth) {
+        source.position(row);
+        source.get(guide, y * outputWidth, outputWidth);
+        continue;
+      }
+      for (int x = 0; x < outputWidth; x++) {
+        int lumaX = Math.min(lumaWidth - 1, (int) ((x + 0.5f) * lumaWidth / outputWidth));
+        guide[y * outputWidth + x] = luma.get(row + lumaX);
+      }
+    }
+    int centre = factor / 2;
+    for (int y = 0; y < depthHeight; y++) {
+      for (int x = 0; x < depthWidth; x++) {
+        lowResolutionGuide[y * depthWidth + x] =
+                guide[(y * factor + centre) * outputWidth + x * factor + centre];
+      }
+    }
+  }
+
+  private void upsampleTile(int tile) {
+    int outputWidth = depthWidth * factor;
+    int x0 = tiles.getX0(tile);
+    int y0 = tiles.getY0(tile);
+    int x1 = tiles.getX1(tile);
+    int y1 = tiles.getY1(tile);
+    for (int y = y0; y < y1; y++) {
+      int lowY = y / factor;
+      int phaseY = y % factor;
+      int dy0 = Math.max(-radius, -lowY);
+      int dy1 = Math.min(radius, depthHeight - 1 - lowY);
+      for (int x = x0; x < x1; x++) {
+        int lowX = x / factor;
+        int phaseX = x % factor;
+        int dx0 = Math.max(-radius, -lowX);
+        int dx1 = Math.min(radius, depthWidth - 1 - lowX);
+        int centreLuma = guide[y * outputWidth + x] & 0xFF;
+        float weightSum = 0.0f;
+        float depthSum = 0.0f;
+        for (int dy = dy0; dy <= dy1; dy++) {
+          int spatialRow = spatialIndex(phaseX, phaseY, 0, dy);
+          int row = (lowY + dy) * depthWidth + lowX;
+          for (int dx = dx0; dx <= dx1; dx++) {
+            int q = row + dx;
+            int millimeters = depth[q] & 0xFFFF;
+            if (millimeters == 0) {
+              continue;
+            }
+            int lumaDifference = Math.abs((lowResolutionGuide[q] & 0xFF) - centreLuma);
+            float weight = spatialWeights[spatialRow + dx] * rangeWeights[lumaDifference];
+            weightSum += weight;
+            depthSum += weight * millimeters;
+          }
+        }
+        output[y * outputWidth + x] =
+                weightSum > 0.0f ? (short) Math.round(depthSum / weightSum) : 0;
+      }
+    }
+  }
+
+  private int spatialIndex(int phaseX, int phaseY, int dx, int dy) {
+    return ((phaseY * factor + phaseX) * taps + dy + radius) * taps + dx + radius;
+  }
+}
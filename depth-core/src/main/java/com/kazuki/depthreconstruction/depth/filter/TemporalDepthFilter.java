@@ -0,0 +1,255 @@
+package com.kazuki.depthreconstruction.depth.filter;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.ParallelTiles;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+/**
+ * Stabilizes flickering depth over time. The last K depth frames are kept in a ring inside one
+ * contiguous {@code short[]}, from which every pixel gets a robust estimate: either an exponential
+ * moving average that rejects outliers, or the median of its valid history samples.
+ *
+ * <p>History is only meaningful while the camera holds still, so callers pass the camera motion
+ * since the previous frame and the history is dropped when it exceeds the motion thresholds.
+ * Updates run in parallel row bands and do not allocate once the resolution is known.
+ */
+public final class TemporalDepthFilter {
+  /** How the history of a pixel is turned into its filtered depth. */
+  public enum Mode {
+    /** Exponential moving average that ignores samples far from the average. */
+    EXPONENTIAL_MOVING_AVERAGE,
+    /** Median of the valid samples in the history ring. */
+    MEDIAN
+  }
+
+  private static final int ROWS_PER_BAND = 16;
+  private static final float DEFAULT_SMOOTHING = 0.3f;
+  // Samples deviating more than this fraction of the depth (plus a fixed floor) are outliers.
+  private static final float DEFAULT_OUTLIER_FRACTION = 0.05f;
+  private static final int OUTLIER_FLOOR_MILLIMETERS = 30;
+  private static final float DEFAULT_MAX_TRANSLATION_METERS = 0.05f;
+  private static final float DEFAULT_MAX_ROTATION_RADIANS = 0.1f;
+
+  private final ForkJoinPool pool;
+  private final int historyLength;
+  private Mode mode;
+  private float smoothing = DEFAULT_SMOOTHING;
+  private float outlierFraction = DEFAULT_OUTLIER_FRACTION;
+  private float maxTranslationMeters = DEFAULT_MAX_TRANSLATION_METERS;
+  private float maxRotationRadians = DEFAULT_MAX_ROTATION_RADIANS;
+
+  private int width = -1;
+  private int height = -1;
+  // Frame k of the ring occupies [k * width * height, (k + 1) * width * height).
+  private short[] history = new short[0];
+  private float[] average = new float[0];
+  private short[] output = new short[0];
+  // Ring slot of the newest frame, and how many slots hold frames since the last reset.
+  private int newestSlot = -1;
+  private int historyCount = 0;
+  private final ThreadLocal<short[]> medianScratch;
+  private final IntConsumer filterBand = this::filterBand;
+
+  private long resetCount = 0;
+
+  /** @param historyLength Number of frames K kept per pixel. */
+  public TemporalDepthFilter(ForkJoinPool pool, final int historyLength, Mode mode) {
+    if (historyLength < 2) {
+      throw new IllegalArgumentException("History must hold at least two frames.");
+    }
+    this.pool = pool;
+    this.historyLength = historyLength;
+    this.mode = mode;
+    medianScratch =
+            new ThreadLocal<short[]>() {
+              @Override
+              protected short[] initialValue() {
+                return new short[historyLength];
+              }
+            };
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /** Selects the estimate; switching keeps the history but restarts the moving average. */
+  public void setMode(Mode mode) {
+    if (mode != this.mode) {
+      this.mode = mode;
+      if (newestSlot >= 0) {
+        copyNewestIntoAverage();
+      }
+    }
+  }
+
+  /** Sets the weight of a new sample in the moving average, in (0, 1]. */
+  public void setSmoothing(float smoothing) {
+    this.smoothing = smoothing;
+  }
+
+  /** Sets how far, as a fraction of the depth, a sample may deviate before it is an outlier. */
+  public void setOutlierFraction(float outlierFraction) {
+    this.outlierFraction = outlierFraction;
+  }
+
+  /** Sets the camera motion between two frames above which the history is dropped. */
+  public void setMotionThresholds(float maxTranslationMeters, float maxRotationRadians) {
+    this.maxTranslationMeters = maxTranslationMeters;
+    this.maxRotationRadians = maxRotationRadians;
+  }
+
+  /** Drops the history, so the next frame passes through unfiltered. */
+  public void reset() {
+    historyCount = 0;
+    newestSlot = -1;
+  }
+
+  /** Returns how often the history was dropped because of motion or a resolution change. */
+  public long getResetCount() {
+    return resetCount;
+  }
+
+  /** Adds a frame without pose information and writes the filtered depth into the output. */
+  public void update(DepthFrame depth, DepthFrame outputFrame) {
+    update(depth, /*translationMeters=*/ 0.0f, /*rotationRadians=*/ 0.0f, outputFrame);
+  }
+
+  /**
+   * Adds a frame to the history and writes the filtered depth into the output, which must have the
+   * same resolution. The output takes over the frame's timestamp.
+   *
+   * @param translationMeters Camera translation since the previous frame.
+   * @param rotationRadians Camera rotation angle since the previous frame.
+   */
+  public void update(
+          DepthFrame depth,
+          float translationMeters,
+          float rotationRadians,
+          DepthFrame outputFrame) {
+    if (depth.getWidth() != width || depth.getHeight() != height) {
+      allocate(depth.getWidth(), depth.getHeight());
+    }
+    if (translationMeters > maxTranslationMeters || rotationRadians > maxRotationRadians) {
+      if (historyCount > 0) {
+        resetCount++;
+      }
+      reset();
+    }
+
+    int size = width * height;
+    newestSlot = (newestSlot + 1) % historyLength;
+    historyCount = Math.min(historyCount + 1, historyLength);
+    depth.copyTo(output);
+    System.arraycopy(output, 0, history, newestSlot * size, size);
+
+    if (historyCount == 1) {
+      copyNewestIntoAverage();
+    } else {
+      ParallelTiles.forEach(pool, (height + ROWS_PER_BAND - 1) / ROWS_PER_BAND, filterBand);
+    }
+    outputFrame.copyFrom(output);
+    outputFrame.setTimestamp(depth.getTimestamp());
+  }
+
+  private void allocate(int width, int height) {
+    this.width = width;
+    this.height = height;
+    history = new short[historyLength * width * height];
+    average = new float[width * height];
+    output = new short[width * height];
+    if (historyCount > 0) {
+      resetCount++;
+    }
+    reset();
+  }
+
+  private void copyNewestIntoAverage() {
+    int size = width * height;
+    int offset = newestSlot * size;
+    for (int i = 0; i < size; i++) {
+      average[i] = history[offset + i] & 0xFFFF;
+    }
+  }
+
+  private void filterBand(int band) {
+    int from = band * ROWS_PER_BAND * width;
+    int to = Math.min(height, (band + 1) * ROWS_PER_BAND) * width;
+    if (mode == Mode.MEDIAN) {
+      medianBand(from, to);
+    } else {
+      averageBand(from, to);
+    }
+  }
+
+  private void averageBand(int from, int to) {
+    int size = width * height;
+    int newest = newestSlot * size;
+    int previous = ((newestSlot + historyLength - 1) % historyLength) * size;
+    for (int i = from; i < to; i++) {
+      int sample = history[newest + i] & 0xFFFF;
+      float current = average[i];
+      if (sample == 0) {
+        // Hold the last estimate through dropouts, as long as the history has seen the pixel.
+        if (!hasValidHistory(i)) {
+          current = 0.0f;
+          average[i] = current;
+        }
+        output[i] = (short) Math.round(current);
+        continue;
+      }
+      if (current == 0.0f) {
+        average[i] = sample;
+        output[i] = (short) sample;
+        continue;
+      }
+      float tolerance = outlierFraction * current + OUTLIER_FLOOR_MILLIMETERS;
+      if (Math.abs(sample - current) <= tolerance) {
+        current += smoothing * (sample - current);
+      } else {
+        // A single deviating sample is rejected. If the previous frame deviated the same way the
+        // surface really moved, so the average jumps to it.
+        int previousSample = history[previous + i] & 0xFFFF;
+        if (previousSample != 0 && Math.abs(sample - previousSample) <= tolerance) {
+          current = sample;
+        }
+      }
+      average[i] = current;
+      output[i] = (short) Math.round(current);
+    }
+  }
+
+  private boolean hasValidHistory(int i) {
+    int size = width * height;
+    for (int k = 0, offset = i; k < historyCount; k++, offset += size) {
+      if (history[offset] != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void medianBand(int from, int to) {
+    int size = width * height;
+    short[] samples = medianScratch.get();
+    for (int i = from; i < to; i++) {
+      int count = 0;
+      for (int k = 0, offset = i; k < historyCount; k++, offset += size) {
+        short sample = history[offset];
+        if (sample == 0) {
+          continue;
+        }
+        // Insertion sort; the history is only a handful of samples long.
+        int j = count++;
+        while (j > 0 && (samples[j - 1] & 0xFFFF) > (sample & 0xFFFF)) {
+          samples[j] = samples[j - 1];
+          j--;
+        }
+        samples[j] = sample;
+      }
+      output[i] = count == 0 ? 0 : samples[count / 2];
+    }
+  }
+}
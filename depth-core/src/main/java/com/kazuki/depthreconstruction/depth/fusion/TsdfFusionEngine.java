@@ -0,0 +1,345 @@
+package com.kazuki.depthreconstruction.depth.fusion;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.DepthFrameHandoff;
+import com.kazuki.depthreconstruction.depth.ParallelTiles;
+import com.kazuki.depthreconstruction.depth.geometry.DepthUnprojector;
+import com.kazuki.depthreconstruction.depth.geometry.PointGrid;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Fuses depth frames and camera poses into a {@link TsdfVolume} on a worker thread.
+ *
+ * <p>Every frame first unprojects the depth to world space and allocates the blocks that the
+ * truncation band around each observed surface point passes through. Then every voxel of those
+ * blocks is projected into the depth image and its distance to the observed surface averaged into
+ * the volume, blocks in parallel on the given pool.
+ *
+ * <p>{@link #submit} is meant to be called from the render thread. It hands the frame to the worker
+ * through a {@link DepthFrameHandoff} that keeps only the latest frame and returns immediately; a
+ * frame that arrives while the worker is busy replaces the one waiting, so fusion never holds up
+ * rendering and always catches up with the newest depth. The volume must only be read through
+ * {@link #runOnWorker}.
+ */
+public final class TsdfFusionEngine {
+  // Every other depth pixel is enough to find the blocks near the surface.
+  private static final int ALLOCATION_STRIDE = 2;
+  private static final int MAX_WEIGHT = 64;
+
+  private final TsdfVolume volume;
+  private final ForkJoinPool pool;
+  private final ExecutorService worker;
+  private final DepthFrameHandoff handoff =
+          new DepthFrameHandoff(
+                  DepthFrameHandoff.DropPolicy.LATEST_ONLY, /*capacity=*/ 1, /*consumerCount=*/ 1);
+  // Whether a drain job is scheduled or running on the worker.
+  private final AtomicBoolean isDraining = new AtomicBoolean(false);
+  private final Runnable drainJob = this::drainJob;
+  private final IntConsumer integrateBlock = this::integrateBlock;
+  private volatile Consumer<TsdfVolume> integrationListener;
+
+  // Worker state.
+  private final DepthUnprojector unprojector;
+  private final PointGrid points = new PointGrid(0, 0);
+  private short[] depth = new short[0];
+  private int depthWidth;
+  private int depthHeight;
+  // Depth resolution intrinsics and the world to camera transform of the current frame.
+  private float fx;
+  private float fy;
+  private float cx;
+  private float cy;
+  private final float[] worldToCamera = new float[12];
+  private int[] visibleBlocks = new int[1024];
+  private int visibleBlockCount = 0;
+  private int[] blockVisitFrames = new int[0];
+  private int frameIndex = 0;
+
+  private volatile long lastIntegrationNanos = 0;
+  private volatile long totalIntegrationNanos = 0;
+  private volatile int integratedFrameCount = 0;
+  private volatile int lastIntegratedBlockCount = 0;
+  private volatile long memoryBytes = 0;
+  private volatile int blockCount = 0;
+
+  public TsdfFusionEngine(TsdfVolume volume, ForkJoinPool pool) {
+    this.volume = volume;
+    this.pool = pool;
+    this.unprojector = new DepthUnprojector(pool);
+    this.worker =
+            Executors.newSingleThreadExecutor(
+                    runnable -> {
+                      Thread thread = new Thread(runnable, "TsdfFusion");
+                      thread.setDaemon(true);
+                      return thread;
+                    });
+    memoryBytes = volume.getMemoryBytes();
+  }
+
+  /**
+   * Sets a callback run on the worker after every integrated frame, while the blocks it touched are
+   * still marked dirty, or null. The listener may read the volume and clear the dirty blocks.
+   */
+  public void setIntegrationListener(Consumer<TsdfVolume> listener) {
+    integrationListener = listener;
+  }
+
+  /**
+   * Queues a frame for integration, replacing the frame still waiting if the worker is busy.
+   *
+   * @param cameraToWorld Column-major 4x4 camera pose, as written by ARCore's {@code
+   *     Pose.toMatrix}.
+   * @param intrinsics Focal lengths, principal point and size of the camera image the depth is
+   *     aligned with, in that image's pixels.
+   * @return Whether the frame was queued.
+   */
+  public boolean submit(DepthFrame depthFrame, float[] cameraToWorld, float[] intrinsics) {
+    boolean isQueued = handoff.publish(depthFrame, cameraToWorld, intrinsics);
+    if (isDraining.compareAndSet(false, true)) {
+      worker.execute(drainJob);
+    }
+    return isQueued;
+  }
+
+  /**
+   * Runs a task on the worker after the frames submitted so far, for reading the volume safely.
+   */
+  public void runOnWorker(Runnable task) {
+    worker.execute(task);
+  }
+
+  /** Stops the worker. Frames already queued are still integrated. */
+  public void shutdown() {
+    worker.shutdown();
+  }
+
+  public TsdfVolume getVolume() {
+    return volume;
+  }
+
+  public long getLastIntegrationNanos() {
+    return lastIntegrationNanos;
+  }
+
+  public long getAverageIntegrationNanos() {
+    int count = integratedFrameCount;
+    return count == 0 ? 0 : totalIntegrationNanos / count;
+  }
+
+  public int getIntegratedFrameCount() {
+    return integratedFrameCount;
+  }
+
+  /** Returns the number of frames replaced before the worker got to them. */
+  public long getDroppedFrameCount() {
+    return handoff.getDroppedFrameCount();
+  }
+
+  /** Returns the handoff to the worker, for its queue depth and latency. */
+  public DepthFrameHandoff getHandoff() {
+    return handoff;
+  }
+
+  /** Returns the number of blocks updated by the last integrated frame. */
+  public int getLastIntegratedBlockCount() {
+    return lastIntegratedBlockCount;
+  }
+
+  public int getBlockCount() {
+    return blockCount;
+  }
+
+  /** Returns the memory held by the volume as of the last integrated frame, in bytes. */
+  public long getMemoryBytes() {
+    return memoryBytes;
+  }
+
+  /**
+   * Integrates a frame on the calling thread, for benchmarks and tests. Must not run concurrently
+   * with the worker.
+   */
+  public void integrate(DepthFrame depthFrame, float[] cameraToWorld, float[] intrinsics) {
+    long startNanos = System.nanoTime();
+    prepareFrame(depthFrame, cameraToWorld, intrinsics);
+    allocateBlocks(cameraToWorld);
+    ParallelTiles.forEach(pool, visibleBlockCount, integrateBlock);
+    for (int i = 0; i < visibleBlockCount; i++) {
+      volume.markBlockDirty(visibleBlocks[i]);
+    }
+
+    long nanos = System.nanoTime() - startNanos;
+    lastIntegrationNanos = nanos;
+    totalIntegrationNanos += nanos;
+    lastIntegratedBlockCount = visibleBlockCount;
+    blockCount = volume.getBlockCount();
+    memoryBytes = volume.getMemoryBytes();
+    integratedFrameCount++;
+
+    Consumer<TsdfVolume> listener = integrationListener;
+    if (listener != null) {
+      listener.accept(volume);
+    }
+  }
+
+  private void drainJob() {
+    while (true) {
+      DepthFrameHandoff.Frame frame = handoff.poll();
+      if (frame == null) {
+        isDraining.set(false);
+        // A frame published after the poll but before the flag was cleared did not schedule a job.
+        if (handoff.getQueueDepth() == 0 || !isDraining.compareAndSet(false, true)) {
+          return;
+        }
+        continue;
+      }
+      try {
+        integrate(frame.getDepth(), frame.getCameraToWorld(), frame.getIntrinsics());
+      } finally {
+        handoff.release(frame);
+      }
+    }
+  }
+
+  private void prepareFrame(DepthFrame depthFrame, float[] cameraToWorld, float[] intrinsics) {
+    depthWidth = depthFrame.getWidth();
+    depthHeight = depthFrame.getHeight();
+    if (depth.length != depthWidth * depthHeight) {
+      depth = new short[depthWidth * depthHeight];
+    }
+    depthFrame.copyTo(depth);
+
+    float scaleX = depthWidth / intrinsics[4];
+    float scaleY = depthHeight / intrinsics[5];
+    fx = intrinsics[0] * scaleX;
+    fy = intrinsics[1] * scaleY;
+    cx = intrinsics[2] * scaleX;
+    cy = intrinsics[3] * scaleY;
+    unprojector.setIntrinsics(
+            intrinsics[0],
+            intrinsics[1],
+            intrinsics[2],
+            intrinsics[3],
+            (int) intrinsics[4],
+            (int) intrinsics[5]);
+    unprojector.unproject(depthFrame, cameraToWorld, points);
+
+    // The inverse of a rigid transform: transposed rotation, rotated and negated translation.
+    float[] m = cameraToWorld;
+    for (int row = 0; row < 3; row++) {
+      worldToCamera[row * 4] = m[row * 4];
+      worldToCamera[row * 4 + 1] = m[row * 4 + 1];
+      worldToCamera[row * 4 + 2] = m[row * 4 + 2];
+      worldToCamera[row * 4 + 3] =
+              -(m[row * 4] * m[12] + m[row * 4 + 1] * m[13] + m[row * 4 + 2] * m[14]);
+    }
+    frameIndex++;
+  }
+
+  /** Allocates the blocks the truncation band passes through and collects them as visible. */
+  private void allocateBlocks(float[] cameraToWorld) {
+    float[] px = points.getX();
+    float[] py = points.getY();
+    float[] pz = points.getZ();
+    float originX = cameraToWorld[12];
+    float originY = cameraToWorld[13];
+    float originZ = cameraToWorld[14];
+    float truncation = volume.getTruncation();
+    float inverseBlockSize = 1.0f / volume.getBlockWorldSize();
+    visibleBlockCount = 0;
+    for (int y = 0; y < depthHeight; y += ALLOCATION_STRIDE) {
+      for (int x = 0; x < depthWidth; x += ALLOCATION_STRIDE) {
+        int i = y * depthWidth + x;
+        if (Float.isNaN(pz[i])) {
+          continue;
+        }
+        float dx = px[i] - originX;
+        float dy = py[i] - originY;
+        float dz = pz[i] - originZ;
+        float scale = truncation / (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        for (int step = -1; step <= 1; step++) {
+          float s = step * scale;
+          int block =
+                  volume.getOrAllocateBlock(
+                          (int) Math.floor((px[i] + s * dx) * inverseBlockSize),
+                          (int) Math.floor((py[i] + s * dy) * inverseBlockSize),
+                          (int) Math.floor((pz[i] + s * dz) * inverseBlockSize));
+          if (block >= 0) {
+            markVisible(block);
+          }
+        }
+      }
+    }
+  }
+
+  private void markVisible(int block) {
+    if (block >= blockVisitFrames.length) {
+      blockVisitFrames =
+              Arrays.copyOf(blockVisitFrames, Math.max(256, blockVisitFrames.length * 2));
+    }
+    if (blockVisitFrames[block] == frameIndex) {
+      return;
+    }
+    blockVisitFrames[block] = frameIndex;
+    if (visibleBlockCount == visibleBlocks.length) {
+      visibleBlocks = Arrays.copyOf(visibleBlocks, visibleBlocks.length * 2);
+    }
+    visibleBlocks[visibleBlockCount++] = block;
+  }
+
+  private void integrateBlock(int visibleIndex) {
+    int block = visibleBlocks[visibleIndex];
+    long key = volume.getBlockKey(block);
+    float voxelSize = volume.getVoxelSize();
+    float truncation = volume.getTruncation();
+    float originX = TsdfVolume.unpackBlockX(key) * TsdfVolume.BLOCK_SIZE * voxelSize;
+    float originY = TsdfVolume.unpackBlockY(key) * TsdfVolume.BLOCK_SIZE * voxelSize;
+    float originZ = TsdfVolume.unpackBlockZ(key) * TsdfVolume.BLOCK_SIZE * voxelSize;
+    short[] distances = volume.getDistances();
+    byte[] weights = volume.getWeights();
+    float[] m = worldToCamera;
+    int voxel = block * TsdfVolume.VOXELS_PER_BLOCK;
+    for (int z = 0; z < TsdfVolume.BLOCK_SIZE; z++) {
+      float wz = originZ + (z + 0.5f) * voxelSize;
+      for (int y = 0; y < TsdfVolume.BLOCK_SIZE; y++) {
+        float wy = originY + (y + 0.5f) * voxelSize;
+        for (int x = 0; x < TsdfVolume.BLOCK_SIZE; x++, voxel++) {
+          float wx = originX + (x + 0.5f) * voxelSize;
+          float cameraX = m[0] * wx + m[1] * wy + m[2] * wz + m[3];
+          float cameraY = m[4] * wx + m[5] * wy + m[6] * wz + m[7];
+          float cameraZ = m[8] * wx + m[9] * wy + m[10] * wz + m[11];
+          // The camera looks down -Z.
+          float voxelDepth = -cameraZ;
+          if (voxelDepth <= 0.0f) {
+            continue;
+          }
+          int u = Math.round(fx * cameraX / voxelDepth + cx - 0.5f);
+          int v = Math.round(cy - fy * cameraY / voxelDepth - 0.5f);
+          if (u < 0 || v < 0 || u >= depthWidth || v >= depthHeight) {
+            continue;
+          }
+          int millimeters = depth[v * depthWidth + u] & 0xFFFF;
+          if (millimeters == 0) {
+            continue;
+          }
+          float signedDistance = millimeters * 0.001f - voxelDepth;
+          if (signedDistance < -truncation) {
+            continue;
+          }
+          float observed = Math.min(1.0f, signedDistance / truncation);
+          int weight = weights[voxel] & 0xFF;
+          float stored = distances[voxel] / TsdfVolume.DISTANCE_SCALE;
+          float fused = (stored * weight + observed) / (weight + 1);
+          distances[voxel] = (short) Math.round(fused * TsdfVolume.DISTANCE_SCALE);
+          weights[voxel] = (byte) Math.min(MAX_WEIGHT, weight + 1);
+        }
+      }
+    }
+  }
+}
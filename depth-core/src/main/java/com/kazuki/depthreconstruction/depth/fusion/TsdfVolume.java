@@ -0,0 +1,199 @@
+package com.kazuki.depthreconstruction.depth.fusion;
+
+import com.kazuki.depthreconstruction.depth.LongIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * A sparse truncated signed distance volume made of 8x8x8 voxel blocks, allocated only where depth
+ * was observed. Blocks are found through a primitive {@link LongIntHashMap} from packed block
+ * coordinates to a block index; the voxels of block {@code b} are the {@link #VOXELS_PER_BLOCK}
+ * entries starting at {@code b * VOXELS_PER_BLOCK} of {@link #getDistances()} and {@link
+ * #getWeights()}, x fastest.
+ *
+ * <p>Distances are stored as shorts scaled so that {@link Short#MAX_VALUE} is one truncation
+ * distance in front of the surface, and weights as unsigned bytes, so a block takes 1.5 KiB.
+ * Storage grows by doubling up to a fixed number of blocks. Not thread-safe.
+ *
+ * <p>Integration marks the blocks it touched as dirty, so mesh extraction can redo just those.
+ */
+public final class TsdfVolume {
+  public static final int BLOCK_SIZE = 8;
+  public static final int VOXELS_PER_BLOCK = BLOCK_SIZE * BLOCK_SIZE * BLOCK_SIZE;
+  public static final float DISTANCE_SCALE = Short.MAX_VALUE;
+
+  private static final int INITIAL_BLOCK_CAPACITY = 256;
+  // Block coordinates are packed into 21 bits each.
+  private static final int COORDINATE_BITS = 21;
+  private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+  private final float voxelSize;
+  private final float truncation;
+  private final int maxBlockCount;
+  private final LongIntHashMap blockIndices;
+
+  private long[] blockKeys;
+  private short[] distances;
+  private byte[] weights;
+  private int blockCount = 0;
+
+  private boolean[] isDirty;
+  private int[] dirtyBlocks;
+  private int dirtyBlockCount = 0;
+
+  /**
+   * @param voxelSize Edge length of a voxel in meters.
+   * @param truncation Distance from the surface beyond which distances are clamped, in meters.
+   * @param maxBlockCount Largest number of blocks the volume allocates.
+   */
+  public TsdfVolume(float voxelSize, float truncation, int maxBlockCount) {
+    this.voxelSize = voxelSize;
+    this.truncation = truncation;
+    this.maxBlockCount = maxBlockCount;
+    int capacity = Math.min(INITIAL_BLOCK_CAPACITY, maxBlockCount);
+    blockIndices = new LongIntHashMap(capacity);
+    blockKeys = new long[capacity];
+    distances = new short[capacity * VOXELS_PER_BLOCK];
+    weights = new byte[capacity * VOXELS_PER_BLOCK];
+    isDirty = new boolean[capacity];
+    dirtyBlocks = new int[capacity];
+  }
+
+  public float getVoxelSize() {
+    return voxelSize;
+  }
+
+  /** Returns the edge length of a block in meters. */
+  public float getBlockWorldSize() {
+    return voxelSize * BLOCK_SIZE;
+  }
+
+  public float getTruncation() {
+    return truncation;
+  }
+
+  public int getBlockCount() {
+    return blockCount;
+  }
+
+  public int getMaxBlockCount() {
+    return maxBlockCount;
+  }
+
+  /** Returns the packed coordinates of a block. */
+  public long getBlockKey(int block) {
+    return blockKeys[block];
+  }
+
+  /** Returns the voxel distances of all blocks. The array is replaced when the volume grows. */
+  public short[] getDistances() {
+    return distances;
+  }
+
+  /** Returns the voxel weights of all blocks. The array is replaced when the volume grows. */
+  public byte[] getWeights() {
+    return weights;
+  }
+
+  /** Returns the bytes held by the blocks and the hash map, allocated but unused ones included. */
+  public long getMemoryBytes() {
+    // Key, dirty flag and list entry, and the voxels.
+    long blockBytes = (long) blockKeys.length * (8 + 1 + 4 + VOXELS_PER_BLOCK * 3);
+    long mapBytes = (long) blockIndices.getCapacity() * (8 + 4);
+    return blockBytes + mapBytes;
+  }
+
+  /** Returns the index of the block, or -1 if it is not allocated. */
+  public int getBlock(int blockX, int blockY, int blockZ) {
+    return blockIndices.get(packBlockKey(blockX, blockY, blockZ));
+  }
+
+  /**
+   * Returns the index of the block, allocating it as empty space if needed. Returns -1 once the
+   * volume is full.
+   */
+  public int getOrAllocateBlock(int blockX, int blockY, int blockZ) {
+    long key = packBlockKey(blockX, blockY, blockZ);
+    int block = blockIndices.get(key);
+    if (block >= 0) {
+      return block;
+    }
+    if (blockCount == maxBlockCount) {
+      return -1;
+    }
+    if (blockCount == blockKeys.length) {
+      grow();
+    }
+    block = blockCount++;
+    blockKeys[block] = key;
+    int first = block * VOXELS_PER_BLOCK;
+    Arrays.fill(distances, first, first + VOXELS_PER_BLOCK, Short.MAX_VALUE);
+    Arrays.fill(weights, first, first + VOXELS_PER_BLOCK, (byte) 0);
+    blockIndices.put(key, block);
+    return block;
+  }
+
+  /** Records that the voxels of the block changed. */
+  public void markBlockDirty(int block) {
+    if (!isDirty[block]) {
+      isDirty[block] = true;
+      dirtyBlocks[dirtyBlockCount++] = block;
+    }
+  }
+
+  /** Returns the number of blocks marked dirty since {@link #clearDirtyBlocks()}. */
+  public int getDirtyBlockCount() {
+    return dirtyBlockCount;
+  }
+
+  /** Returns the dirty blocks in the order they were marked. */
+  public int getDirtyBlock(int i) {
+    return dirtyBlocks[i];
+  }
+
+  public void clearDirtyBlocks() {
+    for (int i = 0; i < dirtyBlockCount; i++) {
+      isDirty[dirtyBlocks[i]] = false;
+    }
+    dirtyBlockCount = 0;
+  }
+
+  /** Drops every block, keeping the storage. */
+  public void clear() {
+    blockIndices.clear();
+    clearDirtyBlocks();
+    blockCount = 0;
+  }
+
+  private void grow() {
+    int capacity = Math.min(maxBlockCount, blockKeys.length * 2);
+    blockKeys = Arrays.copyOf(blockKeys, capacity);
+    distances = Arrays.copyOf(distances, capacity * VOXELS_PER_BLOCK);
+    weights = Arrays.copyOf(weights, capacity * VOXELS_PER_BLOCK);
+    isDirty = Arrays.copyOf(isDirty, capacity);
+    dirtyBlocks = Arrays.copyOf(dirtyBlocks, capacity);
+  }
+
+  public static long packBlockKey(int blockX, int blockY, int blockZ) {
+    return ((blockX & COORDINATE_MASK) << (2 * COORDINATE_BITS))
+            | ((blockY & COORDINATE_MASK) << COORDINATE_BITS)
+            | (blockZ & COORDINATE_MASK);
+  }
+
+  public static int unpackBlockX(long key) {
+    return signExtend(key >>> (2 * COORDINATE_BITS));
+  }
+
+  public static int unpackBlockY(long key) {
+    return signExtend(key >>> COORDINATE_BITS);
+  }
+
+  public static int unpackBlockZ(long key) {
+    return signExtend(key);
+  }
+
+  private static int signExtend(long bits) {
+    int shift = 32 - COORDINATE_BITS;
+    return ((int) (bits & COORDINATE_MASK) << shift) >> shift;
+  }
+}
@@ -0,0 +1,191 @@
+package com.kazuki.depthreconstruction.depth.geometry;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.ParallelTiles;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+/**
+ * Turns depth into 3D points in the OpenGL camera convention ARCore uses: +X right, +Y up and the
+ * camera looking down -Z. Optionally transforms them to world space with the camera pose.
+ *
+ * <p>The ray through every depth pixel at unit depth is tabulated once per combination of camera
+ * intrinsics and depth resolution, so a frame costs one multiply-add per coordinate. Rows are
+ * unprojected in parallel bands.
+ */
+public final class DepthUnprojector {
+  private static final int ROWS_PER_BAND = 16;
+
+  private final ForkJoinPool pool;
+  private final IntConsumer unprojectBand = this::unprojectBand;
+
+  // Intrinsics of the camera image the depth is aligned with, in that image's pixels.
+  private float focalLengthX;
+  private float focalLengthY;
+  private float principalPointX;
+  private float principalPointY;
+  private int intrinsicsWidth;
+  private int intrinsicsHeight;
+  private boolean hasIntrinsics = false;
+
+  // Ray table: X and Y of the point at 1 meter depth for every depth pixel, Z being -1.
+  private int width = -1;
+  private int height = -1;
+  private boolean isRayTableValid = false;
+  private float[] rayX = new float[0];
+  private float[] rayY = new float[0];
+  private int rayTableBuildCount = 0;
+
+  private short[] depth = new short[0];
+  private int[] bandValidCounts = new int[0];
+  private final float[] transform = new float[16];
+  private boolean hasTransform;
+  private PointGrid output;
+
+  private long lastUnprojectNanos = 0;
+
+  public DepthUnprojector(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Sets the intrinsics of the camera image the depth is aligned with, such as ARCore's image
+   * intrinsics. The ray table is only rebuilt if they differ from the current ones.
+   *
+   * @param imageWidth Width of the image the intrinsics are given for, in pixels.
+   * @param imageHeight Height of the image the intrinsics are given for, in pixels.
+   */
+  public void setIntrinsics(
+          float focalLengthX,
+          float focalLengthY,
+          float principalPointX,
+          float principalPointY,
+          int imageWidth,
+          int imageHeight) {
+    if (hasIntrinsics
+            && focalLengthX == this.focalLengthX
+            && focalLengthY == this.focalLengthY
+            && principalPointX == this.principalPointX
+            && principalPointY == this.principalPointY
+            && imageWidth == intrinsicsWidth
+            && imageHeight == intrinsicsHeight) {
+      return;
+    }
+    this.focalLengthX = focalLengthX;
+    this.focalLengthY = focalLengthY;
+    this.principalPointX = principalPointX;
+    this.principalPointY = principalPointY;
+    this.intrinsicsWidth = imageWidth;
+    this.intrinsicsHeight = imageHeight;
+    hasIntrinsics = true;
+    isRayTableValid = false;
+  }
+
+  /** Returns how often the ray table was built, for profiling. */
+  public int getRayTableBuildCount() {
+    return rayTableBuildCount;
+  }
+
+  /** Returns how long the last call to unproject took, in nanoseconds. */
+  public long getLastUnprojectNanos() {
+    return lastUnprojectNanos;
+  }
+
+  /**
+   * Writes a point for every depth pixel into the output, which is resized to the depth resolution
+   * if needed.
+   *
+   * @param cameraToWorld Column-major 4x4 camera pose, as written by ARCore's {@code
+   *     Pose.toMatrix}, or null to keep the points in camera space.
+   */
+  public void unproject(DepthFrame depthFrame, float[] cameraToWorld, PointGrid output) {
+    if (!hasIntrinsics) {
+      throw new IllegalStateException("Intrinsics must be set before unprojecting.");
+    }
+    long startNanos = System.nanoTime();
+    ensureRayTable(depthFrame.getWidth(), depthFrame.getHeight());
+    depthFrame.copyTo(depth);
+    hasTransform = cameraToWorld != null;
+    if (hasTransform) {
+      System.arraycopy(cameraToWorld, 0, transform, 0, 16);
+    }
+    output.ensureSize(width, height);
+    this.output = output;
+
+    int bandCount = bandValidCounts.length;
+    ParallelTiles.forEach(pool, bandCount, unprojectBand);
+    int validCount = 0;
+    for (int band = 0; band < bandCount; band++) {
+      validCount += bandValidCounts[band];
+    }
+    output.setValidCount(validCount);
+    this.output = null;
+    lastUnprojectNanos = System.nanoTime() - startNanos;
+  }
+
+  private void ensureRayTable(int width, int height) {
+    if (isRayTableValid && width == this.width && height == this.height) {
+      return;
+    }
+    if (width != this.width || height != this.height) {
+      this.width = width;
+      this.height = height;
+      rayX = new float[width * height];
+      rayY = new float[width * height];
+      depth = new short[width * height];
+      bandValidCounts = new int[(height + ROWS_PER_BAND - 1) / ROWS_PER_BAND];
+    }
+    // Scale the intrinsics from the camera image to the depth resolution, sampling pixel centres.
+    float scaleX = (float) width / intrinsicsWidth;
+    float scaleY = (float) height / intrinsicsHeight;
+    float fx = focalLengthX * scaleX;
+    float fy = focalLengthY * scaleY;
+    float cx = principalPointX * scaleX;
+    float cy = principalPointY * scaleY;
+    for (int y = 0; y < height; y++) {
+      // Image rows run down while camera space Y runs up.
+      float rowRay = -(y + 0.5f - cy) / fy;
+      for (int x = 0; x < width; x++) {
+        rayX[y * width + x] = (x + 0.5f - cx) / fx;
+        rayY[y * width + x] = rowRay;
+      }
+    }
+    isRayTableValid = true;
+    rayTableBuildCount++;
+  }
+
+  private void unprojectBand(int band) {
+    float[] outX = output.getX();
+    float[] outY = output.getY();
+    float[] outZ = output.getZ();
+    int start = band * ROWS_PER_BAND * width;
+    int end = Math.min(height, (band + 1) * ROWS_PER_BAND) * width;
+    int validCount = 0;
+    float[] m = transform;
+    for (int i = start; i < end; i++) {
+      int millimeters = depth[i] & 0xFFFF;
+      if (millimeters == 0) {
+        outX[i] = Float.NaN;
+        outY[i] = Float.NaN;
+        outZ[i] = Float.NaN;
+        continue;
+      }
+      validCount++;
+      float meters = millimeters * 0.001f;
+      float x = rayX[i] * meters;
+      float y = rayY[i] * meters;
+      float z = -meters;
+      if (hasTransform) {
+        outX[i] = m[0] * x + m[4] * y + m[8] * z + m[12];
+        outY[i] = m[1] * x + m[5] * y + m[9] * z + m[13];
+        outZ[i] = m[2] * x + m[6] * y + m[10] * z + m[14];
+      } else {
+        outX[i] = x;
+        outY[i] = y;
+        outZ[i] = z;
+      }
+    }
+    bandValidCounts[band] = validCount;
+  }
+}
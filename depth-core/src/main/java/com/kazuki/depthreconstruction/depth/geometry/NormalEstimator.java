@@ -0,0 +1,175 @@
+package com.kazuki.depthreconstruction.depth.geometry;
+
+import com.kazuki.depthreconstruction.depth.ParallelTiles;
+
+import java.nio.ShortBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+/**
+ * Estimates a surface normal for every pixel of a {@link PointGrid} from the cross product of the
+ * horizontal and vertical central differences. Where a neighbour is missing, the difference falls
+ * back to one side; pixels without a point, or without a neighbour along either axis, are marked
+ * invalid. Normals point towards the camera.
+ *
+ * <p>Tiles run in parallel and write straight into a reusable {@link NormalGrid}, so estimating
+ * normals does not allocate once the grid has the right size.
+ */
+public final class NormalEstimator {
+  private static final int TILE_SIZE = 64;
+
+  private final ForkJoinPool pool;
+  private final IntConsumer estimateTile = this::estimateTile;
+
+  private boolean isEncodingEnabled = false;
+  private ParallelTiles tiles;
+  private int[] tileValidCounts = new int[0];
+  private PointGrid points;
+  private NormalGrid normals;
+
+  private long lastEstimateNanos = 0;
+
+  public NormalEstimator(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /** Sets whether normals are also written octahedral-encoded to {@link NormalGrid#getEncoded}. */
+  public void setEncodingEnabled(boolean enabled) {
+    isEncodingEnabled = enabled;
+  }
+
+  /** Returns how long the last call to estimate took, in nanoseconds. */
+  public long getLastEstimateNanos() {
+    return lastEstimateNanos;
+  }
+
+  /** Writes the normals of the points into the output, which is resized if needed. */
+  public void estimate(PointGrid points, NormalGrid normals) {
+    long startNanos = System.nanoTime();
+    int width = points.getWidth();
+    int height = points.getHeight();
+    normals.ensureSize(width, height);
+    if (isEncodingEnabled) {
+      normals.ensureEncoded();
+    }
+    if (tiles == null || tiles.getWidth() != width || tiles.getHeight() != height) {
+      tiles = new ParallelTiles(width, height, TILE_SIZE);
+      tileValidCounts = new int[tiles.getTileCount()];
+    }
+    this.points = points;
+    this.normals = normals;
+    tiles.forEach(pool, estimateTile);
+    this.points = null;
+    this.normals = null;
+
+    int validCount = 0;
+    for (int count : tileValidCounts) {
+      validCount += count;
+    }
+    normals.setValidCount(validCount);
+    lastEstimateNanos = System.nanoTime() - startNanos;
+  }
+
+  private void estimateTile(int tile) {
+    int width = points.getWidth();
+    int height = points.getHeight();
+    float[] px = points.getX();
+    float[] py = points.getY();
+    float[] pz = points.getZ();
+    float[] nx = normals.getX();
+    float[] ny = normals.getY();
+    float[] nz = normals.getZ();
+    byte[] valid = normals.getValidMask();
+    ShortBuffer encoded = isEncodingEnabled ? normals.getEncoded() : null;
+    int validCount = 0;
+    for (int y = tiles.getY0(tile); y < tiles.getY1(tile); y++) {
+      for (int x = tiles.getX0(tile); x < tiles.getX1(tile); x++) {
+        int i = y * width + x;
+        valid[i] = 0;
+        if (encoded != null) {
+          encoded.put(i, (short) 0);
+        }
+        if (Float.isNaN(pz[i])) {
+          continue;
+        }
+        // Neighbours along each axis, falling back to the pixel itself where one is missing.
+        int right = x + 1 < width && !Float.isNaN(pz[i + 1]) ? i + 1 : i;
+        int left = x > 0 && !Float.isNaN(pz[i - 1]) ? i - 1 : i;
+        int down = y + 1 < height && !Float.isNaN(pz[i + width]) ? i + width : i;
+        int up = y > 0 && !Float.isNaN(pz[i - width]) ? i - width : i;
+        if (right == left || down == up) {
+          continue;
+        }
+        float hx = px[right] - px[left];
+        float hy = py[right] - py[left];
+        float hz = pz[right] - pz[left];
+        float vx = px[down] - px[up];
+        float vy = py[down] - py[up];
+        float vz = pz[down] - pz[up];
+        // Down x right points towards the camera for points in ARCore's camera convention, and
+        // stays so under any rigid transform to world space.
+        float cx = vy * hz - vz * hy;
+        float cy = vz * hx - vx * hz;
+        float cz = vx * hy - vy * hx;
+        float length = (float) Math.sqrt(cx * cx + cy * cy + cz * cz);
+        if (length == 0.0f) {
+          continue;
+        }
+        float inverseLength = 1.0f / length;
+        nx[i] = cx * inverseLength;
+        ny[i] = cy * inverseLength;
+        nz[i] = cz * inverseLength;
+        valid[i] = 1;
+        validCount++;
+        if (encoded != null) {
+          encoded.put(i, encodeOctahedral(nx[i], ny[i], nz[i]));
+        }
+      }
+    }
+    tileValidCounts[tile] = validCount;
+  }
+
+  /**
+   * Packs a unit vector into 8 bits per octahedral coordinate, first coordinate in the low byte.
+   * The decoded vector is within 0.96 degrees of the original. Public so that other decoders can
+   * be checked against it.
+   */
+  public static short encodeOctahedral(float x, float y, float z) {
+    float l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+    float u = x / l1;
+    float v = y / l1;
+    if (z < 0.0f) {
+      // Fold the lower hemisphere over the diagonals.
+      float foldedU = (1.0f - Math.abs(v)) * signNotZero(u);
+      float foldedV = (1.0f - Math.abs(u)) * signNotZero(v);
+      u = foldedU;
+      v = foldedV;
+    }
+    int encodedU = Math.round((u * 0.5f + 0.5f) * 255.0f);
+    int encodedV = Math.round((v * 0.5f + 0.5f) * 255.0f);
+    return (short) (encodedU | (encodedV << 8));
+  }
+
+  /** Unpacks a vector packed by {@link #encodeOctahedral}, into the first three array elements. */
+  public static void decodeOctahedral(short encoded, float[] normal) {
+    float u = (encoded & 0xFF) / 255.0f * 2.0f - 1.0f;
+    float v = ((encoded >> 8) & 0xFF) / 255.0f * 2.0f - 1.0f;
+    float z = 1.0f - Math.abs(u) - Math.abs(v);
+    if (z < 0.0f) {
+      float unfoldedU = (1.0f - Math.abs(v)) * signNotZero(u);
+      float unfoldedV = (1.0f - Math.abs(u)) * signNotZero(v);
+      u = unfoldedU;
+      v = unfoldedV;
+    }
+    float length = (float) Math.sqrt(u * u + v * v + z * z);
+    normal[0] = u / length;
+    normal[1] = v / length;
+    normal[2] = z / length;
+  }
+
+  // Unlike Math.signum, never 0, so vectors with a zero coordinate still fold onto the outer
+  // triangles.
+  private static float signNotZero(float value) {
+    return value >= 0.0f ? 1.0f : -1.0f;
+  }
+}
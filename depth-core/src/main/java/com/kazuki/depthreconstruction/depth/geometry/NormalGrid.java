@@ -0,0 +1,97 @@
+package com.kazuki.depthreconstruction.depth.geometry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Unit surface normals laid out like a {@link PointGrid}, as a structure of arrays, with a validity
+ * mask for the pixels where no normal could be estimated. Optionally also holds every normal
+ * octahedral-encoded into one short, 8 bits per component, ready to upload as a {@code GL_RG8}
+ * texture at half the size of an RGBA8 normal map.
+ */
+public final class NormalGrid {
+  private int width;
+  private int height;
+  private float[] x;
+  private float[] y;
+  private float[] z;
+  private byte[] valid;
+  private ShortBuffer encoded;
+  private int validCount;
+
+  public NormalGrid(int width, int height) {
+    this.width = width;
+    this.height = height;
+    x = new float[width * height];
+    y = new float[width * height];
+    z = new float[width * height];
+    valid = new byte[width * height];
+  }
+
+  /** Resizes the grid if needed, keeping the arrays when the size is unchanged. */
+  public void ensureSize(int width, int height) {
+    if (width == this.width && height == this.height) {
+      return;
+    }
+    this.width = width;
+    this.height = height;
+    x = new float[width * height];
+    y = new float[width * height];
+    z = new float[width * height];
+    valid = new byte[width * height];
+    encoded = null;
+    validCount = 0;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public float[] getX() {
+    return x;
+  }
+
+  public float[] getY() {
+    return y;
+  }
+
+  public float[] getZ() {
+    return z;
+  }
+
+  /** Returns the mask holding 1 for pixels with a normal and 0 for the others. */
+  public byte[] getValidMask() {
+    return valid;
+  }
+
+  public int getValidCount() {
+    return validCount;
+  }
+
+  /**
+   * Returns the octahedral-encoded normals, or null if they were not requested. The low byte of
+   * every short is the first component, so on little-endian devices it uploads as the red channel.
+   * Invalid pixels hold 0.
+   */
+  public ShortBuffer getEncoded() {
+    return encoded;
+  }
+
+  void setValidCount(int validCount) {
+    this.validCount = validCount;
+  }
+
+  void ensureEncoded() {
+    if (encoded == null) {
+      encoded =
+              ByteBuffer.allocateDirect(width * height * 2)
+                      .order(ByteOrder.nativeOrder())
+                      .asShortBuffer();
+    }
+  }
+}
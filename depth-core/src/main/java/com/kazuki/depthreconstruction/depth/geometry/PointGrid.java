@@ -0,0 +1,70 @@
+package com.kazuki.depthreconstruction.depth.geometry;
+
+/**
+ * 3D points laid out like the depth image they came from, one per pixel, as a structure of arrays:
+ * the coordinates of pixel (x, y) are at index {@code y * width + x} of {@link #getX()}, {@link
+ * #getY()} and {@link #getZ()}. Pixels without valid depth hold NaN.
+ */
+public final class PointGrid {
+  private int width;
+  private int height;
+  private float[] x;
+  private float[] y;
+  private float[] z;
+  private int validCount;
+
+  public PointGrid(int width, int height) {
+    this.width = width;
+    this.height = height;
+    x = new float[width * height];
+    y = new float[width * height];
+    z = new float[width * height];
+  }
+
+  /** Resizes the grid if needed, keeping the arrays when the size is unchanged. */
+  public void ensureSize(int width, int height) {
+    if (width == this.width && height == this.height) {
+      return;
+    }
+    this.width = width;
+    this.height = height;
+    x = new float[width * height];
+    y = new float[width * height];
+    z = new float[width * height];
+    validCount = 0;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public float[] getX() {
+    return x;
+  }
+
+  public float[] getY() {
+    return y;
+  }
+
+  public float[] getZ() {
+    return z;
+  }
+
+  /** Returns whether the pixel at the index has a point. */
+  public boolean isValid(int i) {
+    return !Float.isNaN(z[i]);
+  }
+
+  /** Returns the number of pixels that have a point. */
+  public int getValidCount() {
+    return validCount;
+  }
+
+  void setValidCount(int validCount) {
+    this.validCount = validCount;
+  }
+}
@@ -0,0 +1,205 @@
+package com.kazuki.depthreconstruction.depth.geometry;
+
+import com.kazuki.depthreconstruction.depth.LongIntHashMap;
+
+/**
+ * Reduces point clouds to one point per cubic voxel, the centroid of the points that fell into it,
+ * accumulated across frames.
+ *
+ * <p>Voxels are found through a primitive {@link LongIntHashMap} from packed voxel coordinates to a
+ * voxel index, whose running sums are kept in parallel arrays; voxel indices stay dense, so the
+ * centroids can be read out in one pass. At most a fixed number of voxels is kept: when a new voxel
+ * is needed and the grid is full, the voxel least recently seen is evicted, so the cloud follows
+ * the camera within a fixed memory budget. Not thread-safe.
+ */
+public final class VoxelGridDownsampler {
+  // Voxel coordinates are packed into 21 bits each.
+  private static final int COORDINATE_BITS = 21;
+  private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+  private static final int NONE = -1;
+
+  private final float voxelSize;
+  private final float inverseVoxelSize;
+  private final int capacity;
+  private final LongIntHashMap voxelIndices;
+
+  private final long[] keys;
+  private final double[] sumX;
+  private final double[] sumY;
+  private final double[] sumZ;
+  private final int[] pointCounts;
+  // A doubly linked list of the voxels from most to least recently seen.
+  private final int[] newer;
+  private final int[] older;
+  private final int[] lastSeenFrames;
+  private int newest = NONE;
+  private int oldest = NONE;
+  private int voxelCount = 0;
+  private int frameIndex = 0;
+
+  private long evictedVoxelCount = 0;
+  private long lastAddNanos = 0;
+
+  /**
+   * @param voxelSize Edge length of a voxel in meters.
+   * @param capacity Largest number of voxels kept.
+   */
+  public VoxelGridDownsampler(float voxelSize, int capacity) {
+    this.voxelSize = voxelSize;
+    this.inverseVoxelSize = 1.0f / voxelSize;
+    this.capacity = capacity;
+    voxelIndices = new LongIntHashMap(capacity);
+    keys = new long[capacity];
+    sumX = new double[capacity];
+    sumY = new double[capacity];
+    sumZ = new double[capacity];
+    pointCounts = new int[capacity];
+    newer = new int[capacity];
+    older = new int[capacity];
+    lastSeenFrames = new int[capacity];
+  }
+
+  public float getVoxelSize() {
+    return voxelSize;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int getVoxelCount() {
+    return voxelCount;
+  }
+
+  /** Returns the number of voxels evicted to make room for new ones since creation. */
+  public long getEvictedVoxelCount() {
+    return evictedVoxelCount;
+  }
+
+  public long getLastAddNanos() {
+    return lastAddNanos;
+  }
+
+  /** Returns the memory held by the voxels and the hash map, in bytes. */
+  public long getMemoryBytes() {
+    // Key, three sums, and the count, list links and frame.
+    long voxelBytes = (long) capacity * (8 + 3 * 8 + 4 * 4);
+    long mapBytes = (long) voxelIndices.getCapacity() * (8 + 4);
+    return voxelBytes + mapBytes;
+  }
+
+  /** Adds the valid points of a frame. */
+  public void add(PointGrid points) {
+    long startNanos = System.nanoTime();
+    frameIndex++;
+    float[] x = points.getX();
+    float[] y = points.getY();
+    float[] z = points.getZ();
+    int count = points.getWidth() * points.getHeight();
+    for (int i = 0; i < count; i++) {
+      if (points.isValid(i)) {
+        addPoint(x[i], y[i], z[i]);
+      }
+    }
+    lastAddNanos = System.nanoTime() - startNanos;
+  }
+
+  /**
+   * Writes the centroid of every voxel, x, y and z, to the array, which must hold {@code 3 *
+   * getVoxelCount()} floats.
+   *
+   * @return The number of centroids written.
+   */
+  public int copyCentroids(float[] destination) {
+    for (int voxel = 0; voxel < voxelCount; voxel++) {
+      double inverseCount = 1.0 / pointCounts[voxel];
+      destination[voxel * 3] = (float) (sumX[voxel] * inverseCount);
+      destination[voxel * 3 + 1] = (float) (sumY[voxel] * inverseCount);
+      destination[voxel * 3 + 2] = (float) (sumZ[voxel] * inverseCount);
+    }
+    return voxelCount;
+  }
+
+  /** Drops every voxel. */
+  public void clear() {
+    voxelIndices.clear();
+    voxelCount = 0;
+    newest = NONE;
+    oldest = NONE;
+  }
+
+  private void addPoint(float x, float y, float z) {
+    long key =
+            packKey(
+                    (int) Math.floor(x * inverseVoxelSize),
+                    (int) Math.floor(y * inverseVoxelSize),
+                    (int) Math.floor(z * inverseVoxelSize));
+    int voxel = voxelIndices.get(key);
+    if (voxel < 0) {
+      voxel = allocate(key);
+    } else if (lastSeenFrames[voxel] != frameIndex) {
+      // Voxels only move to the front once per frame, which is all the eviction order needs.
+      unlink(voxel);
+      pushNewest(voxel);
+      lastSeenFrames[voxel] = frameIndex;
+    }
+    sumX[voxel] += x;
+    sumY[voxel] += y;
+    sumZ[voxel] += z;
+    pointCounts[voxel]++;
+  }
+
+  private int allocate(long key) {
+    int voxel;
+    if (voxelCount < capacity) {
+      voxel = voxelCount++;
+    } else {
+      // Reuse the least recently seen voxel.
+      voxel = oldest;
+      unlink(voxel);
+      voxelIndices.remove(keys[voxel]);
+      evictedVoxelCount++;
+    }
+    keys[voxel] = key;
+    sumX[voxel] = 0.0;
+    sumY[voxel] = 0.0;
+    sumZ[voxel] = 0.0;
+    pointCounts[voxel] = 0;
+    lastSeenFrames[voxel] = frameIndex;
+    voxelIndices.put(key, voxel);
+    pushNewest(voxel);
+    return voxel;
+  }
+
+  private void unlink(int voxel) {
+    int newerVoxel = newer[voxel];
+    int olderVoxel = older[voxel];
+    if (newerVoxel == NONE) {
+      newest = olderVoxel;
+    } else {
+      older[newerVoxel] = olderVoxel;
+    }
+    if (olderVoxel == NONE) {
+      oldest = newerVoxel;
+    } else {
+      newer[olderVoxel] = newerVoxel;
+    }
+  }
+
+  private void pushNewest(int voxel) {
+    newer[voxel] = NONE;
+    older[voxel] = newest;
+    if (newest == NONE) {
+      oldest = voxel;
+    } else {
+      newer[newest] = voxel;
+    }
+    newest = voxel;
+  }
+
+  private static long packKey(int voxelX, int voxelY, int voxelZ) {
+    return ((voxelX & COORDINATE_MASK) << (2 * COORDINATE_BITS))
+            | ((voxelY & COORDINATE_MASK) << COORDINATE_BITS)
+            | (voxelZ & COORDINATE_MASK);
+  }
+}
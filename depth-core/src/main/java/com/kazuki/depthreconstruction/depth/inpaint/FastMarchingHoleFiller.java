@@ -0,0 +1,294 @@
+package com.kazuki.depthreconstruction.depth.inpaint;
+
+import com.kazuki.depthreconstruction.depth.IntFloatMinHeap;
+import com.kazuki.depthreconstruction.depth.ParallelTiles;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+/**
+ * Fills holes with Telea's fast marching method. Hole pixels are filled in order of their distance
+ * from the hole boundary, each one as a weighted average of the already known pixels around it, so
+ * depth edges reaching into a hole are continued instead of smeared. The gradient term of the
+ * original method is left out, since it mostly amplifies depth noise.
+ *
+ * <p>Tiles are filled independently over the tile plus a halo. Each worker thread owns a {@link
+ * IntFloatMinHeap} and scratch arrays sized for one extended tile, so filling does not allocate.
+ */
+public final class FastMarchingHoleFiller implements HoleFiller {
+  private static final int DEFAULT_TILE_SIZE = 64;
+  private static final int DEFAULT_HALO = 16;
+  private static final int DEFAULT_RADIUS = 3;
+
+  private static final byte KNOWN = 0;
+  private static final byte BAND = 1;
+  private static final byte INSIDE = 2;
+  private static final float FAR = 1.0e6f;
+
+  private final int tileSize;
+  private final int halo;
+  // Offsets of the disk every hole pixel is averaged from, with their precomputed distances.
+  private final int[] neighbourDx;
+  private final int[] neighbourDy;
+  private final float[] neighbourInverseDistances;
+  private final ThreadLocal<Scratch> scratch;
+  private final IntConsumer fillTile = this::fillTile;
+
+  private ParallelTiles tiles;
+  // Arguments of the fill in progress, read by the tile workers.
+  private short[] depth;
+  private short[] output;
+
+  public FastMarchingHoleFiller() {
+    this(DEFAULT_TILE_SIZE, DEFAULT_HALO, DEFAULT_RADIUS);
+  }
+
+  /** @param radius Radius of the neighbourhood every hole pixel is averaged from. */
+  public FastMarchingHoleFiller(int tileSize, int halo, int radius) {
+    this.tileSize = tileSize;
+    this.halo = halo;
+    int count = 0;
+    for (int dy = -radius; dy <= radius; dy++) {
+      for (int dx = -radius; dx <= radius; dx++) {
+        if (dx * dx + dy * dy <= radius * radius && (dx != 0 || dy != 0)) {
+          count++;
+        }
+      }
+    }
+    neighbourDx = new int[count];
+    neighbourDy = new int[count];
+    neighbourInverseDistances = new float[count];
+    for (int dy = -radius, n = 0; dy <= radius; dy++) {
+      for (int dx = -radius; dx <= radius; dx++) {
+        if (dx * dx + dy * dy <= radius * radius && (dx != 0 || dy != 0)) {
+          neighbourDx[n] = dx;
+          neighbourDy[n] = dy;
+          neighbourInverseDistances[n] = 1.0f / (float) Math.sqrt(dx * dx + dy * dy);
+          n++;
+        }
+      }
+    }
+    final int extendedSize = (tileSize + 2 * halo) * (tileSize + 2 * halo);
+    scratch =
+            new ThreadLocal<Scratch>() {
+              @Override
+              protected Scratch initialValue() {
+                return new Scratch(extendedSize);
+              }
+            };
+  }
+
+  @Override
+  public void fill(short[] depth, short[] output, int width, int height, ForkJoinPool pool) {
+    if (tiles == null || tiles.getWidth() != width || tiles.getHeight() != height) {
+      tiles = new ParallelTiles(width, height, tileSize);
+    }
+    this.depth = depth;
+    this.output = output;
+    tiles.forEach(pool, fillTile);
+    this.depth = null;
+    this.output = null;
+  }
+
+  private void fillTile(int tile) {
+    int width = tiles.getWidth();
+    int height = tiles.getHeight();
+    int x0 = tiles.getX0(tile);
+    int y0 = tiles.getY0(tile);
+    int x1 = tiles.getX1(tile);
+    int y1 = tiles.getY1(tile);
+    if (!NearestValidHoleFiller.hasHoles(depth, width, x0, y0, x1, y1)) {
+      for (int y = y0; y < y1; y++) {
+        System.arraycopy(depth, y * width + x0, output, y * width + x0, x1 - x0);
+      }
+      return;
+    }
+
+    int ex0 = Math.max(0, x0 - halo);
+    int ey0 = Math.max(0, y0 - halo);
+    int ex1 = Math.min(width, x1 + halo);
+    int ey1 = Math.min(height, y1 + halo);
+    int ew = ex1 - ex0;
+    int eh = ey1 - ey0;
+
+    Scratch s = scratch.get();
+    byte[] flags = s.flags;
+    float[] times = s.times;
+    float[] values = s.values;
+    IntFloatMinHeap heap = s.heap;
+    heap.clear();
+
+    for (int y = ey0, i = 0; y < ey1; y++) {
+      for (int x = ex0, p = y * width + ex0; x < ex1; x++, p++, i++) {
+        int millimeters = depth[p] & 0xFFFF;
+        values[i] = millimeters;
+        if (millimeters != 0) {
+          flags[i] = KNOWN;
+          times[i] = 0.0f;
+        } else {
+          flags[i] = INSIDE;
+          times[i] = FAR;
+        }
+      }
+    }
+
+    // The march starts from the known pixels bordering a hole.
+    for (int ly = 0, i = 0; ly < eh; ly++) {
+      for (int lx = 0; lx < ew; lx++, i++) {
+        if (flags[i] == KNOWN
+                && ((lx > 0 && flags[i - 1] == INSIDE)
+                || (lx < ew - 1 && flags[i + 1] == INSIDE)
+                || (ly > 0 && flags[i - ew] == INSIDE)
+                || (ly < eh - 1 && flags[i + ew] == INSIDE))) {
+          heap.push(i, 0.0f);
+        }
+      }
+    }
+
+    while (!heap.isEmpty()) {
+      int i = heap.pop();
+      flags[i] = KNOWN;
+      int lx = i % ew;
+      int ly = i / ew;
+      if (lx > 0) {
+        march(s, i - 1, lx - 1, ly, ew, eh);
+      }
+      if (lx < ew - 1) {
+        march(s, i + 1, lx + 1, ly, ew, eh);
+      }
+      if (ly > 0) {
+        march(s, i - ew, lx, ly - 1, ew, eh);
+      }
+      if (ly < eh - 1) {
+        march(s, i + ew, lx, ly + 1, ew, eh);
+      }
+    }
+
+    for (int y = y0; y < y1; y++) {
+      for (int x = x0, i = (y - ey0) * ew + (x0 - ex0), p = y * width + x0; x < x1; x++, i++, p++) {
+        output[p] = flags[i] == INSIDE ? 0 : (short) Math.round(values[i]);
+      }
+    }
+  }
+
+  /** Updates the arrival time of a neighbour of a newly known pixel, filling it on first reach. */
+  private void march(Scratch s, int i, int lx, int ly, int ew, int eh) {
+    byte[] flags = s.flags;
+    if (flags[i] == KNOWN) {
+      return;
+    }
+    float[] times = s.times;
+    float time =
+            Math.min(
+                    Math.min(
+                            solve(flags, times, i, lx, ly, -1, -1, ew, eh),
+                            solve(flags, times, i, lx, ly, 1, -1, ew, eh)),
+                    Math.min(
+                            solve(flags, times, i, lx, ly, -1, 1, ew, eh),
+                            solve(flags, times, i, lx, ly, 1, 1, ew, eh)));
+    times[i] = time;
+    if (flags[i] == INSIDE) {
+      flags[i] = BAND;
+      s.values[i] = inpaint(s, i, lx, ly, ew, eh);
+    }
+    s.heap.push(i, time);
+  }
+
+  /**
+   * Solves the eikonal equation at pixel i from its horizontal neighbour in direction dx and its
+   * vertical neighbour in direction dy, using only neighbours with a final arrival time.
+   */
+  private static float solve(
+          byte[] flags, float[] times, int i, int lx, int ly, int dx, int dy, int ew, int eh) {
+    boolean hasX = lx + dx >= 0 && lx + dx < ew && flags[i + dx] == KNOWN;
+    boolean hasY = ly + dy >= 0 && ly + dy < eh && flags[i + dy * ew] == KNOWN;
+    if (hasX && hasY) {
+      float tx = times[i + dx];
+      float ty = times[i + dy * ew];
+      float difference = tx - ty;
+      float discriminant = 2.0f - difference * difference;
+      if (discriminant > 0.0f) {
+        float r = (float) Math.sqrt(discriminant);
+        float solution = (tx + ty - r) * 0.5f;
+        if (solution >= tx && solution >= ty) {
+          return solution;
+        }
+        solution += r;
+        if (solution >= tx && solution >= ty) {
+          return solution;
+        }
+      }
+      return 1.0f + Math.min(tx, ty);
+    } else if (hasX) {
+      return 1.0f + times[i + dx];
+    } else if (hasY) {
+      return 1.0f + times[i + dy * ew];
+    }
+    return FAR;
+  }
+
+  /** Averages the known pixels around i, weighted by direction, distance and level set offset. */
+  private float inpaint(Scratch s, int i, int lx, int ly, int ew, int eh) {
+    byte[] flags = s.flags;
+    float[] times = s.times;
+    float[] values = s.values;
+    float time = times[i];
+    float gradientX = timeDerivative(flags, times, i, lx, 1, ew);
+    float gradientY = timeDerivative(flags, times, i, ly, ew, eh);
+
+    float weightSum = 0.0f;
+    float valueSum = 0.0f;
+    for (int k = 0; k < neighbourDx.length; k++) {
+      int nx = lx + neighbourDx[k];
+      int ny = ly + neighbourDy[k];
+      if (nx < 0 || nx >= ew || ny < 0 || ny >= eh) {
+        continue;
+      }
+      int n = ny * ew + nx;
+      if (flags[n] != KNOWN) {
+        continue;
+      }
+      float inverseDistance = neighbourInverseDistances[k];
+      float direction =
+              Math.abs(neighbourDx[k] * gradientX + neighbourDy[k] * gradientY) * inverseDistance;
+      float weight =
+              Math.max(direction, 1.0e-2f)
+                      * inverseDistance
+                      * inverseDistance
+                      / (1.0f + Math.abs(times[n] - time));
+      weightSum += weight;
+      valueSum += weight * values[n];
+    }
+    return weightSum > 0.0f ? valueSum / weightSum : 0.0f;
+  }
+
+  /** Central difference of the arrival time along one axis, one sided where a side is unknown. */
+  private static float timeDerivative(
+          byte[] flags, float[] times, int i, int coordinate, int step, int extent) {
+    boolean hasPrevious = coordinate > 0 && flags[i - step] != INSIDE;
+    boolean hasNext = coordinate < extent - 1 && flags[i + step] != INSIDE;
+    if (hasPrevious && hasNext) {
+      return (times[i + step] - times[i - step]) * 0.5f;
+    } else if (hasNext) {
+      return times[i + step] - times[i];
+    } else if (hasPrevious) {
+      return times[i] - times[i - step];
+    }
+    return 0.0f;
+  }
+
+  /** Per worker thread state for one extended tile. */
+  private static final class Scratch {
+    final byte[] flags;
+    final float[] times;
+    final float[] values;
+    final IntFloatMinHeap heap;
+
+    Scratch(int size) {
+      flags = new byte[size];
+      times = new float[size];
+      values = new float[size];
+      heap = new IntFloatMinHeap(size);
+    }
+  }
+}
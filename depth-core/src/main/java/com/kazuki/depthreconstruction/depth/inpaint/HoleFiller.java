@@ -0,0 +1,15 @@
+package com.kazuki.depthreconstruction.depth.inpaint;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** An algorithm that fills the zero-depth holes of a depth image. */
+public interface HoleFiller {
+  /**
+   * Copies the depth into the output and fills the zero pixels it can reach. Both arrays hold
+   * {@code width * height} tightly packed millimeters; zero marks a missing measurement. Pixels
+   * that cannot be filled stay zero.
+   *
+   * @param pool Pool to run parallel work on. The call returns once all of it is done.
+   */
+  void fill(short[] depth, short[] output, int width, int height, ForkJoinPool pool);
+}
@@ -0,0 +1,143 @@
+package com.kazuki.depthreconstruction.depth.inpaint;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Fills the zero-depth holes of depth frames with a selectable {@link HoleFiller}, running its
+ * tiles in parallel on a {@link ForkJoinPool}. The engine keeps its working arrays between frames,
+ * so filling frames of an unchanged resolution does not allocate.
+ *
+ * <p>Every fill is timed against a per-frame latency budget of 2 ms for depth images up to 160x120
+ * and 8 ms for larger ones up to 640x480, which keeps the fill well inside a 30 fps frame next to
+ * rendering.
+ */
+public final class HoleFillingEngine {
+  /** The available hole filling algorithms. */
+  public enum Algorithm {
+    /** Copies the nearest valid depth into each hole. Cheapest, but leaves visible seams. */
+    NEAREST_VALID,
+    /** Fills holes smoothly from a push-pull pyramid in linear time. */
+    PUSH_PULL,
+    /** Fills holes inwards from their boundary with Telea's fast marching method. Slowest. */
+    FAST_MARCHING
+  }
+
+  private static final int SMALL_FRAME_PIXELS = 160 * 120;
+  private static final long SMALL_FRAME_BUDGET_NANOS = 2_000_000L;
+  private static final long LARGE_FRAME_BUDGET_NANOS = 8_000_000L;
+
+  private final ForkJoinPool pool;
+  private final HoleFiller[] holeFillers = new HoleFiller[Algorithm.values().length];
+  private Algorithm algorithm = Algorithm.NEAREST_VALID;
+
+  private short[] input = new short[0];
+  private short[] output = new short[0];
+
+  private long fillCount = 0;
+  private long overBudgetCount = 0;
+  private long lastFillNanos = 0;
+  private long totalFillNanos = 0;
+
+  public HoleFillingEngine() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  public HoleFillingEngine(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  public Algorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  public void setAlgorithm(Algorithm algorithm) {
+    this.algorithm = algorithm;
+  }
+
+  /**
+   * Writes the hole filled source into the destination, which must have the same resolution. The
+   * destination takes over the source's timestamp. Must not be called concurrently.
+   */
+  public void fill(DepthFrame source, DepthFrame destination) {
+    int width = source.getWidth();
+    int height = source.getHeight();
+    if (destination.getWidth() != width || destination.getHeight() != height) {
+      throw new IllegalArgumentException("Source and destination resolutions differ.");
+    }
+    long startNanos = System.nanoTime();
+    int size = width * height;
+    if (input.length != size) {
+      input = new short[size];
+      output = new short[size];
+    }
+    source.copyTo(input);
+    getHoleFiller(algorithm).fill(input, output, width, height, pool);
+    destination.copyFrom(output);
+    destination.setTimestamp(source.getTimestamp());
+    recordFillTime(System.nanoTime() - startNanos, width, height);
+  }
+
+  private HoleFiller getHoleFiller(Algorithm algorithm) {
+    HoleFiller holeFiller = holeFillers[algorithm.ordinal()];
+    if (holeFiller == null) {
+      holeFiller = createHoleFiller(algorithm);
+      holeFillers[algorithm.ordinal()] = holeFiller;
+    }
+    return holeFiller;
+  }
+
+  private static HoleFiller createHoleFiller(Algorithm algorithm) {
+    switch (algorithm) {
+      case NEAREST_VALID:
+        return new NearestValidHoleFiller();
+      case PUSH_PULL:
+        return new PushPullHoleFiller();
+      case FAST_MARCHING:
+        return new FastMarchingHoleFiller();
+      default:
+        throw new IllegalArgumentException("Unhandled algorithm: " + algorithm);
+    }
+  }
+
+  /** Returns the latency budget of a single fill at the given depth resolution. */
+  public static long getLatencyBudgetNanos(int width, int height) {
+    return width * height <= SMALL_FRAME_PIXELS
+            ? SMALL_FRAME_BUDGET_NANOS
+            : LARGE_FRAME_BUDGET_NANOS;
+  }
+
+  private void recordFillTime(long nanos, int width, int height) {
+    fillCount++;
+    lastFillNanos = nanos;
+    totalFillNanos += nanos;
+    if (nanos > getLatencyBudgetNanos(width, height)) {
+      overBudgetCount++;
+    }
+  }
+
+  public long getFillCount() {
+    return fillCount;
+  }
+
+  /** Returns how many fills took longer than their latency budget. */
+  public long getOverBudgetCount() {
+    return overBudgetCount;
+  }
+
+  public long getLastFillNanos() {
+    return lastFillNanos;
+  }
+
+  public long getAverageFillNanos() {
+    return fillCount == 0 ? 0 : totalFillNanos / fillCount;
+  }
+
+  public void resetStats() {
+    fillCount = 0;
+    overBudgetCount = 0;
+    lastFillNanos = 0;
+    totalFillNanos = 0;
+  }
+}
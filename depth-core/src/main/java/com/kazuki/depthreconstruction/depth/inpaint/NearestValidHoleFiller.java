@@ -0,0 +1,191 @@
+package com.kazuki.depthreconstruction.depth.inpaint;
+
+import com.kazuki.depthreconstruction.depth.ParallelTiles;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+/**
+ * Fills every hole pixel with the depth of the nearest valid pixel. Each tile runs a two pass 3-4
+ * chamfer distance transform over itself plus a halo, so holes are filled from valid pixels up to
+ * the halo width outside the tile.
+ */
+public final class NearestValidHoleFiller implements HoleFiller {
+  private static final int DEFAULT_TILE_SIZE = 64;
+  private static final int DEFAULT_HALO = 16;
+
+  // Chamfer weights approximating the euclidean distance of orthogonal and diagonal steps.
+  private static final int ORTHOGONAL_COST = 3;
+  private static final int DIAGONAL_COST = 4;
+  private static final int UNREACHED = Integer.MAX_VALUE / 2;
+
+  private final int tileSize;
+  private final int halo;
+  private final ThreadLocal<Scratch> scratch =
+          new ThreadLocal<Scratch>() {
+            @Override
+            protected Scratch initialValue() {
+              return new Scratch();
+            }
+          };
+  private final IntConsumer fillTile = this::fillTile;
+
+  private ParallelTiles tiles;
+  // Arguments of the fill in progress, read by the tile workers.
+  private short[] depth;
+  private short[] output;
+
+  public NearestValidHoleFiller() {
+    this(DEFAULT_TILE_SIZE, DEFAULT_HALO);
+  }
+
+  public NearestValidHoleFiller(int tileSize, int halo) {
+    this.tileSize = tileSize;
+    this.halo = halo;
+  }
+
+  @Override
+  public void fill(short[] depth, short[] output, int width, int height, ForkJoinPool pool) {
+    if (tiles == null || tiles.getWidth() != width || tiles.getHeight() != height) {
+      tiles = new ParallelTiles(width, height, tileSize);
+    }
+    this.depth = depth;
+    this.output = output;
+    tiles.forEach(pool, fillTile);
+    this.depth = null;
+    this.output = null;
+  }
+
+  private void fillTile(int tile) {
+    int width = tiles.getWidth();
+    int height = tiles.getHeight();
+    int x0 = tiles.getX0(tile);
+    int y0 = tiles.getY0(tile);
+    int x1 = tiles.getX1(tile);
+    int y1 = tiles.getY1(tile);
+    if (!hasHoles(depth, width, x0, y0, x1, y1)) {
+      for (int y = y0; y < y1; y++) {
+        System.arraycopy(depth, y * width + x0, output, y * width + x0, x1 - x0);
+      }
+      return;
+    }
+
+    int ex0 = Math.max(0, x0 - halo);
+    int ey0 = Math.max(0, y0 - halo);
+    int ex1 = Math.min(width, x1 + halo);
+    int ey1 = Math.min(height, y1 + halo);
+    int ew = ex1 - ex0;
+    int eh = ey1 - ey0;
+
+    Scratch s = scratch.get();
+    s.ensureCapacity(ew * eh);
+    int[] distance = s.distance;
+    short[] nearest = s.nearest;
+
+    for (int y = ey0, i = 0; y < ey1; y++) {
+      for (int x = ex0, p = y * width + ex0; x < ex1; x++, p++, i++) {
+        short d = depth[p];
+        distance[i] = d != 0 ? 0 : UNREACHED;
+        nearest[i] = d;
+      }
+    }
+
+    // Forward pass: propagate from the left and the row above.
+    for (int ly = 0, i = 0; ly < eh; ly++) {
+      for (int lx = 0; lx < ew; lx++, i++) {
+        int best = distance[i];
+        if (best == 0) {
+          continue;
+        }
+        int from = -1;
+        if (lx > 0 && distance[i - 1] + ORTHOGONAL_COST < best) {
+          best = distance[i - 1] + ORTHOGONAL_COST;
+          from = i - 1;
+        }
+        if (ly > 0) {
+          int up = i - ew;
+          if (distance[up] + ORTHOGONAL_COST < best) {
+            best = distance[up] + ORTHOGONAL_COST;
+            from = up;
+          }
+          if (lx > 0 && distance[up - 1] + DIAGONAL_COST < best) {
+            best = distance[up - 1] + DIAGONAL_COST;
+            from = up - 1;
+          }
+          if (lx < ew - 1 && distance[up + 1] + DIAGONAL_COST < best) {
+            best = distance[up + 1] + DIAGONAL_COST;
+            from = up + 1;
+          }
+        }
+        if (from >= 0) {
+          distance[i] = best;
+          nearest[i] = nearest[from];
+        }
+      }
+    }
+
+    // Backward pass: propagate from the right and the row below.
+    for (int ly = eh - 1, i = ew * eh - 1; ly >= 0; ly--) {
+      for (int lx = ew - 1; lx >= 0; lx--, i--) {
+        int best = distance[i];
+        if (best == 0) {
+          continue;
+        }
+        int from = -1;
+        if (lx < ew - 1 && distance[i + 1] + ORTHOGONAL_COST < best) {
+          best = distance[i + 1] + ORTHOGONAL_COST;
+          from = i + 1;
+        }
+        if (ly < eh - 1) {
+          int down = i + ew;
+          if (distance[down] + ORTHOGONAL_COST < best) {
+            best = distance[down] + ORTHOGONAL_COST;
+            from = down;
+          }
+          if (lx < ew - 1 && distance[down + 1] + DIAGONAL_COST < best) {
+            best = distance[down + 1] + DIAGONAL_COST;
+            from = down + 1;
+          }
+          if (lx > 0 && distance[down - 1] + DIAGONAL_COST < best) {
+            best = distance[down - 1] + DIAGONAL_COST;
+            from = down - 1;
+          }
+        }
+        if (from >= 0) {
+          distance[i] = best;
+          nearest[i] = nearest[from];
+        }
+      }
+    }
+
+    // Only the tile itself is written; the halo belongs to the neighbouring tiles.
+    for (int y = y0; y < y1; y++) {
+      int i = (y - ey0) * ew + (x0 - ex0);
+      System.arraycopy(nearest, i, output, y * width + x0, x1 - x0);
+    }
+  }
+
+  static boolean hasHoles(short[] depth, int width, int x0, int y0, int x1, int y1) {
+    for (int y = y0; y < y1; y++) {
+      for (int p = y * width + x0, end = y * width + x1; p < end; p++) {
+        if (depth[p] == 0) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Per worker thread buffers for one extended tile. */
+  private static final class Scratch {
+    int[] distance = new int[0];
+    short[] nearest = new short[0];
+
+    void ensureCapacity(int size) {
+      if (distance.length < size) {
+        distance = new int[size];
+        nearest = new short[size];
+      }
+    }
+  }
+}
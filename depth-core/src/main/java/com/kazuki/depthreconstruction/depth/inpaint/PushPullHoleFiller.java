@@ -0,0 +1,192 @@
+package com.kazuki.depthreconstruction.depth.inpaint;
+
+import com.kazuki.depthreconstruction.depth.ParallelTiles;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+/**
+ * Fills holes in O(N) with a push-pull pyramid. The push phase halves the resolution level by
+ * level, averaging depth weighted by how much valid data each pixel covers. The pull phase walks
+ * back up and blends every pixel that lacks full weight with the bilinearly upsampled coarser
+ * level, so large holes receive smooth depth from far away valid pixels.
+ *
+ * <p>All levels are allocated once per resolution and reused for every frame. Each level is
+ * processed in parallel row bands.
+ */
+public final class PushPullHoleFiller implements HoleFiller {
+  // Levels smaller than this are not worth splitting into parallel bands.
+  private static final int MIN_PARALLEL_PIXELS = 64 * 64;
+  private static final int ROWS_PER_BAND = 16;
+
+  private int width = -1;
+  private int height = -1;
+  private int levelCount;
+  private int[] levelWidths;
+  private int[] levelHeights;
+  // Weighted depth and weight of every level; level 0 is the input resolution.
+  private float[][] levelDepths;
+  private float[][] levelWeights;
+
+  // Level being processed by the band workers.
+  private int currentLevel;
+  private final IntConsumer pushBand = this::pushBand;
+  private final IntConsumer pullBand = this::pullBand;
+
+  @Override
+  public void fill(short[] depth, short[] output, int width, int height, ForkJoinPool pool) {
+    ensureLevels(width, height);
+
+    float[] depth0 = levelDepths[0];
+    float[] weight0 = levelWeights[0];
+    for (int i = 0; i < width * height; i++) {
+      int millimeters = depth[i] & 0xFFFF;
+      depth0[i] = millimeters;
+      weight0[i] = millimeters != 0 ? 1.0f : 0.0f;
+    }
+
+    for (int level = 1; level < levelCount; level++) {
+      currentLevel = level;
+      forEachBand(pool, level, pushBand);
+    }
+    for (int level = levelCount - 2; level >= 0; level--) {
+      currentLevel = level;
+      forEachBand(pool, level, pullBand);
+    }
+
+    for (int i = 0; i < width * height; i++) {
+      output[i] = depth[i] != 0 ? depth[i] : (short) Math.round(depth0[i]);
+    }
+  }
+
+  private void forEachBand(ForkJoinPool pool, int level, IntConsumer band) {
+    int levelHeight = levelHeights[level];
+    int bandCount = (levelHeight + ROWS_PER_BAND - 1) / ROWS_PER_BAND;
+    if (levelWidths[level] * levelHeight < MIN_PARALLEL_PIXELS) {
+      for (int i = 0; i < bandCount; i++) {
+        band.accept(i);
+      }
+    } else {
+      ParallelTiles.forEach(pool, bandCount, band);
+    }
+  }
+
+  /** Averages 2x2 blocks of the finer level into one band of rows of the current level. */
+  private void pushBand(int band) {
+    int level = currentLevel;
+    int fineWidth = levelWidths[level - 1];
+    int fineHeight = levelHeights[level - 1];
+    float[] fineDepth = levelDepths[level - 1];
+    float[] fineWeight = levelWeights[level - 1];
+    int coarseWidth = levelWidths[level];
+    float[] coarseDepth = levelDepths[level];
+    float[] coarseWeight = levelWeights[level];
+
+    int y0 = band * ROWS_PER_BAND;
+    int y1 = Math.min(y0 + ROWS_PER_BAND, levelHeights[level]);
+    for (int y = y0; y < y1; y++) {
+      int fy0 = 2 * y;
+      // Odd sizes repeat the last fine row or column.
+      int fy1 = Math.min(fy0 + 1, fineHeight - 1);
+      for (int x = 0; x < coarseWidth; x++) {
+        int fx0 = 2 * x;
+        int fx1 = Math.min(fx0 + 1, fineWidth - 1);
+        int a = fy0 * fineWidth + fx0;
+        int b = fy0 * fineWidth + fx1;
+        int c = fy1 * fineWidth + fx0;
+        int d = fy1 * fineWidth + fx1;
+        float weightSum = fineWeight[a] + fineWeight[b] + fineWeight[c] + fineWeight[d];
+        int i = y * coarseWidth + x;
+        if (weightSum > 0.0f) {
+          coarseDepth[i] =
+                  (fineDepth[a] * fineWeight[a]
+                          + fineDepth[b] * fineWeight[b]
+                          + fineDepth[c] * fineWeight[c]
+                          + fineDepth[d] * fineWeight[d])
+                          / weightSum;
+          coarseWeight[i] = Math.min(1.0f, weightSum);
+        } else {
+          coarseDepth[i] = 0.0f;
+          coarseWeight[i] = 0.0f;
+        }
+      }
+    }
+  }
+
+  /** Blends one band of rows of the current level with the upsampled coarser level. */
+  private void pullBand(int band) {
+    int level = currentLevel;
+    int fineWidth = levelWidths[level];
+    float[] fineDepth = levelDepths[level];
+    float[] fineWeight = levelWeights[level];
+    int coarseWidth = levelWidths[level + 1];
+    int coarseHeight = levelHeights[level + 1];
+    float[] coarseDepth = levelDepths[level + 1];
+    float[] coarseWeight = levelWeights[level + 1];
+
+    int y0 = band * ROWS_PER_BAND;
+    int y1 = Math.min(y0 + ROWS_PER_BAND, levelHeights[level]);
+    for (int y = y0; y < y1; y++) {
+      // Position of the fine pixel center on the coarse grid.
+      float cy = Math.max(0.0f, Math.min(coarseHeight - 1, (y + 0.5f) * 0.5f - 0.5f));
+      int cy0 = (int) cy;
+      int cy1 = Math.min(cy0 + 1, coarseHeight - 1);
+      float ty = cy - cy0;
+      for (int x = 0; x < fineWidth; x++) {
+        int i = y * fineWidth + x;
+        float weight = fineWeight[i];
+        if (weight >= 1.0f) {
+          continue;
+        }
+        float cx = Math.max(0.0f, Math.min(coarseWidth - 1, (x + 0.5f) * 0.5f - 0.5f));
+        int cx0 = (int) cx;
+        int cx1 = Math.min(cx0 + 1, coarseWidth - 1);
+        float tx = cx - cx0;
+
+        // Bilinear interpolation that ignores coarse pixels without any valid data.
+        float w00 = (1.0f - tx) * (1.0f - ty) * coarseWeight[cy0 * coarseWidth + cx0];
+        float w01 = tx * (1.0f - ty) * coarseWeight[cy0 * coarseWidth + cx1];
+        float w10 = (1.0f - tx) * ty * coarseWeight[cy1 * coarseWidth + cx0];
+        float w11 = tx * ty * coarseWeight[cy1 * coarseWidth + cx1];
+        float weightSum = w00 + w01 + w10 + w11;
+        if (weightSum <= 0.0f) {
+          continue;
+        }
+        float upsampled =
+                (w00 * coarseDepth[cy0 * coarseWidth + cx0]
+                        + w01 * coarseDepth[cy0 * coarseWidth + cx1]
+                        + w10 * coarseDepth[cy1 * coarseWidth + cx0]
+                        + w11 * coarseDepth[cy1 * coarseWidth + cx1])
+                        / weightSum;
+        fineDepth[i] = weight * fineDepth[i] + (1.0f - weight) * upsampled;
+        fineWeight[i] = 1.0f;
+      }
+    }
+  }
+
+  private void ensureLevels(int width, int height) {
+    if (width == this.width && height == this.height) {
+      return;
+    }
+    this.width = width;
+    this.height = height;
+
+    int count = 1;
+    for (int w = width, h = height; w > 1 || h > 1; w = (w + 1) / 2, h = (h + 1) / 2) {
+      count++;
+    }
+    levelCount = count;
+    levelWidths = new int[count];
+    levelHeights = new int[count];
+    levelDepths = new float[count][];
+    levelWeights = new float[count][];
+    for (int level = 0, w = width, h = height; level < count; level++) {
+      levelWidths[level] = w;
+      levelHeights[level] = h;
+      levelDepths[level] = new float[w * h];
+      levelWeights[level] = new float[w * h];
+      w = (w + 1) / 2;
+      h = (h + 1) / 2;
+    }
+  }
+}
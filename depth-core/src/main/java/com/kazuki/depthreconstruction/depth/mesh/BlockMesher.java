@@ -0,0 +1,10 @@
+package com.kazuki.depthreconstruction.depth.mesh;
+
+/**
+ * Extracts the surface of one volume block. Implementations must be stateless, since blocks are
+ * meshed in parallel, and must only depend on the samples, so meshes of neighbouring blocks meet.
+ */
+public interface BlockMesher {
+  /** Meshes the cells of a block, whose samples were gathered, into the cleared chunk. */
+  void mesh(BlockSamples samples, MeshChunk chunk);
+}
@@ -0,0 +1,123 @@
+package com.kazuki.depthreconstruction.depth.mesh;
+
+import com.kazuki.depthreconstruction.depth.fusion.TsdfVolume;
+
+/**
+ * The voxels a {@link BlockMesher} needs to mesh one block of a {@link TsdfVolume}: the block's
+ * own voxels plus the first two layers of its +x, +y and +z neighbours, {@link #SIDE} per axis. The
+ * cells between two blocks belong to the block on their low side; the second layer lets a mesher
+ * also see the first cells of the next blocks, which surface nets needs to close the seams.
+ *
+ * <p>Distances are in truncation units, between -1 behind the surface and +1 in front of it.
+ * Voxels that were never observed, including those of missing neighbours, are marked as such.
+ */
+public final class BlockSamples {
+  public static final int SIDE = TsdfVolume.BLOCK_SIZE + 2;
+  public static final int COUNT = SIDE * SIDE * SIDE;
+
+  private final float[] distances = new float[COUNT];
+  private final boolean[] isObserved = new boolean[COUNT];
+  // Neighbour blocks at +x, +y and +z, indexed by dx | dy << 1 | dz << 2.
+  private final int[] neighbours = new int[8];
+
+  private int blockX;
+  private int blockY;
+  private int blockZ;
+  private float voxelSize;
+
+  /** Returns the index of the sample at {@code (x, y, z)}, each in {@code [0, SIDE)}. */
+  public static int indexOf(int x, int y, int z) {
+    return (z * SIDE + y) * SIDE + x;
+  }
+
+  public float getDistance(int index) {
+    return distances[index];
+  }
+
+  public boolean isObserved(int index) {
+    return isObserved[index];
+  }
+
+  public int getBlockX() {
+    return blockX;
+  }
+
+  public int getBlockY() {
+    return blockY;
+  }
+
+  public int getBlockZ() {
+    return blockZ;
+  }
+
+  public float getVoxelSize() {
+    return voxelSize;
+  }
+
+  /**
+   * Returns the world position of a point {@code offset} voxels past a sample, along one axis.
+   * Sample centers are at voxel centers. The whole voxel coordinate is summed before the fraction
+   * is added, so neighbouring blocks compute bit-identical positions for the points they share.
+   */
+  public float getWorldPosition(int blockCoordinate, int sampleCoordinate, float offset) {
+    int voxel = blockCoordinate * TsdfVolume.BLOCK_SIZE + sampleCoordinate;
+    return (voxel + offset + 0.5f) * voxelSize;
+  }
+
+  /**
+   * Reads the samples of a block.
+   *
+   * @return Whether the observed samples have both signs, that is whether there may be a surface
+   *     to mesh at all.
+   */
+  public boolean gather(TsdfVolume volume, int block) {
+    long key = volume.getBlockKey(block);
+    blockX = TsdfVolume.unpackBlockX(key);
+    blockY = TsdfVolume.unpackBlockY(key);
+    blockZ = TsdfVolume.unpackBlockZ(key);
+    voxelSize = volume.getVoxelSize();
+    for (int i = 0; i < 8; i++) {
+      neighbours[i] =
+              i == 0
+                      ? block
+                      : volume.getBlock(blockX + (i & 1), blockY + (i >> 1 & 1), blockZ + (i >> 2));
+    }
+
+    short[] voxelDistances = volume.getDistances();
+    byte[] voxelWeights = volume.getWeights();
+    boolean hasInside = false;
+    boolean hasOutside = false;
+    int size = TsdfVolume.BLOCK_SIZE;
+    int sample = 0;
+    for (int z = 0; z < SIDE; z++) {
+      int dz = z / size;
+      int voxelZ = z - dz * size;
+      for (int y = 0; y < SIDE; y++) {
+        int dy = y / size;
+        int voxelY = y - dy * size;
+        for (int x = 0; x < SIDE; x++, sample++) {
+          int dx = x / size;
+          int neighbour = neighbours[dx | dy << 1 | dz << 2];
+          if (neighbour < 0) {
+            isObserved[sample] = false;
+            continue;
+          }
+          int voxel =
+                  neighbour * TsdfVolume.VOXELS_PER_BLOCK
+                          + (voxelZ * size + voxelY) * size
+                          + x
+                          - dx * size;
+          boolean observed = voxelWeights[voxel] != 0;
+          isObserved[sample] = observed;
+          if (observed) {
+            float distance = voxelDistances[voxel] / TsdfVolume.DISTANCE_SCALE;
+            distances[sample] = distance;
+            hasInside |= distance < 0.0f;
+            hasOutside |= distance >= 0.0f;
+          }
+        }
+      }
+    }
+    return hasInside && hasOutside;
+  }
+}
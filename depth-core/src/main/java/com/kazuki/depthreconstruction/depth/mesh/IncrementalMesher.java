@@ -0,0 +1,223 @@
+package com.kazuki.depthreconstruction.depth.mesh;
+
+import com.kazuki.depthreconstruction.depth.ParallelTiles;
+import com.kazuki.depthreconstruction.depth.fusion.TsdfVolume;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+/**
+ * Keeps a mesh of a {@link TsdfVolume} up to date by re-meshing only the blocks integration marked
+ * dirty, plus their -x, -y and -z neighbours whose cells reach into them. The blocks are meshed in
+ * parallel into one {@link MeshChunk} each.
+ *
+ * <p>{@link #update} runs wherever the volume is integrated; a renderer on another thread takes the
+ * chunks that changed since its last call with {@link #drainChangedChunks}. Chunks not drained yet
+ * are replaced by newer ones, so a slow renderer only uploads the latest mesh of every block.
+ */
+public final class IncrementalMesher {
+  /** Receives a changed chunk. An empty chunk means the block no longer has a surface. */
+  public interface ChunkConsumer {
+    void accept(int block, MeshChunk chunk);
+  }
+
+  private final ForkJoinPool pool;
+  private final IntConsumer meshBlock = this::meshBlock;
+  private volatile BlockMesher mesher;
+
+  // Update state, only used by the updating thread.
+  private TsdfVolume volume;
+  // The mesher of the current update, so a switch mid-update cannot mix algorithms.
+  private BlockMesher lastMesher;
+  private int[] blocksToMesh = new int[256];
+  private int blocksToMeshCount = 0;
+  private int[] blockVisitUpdates = new int[0];
+  private int updateIndex = 0;
+  private MeshChunk[] scratchChunks = new MeshChunk[0];
+  private BlockSamples[] scratchSamples = new BlockSamples[0];
+  private volatile boolean isRemeshAllRequested = false;
+
+  // Chunks handed over to the renderer, guarded by this.
+  private MeshChunk[] publishedChunks = new MeshChunk[0];
+  private boolean[] isPending = new boolean[0];
+  private int[] pendingBlocks = new int[0];
+  private int pendingBlockCount = 0;
+
+  private volatile long lastUpdateNanos = 0;
+  private volatile int lastMeshedBlockCount = 0;
+  private int[] blockTriangleCounts = new int[0];
+  private int[] blockVertexCounts = new int[0];
+  private volatile int triangleCount = 0;
+  private volatile int vertexCount = 0;
+
+  public IncrementalMesher(ForkJoinPool pool, BlockMesher mesher) {
+    this.pool = pool;
+    this.mesher = mesher;
+  }
+
+  /**
+   * Switches the algorithm blocks are meshed with. May be called from any thread; every block is
+   * meshed again on the next update.
+   */
+  public void setMesher(BlockMesher mesher) {
+    this.mesher = mesher;
+  }
+
+  public BlockMesher getMesher() {
+    return mesher;
+  }
+
+  public long getLastUpdateNanos() {
+    return lastUpdateNanos;
+  }
+
+  /** Returns the number of blocks meshed by the last update, dirty ones and their neighbours. */
+  public int getLastMeshedBlockCount() {
+    return lastMeshedBlockCount;
+  }
+
+  /** Returns the number of triangles in the mesh of the whole volume. */
+  public int getTriangleCount() {
+    return triangleCount;
+  }
+
+  /** Returns the number of vertices in the chunks of the whole volume. */
+  public int getVertexCount() {
+    return vertexCount;
+  }
+
+  /** Meshes every block again on the next update, for instance after switching algorithms. */
+  public void requestRemeshAll() {
+    isRemeshAllRequested = true;
+  }
+
+  /** Meshes the dirty blocks of the volume, clears them and publishes the new chunks. */
+  public void update(TsdfVolume volume) {
+    long startNanos = System.nanoTime();
+    this.volume = volume;
+    collectBlocksToMesh(volume);
+    volume.clearDirtyBlocks();
+    ensureScratchCapacity(blocksToMeshCount);
+    ParallelTiles.forEach(pool, blocksToMeshCount, meshBlock);
+    publish(volume.getBlockCount());
+
+    lastMeshedBlockCount = blocksToMeshCount;
+    lastUpdateNanos = System.nanoTime() - startNanos;
+  }
+
+  /** Hands every chunk that changed since the last call to the consumer, on the calling thread. */
+  public synchronized void drainChangedChunks(ChunkConsumer consumer) {
+    for (int i = 0; i < pendingBlockCount; i++) {
+      int block = pendingBlocks[i];
+      isPending[block] = false;
+      consumer.accept(block, publishedChunks[block]);
+    }
+    pendingBlockCount = 0;
+  }
+
+  private void collectBlocksToMesh(TsdfVolume volume) {
+    updateIndex++;
+    if (blockVisitUpdates.length < volume.getBlockCount()) {
+      blockVisitUpdates =
+              Arrays.copyOf(blockVisitUpdates, Math.max(256, volume.getMaxBlockCount()));
+    }
+    blocksToMeshCount = 0;
+    if (mesher != lastMesher || isRemeshAllRequested) {
+      lastMesher = mesher;
+      isRemeshAllRequested = false;
+      for (int block = 0; block < volume.getBlockCount(); block++) {
+        addBlockToMesh(block);
+      }
+      return;
+    }
+    for (int i = 0; i < volume.getDirtyBlockCount(); i++) {
+      int block = volume.getDirtyBlock(i);
+      long key = volume.getBlockKey(block);
+      int blockX = TsdfVolume.unpackBlockX(key);
+      int blockY = TsdfVolume.unpackBlockY(key);
+      int blockZ = TsdfVolume.unpackBlockZ(key);
+      for (int neighbour = 0; neighbour < 8; neighbour++) {
+        int neighbourBlock =
+                neighbour == 0
+                        ? block
+                        : volume.getBlock(
+                                blockX - (neighbour & 1),
+                                blockY - (neighbour >> 1 & 1),
+                                blockZ - (neighbour >> 2));
+        if (neighbourBlock >= 0) {
+          addBlockToMesh(neighbourBlock);
+        }
+      }
+    }
+  }
+
+  private void addBlockToMesh(int block) {
+    if (blockVisitUpdates[block] == updateIndex) {
+      return;
+    }
+    blockVisitUpdates[block] = updateIndex;
+    if (blocksToMeshCount == blocksToMesh.length) {
+      blocksToMesh = Arrays.copyOf(blocksToMesh, blocksToMesh.length * 2);
+    }
+    blocksToMesh[blocksToMeshCount++] = block;
+  }
+
+  private void ensureScratchCapacity(int count) {
+    if (scratchChunks.length >= count) {
+      return;
+    }
+    int capacity = Math.max(count, scratchChunks.length * 2);
+    int oldLength = scratchChunks.length;
+    scratchChunks = Arrays.copyOf(scratchChunks, capacity);
+    scratchSamples = Arrays.copyOf(scratchSamples, capacity);
+    for (int i = oldLength; i < capacity; i++) {
+      scratchChunks[i] = new MeshChunk();
+      scratchSamples[i] = new BlockSamples();
+    }
+  }
+
+  private void meshBlock(int i) {
+    MeshChunk chunk = scratchChunks[i];
+    chunk.clear();
+    BlockSamples samples = scratchSamples[i];
+    if (samples.gather(volume, blocksToMesh[i])) {
+      lastMesher.mesh(samples, chunk);
+    }
+  }
+
+  /** Swaps the new chunks in for the published ones, the old ones becoming scratch space. */
+  private synchronized void publish(int blockCount) {
+    if (publishedChunks.length < blockCount) {
+      int capacity = Math.max(blockCount, publishedChunks.length * 2);
+      publishedChunks = Arrays.copyOf(publishedChunks, capacity);
+      isPending = Arrays.copyOf(isPending, capacity);
+      pendingBlocks = Arrays.copyOf(pendingBlocks, capacity);
+      blockTriangleCounts = Arrays.copyOf(blockTriangleCounts, capacity);
+      blockVertexCounts = Arrays.copyOf(blockVertexCounts, capacity);
+    }
+    int triangles = triangleCount;
+    int vertices = vertexCount;
+    for (int i = 0; i < blocksToMeshCount; i++) {
+      int block = blocksToMesh[i];
+      MeshChunk chunk = scratchChunks[i];
+      MeshChunk previous = publishedChunks[block];
+      // A block that had no surface and still has none needs no upload.
+      if (chunk.isEmpty() && (previous == null || previous.isEmpty()) && !isPending[block]) {
+        continue;
+      }
+      publishedChunks[block] = chunk;
+      scratchChunks[i] = previous != null ? previous : new MeshChunk();
+      if (!isPending[block]) {
+        isPending[block] = true;
+        pendingBlocks[pendingBlockCount++] = block;
+      }
+      triangles += chunk.getTriangleCount() - blockTriangleCounts[block];
+      blockTriangleCounts[block] = chunk.getTriangleCount();
+      vertices += chunk.getVertexCount() - blockVertexCounts[block];
+      blockVertexCounts[block] = chunk.getVertexCount();
+    }
+    triangleCount = triangles;
+    vertexCount = vertices;
+  }
+}
@@ -0,0 +1,111 @@
+package com.kazuki.depthreconstruction.depth.mesh;
+
+import com.kazuki.depthreconstruction.depth.LongIntHashMap;
+import com.kazuki.depthreconstruction.depth.fusion.TsdfVolume;
+
+/**
+ * Meshes a block with marching cubes, over the cells between its voxel centers. Cells with an
+ * unobserved corner are skipped. Each vertex lies on a voxel edge where the distance crosses zero,
+ * keyed by the edge's global voxel coordinates and axis, so the cells sharing an edge share the
+ * vertex.
+ */
+public final class MarchingCubesMesher implements BlockMesher {
+  // Global voxel coordinates are packed into 20 bits each, next to the 2 bit axis.
+  private static final int COORDINATE_BITS = 20;
+  private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+  // Sample index offset of each cell corner.
+  private static final int[] CORNER_OFFSETS = new int[8];
+
+  static {
+    for (int corner = 0; corner < 8; corner++) {
+      CORNER_OFFSETS[corner] =
+              BlockSamples.indexOf(corner & 1, corner >> 1 & 1, corner >> 2 & 1);
+    }
+  }
+
+  @Override
+  public void mesh(BlockSamples samples, MeshChunk chunk) {
+    int[] edgeVertices = new int[12];
+    int size = TsdfVolume.BLOCK_SIZE;
+    for (int z = 0; z < size; z++) {
+      for (int y = 0; y < size; y++) {
+        for (int x = 0; x < size; x++) {
+          int cell = BlockSamples.indexOf(x, y, z);
+          int cellCase = 0;
+          boolean isObserved = true;
+          for (int corner = 0; corner < 8 && isObserved; corner++) {
+            int sample = cell + CORNER_OFFSETS[corner];
+            isObserved = samples.isObserved(sample);
+            if (samples.getDistance(sample) < 0.0f) {
+              cellCase |= 1 << corner;
+            }
+          }
+          if (!isObserved || cellCase == 0 || cellCase == 0xFF) {
+            continue;
+          }
+          int[] triangleEdges = MarchingCubesTables.TRIANGLE_EDGES[cellCase];
+          for (int i = 0; i < 12; i++) {
+            edgeVertices[i] = -1;
+          }
+          for (int i = 0; i < triangleEdges.length; i += 3) {
+            int a = getEdgeVertex(samples, chunk, x, y, z, triangleEdges[i], edgeVertices);
+            int b = getEdgeVertex(samples, chunk, x, y, z, triangleEdges[i + 1], edgeVertices);
+            int c = getEdgeVertex(samples, chunk, x, y, z, triangleEdges[i + 2], edgeVertices);
+            chunk.addTriangle(a, b, c);
+          }
+        }
+      }
+    }
+    chunk.computeNormals();
+  }
+
+  /** Returns the vertex on an edge of the cell, adding it if no cell added it before. */
+  private static int getEdgeVertex(
+          BlockSamples samples,
+          MeshChunk chunk,
+          int cellX,
+          int cellY,
+          int cellZ,
+          int edge,
+          int[] edgeVertices) {
+    if (edgeVertices[edge] >= 0) {
+      return edgeVertices[edge];
+    }
+    int start = MarchingCubesTables.EDGE_START_CORNERS[edge];
+    int axis = MarchingCubesTables.EDGE_AXES[edge];
+    int x = cellX + (start & 1);
+    int y = cellY + (start >> 1 & 1);
+    int z = cellZ + (start >> 2 & 1);
+
+    long key =
+            packEdgeKey(
+                    samples.getBlockX() * TsdfVolume.BLOCK_SIZE + x,
+                    samples.getBlockY() * TsdfVolume.BLOCK_SIZE + y,
+                    samples.getBlockZ() * TsdfVolume.BLOCK_SIZE + z,
+                    axis);
+    LongIntHashMap vertexIndices = chunk.getVertexIndices();
+    int vertex = vertexIndices.get(key);
+    if (vertex < 0) {
+      int startSample = BlockSamples.indexOf(x, y, z);
+      int endSample = startSample + CORNER_OFFSETS[1 << axis];
+      float startDistance = samples.getDistance(startSample);
+      float t = startDistance / (startDistance - samples.getDistance(endSample));
+      vertex =
+              chunk.addVertex(
+                      samples.getWorldPosition(samples.getBlockX(), x, axis == 0 ? t : 0.0f),
+                      samples.getWorldPosition(samples.getBlockY(), y, axis == 1 ? t : 0.0f),
+                      samples.getWorldPosition(samples.getBlockZ(), z, axis == 2 ? t : 0.0f));
+      vertexIndices.put(key, vertex);
+    }
+    edgeVertices[edge] = vertex;
+    return vertex;
+  }
+
+  private static long packEdgeKey(int voxelX, int voxelY, int voxelZ, int axis) {
+    return ((voxelX & COORDINATE_MASK) << (2 * COORDINATE_BITS + 2))
+            | ((voxelY & COORDINATE_MASK) << (COORDINATE_BITS + 2))
+            | ((voxelZ & COORDINATE_MASK) << 2)
+            | axis;
+  }
+}
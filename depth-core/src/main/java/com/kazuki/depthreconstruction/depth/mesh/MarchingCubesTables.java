@@ -0,0 +1,262 @@
+package com.kazuki.depthreconstruction.depth.mesh;
+
+/**
+ * The marching cubes case tables, generated at class initialization rather than transcribed.
+ *
+ * <p>Corner {@code c} of a cell lies at {@code (c & 1, c >> 1 & 1, c >> 2 & 1)}, and a case has bit
+ * {@code c} set when that corner is inside, behind the surface. For every case, each cell face
+ * contributes the segments between its crossed edges; a face with four crossed edges, the
+ * ambiguous one, always cuts off its inside corners. Since that choice only depends on the face's
+ * own corners, the two cells sharing a face agree on it, which keeps the mesh watertight. The
+ * segments are chained into closed loops, each oriented so its front faces the outside, and split
+ * into triangles without diagonals along a face.
+ */
+final class MarchingCubesTables {
+  /** The lower and upper corner of every edge. */
+  static final int[] EDGE_START_CORNERS = new int[12];
+  static final int[] EDGE_END_CORNERS = new int[12];
+  /** The axis, 0 to 2 for x to z, every edge runs along. */
+  static final int[] EDGE_AXES = new int[12];
+  /** For every case, the crossed edges of its triangles, three per triangle. */
+  static final int[][] TRIANGLE_EDGES = new int[256][];
+
+  private MarchingCubesTables() {}
+
+  static {
+    int edge = 0;
+    for (int axis = 0; axis < 3; axis++) {
+      for (int corner = 0; corner < 8; corner++) {
+        if ((corner & (1 << axis)) == 0) {
+          EDGE_START_CORNERS[edge] = corner;
+          EDGE_END_CORNERS[edge] = corner | (1 << axis);
+          EDGE_AXES[edge] = axis;
+          edge++;
+        }
+      }
+    }
+    for (int cellCase = 0; cellCase < 256; cellCase++) {
+      TRIANGLE_EDGES[cellCase] = triangulate(cellCase);
+    }
+  }
+
+  private static int[] triangulate(int cellCase) {
+    // The two segment ends at every crossed edge, -1 where unused.
+    int[][] links = new int[12][2];
+    for (int[] link : links) {
+      link[0] = -1;
+      link[1] = -1;
+    }
+    for (int axis = 0; axis < 3; axis++) {
+      for (int side = 0; side < 2; side++) {
+        addFaceSegments(cellCase, axis, side, links);
+      }
+    }
+
+    int[] triangles = new int[36];
+    int triangleIndexCount = 0;
+    boolean[] isVisited = new boolean[12];
+    int[] loop = new int[12];
+    for (int start = 0; start < 12; start++) {
+      if (links[start][0] < 0 || isVisited[start]) {
+        continue;
+      }
+      int loopLength = 0;
+      int previous = -1;
+      int current = start;
+      do {
+        isVisited[current] = true;
+        loop[loopLength++] = current;
+        int next = links[current][0] != previous ? links[current][0] : links[current][1];
+        previous = current;
+        current = next;
+      } while (current != start);
+
+      int loopStart = triangleIndexCount;
+      triangleIndexCount = addLoopTriangles(loop, loopLength, triangles, triangleIndexCount);
+      if (triangleIndexCount < 0) {
+        throw new IllegalStateException("No triangulation of case " + cellCase);
+      }
+      if (!facesOutside(cellCase, loop, loopLength)) {
+        for (int i = loopStart; i < triangleIndexCount; i += 3) {
+          int swap = triangles[i + 1];
+          triangles[i + 1] = triangles[i + 2];
+          triangles[i + 2] = swap;
+        }
+      }
+    }
+    int[] result = new int[triangleIndexCount];
+    System.arraycopy(triangles, 0, result, 0, triangleIndexCount);
+    return result;
+  }
+
+  /**
+   * Splits a loop into triangles, keeping its winding, such that no diagonal runs along a cell
+   * face: a triangle lying in a face could be emitted by the neighbouring cell too. Searches all
+   * triangulations, cutting off a triangle on the first side and recursing on what remains.
+   *
+   * @return The new number of triangle indices, or -1 if every triangulation has such a diagonal.
+   */
+  private static int addLoopTriangles(int[] polygon, int length, int[] triangles, int count) {
+    if (length < 3) {
+      return count;
+    }
+    for (int k = 2; k < length; k++) {
+      boolean isDiagonalOnFace =
+              (k != 2 && shareFace(polygon[1], polygon[k]))
+                      || (k != length - 1 && shareFace(polygon[k], polygon[0]));
+      if (isDiagonalOnFace) {
+        continue;
+      }
+      triangles[count] = polygon[0];
+      triangles[count + 1] = polygon[1];
+      triangles[count + 2] = polygon[k];
+      int[] first = new int[k];
+      System.arraycopy(polygon, 1, first, 0, k);
+      int[] second = new int[length - k + 1];
+      System.arraycopy(polygon, k, second, 0, length - k);
+      second[length - k] = polygon[0];
+      int result = addLoopTriangles(first, first.length, triangles, count + 3);
+      if (result >= 0) {
+        result = addLoopTriangles(second, second.length, triangles, result);
+      }
+      if (result >= 0) {
+        return result;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean shareFace(int a, int b) {
+    for (int axis = 0; axis < 3; axis++) {
+      for (int side = 0; side < 2; side++) {
+        if (isOnFace(a, axis, side) && isOnFace(b, axis, side)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Adds the segments of the face of the cell at {@code side} along {@code axis}. */
+  private static void addFaceSegments(int cellCase, int axis, int side, int[][] links) {
+    int uBit = 1 << ((axis + 1) % 3);
+    int vBit = 1 << ((axis + 2) % 3);
+    int base = side << axis;
+    // The face corners in cyclic order; face edge k runs from corner k to corner k + 1.
+    int[] corners = {base, base | uBit, base | uBit | vBit, base | vBit};
+    int[] crossedEdges = new int[4];
+    int crossedCount = 0;
+    for (int k = 0; k < 4; k++) {
+      int a = corners[k];
+      int b = corners[(k + 1) % 4];
+      crossedEdges[k] = isInside(cellCase, a) != isInside(cellCase, b) ? edgeBetween(a, b) : -1;
+      if (crossedEdges[k] >= 0) {
+        crossedCount++;
+      }
+    }
+    if (crossedCount == 2) {
+      int first = -1;
+      for (int k = 0; k < 4; k++) {
+        if (crossedEdges[k] >= 0) {
+          if (first < 0) {
+            first = crossedEdges[k];
+          } else {
+            link(links, first, crossedEdges[k]);
+          }
+        }
+      }
+    } else if (crossedCount == 4) {
+      // Cut off each inside corner k by joining the edges on either side of it.
+      for (int k = 0; k < 4; k++) {
+        if (isInside(cellCase, corners[k])) {
+          link(links, crossedEdges[(k + 3) % 4], crossedEdges[k]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether the loop, as ordered, winds counter-clockwise when seen from the outside. Its
+   * first segment lies on a cell face; seen from outside the cell, the outside corners of that face
+   * must lie to the right of the segment. Using the face rather than the whole loop keeps the
+   * neighbouring cell, which walks the same segment, consistent.
+   */
+  private static boolean facesOutside(int cellCase, int[] loop, int loopLength) {
+    int first = loop[0];
+    int second = loop[1];
+    for (int axis = 0; axis < 3; axis++) {
+      for (int side = 0; side < 2; side++) {
+        if (!isOnFace(first, axis, side) || !isOnFace(second, axis, side)) {
+          continue;
+        }
+        float[] start = edgeMidpoint(first);
+        float[] end = edgeMidpoint(second);
+        // The corner the segment cuts off if the edges meet, otherwise any corner of the face.
+        int corner = sharedCorner(first, second);
+        if (corner < 0) {
+          corner = EDGE_START_CORNERS[first];
+        }
+        float[] normal = new float[3];
+        normal[axis] = side == 0 ? -1.0f : 1.0f;
+        float[] direction = new float[3];
+        float[] toCorner = new float[3];
+        for (int i = 0; i < 3; i++) {
+          direction[i] = end[i] - start[i];
+          toCorner[i] = (corner >> i & 1) - start[i];
+        }
+        // (normal x direction) . toCorner
+        float sideOfCorner =
+                (normal[1] * direction[2] - normal[2] * direction[1]) * toCorner[0]
+                        + (normal[2] * direction[0] - normal[0] * direction[2]) * toCorner[1]
+                        + (normal[0] * direction[1] - normal[1] * direction[0]) * toCorner[2];
+        return (sideOfCorner > 0.0f) != isInside(cellCase, corner);
+      }
+    }
+    throw new IllegalStateException("Loop segment is not on a face: " + first + ", " + second);
+  }
+
+  private static boolean isOnFace(int edge, int axis, int side) {
+    return EDGE_AXES[edge] != axis && (EDGE_START_CORNERS[edge] >> axis & 1) == side;
+  }
+
+  private static float[] edgeMidpoint(int edge) {
+    int start = EDGE_START_CORNERS[edge];
+    int end = EDGE_END_CORNERS[edge];
+    float[] midpoint = new float[3];
+    for (int axis = 0; axis < 3; axis++) {
+      midpoint[axis] = ((start >> axis & 1) + (end >> axis & 1)) * 0.5f;
+    }
+    return midpoint;
+  }
+
+  private static int sharedCorner(int a, int b) {
+    if (EDGE_START_CORNERS[a] == EDGE_START_CORNERS[b]
+            || EDGE_START_CORNERS[a] == EDGE_END_CORNERS[b]) {
+      return EDGE_START_CORNERS[a];
+    } else if (EDGE_END_CORNERS[a] == EDGE_START_CORNERS[b]
+            || EDGE_END_CORNERS[a] == EDGE_END_CORNERS[b]) {
+      return EDGE_END_CORNERS[a];
+    }
+    return -1;
+  }
+
+  private static void link(int[][] links, int a, int b) {
+    links[a][links[a][0] < 0 ? 0 : 1] = b;
+    links[b][links[b][0] < 0 ? 0 : 1] = a;
+  }
+
+  private static boolean isInside(int cellCase, int corner) {
+    return (cellCase & (1 << corner)) != 0;
+  }
+
+  private static int edgeBetween(int a, int b) {
+    int low = Math.min(a, b);
+    int high = Math.max(a, b);
+    for (int edge = 0; edge < 12; edge++) {
+      if (EDGE_START_CORNERS[edge] == low && EDGE_END_CORNERS[edge] == high) {
+        return edge;
+      }
+    }
+    throw new IllegalArgumentException("Corners do not share an edge: " + a + ", " + b);
+  }
+}
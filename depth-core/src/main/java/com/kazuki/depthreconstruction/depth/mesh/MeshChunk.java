@@ -0,0 +1,126 @@
+package com.kazuki.depthreconstruction.depth.mesh;
+
+import com.kazuki.depthreconstruction.depth.LongIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * The indexed triangle mesh of one volume block, in world coordinates. Vertices shared by several
+ * triangles are stored once: meshers look them up by a key of the voxel edge or cell they lie on
+ * through {@link #getVertexIndices()}. The arrays grow as needed and are reused across meshings.
+ */
+public final class MeshChunk {
+  private static final int INITIAL_VERTEX_CAPACITY = 64;
+
+  private float[] positions = new float[INITIAL_VERTEX_CAPACITY * 3];
+  private float[] normals = new float[INITIAL_VERTEX_CAPACITY * 3];
+  private short[] indices = new short[INITIAL_VERTEX_CAPACITY * 6];
+  private int vertexCount = 0;
+  private int indexCount = 0;
+  private final LongIntHashMap vertexIndices = new LongIntHashMap(INITIAL_VERTEX_CAPACITY);
+
+  /** Returns the x, y and z of every vertex. */
+  public float[] getPositions() {
+    return positions;
+  }
+
+  /** Returns the unit normal of every vertex, x, y and z. */
+  public float[] getNormals() {
+    return normals;
+  }
+
+  public short[] getIndices() {
+    return indices;
+  }
+
+  public int getVertexCount() {
+    return vertexCount;
+  }
+
+  public int getIndexCount() {
+    return indexCount;
+  }
+
+  public int getTriangleCount() {
+    return indexCount / 3;
+  }
+
+  public boolean isEmpty() {
+    return indexCount == 0;
+  }
+
+  /** Returns the map from a mesher's vertex keys to vertex indices, emptied by {@link #clear()}. */
+  public LongIntHashMap getVertexIndices() {
+    return vertexIndices;
+  }
+
+  public void clear() {
+    vertexCount = 0;
+    indexCount = 0;
+    vertexIndices.clear();
+  }
+
+  /** Adds a vertex and returns its index. */
+  public int addVertex(float x, float y, float z) {
+    if (vertexCount * 3 == positions.length) {
+      positions = Arrays.copyOf(positions, positions.length * 2);
+      normals = Arrays.copyOf(normals, normals.length * 2);
+    }
+    int offset = vertexCount * 3;
+    positions[offset] = x;
+    positions[offset + 1] = y;
+    positions[offset + 2] = z;
+    return vertexCount++;
+  }
+
+  /** Adds a triangle, counter-clockwise when seen from the front. */
+  public void addTriangle(int a, int b, int c) {
+    if (indexCount + 3 > indices.length) {
+      indices = Arrays.copyOf(indices, indices.length * 2);
+    }
+    indices[indexCount++] = (short) a;
+    indices[indexCount++] = (short) b;
+    indices[indexCount++] = (short) c;
+  }
+
+  /** Sets every vertex normal to the area weighted average of its triangles' normals. */
+  public void computeNormals() {
+    Arrays.fill(normals, 0, vertexCount * 3, 0.0f);
+    for (int i = 0; i < indexCount; i += 3) {
+      int a = (indices[i] & 0xFFFF) * 3;
+      int b = (indices[i + 1] & 0xFFFF) * 3;
+      int c = (indices[i + 2] & 0xFFFF) * 3;
+      float abX = positions[b] - positions[a];
+      float abY = positions[b + 1] - positions[a + 1];
+      float abZ = positions[b + 2] - positions[a + 2];
+      float acX = positions[c] - positions[a];
+      float acY = positions[c + 1] - positions[a + 1];
+      float acZ = positions[c + 2] - positions[a + 2];
+      // The cross product is twice the area along the normal.
+      float nX = abY * acZ - abZ * acY;
+      float nY = abZ * acX - abX * acZ;
+      float nZ = abX * acY - abY * acX;
+      addToNormal(a, nX, nY, nZ);
+      addToNormal(b, nX, nY, nZ);
+      addToNormal(c, nX, nY, nZ);
+    }
+    for (int i = 0; i < vertexCount * 3; i += 3) {
+      float length =
+              (float) Math.sqrt(
+                      normals[i] * normals[i]
+                              + normals[i + 1] * normals[i + 1]
+                              + normals[i + 2] * normals[i + 2]);
+      if (length > 0.0f) {
+        normals[i] /= length;
+        normals[i + 1] /= length;
+        normals[i + 2] /= length;
+      }
+    }
+  }
+
+  private void addToNormal(int offset, float x, float y, float z) {
+    normals[offset] += x;
+    normals[offset + 1] += y;
+    normals[offset + 2] += z;
+  }
+}
@@ -0,0 +1,527 @@
+package com.kazuki.depthreconstruction.depth.mesh;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+
+import java.util.Arrays;
+
+/**
+ * Tessellates a depth mesh adaptively: a quadtree per tile subdivides only where the depth is not
+ * linear within a tolerance or where a cell straddles a hole boundary, so flat regions get few
+ * vertices and depth edges get many.
+ *
+ * <p>The mesh covers the unit square (s, t), with t pointing up. It is sampled on a lattice of
+ * {@code tilesX * 2^levels} by {@code tilesY * 2^levels} cells, mapped onto the depth image by an
+ * affine texture transform. Every tile owns a fixed slot of {@code (2^levels + 1)^2} vertices and
+ * {@link #getIndicesPerTile()} unsigned short indices, so a renderer can keep the vertices static
+ * and upload only the index slots of the tiles listed by {@link #getChangedTile(int)}. Unused
+ * indices of a slot form degenerate triangles.
+ *
+ * <p>A tile is subdivided again only when its lattice depth moved by more than half the tolerance
+ * since it was last built; its neighbours are only re-triangulated, so T-junctions along shared
+ * edges are always closed with a fan. If the mesh exceeds the vertex budget, the tolerance is
+ * raised until it fits. It is lowered again one step at a time, each after the mesh stayed far
+ * under the budget for a number of frames, since every change of the tolerance rebuilds every tile.
+ */
+public final class QuadtreeTessellator {
+  private static final float TOLERANCE_STEP = 1.5f;
+  private static final int MAX_BUDGET_ITERATIONS = 8;
+  // Consecutive updates far under the vertex budget before the tolerance is lowered a step.
+  static final int RELAX_DELAY_FRAMES = 30;
+
+  private final int tilesX;
+  private final int tilesY;
+  private final int cellsPerTile;
+  private final int side;
+  private final int latticeWidth;
+  private final int latticeHeight;
+  private final int verticesPerTile;
+  private final int indicesPerTile;
+  private final float baseTolerance;
+  private final int vertexBudget;
+
+  // Depth sampled at every lattice point, and every tile's copy of it from its last subdivision.
+  private final short[] lattice;
+  private final short[] builtLattice;
+  // 1 where a lattice point of a tile is the corner of one of its leaves.
+  private final byte[] corners;
+  // Leaves of every tile, packed by packLeaf.
+  private final int[] leaves;
+  private final int[] leafCounts;
+  private final short[] indices;
+  private final int[] triangleCounts;
+  private final int[] vertexCounts;
+  private final boolean[] isSubdivisionDirty;
+  private final boolean[] isTriangulationDirty;
+  private final int[] changedTiles;
+  private int changedTileCount = 0;
+
+  private final int[] stack;
+  private final int[] ring;
+  private final byte[] referenced;
+
+  // Maps (s, t) to normalized texture coordinates: origin + s * sAxis + t * tAxis.
+  private float originU = 0.0f;
+  private float originV = 1.0f;
+  private float sAxisU = 1.0f;
+  private float sAxisV = 0.0f;
+  private float tAxisU = 0.0f;
+  private float tAxisV = -1.0f;
+  private boolean isTransformChanged = true;
+
+  private float toleranceScale = 1.0f;
+  private int framesFarUnderBudget = 0;
+  private int vertexCount = 0;
+  private int triangleCount = 0;
+  private int lastSubdividedTileCount = 0;
+  private long lastUpdateNanos = 0;
+
+  /**
+   * @param levels Number of times a tile can be split. A tile has at most 2^levels x 2^levels
+   *     cells.
+   * @param toleranceMillimeters Largest depth deviation from linear a leaf may have.
+   * @param vertexBudget Largest number of vertices the triangles may reference.
+   */
+  public QuadtreeTessellator(
+          int tilesX, int tilesY, int levels, float toleranceMillimeters, int vertexBudget) {
+    if (tilesX < 1 || tilesY < 1 || levels < 0 || levels > 6) {
+      throw new IllegalArgumentException(
+              "Unsupported tessellation: "
+                      + tilesX + "x" + tilesY + " tiles, " + levels + " levels");
+    }
+    this.tilesX = tilesX;
+    this.tilesY = tilesY;
+    this.cellsPerTile = 1 << levels;
+    this.side = cellsPerTile + 1;
+    this.latticeWidth = tilesX * cellsPerTile + 1;
+    this.latticeHeight = tilesY * cellsPerTile + 1;
+    this.verticesPerTile = side * side;
+    // A leaf of size s has at most 4s boundary points and fans into as many triangles, which is
+    // at most two per cell it covers.
+    this.indicesPerTile = 2 * cellsPerTile * cellsPerTile * 3;
+    this.baseTolerance = toleranceMillimeters;
+    this.vertexBudget = vertexBudget;
+    int tileCount = tilesX * tilesY;
+    if ((long) tileCount * verticesPerTile > 1 << 16) {
+      throw new IllegalArgumentException("Vertices do not fit unsigned short indices.");
+    }
+
+    lattice = new short[latticeWidth * latticeHeight];
+    builtLattice = new short[tileCount * verticesPerTile];
+    corners = new byte[tileCount * verticesPerTile];
+    leaves = new int[tileCount * cellsPerTile * cellsPerTile];
+    leafCounts = new int[tileCount];
+    indices = new short[tileCount * indicesPerTile];
+    triangleCounts = new int[tileCount];
+    vertexCounts = new int[tileCount];
+    isSubdivisionDirty = new boolean[tileCount];
+    isTriangulationDirty = new boolean[tileCount];
+    changedTiles = new int[tileCount];
+    stack = new int[4 * levels + 1];
+    ring = new int[4 * cellsPerTile];
+    referenced = new byte[verticesPerTile];
+  }
+
+  /**
+   * Sets where the unit square lies on the depth image, as the normalized texture coordinates of
+   * its (s, t) = (0, 0), (1, 0) and (0, 1) corners. The whole mesh is rebuilt on the next update.
+   */
+  public void setTextureTransform(
+          float originU,
+          float originV,
+          float sCornerU,
+          float sCornerV,
+          float tCornerU,
+          float tCornerV) {
+    this.originU = originU;
+    this.originV = originV;
+    this.sAxisU = sCornerU - originU;
+    this.sAxisV = sCornerV - originV;
+    this.tAxisU = tCornerU - originU;
+    this.tAxisV = tCornerV - originV;
+    isTransformChanged = true;
+  }
+
+  public int getTileCount() {
+    return tilesX * tilesY;
+  }
+
+  public int getVerticesPerTile() {
+    return verticesPerTile;
+  }
+
+  public int getIndicesPerTile() {
+    return indicesPerTile;
+  }
+
+  /** Returns the number of vertex slots, referenced or not. */
+  public int getVertexCapacity() {
+    return getTileCount() * verticesPerTile;
+  }
+
+  /** Returns the lattice column of a vertex slot. */
+  public int getVertexLatticeX(int vertex) {
+    return (vertex / verticesPerTile % tilesX) * cellsPerTile + vertex % verticesPerTile % side;
+  }
+
+  /** Returns the lattice row of a vertex slot. */
+  public int getVertexLatticeY(int vertex) {
+    return (vertex / verticesPerTile / tilesX) * cellsPerTile + vertex % verticesPerTile / side;
+  }
+
+  /** Returns the s coordinate of a vertex slot. */
+  public float getVertexS(int vertex) {
+    return (float) getVertexLatticeX(vertex) / (latticeWidth - 1);
+  }
+
+  /** Returns the t coordinate of a vertex slot. */
+  public float getVertexT(int vertex) {
+    return (float) getVertexLatticeY(vertex) / (latticeHeight - 1);
+  }
+
+  public int getLatticeWidth() {
+    return latticeWidth;
+  }
+
+  public int getLatticeHeight() {
+    return latticeHeight;
+  }
+
+  /** Returns the depth sampled at a lattice point in the last update, 0 where it is invalid. */
+  public int getLatticeMillimeters(int x, int y) {
+    return lattice[y * latticeWidth + x] & 0xFFFF;
+  }
+
+  /**
+   * Returns the index slots of all tiles, {@link #getIndicesPerTile()} each. Valid until the next
+   * update.
+   */
+  public short[] getIndices() {
+    return indices;
+  }
+
+  /** Returns the number of tiles whose index slot changed in the last update. */
+  public int getChangedTileCount() {
+    return changedTileCount;
+  }
+
+  public int getChangedTile(int i) {
+    return changedTiles[i];
+  }
+
+  /**
+   * Returns the number of vertex slots the triangles reference. Points on a tile border count once
+   * for every tile that uses them.
+   */
+  public int getVertexCount() {
+    return vertexCount;
+  }
+
+  /** Returns the number of non-degenerate triangles. */
+  public int getTriangleCount() {
+    return triangleCount;
+  }
+
+  /** Returns the number of tiles subdivided again in the last update. */
+  public int getLastSubdividedTileCount() {
+    return lastSubdividedTileCount;
+  }
+
+  /** Returns the tolerance in effect after raising it to meet the vertex budget. */
+  public float getToleranceMillimeters() {
+    return baseTolerance * toleranceScale;
+  }
+
+  public long getLastUpdateNanos() {
+    return lastUpdateNanos;
+  }
+
+  /** Tessellates the mesh for new depth, rebuilding only the tiles whose depth changed. */
+  public void update(DepthFrame depthFrame) {
+    long startNanos = System.nanoTime();
+    sampleLattice(depthFrame);
+    int tileCount = getTileCount();
+    changedTileCount = 0;
+    lastSubdividedTileCount = 0;
+    for (int tile = 0; tile < tileCount; tile++) {
+      isSubdivisionDirty[tile] = isTransformChanged || hasTileChanged(tile);
+      isTriangulationDirty[tile] = false;
+    }
+    isTransformChanged = false;
+
+    rebuildDirtyTiles();
+    for (int i = 0; i < MAX_BUDGET_ITERATIONS && vertexCount > vertexBudget; i++) {
+      toleranceScale *= TOLERANCE_STEP;
+      for (int tile = 0; tile < tileCount; tile++) {
+        isSubdivisionDirty[tile] = true;
+      }
+      rebuildDirtyTiles();
+    }
+    if (toleranceScale > 1.0f && vertexCount * TOLERANCE_STEP * TOLERANCE_STEP < vertexBudget) {
+      // Far under budget: relax next time, not now so the budget is not overshot, and only after
+      // a while, so depth that goes over budget again at the lower tolerance does not rebuild
+      // every tile on every frame.
+      framesFarUnderBudget++;
+      if (framesFarUnderBudget >= RELAX_DELAY_FRAMES) {
+        framesFarUnderBudget = 0;
+        toleranceScale = Math.max(1.0f, toleranceScale / TOLERANCE_STEP);
+        isTransformChanged = true;
+      }
+    } else {
+      framesFarUnderBudget = 0;
+    }
+
+    for (int tile = 0; tile < tileCount; tile++) {
+      if (isTriangulationDirty[tile]) {
+        changedTiles[changedTileCount++] = tile;
+      }
+    }
+    lastUpdateNanos = System.nanoTime() - startNanos;
+  }
+
+  private void rebuildDirtyTiles() {
+    int tileCount = getTileCount();
+    for (int tile = 0; tile < tileCount; tile++) {
+      if (isSubdivisionDirty[tile]) {
+        subdivideTile(tile);
+        lastSubdividedTileCount++;
+        markTriangulationDirty(tile);
+      }
+    }
+    vertexCount = 0;
+    triangleCount = 0;
+    for (int tile = 0; tile < tileCount; tile++) {
+      if (isSubdivisionDirty[tile]) {
+        isSubdivisionDirty[tile] = false;
+      }
+      if (isTriangulationDirty[tile]) {
+        triangulateTile(tile);
+      }
+      vertexCount += vertexCounts[tile];
+      triangleCount += triangleCounts[tile];
+    }
+  }
+
+  /** Marks the tile and its edge neighbours, whose T-junctions may have moved, as changed. */
+  private void markTriangulationDirty(int tile) {
+    int tileX = tile % tilesX;
+    int tileY = tile / tilesX;
+    isTriangulationDirty[tile] = true;
+    if (tileX > 0) {
+      isTriangulationDirty[tile - 1] = true;
+    }
+    if (tileX < tilesX - 1) {
+      isTriangulationDirty[tile + 1] = true;
+    }
+    if (tileY > 0) {
+      isTriangulationDirty[tile - tilesX] = true;
+    }
+    if (tileY < tilesY - 1) {
+      isTriangulationDirty[tile + tilesX] = true;
+    }
+  }
+
+  private void sampleLattice(DepthFrame depthFrame) {
+    int width = depthFrame.getWidth();
+    int height = depthFrame.getHeight();
+    for (int j = 0; j < latticeHeight; j++) {
+      float t = (float) j / (latticeHeight - 1);
+      for (int i = 0; i < latticeWidth; i++) {
+        float s = (float) i / (latticeWidth - 1);
+        float u = originU + s * sAxisU + t * tAxisU;
+        float v = originV + s * sAxisV + t * tAxisV;
+        int x = Math.max(0, Math.min(width - 1, (int) (u * width)));
+        int y = Math.max(0, Math.min(height - 1, (int) (v * height)));
+        lattice[j * latticeWidth + i] = (short) depthFrame.getMillimeters(x, y);
+      }
+    }
+  }
+
+  private boolean hasTileChanged(int tile) {
+    int threshold = (int) (0.5f * getToleranceMillimeters());
+    int base = latticeBase(tile);
+    int built = tile * verticesPerTile;
+    for (int ly = 0; ly < side; ly++) {
+      for (int lx = 0; lx < side; lx++) {
+        int now = lattice[base + ly * latticeWidth + lx] & 0xFFFF;
+        int then = builtLattice[built + ly * side + lx] & 0xFFFF;
+        if ((now == 0) != (then == 0) || Math.abs(now - then) > threshold) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void subdivideTile(int tile) {
+    int base = latticeBase(tile);
+    int built = tile * verticesPerTile;
+    for (int ly = 0; ly < side; ly++) {
+      for (int lx = 0; lx < side; lx++) {
+        builtLattice[built + ly * side + lx] = lattice[base + ly * latticeWidth + lx];
+      }
+    }
+    Arrays.fill(corners, built, built + verticesPerTile, (byte) 0);
+
+    float tolerance = getToleranceMillimeters();
+    int leafBase = tile * cellsPerTile * cellsPerTile;
+    int leafCount = 0;
+    int stackSize = 0;
+    stack[stackSize++] = packLeaf(0, 0, cellsPerTile);
+    while (stackSize > 0) {
+      int leaf = stack[--stackSize];
+      int x = leafX(leaf);
+      int y = leafY(leaf);
+      int size = leafSize(leaf);
+      if (size > 1 && needsSplit(base, x, y, size, tolerance)) {
+        int half = size / 2;
+        stack[stackSize++] = packLeaf(x, y, half);
+        stack[stackSize++] = packLeaf(x + half, y, half);
+        stack[stackSize++] = packLeaf(x, y + half, half);
+        stack[stackSize++] = packLeaf(x + half, y + half, half);
+        continue;
+      }
+      leaves[leafBase + leafCount++] = leaf;
+      corners[built + y * side + x] = 1;
+      corners[built + y * side + x + size] = 1;
+      corners[built + (y + size) * side + x] = 1;
+      corners[built + (y + size) * side + x + size] = 1;
+    }
+    leafCounts[tile] = leafCount;
+  }
+
+  /**
+   * Returns whether a cell deviates from the bilinear blend of its corners by more than the
+   * tolerance, or mixes valid and invalid depth.
+   */
+  private boolean needsSplit(int base, int x, int y, int size, float tolerance) {
+    int corner = base + y * latticeWidth + x;
+    float d00 = lattice[corner] & 0xFFFF;
+    float d10 = lattice[corner + size] & 0xFFFF;
+    float d01 = lattice[corner + size * latticeWidth] & 0xFFFF;
+    float d11 = lattice[corner + size * latticeWidth + size] & 0xFFFF;
+    int validCount = 0;
+    for (int j = 0; j <= size; j++) {
+      float fy = (float) j / size;
+      int row = corner + j * latticeWidth;
+      for (int i = 0; i <= size; i++) {
+        int millimeters = lattice[row + i] & 0xFFFF;
+        if (millimeters == 0) {
+          continue;
+        }
+        validCount++;
+        float fx = (float) i / size;
+        float blend =
+                (d00 * (1.0f - fx) + d10 * fx) * (1.0f - fy) + (d01 * (1.0f - fx) + d11 * fx) * fy;
+        if (Math.abs(millimeters - blend) > tolerance) {
+          return true;
+        }
+      }
+    }
+    // A blend that includes invalid corners is off at every valid point, so it was caught above
+    // unless the cell is entirely valid or entirely invalid.
+    return validCount != 0 && validCount != (size + 1) * (size + 1);
+  }
+
+  private void triangulateTile(int tile) {
+    int built = tile * verticesPerTile;
+    int slot = tile * indicesPerTile;
+    Arrays.fill(referenced, (byte) 0);
+    int count = 0;
+    int leafBase = tile * cellsPerTile * cellsPerTile;
+    for (int l = 0; l < leafCounts[tile]; l++) {
+      int leaf = leaves[leafBase + l];
+      int x = leafX(leaf);
+      int y = leafY(leaf);
+      int size = leafSize(leaf);
+      int ringSize = 0;
+      for (int i = 0; i < size; i++) {
+        ringSize = addBoundaryPoint(tile, x + i, y, ringSize);
+      }
+      for (int i = 0; i < size; i++) {
+        ringSize = addBoundaryPoint(tile, x + size, y + i, ringSize);
+      }
+      for (int i = 0; i < size; i++) {
+        ringSize = addBoundaryPoint(tile, x + size - i, y + size, ringSize);
+      }
+      for (int i = 0; i < size; i++) {
+        ringSize = addBoundaryPoint(tile, x, y + size - i, ringSize);
+      }
+      if (ringSize == 4) {
+        // Bottom left, bottom right, top right, top left.
+        count = addTriangle(slot, count, ring[0], ring[1], ring[3]);
+        count = addTriangle(slot, count, ring[3], ring[1], ring[2]);
+      } else {
+        int centre = (y + size / 2) * side + x + size / 2;
+        for (int k = 0; k < ringSize; k++) {
+          count = addTriangle(slot, count, ring[k], ring[(k + 1) % ringSize], centre);
+        }
+      }
+    }
+    triangleCounts[tile] = count;
+    short degenerate = (short) built;
+    Arrays.fill(indices, slot + count * 3, slot + indicesPerTile, degenerate);
+    int referencedCount = 0;
+    for (int i = 0; i < verticesPerTile; i++) {
+      referencedCount += referenced[i];
+    }
+    vertexCounts[tile] = referencedCount;
+  }
+
+  private int addBoundaryPoint(int tile, int x, int y, int ringSize) {
+    if (isCorner(tile, x, y)) {
+      ring[ringSize++] = y * side + x;
+    }
+    return ringSize;
+  }
+
+  private int addTriangle(int slot, int count, int a, int b, int c) {
+    int vertexBase = slot / indicesPerTile * verticesPerTile;
+    int i = slot + count * 3;
+    indices[i] = (short) (vertexBase + a);
+    indices[i + 1] = (short) (vertexBase + b);
+    indices[i + 2] = (short) (vertexBase + c);
+    referenced[a] = 1;
+    referenced[b] = 1;
+    referenced[c] = 1;
+    return count + 1;
+  }
+
+  /** Returns whether a point of the tile is a leaf corner of the tile or of the tile it borders. */
+  private boolean isCorner(int tile, int x, int y) {
+    if (corners[tile * verticesPerTile + y * side + x] != 0) {
+      return true;
+    }
+    int tileX = tile % tilesX;
+    int tileY = tile / tilesX;
+    if (x == 0 && tileX > 0) {
+      return corners[(tile - 1) * verticesPerTile + y * side + cellsPerTile] != 0;
+    } else if (x == cellsPerTile && tileX < tilesX - 1) {
+      return corners[(tile + 1) * verticesPerTile + y * side] != 0;
+    } else if (y == 0 && tileY > 0) {
+      return corners[(tile - tilesX) * verticesPerTile + cellsPerTile * side + x] != 0;
+    } else if (y == cellsPerTile && tileY < tilesY - 1) {
+      return corners[(tile + tilesX) * verticesPerTile + x] != 0;
+    }
+    return false;
+  }
+
+  private int latticeBase(int tile) {
+    return (tile / tilesX) * cellsPerTile * latticeWidth + (tile % tilesX) * cellsPerTile;
+  }
+
+  private static int packLeaf(int x, int y, int size) {
+    return x | (y << 8) | (size << 16);
+  }
+
+  private static int leafX(int leaf) {
+    return leaf & 0xFF;
+  }
+
+  private static int leafY(int leaf) {
+    return (leaf >> 8) & 0xFF;
+  }
+
+  private static int leafSize(int leaf) {
+    return leaf >> 16;
+  }
+}
@@ -0,0 +1,155 @@
+package com.kazuki.depthreconstruction.depth.mesh;
+
+/**
+ * Drops the triangles of a depth mesh whose vertices span a depth edge, so foreground and
+ * background are not joined by a stretched "rubber sheet". A triangle is kept only if the depth
+ * spread of its three vertices is at most a threshold; since invalid depth is zero, triangles that
+ * touch a hole are dropped too unless the threshold is disabled.
+ *
+ * <p>The mesh is split into slots of a fixed number of indices, typically one per tile. Filtering a
+ * slot writes its kept triangles to the front and pads the rest with degenerate triangles, and
+ * records the slot as changed only if its indices differ from what it held before, so a renderer
+ * can upload just those ranges with {@code glBufferSubData}.
+ */
+public final class StretchedTriangleFilter {
+  /** Threshold that keeps every triangle. */
+  public static final int DISABLED = Integer.MAX_VALUE;
+
+  private final int slotCount;
+  private final int indicesPerSlot;
+  private final short[] indices;
+  private final int[] keptCounts;
+  private final int[] droppedCounts;
+  private final boolean[] isChanged;
+  private final int[] changedSlots;
+  private int changedSlotCount = 0;
+
+  private int maxSpreadMillimeters;
+
+  public StretchedTriangleFilter(int slotCount, int indicesPerSlot, int maxSpreadMillimeters) {
+    if (indicesPerSlot % 3 != 0) {
+      throw new IllegalArgumentException("Slots must hold whole triangles: " + indicesPerSlot);
+    }
+    this.slotCount = slotCount;
+    this.indicesPerSlot = indicesPerSlot;
+    this.maxSpreadMillimeters = maxSpreadMillimeters;
+    indices = new short[slotCount * indicesPerSlot];
+    keptCounts = new int[slotCount];
+    droppedCounts = new int[slotCount];
+    isChanged = new boolean[slotCount];
+    changedSlots = new int[slotCount];
+  }
+
+  /** Sets the largest depth spread a kept triangle may have, or {@link #DISABLED}. */
+  public void setMaxSpreadMillimeters(int maxSpreadMillimeters) {
+    this.maxSpreadMillimeters = maxSpreadMillimeters;
+  }
+
+  public int getMaxSpreadMillimeters() {
+    return maxSpreadMillimeters;
+  }
+
+  public int getSlotCount() {
+    return slotCount;
+  }
+
+  public int getIndicesPerSlot() {
+    return indicesPerSlot;
+  }
+
+  /** Returns the filtered index slots, {@link #getIndicesPerSlot()} each. */
+  public short[] getIndices() {
+    return indices;
+  }
+
+  /** Forgets which slots changed, before filtering the slots of a new update. */
+  public void clearChangedSlots() {
+    for (int i = 0; i < changedSlotCount; i++) {
+      isChanged[changedSlots[i]] = false;
+    }
+    changedSlotCount = 0;
+  }
+
+  /** Returns the number of slots whose indices changed since {@link #clearChangedSlots()}. */
+  public int getChangedSlotCount() {
+    return changedSlotCount;
+  }
+
+  /** Returns the changed slots in the order they were filtered. */
+  public int getChangedSlot(int i) {
+    return changedSlots[i];
+  }
+
+  /** Returns the number of triangles kept over all slots. */
+  public int getTriangleCount() {
+    int count = 0;
+    for (int slot = 0; slot < slotCount; slot++) {
+      count += keptCounts[slot];
+    }
+    return count;
+  }
+
+  /** Returns the number of triangles dropped over all slots. */
+  public int getDroppedTriangleCount() {
+    int count = 0;
+    for (int slot = 0; slot < slotCount; slot++) {
+      count += droppedCounts[slot];
+    }
+    return count;
+  }
+
+  /**
+   * Filters the triangles of a slot. Degenerate source triangles are skipped.
+   *
+   * @param source Triangle list holding the slot's unfiltered triangles.
+   * @param sourceCount Number of source indices, at most {@link #getIndicesPerSlot()}.
+   * @param vertexDepth Depth of every vertex in millimeters, or null to keep every triangle.
+   * @param degenerate Vertex index used to pad the slot.
+   */
+  public void filterSlot(
+          int slot,
+          short[] source,
+          int sourceOffset,
+          int sourceCount,
+          int[] vertexDepth,
+          short degenerate) {
+    int output = slot * indicesPerSlot;
+    int end = output + indicesPerSlot;
+    boolean changed = false;
+    int kept = 0;
+    int dropped = 0;
+    for (int i = sourceOffset; i < sourceOffset + sourceCount; i += 3) {
+      short a = source[i];
+      short b = source[i + 1];
+      short c = source[i + 2];
+      if (a == b && b == c) {
+        continue;
+      }
+      if (vertexDepth != null && maxSpreadMillimeters != DISABLED) {
+        int da = vertexDepth[a & 0xFFFF];
+        int db = vertexDepth[b & 0xFFFF];
+        int dc = vertexDepth[c & 0xFFFF];
+        int spread = Math.max(da, Math.max(db, dc)) - Math.min(da, Math.min(db, dc));
+        if (spread > maxSpreadMillimeters) {
+          dropped++;
+          continue;
+        }
+      }
+      changed |= indices[output] != a || indices[output + 1] != b || indices[output + 2] != c;
+      indices[output++] = a;
+      indices[output++] = b;
+      indices[output++] = c;
+      kept++;
+    }
+    for (; output < end; output++) {
+      changed |= indices[output] != degenerate;
+      indices[output] = degenerate;
+    }
+    keptCounts[slot] = kept;
+    droppedCounts[slot] = dropped;
+    if (changed && !isChanged[slot]) {
+      isChanged[slot] = true;
+      changedSlots[changedSlotCount++] = slot;
+    }
+  }
+}
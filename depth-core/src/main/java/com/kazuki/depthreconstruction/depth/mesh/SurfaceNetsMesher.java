@@ -0,0 +1,143 @@
+package com.kazuki.depthreconstruction.depth.mesh;
+
+import com.kazuki.depthreconstruction.depth.fusion.TsdfVolume;
+
+import java.util.Arrays;
+
+/**
+ * Meshes a block with naive surface nets: every cell the surface passes through gets one vertex, at
+ * the average of the zero crossings on its edges, and every crossed voxel edge becomes a quad
+ * joining the four cells around it. There are no case tables and no edge hashing. On the fused
+ * volumes of {@code MeshingBenchmark} it meshes about as fast as marching cubes and emits about 3%
+ * fewer vertices and triangles, with or without depth noise, so it is an alternative rather than a
+ * speedup. Sharp edges come out slightly rounder, and where a cell is ambiguous the mesh can touch
+ * itself at an edge, though it stays closed.
+ *
+ * <p>A block emits the quads of the edges whose coordinates across the edge lie in {@code [1,
+ * BLOCK_SIZE]}, so every edge of the volume belongs to exactly one block. Quads on the high border
+ * join the block's cells to the first cells of its neighbours, whose vertices the block computes
+ * again from the same samples, so the seam closes exactly.
+ */
+public final class SurfaceNetsMesher implements BlockMesher {
+  // Marks a cell whose vertex was not looked at yet; -1 marks a cell without one.
+  private static final int UNKNOWN = -2;
+
+  // Sample index offset of each cell corner, and the corners of each cell edge.
+  private static final int[] CORNER_OFFSETS = new int[8];
+  private static final int[] EDGE_START_CORNERS = new int[12];
+  private static final int[] EDGE_AXES = new int[12];
+  // Sample index offset of one step along each axis.
+  private static final int[] AXIS_STRIDES = {
+    BlockSamples.indexOf(1, 0, 0), BlockSamples.indexOf(0, 1, 0), BlockSamples.indexOf(0, 0, 1)
+  };
+
+  static {
+    for (int corner = 0; corner < 8; corner++) {
+      CORNER_OFFSETS[corner] =
+              BlockSamples.indexOf(corner & 1, corner >> 1 & 1, corner >> 2 & 1);
+    }
+    int edge = 0;
+    for (int axis = 0; axis < 3; axis++) {
+      for (int corner = 0; corner < 8; corner++) {
+        if ((corner & (1 << axis)) == 0) {
+          EDGE_START_CORNERS[edge] = corner;
+          EDGE_AXES[edge] = axis;
+          edge++;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void mesh(BlockSamples samples, MeshChunk chunk) {
+    // Vertices are only placed in the cells next to a crossed edge, when a quad needs them. Cells
+    // are indexed like the sample at their lowest corner.
+    int[] cellVertices = new int[BlockSamples.COUNT];
+    Arrays.fill(cellVertices, UNKNOWN);
+
+    int size = TsdfVolume.BLOCK_SIZE;
+    for (int axis = 0; axis < 3; axis++) {
+      int u = (axis + 1) % 3;
+      int v = (axis + 2) % 3;
+      int strideAlong = AXIS_STRIDES[axis];
+      int strideU = AXIS_STRIDES[u];
+      int strideV = AXIS_STRIDES[v];
+      for (int along = 0; along < size; along++) {
+        for (int acrossV = 1; acrossV <= size; acrossV++) {
+          for (int acrossU = 1; acrossU <= size; acrossU++) {
+            int start = along * strideAlong + acrossU * strideU + acrossV * strideV;
+            int end = start + strideAlong;
+            if (!samples.isObserved(start) || !samples.isObserved(end)) {
+              continue;
+            }
+            boolean isStartInside = samples.getDistance(start) < 0.0f;
+            if (isStartInside == samples.getDistance(end) < 0.0f) {
+              continue;
+            }
+            // The four cells around the edge, counter-clockwise around the axis.
+            int a = getCellVertex(samples, chunk, cellVertices, start - strideU - strideV);
+            int b = getCellVertex(samples, chunk, cellVertices, start - strideV);
+            int c = getCellVertex(samples, chunk, cellVertices, start);
+            int d = getCellVertex(samples, chunk, cellVertices, start - strideU);
+            if (a < 0 || b < 0 || c < 0 || d < 0) {
+              continue;
+            }
+            // The front faces the outside, which is along the axis if the start is inside.
+            if (isStartInside) {
+              chunk.addTriangle(a, b, c);
+              chunk.addTriangle(a, c, d);
+            } else {
+              chunk.addTriangle(a, c, b);
+              chunk.addTriangle(a, d, c);
+            }
+          }
+        }
+      }
+    }
+    chunk.computeNormals();
+  }
+
+  /** Returns the vertex of a cell, adding it on first use, or -1 if a corner is unobserved. */
+  private static int getCellVertex(
+          BlockSamples samples, MeshChunk chunk, int[] cellVertices, int cell) {
+    int vertex = cellVertices[cell];
+    if (vertex == UNKNOWN) {
+      vertex = addCellVertex(samples, chunk, cell);
+      cellVertices[cell] = vertex;
+    }
+    return vertex;
+  }
+
+  private static int addCellVertex(BlockSamples samples, MeshChunk chunk, int first) {
+    for (int corner = 0; corner < 8; corner++) {
+      if (!samples.isObserved(first + CORNER_OFFSETS[corner])) {
+        return -1;
+      }
+    }
+    float sumX = 0.0f;
+    float sumY = 0.0f;
+    float sumZ = 0.0f;
+    int crossingCount = 0;
+    for (int edge = 0; edge < 12; edge++) {
+      int startCorner = EDGE_START_CORNERS[edge];
+      int axis = EDGE_AXES[edge];
+      float startDistance = samples.getDistance(first + CORNER_OFFSETS[startCorner]);
+      float endDistance = samples.getDistance(first + CORNER_OFFSETS[startCorner | (1 << axis)]);
+      if ((startDistance < 0.0f) == (endDistance < 0.0f)) {
+        continue;
+      }
+      float t = startDistance / (startDistance - endDistance);
+      sumX += (startCorner & 1) + (axis == 0 ? t : 0.0f);
+      sumY += (startCorner >> 1 & 1) + (axis == 1 ? t : 0.0f);
+      sumZ += (startCorner >> 2 & 1) + (axis == 2 ? t : 0.0f);
+      crossingCount++;
+    }
+    int side = BlockSamples.SIDE;
+    return chunk.addVertex(
+            samples.getWorldPosition(samples.getBlockX(), first % side, sumX / crossingCount),
+            samples.getWorldPosition(
+                    samples.getBlockY(), first / side % side, sumY / crossingCount),
+            samples.getWorldPosition(
+                    samples.getBlockZ(), first / (side * side), sumZ / crossingCount));
+  }
+}
@@ -0,0 +1,197 @@
+package com.kazuki.depthreconstruction.depth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.kazuki.depthreconstruction.depth.DepthFrameHandoff.DropPolicy;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class DepthFrameHandoffTest {
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+  private static final int FRAME_COUNT = 20000;
+
+  @Test
+  public void dropOldest_keepsNewestFramesInOrder() {
+    DepthFrameHandoff handoff = new DepthFrameHandoff(DropPolicy.DROP_OLDEST, 2, 1);
+    for (int i = 1; i <= 3; i++) {
+      publish(handoff, i);
+    }
+
+    assertEquals(2, handoff.getQueueDepth());
+    assertEquals(1, handoff.getDroppedFrameCount());
+    DepthFrameHandoff.Frame frame = handoff.poll();
+    assertFrameIntact(frame);
+    assertEquals(2, frame.getTimestamp());
+    handoff.release(frame);
+    frame = handoff.poll();
+    assertEquals(3, frame.getTimestamp());
+    handoff.release(frame);
+    assertNull(handoff.poll());
+  }
+
+  @Test
+  public void latestOnly_keepsNewestFrame() {
+    DepthFrameHandoff handoff = new DepthFrameHandoff(DropPolicy.LATEST_ONLY, 4, 1);
+    for (int i = 1; i <= 3; i++) {
+      publish(handoff, i);
+    }
+
+    assertEquals(1, handoff.getQueueDepth());
+    assertEquals(2, handoff.getDroppedFrameCount());
+    DepthFrameHandoff.Frame frame = handoff.poll();
+    assertFrameIntact(frame);
+    assertEquals(3, frame.getTimestamp());
+    handoff.release(frame);
+    assertNull(handoff.poll());
+  }
+
+  @Test
+  public void publish_dropsFrameWhileConsumerHoldsAllOthers() {
+    DepthFrameHandoff handoff = new DepthFrameHandoff(DropPolicy.LATEST_ONLY, 1, 1);
+    publish(handoff, 1);
+    DepthFrameHandoff.Frame held = handoff.poll();
+    publish(handoff, 2);
+    publish(handoff, 3);
+
+    // The held frame is not overwritten by later ones.
+    assertFrameIntact(held);
+    assertEquals(1, held.getTimestamp());
+    handoff.release(held);
+    assertEquals(3, handoff.poll().getTimestamp());
+  }
+
+  @Test
+  public void dropOldest_oneConsumer() throws InterruptedException {
+    runConcurrently(DropPolicy.DROP_OLDEST, 1);
+  }
+
+  @Test
+  public void dropOldest_manyConsumers() throws InterruptedException {
+    runConcurrently(DropPolicy.DROP_OLDEST, 4);
+  }
+
+  @Test
+  public void latestOnly_oneConsumer() throws InterruptedException {
+    runConcurrently(DropPolicy.LATEST_ONLY, 1);
+  }
+
+  @Test
+  public void latestOnly_manyConsumers() throws InterruptedException {
+    runConcurrently(DropPolicy.LATEST_ONLY, 4);
+  }
+
+  /**
+   * Publishes numbered frames while consumers take them, and checks that no frame is torn or taken
+   * twice, that each consumer sees its frames in publishing order, and that every frame is either
+   * taken or counted as dropped.
+   */
+  private static void runConcurrently(DropPolicy dropPolicy, int consumerCount)
+          throws InterruptedException {
+    final DepthFrameHandoff handoff = new DepthFrameHandoff(dropPolicy, 3, consumerCount);
+    final Set<Long> takenTimestamps = ConcurrentHashMap.newKeySet();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final AtomicBoolean isProducerDone = new AtomicBoolean();
+    Thread[] consumers = new Thread[consumerCount];
+    for (int c = 0; c < consumerCount; c++) {
+      consumers[c] =
+              new Thread(
+                      () -> {
+                        try {
+                          consume(handoff, isProducerDone, takenTimestamps);
+                        } catch (Throwable t) {
+                          failure.compareAndSet(null, t);
+                        }
+                      });
+      consumers[c].start();
+    }
+
+    DepthFrame depth = DepthFrame.allocate(WIDTH, HEIGHT);
+    float[] cameraToWorld = new float[16];
+    float[] intrinsics = new float[6];
+    for (int i = 1; i <= FRAME_COUNT; i++) {
+      fill(depth, cameraToWorld, intrinsics, i);
+      handoff.publish(depth, cameraToWorld, intrinsics);
+    }
+    isProducerDone.set(true);
+    for (Thread consumer : consumers) {
+      consumer.join();
+    }
+
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    assertEquals(FRAME_COUNT, handoff.getPublishedFrameCount());
+    assertEquals(takenTimestamps.size(), handoff.getTakenFrameCount());
+    assertEquals(
+            handoff.getPublishedFrameCount(),
+            handoff.getTakenFrameCount() + handoff.getDroppedFrameCount());
+    assertTrue(takenTimestamps.size() > 0);
+  }
+
+  /** Takes frames until the producer is done and the queue is empty. */
+  private static void consume(
+          DepthFrameHandoff handoff, AtomicBoolean isProducerDone, Set<Long> takenTimestamps) {
+    long previousTimestamp = 0;
+    while (true) {
+      boolean isDone = isProducerDone.get();
+      DepthFrameHandoff.Frame frame = handoff.poll();
+      if (frame == null) {
+        if (isDone) {
+          return;
+        }
+        Thread.yield();
+        continue;
+      }
+      assertFrameIntact(frame);
+      long timestamp = frame.getTimestamp();
+      assertTrue("taken twice: " + timestamp, takenTimestamps.add(timestamp));
+      assertTrue(timestamp > previousTimestamp);
+      previousTimestamp = timestamp;
+      handoff.release(frame);
+    }
+  }
+
+  private static void publish(DepthFrameHandoff handoff, int index) {
+    DepthFrame depth = DepthFrame.allocate(WIDTH, HEIGHT);
+    float[] cameraToWorld = new float[16];
+    float[] intrinsics = new float[6];
+    fill(depth, cameraToWorld, intrinsics, index);
+    handoff.publish(depth, cameraToWorld, intrinsics);
+  }
+
+  /** Writes the frame's index into its timestamp, every pixel, the pose and the intrinsics. */
+  private static void fill(
+          DepthFrame depth, float[] cameraToWorld, float[] intrinsics, int index) {
+    depth.setTimestamp(index);
+    Arrays.fill(depth.array(), millimetersOf(index));
+    Arrays.fill(cameraToWorld, index);
+    Arrays.fill(intrinsics, index);
+  }
+
+  private static short millimetersOf(long index) {
+    return (short) (index % 30000 + 1);
+  }
+
+  private static void assertFrameIntact(DepthFrameHandoff.Frame frame) {
+    long timestamp = frame.getTimestamp();
+    short[] pixels = frame.getDepth().array();
+    for (short pixel : pixels) {
+      assertEquals(millimetersOf(timestamp), pixel);
+    }
+    for (float value : frame.getCameraToWorld()) {
+      assertEquals(timestamp, value, 0.0f);
+    }
+    for (float value : frame.getIntrinsics()) {
+      assertEquals(timestamp, value, 0.0f);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.kazuki.depthreconstruction.depth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class DepthFramePoolTest {
+  @Test
+  public void release_returnsFrameToPoolOnLastReference() {
+    DepthFramePool pool = new DepthFramePool();
+    PooledDepthFrame frame = pool.acquire(4, 3);
+    DepthFrame depth = frame.getFrame();
+
+    frame.retain();
+    assertEquals(2, frame.getReferenceCount());
+    frame.release();
+    assertEquals(1, frame.getReferenceCount());
+    assertEquals(1, pool.getOutstandingCount());
+    frame.release();
+    assertEquals(0, pool.getOutstandingCount());
+
+    PooledDepthFrame reused = pool.acquire(4, 3);
+    assertSame(frame, reused);
+    assertSame(depth, reused.getFrame());
+    assertEquals(1, reused.getReferenceCount());
+    assertEquals(1, pool.getHitCount());
+    assertEquals(1, pool.getMissCount());
+  }
+
+  @Test
+  public void acquire_otherSizeIsMiss() {
+    DepthFramePool pool = new DepthFramePool();
+    PooledDepthFrame frame = pool.acquire(4, 3);
+    frame.release();
+
+    PooledDepthFrame other = pool.acquire(3, 4);
+
+    assertNotSame(frame, other);
+    assertEquals(3, other.getFrame().getWidth());
+    assertEquals(0, pool.getHitCount());
+    assertEquals(2, pool.getMissCount());
+  }
+
+  @Test
+  public void release_moreOftenThanRetainedThrows() {
+    PooledDepthFrame frame = new DepthFramePool().acquire(4, 3);
+    frame.release();
+    try {
+      frame.release();
+      fail();
+    } catch (IllegalStateException expected) {
+      // Released twice.
+    }
+    try {
+      frame.getFrame();
+      fail();
+    } catch (IllegalStateException expected) {
+      // Used after release.
+    }
+  }
+
+  @Test
+  public void findLeaks_reportsUnreleasedFramesWhenTracking() throws InterruptedException {
+    DepthFramePool pool = new DepthFramePool(4, /*isLeakTrackingEnabled=*/ true);
+    PooledDepthFrame leaked = pool.acquire(4, 3);
+    PooledDepthFrame released = pool.acquire(4, 3);
+    released.release();
+    Thread.sleep(2);
+
+    List<Throwable> leaks = pool.findLeaks(/*maxAgeNanos=*/ 0);
+    assertEquals(1, leaks.size());
+    assertTrue(pool.findLeaks(/*maxAgeNanos=*/ 60_000_000_000L).isEmpty());
+
+    leaked.release();
+    assertTrue(pool.findLeaks(/*maxAgeNanos=*/ 0).isEmpty());
+  }
+
+  @Test
+  public void findLeaks_isEmptyWithoutTracking() throws InterruptedException {
+    DepthFramePool pool = new DepthFramePool(4, /*isLeakTrackingEnabled=*/ false);
+    pool.acquire(4, 3);
+    Thread.sleep(2);
+
+    assertTrue(pool.findLeaks(/*maxAgeNanos=*/ 0).isEmpty());
+    assertEquals(1, pool.getOutstandingCount());
+  }
+
+  @Test
+  public void recycle_keepsAtMostMaxPooledPerSize() {
+    DepthFramePool pool = new DepthFramePool(/*maxPooledPerSize=*/ 2, false);
+    PooledDepthFrame[] frames = new PooledDepthFrame[3];
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = pool.acquire(4, 3);
+    }
+    for (PooledDepthFrame frame : frames) {
+      frame.release();
+    }
+    pool.resetStats();
+
+    for (int i = 0; i < frames.length; i++) {
+      pool.acquire(4, 3);
+    }
+
+    assertEquals(2, pool.getHitCount());
+    assertEquals(1, pool.getMissCount());
+  }
+}
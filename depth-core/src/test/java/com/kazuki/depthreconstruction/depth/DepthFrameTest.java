@@ -0,0 +1,48 @@
+package com.kazuki.depthreconstruction.depth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+public class DepthFrameTest {
+  @Test
+  public void wrapDepth16_readsLittleEndianRowsWithPadding() {
+    // Two rows of three pixels, rows padded to four pixels, the last row unpadded.
+    ByteBuffer plane = ByteBuffer.allocate(7 * DepthFrame.BYTES_PER_PIXEL);
+    plane.order(ByteOrder.LITTLE_ENDIAN);
+    plane.asShortBuffer().put(new short[] {1, 2, 3, -1, 4, 5, (short) 65000});
+
+    DepthFrame frame = DepthFrame.wrapDepth16(plane, 3, 2, 4 * DepthFrame.BYTES_PER_PIXEL, 42);
+
+    assertEquals(4, frame.getStride());
+    assertEquals(42, frame.getTimestamp());
+    assertEquals(3, frame.getMillimeters(2, 0));
+    assertEquals(4, frame.getMillimeters(0, 1));
+    // Depth is unsigned.
+    assertEquals(65000, frame.getMillimeters(2, 1));
+    short[] packed = new short[6];
+    frame.copyTo(packed);
+    assertArrayEquals(new short[] {1, 2, 3, 4, 5, (short) 65000}, packed);
+  }
+
+  @Test
+  public void copyFrom_skipsRowPadding() {
+    DepthFrame frame =
+            new DepthFrame(2, 2, 3, ByteBuffer.allocateDirect(12).asShortBuffer(), null, 0);
+    frame.copyFrom(new short[] {10, 20, 30, 40});
+
+    assertEquals(0, frame.getDepthBuffer().get(2));
+    assertEquals(30, frame.getMillimeters(0, 1));
+    assertEquals(40, frame.getMillimeters(1, 1));
+    assertEquals(255, frame.getConfidence(1, 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_rejectsTooSmallBuffer() {
+    DepthFrame.wrap(new short[5], 3, 2, 0);
+  }
+}
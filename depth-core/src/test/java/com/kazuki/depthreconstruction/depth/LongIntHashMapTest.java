@@ -0,0 +1,93 @@
+package com.kazuki.depthreconstruction.depth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongIntHashMapTest {
+  @Test
+  public void randomOperations_matchHashMap() {
+    // Few distinct keys and a table that starts small, so probe runs are long, the table grows
+    // and removals keep shifting entries back.
+    Random random = new Random(42);
+    LongIntHashMap map = new LongIntHashMap(4);
+    Map<Long, Integer> reference = new HashMap<>();
+    for (int step = 0; step < 200000; step++) {
+      long key = randomKey(random);
+      int operation = random.nextInt(3);
+      if (operation == 0) {
+        int value = random.nextInt(Integer.MAX_VALUE);
+        map.put(key, value);
+        reference.put(key, value);
+      } else if (operation == 1) {
+        Integer expected = reference.remove(key);
+        assertEquals(expected == null ? -1 : expected, map.remove(key));
+      } else {
+        Integer expected = reference.get(key);
+        assertEquals(expected == null ? -1 : expected, map.get(key));
+      }
+      assertEquals(reference.size(), map.size());
+    }
+    for (Map.Entry<Long, Integer> entry : reference.entrySet()) {
+      assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+    }
+  }
+
+  @Test
+  public void remove_keepsCollidingKeysReachable() {
+    // Fill to just below the growth threshold, then remove every other key in insertion order.
+    LongIntHashMap map = new LongIntHashMap(64);
+    int count = map.getCapacity() / 2;
+    for (int i = 0; i < count; i++) {
+      map.put(i * 7919L, i);
+    }
+    for (int i = 0; i < count; i += 2) {
+      assertEquals(i, map.remove(i * 7919L));
+    }
+    for (int i = 0; i < count; i++) {
+      assertEquals(i % 2 == 0 ? -1 : i, map.get(i * 7919L));
+    }
+    assertEquals(count / 2, map.size());
+  }
+
+  @Test
+  public void clear_removesEverything() {
+    LongIntHashMap map = new LongIntHashMap(8);
+    for (int i = 0; i < 100; i++) {
+      map.put(i, i);
+    }
+    map.clear();
+    assertEquals(0, map.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(-1, map.get(i));
+    }
+  }
+
+  @Test
+  public void put_rejectsReservedKeyAndNegativeValues() {
+    LongIntHashMap map = new LongIntHashMap(8);
+    try {
+      map.put(Long.MIN_VALUE, 1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // The empty slot marker.
+    }
+    try {
+      map.put(1, -1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // -1 means absent.
+    }
+  }
+
+  private static long randomKey(Random random) {
+    // Negative keys and keys far apart are just as valid as small ones.
+    long key = random.nextInt(300) - 150;
+    return random.nextBoolean() ? key : key * 0x100000001L;
+  }
+}
@@ -0,0 +1,61 @@
+package com.kazuki.depthreconstruction.depth.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class JointBilateralUpsamplerTest {
+  @Test
+  public void upsample_snapsDepthEdgeToLumaEdge() {
+    // Low resolution depth with a step between columns 1 and 2, and a camera image with the same
+    // step at full resolution.
+    DepthFrame depth = DepthFrame.allocate(4, 4);
+    for (int y = 0; y < 4; y++) {
+      for (int x = 0; x < 4; x++) {
+        depth.setMillimeters(x, y, x < 2 ? 1000 : 2000);
+      }
+    }
+    depth.setMillimeters(0, 0, 0);
+    depth.setTimestamp(7);
+    ByteBuffer luma = ByteBuffer.allocate(8 * 8);
+    for (int y = 0; y < 8; y++) {
+      for (int x = 0; x < 8; x++) {
+        luma.put(y * 8 + x, (byte) (x < 4 ? 0 : 255));
+      }
+    }
+    DepthFrame output = DepthFrame.allocate(8, 8);
+
+    new JointBilateralUpsampler(
+                    ForkJoinPool.commonPool(),
+                    /*factor=*/ 2,
+                    /*radius=*/ 1,
+                    /*spatialSigma=*/ 1.0f,
+                    /*rangeSigma=*/ 10.0f)
+            .upsample(depth, luma, 8, 8, 8, output);
+
+    assertEquals(7, output.getTimestamp());
+    for (int y = 0; y < 8; y++) {
+      for (int x = 0; x < 8; x++) {
+        // The hole at (0, 0) is skipped rather than averaged in as zero.
+        assertEquals("pixel " + x + ", " + y, x < 4 ? 1000 : 2000, output.getMillimeters(x, y));
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void upsample_rejectsWrongOutputSize() {
+    new JointBilateralUpsampler(ForkJoinPool.commonPool(), 2, 1, 1.0f, 10.0f)
+            .upsample(
+                    DepthFrame.allocate(4, 4),
+                    ByteBuffer.allocate(64),
+                    8,
+                    8,
+                    8,
+                    DepthFrame.allocate(4, 4));
+  }
+}
@@ -0,0 +1,68 @@
+package com.kazuki.depthreconstruction.depth.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class TemporalDepthFilterTest {
+  private final DepthFrame output = DepthFrame.allocate(2, 1);
+
+  @Test
+  public void movingAverage_smoothsRejectsOutliersAndHoldsDropouts() {
+    TemporalDepthFilter filter =
+            new TemporalDepthFilter(
+                    ForkJoinPool.commonPool(),
+                    4,
+                    TemporalDepthFilter.Mode.EXPONENTIAL_MOVING_AVERAGE);
+
+    assertEquals(1000, update(filter, 1000));
+    // 1000 + 0.3 * (1010 - 1000).
+    assertEquals(1003, update(filter, 1010));
+    // A single sample far from the average is ignored.
+    assertEquals(1003, update(filter, 2000));
+    assertEquals(1003, update(filter, 0));
+    // Two samples in a row that agree mean the surface moved.
+    assertEquals(1003, update(filter, 2000));
+    assertEquals(2000, update(filter, 2000));
+  }
+
+  @Test
+  public void median_ignoresInvalidSamples() {
+    TemporalDepthFilter filter =
+            new TemporalDepthFilter(ForkJoinPool.commonPool(), 4, TemporalDepthFilter.Mode.MEDIAN);
+
+    update(filter, 1000);
+    update(filter, 5000);
+    update(filter, 0);
+    assertEquals(1010, update(filter, 1010));
+  }
+
+  @Test
+  public void update_dropsHistoryWhenCameraMoves() {
+    TemporalDepthFilter filter =
+            new TemporalDepthFilter(ForkJoinPool.commonPool(), 4, TemporalDepthFilter.Mode.MEDIAN);
+    update(filter, 1000);
+    update(filter, 1000);
+
+    filter.update(frame(3000), /*translationMeters=*/ 1.0f, 0.0f, output);
+
+    assertEquals(3000, output.getMillimeters(0, 0));
+    assertEquals(1, filter.getResetCount());
+  }
+
+  private int update(TemporalDepthFilter filter, int millimeters) {
+    filter.update(frame(millimeters), output);
+    return output.getMillimeters(0, 0);
+  }
+
+  private static DepthFrame frame(int millimeters) {
+    DepthFrame frame = DepthFrame.allocate(2, 1);
+    frame.setMillimeters(0, 0, millimeters);
+    frame.setMillimeters(1, 0, 500);
+    return frame;
+  }
+}
@@ -0,0 +1,205 @@
+package com.kazuki.depthreconstruction.depth.fusion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+import com.kazuki.depthreconstruction.depth.mesh.IncrementalMesher;
+import com.kazuki.depthreconstruction.depth.mesh.MarchingCubesMesher;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TsdfFusionEngineTest {
+  private static final float VOXEL_SIZE = 0.02f;
+  private static final float TRUNCATION = 3 * VOXEL_SIZE;
+  // A quarter of a 640x480 camera image.
+  private static final int WIDTH = 160;
+  private static final int HEIGHT = 120;
+  private static final float[] INTRINSICS = {500, 500, 320, 240, 640, 480};
+  private static final float[] IDENTITY = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+  // Off the voxel lattice, so the zero crossing has to be interpolated.
+  private static final float PLANE_DEPTH = 1.013f;
+  // TsdfFusionEngine.MAX_WEIGHT.
+  private static final int MAX_WEIGHT = 64;
+
+  @Test
+  public void integrate_planeZeroCrossingAtPlaneDepth() {
+    TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 4096);
+    TsdfFusionEngine engine = new TsdfFusionEngine(volume, ForkJoinPool.commonPool());
+
+    engine.integrate(planeFrame(PLANE_DEPTH), IDENTITY, INTRINSICS);
+
+    // Columns of voxels around the optical axis, walked away from the camera.
+    for (int column = -3; column <= 3; column++) {
+      float x = (column + 0.5f) * VOXEL_SIZE;
+      float y = (-column + 0.5f) * VOXEL_SIZE;
+      float crossing = findZeroCrossing(volume, x, y);
+      assertEquals(-PLANE_DEPTH, crossing, VOXEL_SIZE);
+    }
+    engine.shutdown();
+  }
+
+  @Test
+  public void integrate_allocatesOnlyBlocksInTruncationBand() {
+    TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 4096);
+    TsdfFusionEngine engine = new TsdfFusionEngine(volume, ForkJoinPool.commonPool());
+
+    engine.integrate(planeFrame(PLANE_DEPTH), IDENTITY, INTRINSICS);
+
+    assertTrue(volume.getBlockCount() > 0);
+    assertEquals(volume.getBlockCount(), engine.getBlockCount());
+    assertEquals(volume.getBlockCount(), engine.getLastIntegratedBlockCount());
+    float blockSize = volume.getBlockWorldSize();
+    for (int block = 0; block < volume.getBlockCount(); block++) {
+      int blockZ = TsdfVolume.unpackBlockZ(volume.getBlockKey(block));
+      float near = (blockZ + 1) * blockSize;
+      float far = blockZ * blockSize;
+      assertTrue(
+              "Block " + blockZ + " misses the band",
+              far <= -PLANE_DEPTH + TRUNCATION && near >= -PLANE_DEPTH - TRUNCATION);
+    }
+    engine.shutdown();
+  }
+
+  @Test
+  public void integrate_capsWeight() {
+    TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 4096);
+    TsdfFusionEngine engine = new TsdfFusionEngine(volume, ForkJoinPool.commonPool());
+    DepthFrame frame = planeFrame(PLANE_DEPTH);
+
+    for (int i = 0; i < MAX_WEIGHT + 10; i++) {
+      engine.integrate(frame, IDENTITY, INTRINSICS);
+    }
+
+    int maxWeight = 0;
+    byte[] weights = volume.getWeights();
+    for (int i = 0; i < volume.getBlockCount() * TsdfVolume.VOXELS_PER_BLOCK; i++) {
+      maxWeight = Math.max(maxWeight, weights[i] & 0xFF);
+    }
+    assertEquals(MAX_WEIGHT, maxWeight);
+    int voxel = findVoxel(volume, 0.01f, 0.01f, -PLANE_DEPTH);
+    assertEquals(MAX_WEIGHT, weights[voxel] & 0xFF);
+    // Averaging the same observation again and again leaves the surface where it was.
+    assertEquals(-PLANE_DEPTH, findZeroCrossing(volume, 0.01f, 0.01f), VOXEL_SIZE);
+    assertEquals(MAX_WEIGHT + 10, engine.getIntegratedFrameCount());
+    engine.shutdown();
+  }
+
+  @Test
+  public void integrate_fullVolumeStopsAllocatingAndKeepsFusing() {
+    TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 8);
+    TsdfFusionEngine engine = new TsdfFusionEngine(volume, ForkJoinPool.commonPool());
+
+    engine.integrate(planeFrame(PLANE_DEPTH), IDENTITY, INTRINSICS);
+    long memoryBytes = engine.getMemoryBytes();
+    float[] shifted = IDENTITY.clone();
+    shifted[12] = 2.0f;
+    engine.integrate(planeFrame(PLANE_DEPTH), shifted, INTRINSICS);
+    engine.integrate(planeFrame(0.5f), IDENTITY, INTRINSICS);
+
+    assertEquals(8, volume.getBlockCount());
+    assertEquals(8, engine.getBlockCount());
+    assertEquals(memoryBytes, engine.getMemoryBytes());
+    assertEquals(volume.getMemoryBytes(), engine.getMemoryBytes());
+    assertTrue(engine.getLastIntegratedBlockCount() <= 8);
+    // The blocks that made it in are still integrated.
+    int observed = 0;
+    byte[] weights = volume.getWeights();
+    for (int i = 0; i < 8 * TsdfVolume.VOXELS_PER_BLOCK; i++) {
+      if (weights[i] != 0) {
+        observed++;
+      }
+    }
+    assertTrue(observed > 0);
+    engine.shutdown();
+  }
+
+  @Test
+  public void submit_integratesOnWorkerThenNotifiesMesher() throws InterruptedException {
+    TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 4096);
+    TsdfFusionEngine engine = new TsdfFusionEngine(volume, ForkJoinPool.commonPool());
+    IncrementalMesher mesher =
+            new IncrementalMesher(ForkJoinPool.commonPool(), new MarchingCubesMesher());
+    AtomicInteger dirtyBlockCount = new AtomicInteger(-1);
+    CountDownLatch integrated = new CountDownLatch(1);
+    String[] listenerThread = new String[1];
+    engine.setIntegrationListener(
+            integratedVolume -> {
+              listenerThread[0] = Thread.currentThread().getName();
+              dirtyBlockCount.set(integratedVolume.getDirtyBlockCount());
+              mesher.update(integratedVolume);
+              integrated.countDown();
+            });
+
+    float[] intrinsics = INTRINSICS.clone();
+    assertTrue(engine.submit(planeFrame(PLANE_DEPTH), IDENTITY.clone(), intrinsics));
+    // The handoff copied the intrinsics, so the caller may reuse its array.
+    Arrays.fill(intrinsics, 0.0f);
+
+    assertTrue(integrated.await(10, TimeUnit.SECONDS));
+    assertEquals("TsdfFusion", listenerThread[0]);
+    assertEquals(1, engine.getIntegratedFrameCount());
+    assertEquals(1, engine.getHandoff().getTakenFrameCount());
+    assertEquals(0, engine.getDroppedFrameCount());
+    assertEquals(volume.getBlockCount(), dirtyBlockCount.get());
+    // The mesher consumed the dirty blocks and found the plane.
+    assertEquals(0, volume.getDirtyBlockCount());
+    assertTrue(mesher.getTriangleCount() > 0);
+    engine.shutdown();
+  }
+
+  private static DepthFrame planeFrame(float depthMeters) {
+    short[] millimeters = new short[WIDTH * HEIGHT];
+    Arrays.fill(millimeters, (short) Math.round(depthMeters * 1000.0f));
+    return DepthFrame.wrap(millimeters, WIDTH, HEIGHT, /*timestamp=*/ 0);
+  }
+
+  /**
+   * Walks the voxel column through (x, y) away from the camera and returns the z where the observed
+   * distance first changes sign, interpolated between the two voxels.
+   */
+  private static float findZeroCrossing(TsdfVolume volume, float x, float y) {
+    short[] distances = volume.getDistances();
+    byte[] weights = volume.getWeights();
+    int previous = -1;
+    for (int k = -1; k > -200; k--) {
+      float z = (k + 0.5f) * VOXEL_SIZE;
+      int voxel = findVoxel(volume, x, y, z);
+      if (voxel < 0 || weights[voxel] == 0) {
+        previous = -1;
+        continue;
+      }
+      if (previous >= 0 && distances[previous] > 0 && distances[voxel] <= 0) {
+        float d1 = distances[previous];
+        float d2 = distances[voxel];
+        return z + VOXEL_SIZE * d2 / (d2 - d1);
+      }
+      previous = voxel;
+    }
+    throw new AssertionError("No zero crossing at (" + x + ", " + y + ")");
+  }
+
+  /** Returns the index of the voxel containing a world point, or -1 if its block is missing. */
+  private static int findVoxel(TsdfVolume volume, float x, float y, float z) {
+    int vx = (int) Math.floor(x / VOXEL_SIZE);
+    int vy = (int) Math.floor(y / VOXEL_SIZE);
+    int vz = (int) Math.floor(z / VOXEL_SIZE);
+    int size = TsdfVolume.BLOCK_SIZE;
+    int block =
+            volume.getBlock(
+                    Math.floorDiv(vx, size), Math.floorDiv(vy, size), Math.floorDiv(vz, size));
+    if (block < 0) {
+      return -1;
+    }
+    int local =
+            (Math.floorMod(vz, size) * size + Math.floorMod(vy, size)) * size
+                    + Math.floorMod(vx, size);
+    return block * TsdfVolume.VOXELS_PER_BLOCK + local;
+  }
+}
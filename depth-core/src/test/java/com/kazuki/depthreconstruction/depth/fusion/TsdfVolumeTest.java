@@ -0,0 +1,102 @@
+package com.kazuki.depthreconstruction.depth.fusion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TsdfVolumeTest {
+  @Test
+  public void getOrAllocateBlock_startsAsUnobservedFreeSpace() {
+    TsdfVolume volume = new TsdfVolume(0.02f, 0.06f, 16);
+
+    int block = volume.getOrAllocateBlock(1, -2, 3);
+
+    assertEquals(block, volume.getOrAllocateBlock(1, -2, 3));
+    assertEquals(block, volume.getBlock(1, -2, 3));
+    assertEquals(-1, volume.getBlock(1, -2, 4));
+    assertEquals(1, volume.getBlockCount());
+    int first = block * TsdfVolume.VOXELS_PER_BLOCK;
+    for (int i = first; i < first + TsdfVolume.VOXELS_PER_BLOCK; i++) {
+      assertEquals(Short.MAX_VALUE, volume.getDistances()[i]);
+      assertEquals(0, volume.getWeights()[i]);
+    }
+  }
+
+  @Test
+  public void getOrAllocateBlock_fullVolumeKeepsExistingBlocksAndRefusesNewOnes() {
+    TsdfVolume volume = new TsdfVolume(0.02f, 0.06f, 4);
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i, volume.getOrAllocateBlock(i, 0, 0));
+    }
+    long memoryBytes = volume.getMemoryBytes();
+
+    assertEquals(-1, volume.getOrAllocateBlock(4, 0, 0));
+    assertEquals(2, volume.getOrAllocateBlock(2, 0, 0));
+    assertEquals(4, volume.getBlockCount());
+    assertEquals(memoryBytes, volume.getMemoryBytes());
+  }
+
+  @Test
+  public void getOrAllocateBlock_growsStoragePastInitialCapacity() {
+    TsdfVolume volume = new TsdfVolume(0.02f, 0.06f, 1000);
+    for (int i = 0; i < 600; i++) {
+      volume.getOrAllocateBlock(i, -i, 0);
+    }
+    volume.markBlockDirty(0);
+
+    assertEquals(600, volume.getBlockCount());
+    assertEquals(599, volume.getBlock(599, -599, 0));
+    assertTrue(volume.getDistances().length >= 600 * TsdfVolume.VOXELS_PER_BLOCK);
+    // Never more storage than the block limit allows.
+    assertTrue(volume.getWeights().length <= 1000 * TsdfVolume.VOXELS_PER_BLOCK);
+    assertEquals(1, volume.getDirtyBlockCount());
+  }
+
+  @Test
+  public void markBlockDirty_recordsEachBlockOnceUntilCleared() {
+    TsdfVolume volume = new TsdfVolume(0.02f, 0.06f, 16);
+    int a = volume.getOrAllocateBlock(0, 0, 0);
+    int b = volume.getOrAllocateBlock(0, 0, 1);
+
+    volume.markBlockDirty(b);
+    volume.markBlockDirty(a);
+    volume.markBlockDirty(b);
+
+    assertEquals(2, volume.getDirtyBlockCount());
+    assertEquals(b, volume.getDirtyBlock(0));
+    assertEquals(a, volume.getDirtyBlock(1));
+    volume.clearDirtyBlocks();
+    assertEquals(0, volume.getDirtyBlockCount());
+    volume.markBlockDirty(a);
+    assertEquals(1, volume.getDirtyBlockCount());
+  }
+
+  @Test
+  public void packBlockKey_roundTripsNegativeCoordinates() {
+    int[] coordinates = {0, 1, -1, 12345, -12345, (1 << 20) - 1, -(1 << 20)};
+    for (int x : coordinates) {
+      for (int y : coordinates) {
+        for (int z : coordinates) {
+          long key = TsdfVolume.packBlockKey(x, y, z);
+          assertEquals(x, TsdfVolume.unpackBlockX(key));
+          assertEquals(y, TsdfVolume.unpackBlockY(key));
+          assertEquals(z, TsdfVolume.unpackBlockZ(key));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void clear_dropsBlocksAndDirtyList() {
+    TsdfVolume volume = new TsdfVolume(0.02f, 0.06f, 16);
+    volume.markBlockDirty(volume.getOrAllocateBlock(0, 0, 0));
+
+    volume.clear();
+
+    assertEquals(0, volume.getBlockCount());
+    assertEquals(0, volume.getDirtyBlockCount());
+    assertEquals(-1, volume.getBlock(0, 0, 0));
+    assertEquals(0, volume.getOrAllocateBlock(5, 5, 5));
+  }
+}
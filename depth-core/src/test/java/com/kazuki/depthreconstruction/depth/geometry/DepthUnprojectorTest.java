@@ -0,0 +1,126 @@
+package com.kazuki.depthreconstruction.depth.geometry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class DepthUnprojectorTest {
+  private static final float EPSILON = 1e-5f;
+  private static final int WIDTH = 80;
+  private static final int HEIGHT = 60;
+
+  @Test
+  public void unproject_knownPixelInCameraSpace() {
+    DepthUnprojector unprojector = newUnprojector();
+    PointGrid points = new PointGrid(0, 0);
+
+    unprojector.unproject(depthWithPixel(WIDTH, HEIGHT, 50, 10, 2000), null, points);
+
+    // Ray through the pixel centre: ((50.5 - 40) / 100, -(10.5 - 30) / 100) at 1 meter.
+    int i = 10 * WIDTH + 50;
+    assertEquals(0.21f, points.getX()[i], EPSILON);
+    assertEquals(0.39f, points.getY()[i], EPSILON);
+    assertEquals(-2.0f, points.getZ()[i], EPSILON);
+  }
+
+  @Test
+  public void unproject_knownPixelInWorldSpace() {
+    DepthUnprojector unprojector = newUnprojector();
+    PointGrid points = new PointGrid(0, 0);
+    // Column-major: a quarter turn about +Y, then a translation by (1, 2, 3).
+    float[] cameraToWorld = {0, 0, -1, 0, 0, 1, 0, 0, 1, 0, 0, 0, 1, 2, 3, 1};
+
+    unprojector.unproject(depthWithPixel(WIDTH, HEIGHT, 50, 10, 2000), cameraToWorld, points);
+
+    int i = 10 * WIDTH + 50;
+    assertEquals(-2.0f + 1.0f, points.getX()[i], EPSILON);
+    assertEquals(0.39f + 2.0f, points.getY()[i], EPSILON);
+    assertEquals(-0.21f + 3.0f, points.getZ()[i], EPSILON);
+  }
+
+  @Test
+  public void unproject_scalesIntrinsicsToDepthResolution() {
+    DepthUnprojector unprojector = newUnprojector();
+    PointGrid points = new PointGrid(0, 0);
+
+    // Half the image resolution: fx 50, cx 20, cy 15.
+    unprojector.unproject(depthWithPixel(WIDTH / 2, HEIGHT / 2, 25, 5, 1000), null, points);
+
+    int i = 5 * WIDTH / 2 + 25;
+    assertEquals((25.5f - 20.0f) / 50.0f, points.getX()[i], EPSILON);
+    assertEquals(-(5.5f - 15.0f) / 50.0f, points.getY()[i], EPSILON);
+    assertEquals(-1.0f, points.getZ()[i], EPSILON);
+  }
+
+  @Test
+  public void unproject_invalidDepthGivesNaN() {
+    DepthUnprojector unprojector = newUnprojector();
+    PointGrid points = new PointGrid(0, 0);
+
+    unprojector.unproject(depthWithPixel(WIDTH, HEIGHT, 50, 10, 2000), null, points);
+
+    assertEquals(1, points.getValidCount());
+    assertFalse(points.isValid(0));
+    assertTrue(Float.isNaN(points.getX()[0]));
+    assertTrue(Float.isNaN(points.getY()[0]));
+    assertTrue(Float.isNaN(points.getZ()[0]));
+    assertTrue(points.isValid(10 * WIDTH + 50));
+  }
+
+  @Test
+  public void unproject_rebuildsRayTableOnlyWhenIntrinsicsOrResolutionChange() {
+    DepthUnprojector unprojector = newUnprojector();
+    PointGrid points = new PointGrid(0, 0);
+    DepthFrame depth = depthWithPixel(WIDTH, HEIGHT, 50, 10, 2000);
+
+    unprojector.unproject(depth, null, points);
+    setIntrinsics(unprojector, 100.0f);
+    unprojector.unproject(depth, null, points);
+    assertEquals(1, unprojector.getRayTableBuildCount());
+
+    setIntrinsics(unprojector, 110.0f);
+    unprojector.unproject(depth, null, points);
+    assertEquals(2, unprojector.getRayTableBuildCount());
+
+    unprojector.unproject(depthWithPixel(WIDTH / 2, HEIGHT / 2, 0, 0, 1000), null, points);
+    unprojector.unproject(depthWithPixel(WIDTH / 2, HEIGHT / 2, 0, 0, 1000), null, points);
+    assertEquals(3, unprojector.getRayTableBuildCount());
+  }
+
+  @Test
+  public void unproject_requiresIntrinsics() {
+    DepthUnprojector unprojector = new DepthUnprojector(ForkJoinPool.commonPool());
+    try {
+      unprojector.unproject(DepthFrame.allocate(4, 4), null, new PointGrid(0, 0));
+      fail();
+    } catch (IllegalStateException expected) {
+      // No intrinsics yet.
+    }
+  }
+
+  /** Returns an unprojector for an 80x60 image with fx = fy = 100 and principal point (40, 30). */
+  private static DepthUnprojector newUnprojector() {
+    DepthUnprojector unprojector = new DepthUnprojector(ForkJoinPool.commonPool());
+    setIntrinsics(unprojector, 100.0f);
+    return unprojector;
+  }
+
+  private static void setIntrinsics(DepthUnprojector unprojector, float focalLength) {
+    unprojector.setIntrinsics(focalLength, focalLength, 40.0f, 30.0f, WIDTH, HEIGHT);
+  }
+
+  /** Returns depth that is invalid everywhere except at one pixel. */
+  private static DepthFrame depthWithPixel(
+          int width, int height, int x, int y, int millimeters) {
+    DepthFrame depth = DepthFrame.allocate(width, height);
+    depth.setMillimeters(x, y, millimeters);
+    return depth;
+  }
+}
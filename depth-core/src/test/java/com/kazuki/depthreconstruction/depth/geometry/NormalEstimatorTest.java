@@ -0,0 +1,102 @@
+package com.kazuki.depthreconstruction.depth.geometry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class NormalEstimatorTest {
+  // Worst case of 8 bit octahedral coordinates, found over a dense sampling of the sphere.
+  private static final double MAX_ROUND_TRIP_DEGREES = 0.96;
+  private static final int SPHERE_SAMPLES = 1_000_000;
+
+  @Test
+  public void octahedralRoundTrip_staysWithinBound() {
+    float[] decoded = new float[3];
+    double maxDegrees = 0.0;
+    // A Fibonacci sphere covers both hemispheres and the folded diagonals evenly.
+    double goldenAngle = Math.PI * (3.0 - Math.sqrt(5.0));
+    for (int i = 0; i < SPHERE_SAMPLES; i++) {
+      double z = 1.0 - 2.0 * (i + 0.5) / SPHERE_SAMPLES;
+      double radius = Math.sqrt(1.0 - z * z);
+      float x = (float) (radius * Math.cos(i * goldenAngle));
+      float y = (float) (radius * Math.sin(i * goldenAngle));
+      NormalEstimator.decodeOctahedral(
+              NormalEstimator.encodeOctahedral(x, y, (float) z), decoded);
+      maxDegrees = Math.max(maxDegrees, angleDegrees(x, y, (float) z, decoded));
+    }
+    assertTrue("round trip error " + maxDegrees + " degrees", maxDegrees <= MAX_ROUND_TRIP_DEGREES);
+  }
+
+  @Test
+  public void octahedralRoundTrip_handlesZeroCoordinates() {
+    // Vectors in the lower hemisphere with a zero coordinate sit on the fold.
+    float[][] vectors = {
+      {1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1},
+      {0, 0.6f, -0.8f}, {0, -0.6f, -0.8f}, {0.6f, 0, -0.8f}, {-0.6f, 0, -0.8f}
+    };
+    float[] decoded = new float[3];
+    for (float[] vector : vectors) {
+      NormalEstimator.decodeOctahedral(
+              NormalEstimator.encodeOctahedral(vector[0], vector[1], vector[2]), decoded);
+      double degrees = angleDegrees(vector[0], vector[1], vector[2], decoded);
+      assertTrue(
+              vector[0] + ", " + vector[1] + ", " + vector[2] + " is off by " + degrees,
+              degrees <= MAX_ROUND_TRIP_DEGREES);
+    }
+  }
+
+  @Test
+  public void estimate_findsTiltedPlaneNormalFacingCamera() {
+    // The plane z = -2 + 0.5 x in front of a camera looking down -Z.
+    int width = 20;
+    int height = 10;
+    PointGrid points = new PointGrid(width, height);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int i = y * width + x;
+        points.getX()[i] = 0.1f * (x - width / 2);
+        points.getY()[i] = -0.1f * (y - height / 2);
+        points.getZ()[i] = -2.0f + 0.5f * points.getX()[i];
+      }
+    }
+    // An isolated point has no neighbours to estimate from.
+    for (int x = 0; x < width; x++) {
+      points.getZ()[4 * width + x] = Float.NaN;
+      points.getZ()[6 * width + x] = Float.NaN;
+    }
+    NormalGrid normals = new NormalGrid(width, height);
+    NormalEstimator estimator = new NormalEstimator(ForkJoinPool.commonPool());
+    estimator.setEncodingEnabled(true);
+
+    estimator.estimate(points, normals);
+
+    float length = (float) Math.sqrt(0.5 * 0.5 + 1.0);
+    float expectedX = -0.5f / length;
+    float expectedZ = 1.0f / length;
+    int validCount = 0;
+    for (int i = 0; i < width * height; i++) {
+      int row = i / width;
+      if (row == 4 || row == 5 || row == 6) {
+        assertEquals("pixel " + i, 0, normals.getValidMask()[i]);
+        continue;
+      }
+      assertEquals(1, normals.getValidMask()[i]);
+      assertEquals(expectedX, normals.getX()[i], 1e-4f);
+      assertEquals(0.0f, normals.getY()[i], 1e-4f);
+      assertEquals(expectedZ, normals.getZ()[i], 1e-4f);
+      validCount++;
+    }
+    assertEquals(validCount, normals.getValidCount());
+    float[] decoded = new float[3];
+    NormalEstimator.decodeOctahedral(normals.getEncoded().get(0), decoded);
+    assertTrue(angleDegrees(expectedX, 0.0f, expectedZ, decoded) <= MAX_ROUND_TRIP_DEGREES);
+  }
+
+  private static double angleDegrees(float x, float y, float z, float[] other) {
+    double dot = x * other[0] + y * other[1] + z * other[2];
+    return Math.toDegrees(Math.acos(Math.min(1.0, dot)));
+  }
+}
@@ -0,0 +1,93 @@
+package com.kazuki.depthreconstruction.depth.geometry;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class VoxelGridDownsamplerTest {
+  private static final float EPSILON = 1e-5f;
+
+  @Test
+  public void add_keepsCentroidOfEachVoxel() {
+    VoxelGridDownsampler downsampler = new VoxelGridDownsampler(/*voxelSize=*/ 0.5f, 8);
+    downsampler.add(points(0.1f, 0.1f, 0.1f, 0.3f, 0.2f, 0.4f, -0.1f, -0.2f, -0.3f));
+    downsampler.add(points(0.2f, 0.3f, 0.1f));
+
+    assertEquals(2, downsampler.getVoxelCount());
+    assertArrayEquals(new float[] {0.2f, 0.2f, 0.2f}, centroidIn(downsampler, 0, 0, 0), EPSILON);
+    assertArrayEquals(
+            new float[] {-0.1f, -0.2f, -0.3f}, centroidIn(downsampler, -1, -1, -1), EPSILON);
+  }
+
+  @Test
+  public void add_skipsInvalidPixels() {
+    VoxelGridDownsampler downsampler = new VoxelGridDownsampler(1.0f, 8);
+    PointGrid grid = points(0.5f, 0.5f, 0.5f, 1.5f, 0.5f, 0.5f);
+    grid.getZ()[1] = Float.NaN;
+
+    downsampler.add(grid);
+
+    assertEquals(1, downsampler.getVoxelCount());
+    assertNotNull(centroidIn(downsampler, 0, 0, 0));
+  }
+
+  @Test
+  public void add_pastCapacityEvictsLeastRecentlySeenVoxels() {
+    VoxelGridDownsampler downsampler = new VoxelGridDownsampler(1.0f, 4);
+    // Frames see voxels A and B, then C and D, then A again, so B is now the least recent.
+    downsampler.add(points(0.2f, 0.2f, 0.2f, 0.4f, 0.6f, 0.8f, 1.5f, 0.5f, 0.5f));
+    downsampler.add(points(2.5f, 0.5f, 0.5f, 3.5f, 0.5f, 0.5f));
+    downsampler.add(points(0.6f, 0.1f, 0.5f));
+    assertEquals(4, downsampler.getVoxelCount());
+    assertEquals(0, downsampler.getEvictedVoxelCount());
+
+    downsampler.add(points(4.5f, 0.5f, 0.5f));
+
+    assertEquals(4, downsampler.getVoxelCount());
+    assertEquals(1, downsampler.getEvictedVoxelCount());
+    assertNull(centroidIn(downsampler, 1, 0, 0));
+    assertArrayEquals(new float[] {0.4f, 0.3f, 0.5f}, centroidIn(downsampler, 0, 0, 0), EPSILON);
+    assertArrayEquals(new float[] {4.5f, 0.5f, 0.5f}, centroidIn(downsampler, 4, 0, 0), EPSILON);
+
+    // C is next; a voxel evicted and seen again starts over from its new points only.
+    downsampler.add(points(1.25f, 0.25f, 0.25f));
+
+    assertEquals(2, downsampler.getEvictedVoxelCount());
+    assertNull(centroidIn(downsampler, 2, 0, 0));
+    assertNotNull(centroidIn(downsampler, 3, 0, 0));
+    assertArrayEquals(
+            new float[] {1.25f, 0.25f, 0.25f}, centroidIn(downsampler, 1, 0, 0), EPSILON);
+  }
+
+  /** Returns a one row grid holding the points given as x, y, z triples. */
+  private static PointGrid points(float... coordinates) {
+    int count = coordinates.length / 3;
+    PointGrid grid = new PointGrid(count, 1);
+    for (int i = 0; i < count; i++) {
+      grid.getX()[i] = coordinates[3 * i];
+      grid.getY()[i] = coordinates[3 * i + 1];
+      grid.getZ()[i] = coordinates[3 * i + 2];
+    }
+    grid.setValidCount(count);
+    return grid;
+  }
+
+  /** Returns the centroid lying in the voxel, or null if no voxel is kept there. */
+  private static float[] centroidIn(
+          VoxelGridDownsampler downsampler, int voxelX, int voxelY, int voxelZ) {
+    float[] centroids = new float[3 * downsampler.getVoxelCount()];
+    int count = downsampler.copyCentroids(centroids);
+    float inverseVoxelSize = 1.0f / downsampler.getVoxelSize();
+    for (int i = 0; i < count; i++) {
+      if ((int) Math.floor(centroids[3 * i] * inverseVoxelSize) == voxelX
+              && (int) Math.floor(centroids[3 * i + 1] * inverseVoxelSize) == voxelY
+              && (int) Math.floor(centroids[3 * i + 2] * inverseVoxelSize) == voxelZ) {
+        return new float[] {centroids[3 * i], centroids[3 * i + 1], centroids[3 * i + 2]};
+      }
+    }
+    return null;
+  }
+}
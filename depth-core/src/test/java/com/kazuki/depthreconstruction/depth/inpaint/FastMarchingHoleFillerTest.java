@@ -0,0 +1,68 @@
+package com.kazuki.depthreconstruction.depth.inpaint;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class FastMarchingHoleFillerTest {
+  private static final int WIDTH = 80;
+  private static final int HEIGHT = 64;
+
+  @Test
+  public void fill_fillsHoleInFlatDepth() {
+    short[] depth = new short[WIDTH * HEIGHT];
+    for (int i = 0; i < depth.length; i++) {
+      depth[i] = 2000;
+    }
+    punchHole(depth, 30, 20, 50, 40);
+    short[] output = new short[depth.length];
+
+    new FastMarchingHoleFiller().fill(depth, output, WIDTH, HEIGHT, ForkJoinPool.commonPool());
+
+    for (int i = 0; i < output.length; i++) {
+      assertEquals("pixel " + i, 2000, output[i]);
+    }
+  }
+
+  @Test
+  public void fill_continuesEdgeThroughHole() {
+    // A vertical depth edge at x = 40 with a hole across it; each side is continued into the
+    // hole instead of being averaged with the other.
+    short[] depth = new short[WIDTH * HEIGHT];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        depth[y * WIDTH + x] = (short) (x < 40 ? 1000 : 3000);
+      }
+    }
+    punchHole(depth, 20, 30, 60, 34);
+    short[] output = new short[depth.length];
+
+    new FastMarchingHoleFiller().fill(depth, output, WIDTH, HEIGHT, ForkJoinPool.commonPool());
+
+    assertEquals(1000, output[31 * WIDTH + 25]);
+    assertEquals(3000, output[32 * WIDTH + 55]);
+  }
+
+  @Test
+  public void fill_leavesHolesBeyondHaloEmpty() {
+    short[] depth = new short[WIDTH * HEIGHT];
+    depth[0] = 700;
+    short[] output = new short[depth.length];
+
+    new FastMarchingHoleFiller(/*tileSize=*/ 16, /*halo=*/ 4, /*radius=*/ 2)
+            .fill(depth, output, WIDTH, HEIGHT, ForkJoinPool.commonPool());
+
+    assertEquals(700, output[15 * WIDTH + 15]);
+    assertEquals(0, output[40 * WIDTH + 40]);
+  }
+
+  private static void punchHole(short[] depth, int x0, int y0, int x1, int y1) {
+    for (int y = y0; y < y1; y++) {
+      for (int x = x0; x < x1; x++) {
+        depth[y * WIDTH + x] = 0;
+      }
+    }
+  }
+}
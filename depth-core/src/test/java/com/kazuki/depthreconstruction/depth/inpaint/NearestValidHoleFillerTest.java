@@ -0,0 +1,43 @@
+package com.kazuki.depthreconstruction.depth.inpaint;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class NearestValidHoleFillerTest {
+  @Test
+  public void fill_usesNearestValidPixel() {
+    short[] depth = {100, 0, 0, 0, 0, 200};
+    short[] output = new short[depth.length];
+
+    new NearestValidHoleFiller().fill(depth, output, 6, 1, ForkJoinPool.commonPool());
+
+    assertArrayEquals(new short[] {100, 100, 100, 200, 200, 200}, output);
+  }
+
+  @Test
+  public void fill_leavesHolesBeyondHaloEmpty() {
+    short[] depth = new short[12];
+    depth[0] = 500;
+    short[] output = new short[depth.length];
+
+    new NearestValidHoleFiller(/*tileSize=*/ 4, /*halo=*/ 1)
+            .fill(depth, output, 12, 1, ForkJoinPool.commonPool());
+
+    // The first tile fills itself, the others see no valid pixel within their halo.
+    assertArrayEquals(new short[] {500, 500, 500, 500, 0, 0, 0, 0, 0, 0, 0, 0}, output);
+  }
+
+  @Test
+  public void fill_copiesTilesWithoutHoles() {
+    short[] depth = {1, 2, 3, 4, 5, 6, 7, 8};
+    short[] output = new short[depth.length];
+
+    new NearestValidHoleFiller(/*tileSize=*/ 2, /*halo=*/ 1)
+            .fill(depth, output, 4, 2, ForkJoinPool.commonPool());
+
+    assertArrayEquals(depth, output);
+  }
+}
@@ -0,0 +1,74 @@
+package com.kazuki.depthreconstruction.depth.inpaint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class PushPullHoleFillerTest {
+  private static final int WIDTH = 96;
+  private static final int HEIGHT = 80;
+
+  @Test
+  public void fill_fillsLargeHoleInFlatDepth() {
+    short[] depth = new short[WIDTH * HEIGHT];
+    for (int i = 0; i < depth.length; i++) {
+      depth[i] = 1500;
+    }
+    punchHole(depth, 20, 10, 70, 60);
+    short[] output = new short[depth.length];
+
+    new PushPullHoleFiller().fill(depth, output, WIDTH, HEIGHT, ForkJoinPool.commonPool());
+
+    for (int i = 0; i < output.length; i++) {
+      assertEquals("pixel " + i, 1500, output[i]);
+    }
+  }
+
+  @Test
+  public void fill_keepsValidDepthAndBlendsAcrossStep() {
+    short[] depth = new short[WIDTH * HEIGHT];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        depth[y * WIDTH + x] = (short) (x < WIDTH / 2 ? 1000 : 3000);
+      }
+    }
+    short[] input = depth.clone();
+    punchHole(depth, 30, 20, 66, 60);
+    short[] output = new short[depth.length];
+
+    new PushPullHoleFiller().fill(depth, output, WIDTH, HEIGHT, ForkJoinPool.commonPool());
+
+    for (int i = 0; i < output.length; i++) {
+      if (depth[i] != 0) {
+        assertEquals(input[i], output[i]);
+      } else {
+        assertTrue("pixel " + i + " is " + output[i], output[i] >= 1000 && output[i] <= 3000);
+      }
+    }
+    // Deep inside the hole, pixels nearer the far side lean towards it.
+    assertTrue(output[40 * WIDTH + 34] < output[40 * WIDTH + 62]);
+  }
+
+  @Test
+  public void fill_leavesDepthWithoutMeasurementsEmpty() {
+    short[] depth = new short[WIDTH * HEIGHT];
+    short[] output = new short[depth.length];
+
+    new PushPullHoleFiller().fill(depth, output, WIDTH, HEIGHT, ForkJoinPool.commonPool());
+
+    for (short millimeters : output) {
+      assertEquals(0, millimeters);
+    }
+  }
+
+  private static void punchHole(short[] depth, int x0, int y0, int x1, int y1) {
+    for (int y = y0; y < y1; y++) {
+      for (int x = x0; x < x1; x++) {
+        depth[y * WIDTH + x] = 0;
+      }
+    }
+  }
+}
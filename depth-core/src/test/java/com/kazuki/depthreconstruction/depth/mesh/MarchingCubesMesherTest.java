@@ -0,0 +1,225 @@
+package com.kazuki.depthreconstruction.depth.mesh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.kazuki.depthreconstruction.depth.fusion.TsdfVolume;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MarchingCubesMesherTest {
+  static final float VOXEL_SIZE = 0.04f;
+  static final float TRUNCATION = 3 * VOXEL_SIZE;
+
+  /** Signed distance in meters, negative inside. */
+  interface DistanceField {
+    float getDistance(float x, float y, float z);
+  }
+
+  @Test
+  public void mesh_sphereIsClosedManifoldOfGenusZero() {
+    // Off the voxel grid, so no voxel center lies exactly on the surface.
+    final float centerX = 0.013f;
+    final float centerY = 0.021f;
+    final float centerZ = 0.007f;
+    final float radius = 0.3f;
+    TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 1024);
+    fill(volume, -2, 2, (x, y, z) -> {
+      float dx = x - centerX;
+      float dy = y - centerY;
+      float dz = z - centerZ;
+      return (float) Math.sqrt(dx * dx + dy * dy + dz * dz) - radius;
+    });
+
+    WeldedMesh mesh = mesh(volume, new MarchingCubesMesher());
+
+    mesh.assertClosedAndConsistentlyOriented();
+    assertEquals(2, mesh.getEulerCharacteristic());
+    // Fronts face the outside, so the signed volume is positive and close to the sphere's.
+    double sphereVolume = 4.0 / 3.0 * Math.PI * radius * radius * radius;
+    assertEquals(
+            sphereVolume, mesh.getSignedVolume(centerX, centerY, centerZ), 0.03 * sphereVolume);
+  }
+
+  @Test
+  public void mesh_randomFieldIsClosedManifold() {
+    // Random signs exercise every case, including both kinds of ambiguous faces; the outer layer
+    // of voxels is outside, so the surface must close.
+    final Random random = new Random(1234);
+    final int last = 2 * TsdfVolume.BLOCK_SIZE - 1;
+    TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 64);
+    fill(volume, 0, 1, (x, y, z) -> {
+      int voxelX = Math.round(x / VOXEL_SIZE - 0.5f);
+      int voxelY = Math.round(y / VOXEL_SIZE - 0.5f);
+      int voxelZ = Math.round(z / VOXEL_SIZE - 0.5f);
+      float magnitude = TRUNCATION * (0.05f + 0.95f * random.nextFloat());
+      boolean isBorder =
+              voxelX == 0 || voxelY == 0 || voxelZ == 0
+                      || voxelX == last || voxelY == last || voxelZ == last;
+      return isBorder || random.nextBoolean() ? magnitude : -magnitude;
+    });
+
+    WeldedMesh mesh = mesh(volume, new MarchingCubesMesher());
+
+    assertTrue(mesh.triangles.size() > 1000);
+    mesh.assertClosedAndConsistentlyOriented();
+  }
+
+  /** Allocates the blocks from {@code first} to {@code last} on every axis and samples a field. */
+  static void fill(TsdfVolume volume, int first, int last, DistanceField field) {
+    int size = TsdfVolume.BLOCK_SIZE;
+    short[] distances = volume.getDistances();
+    byte[] weights = volume.getWeights();
+    for (int blockZ = first; blockZ <= last; blockZ++) {
+      for (int blockY = first; blockY <= last; blockY++) {
+        for (int blockX = first; blockX <= last; blockX++) {
+          int block = volume.getOrAllocateBlock(blockX, blockY, blockZ);
+          for (int z = 0; z < size; z++) {
+            for (int y = 0; y < size; y++) {
+              for (int x = 0; x < size; x++) {
+                float distance =
+                        field.getDistance(
+                                (blockX * size + x + 0.5f) * VOXEL_SIZE,
+                                (blockY * size + y + 0.5f) * VOXEL_SIZE,
+                                (blockZ * size + z + 0.5f) * VOXEL_SIZE);
+                float truncated = Math.max(-1.0f, Math.min(1.0f, distance / TRUNCATION));
+                int voxel = block * TsdfVolume.VOXELS_PER_BLOCK + (z * size + y) * size + x;
+                distances[voxel] = (short) Math.round(truncated * TsdfVolume.DISTANCE_SCALE);
+                weights[voxel] = 1;
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /** Meshes every block and joins the chunks' vertices that lie at the same position. */
+  static WeldedMesh mesh(TsdfVolume volume, BlockMesher mesher) {
+    WeldedMesh mesh = new WeldedMesh();
+    BlockSamples samples = new BlockSamples();
+    MeshChunk chunk = new MeshChunk();
+    for (int block = 0; block < volume.getBlockCount(); block++) {
+      chunk.clear();
+      if (samples.gather(volume, block)) {
+        mesher.mesh(samples, chunk);
+      }
+      mesh.add(chunk);
+    }
+    return mesh;
+  }
+
+  /** A triangle mesh whose vertices are identified by their exact position. */
+  static final class WeldedMesh {
+    final Map<List<Float>, Integer> vertexIndices = new HashMap<>();
+    final List<float[]> vertices = new ArrayList<>();
+    final List<int[]> triangles = new ArrayList<>();
+
+    void add(MeshChunk chunk) {
+      int[] chunkVertices = new int[chunk.getVertexCount()];
+      float[] positions = chunk.getPositions();
+      for (int i = 0; i < chunkVertices.length; i++) {
+        List<Float> key = new ArrayList<>();
+        key.add(positions[3 * i]);
+        key.add(positions[3 * i + 1]);
+        key.add(positions[3 * i + 2]);
+        Integer vertex = vertexIndices.get(key);
+        if (vertex == null) {
+          vertex = vertices.size();
+          vertexIndices.put(key, vertex);
+          vertices.add(new float[] {positions[3 * i], positions[3 * i + 1], positions[3 * i + 2]});
+        }
+        chunkVertices[i] = vertex;
+      }
+      short[] indices = chunk.getIndices();
+      for (int i = 0; i < chunk.getIndexCount(); i += 3) {
+        triangles.add(
+                new int[] {
+                  chunkVertices[indices[i] & 0xFFFF],
+                  chunkVertices[indices[i + 1] & 0xFFFF],
+                  chunkVertices[indices[i + 2] & 0xFFFF]
+                });
+      }
+    }
+
+    /**
+     * Checks that every directed edge belongs to exactly one triangle and its reverse to exactly
+     * one other: no open, non-manifold or flipped edges.
+     */
+    void assertClosedAndConsistentlyOriented() {
+      Map<Long, Integer> directedEdges = new HashMap<>();
+      for (int[] triangle : triangles) {
+        for (int corner = 0; corner < 3; corner++) {
+          int from = triangle[corner];
+          int to = triangle[(corner + 1) % 3];
+          assertTrue("degenerate triangle", from != to);
+          long edge = (long) from << 32 | to;
+          Integer count = directedEdges.get(edge);
+          assertTrue("edge " + from + " -> " + to + " is used twice", count == null);
+          directedEdges.put(edge, 1);
+        }
+      }
+      for (long edge : directedEdges.keySet()) {
+        long reverse = (edge & 0xFFFFFFFFL) << 32 | edge >>> 32;
+        assertTrue("edge " + edge + " is open or flipped", directedEdges.containsKey(reverse));
+      }
+    }
+
+    /**
+     * Checks that every directed edge is used by as many triangles as its reverse, so the mesh has
+     * no holes and no flipped triangles but may touch itself along an edge.
+     */
+    void assertClosed() {
+      Map<Long, Integer> directedEdges = new HashMap<>();
+      for (int[] triangle : triangles) {
+        for (int corner = 0; corner < 3; corner++) {
+          int from = triangle[corner];
+          int to = triangle[(corner + 1) % 3];
+          assertTrue("degenerate triangle", from != to);
+          long edge = (long) from << 32 | to;
+          Integer count = directedEdges.get(edge);
+          directedEdges.put(edge, count == null ? 1 : count + 1);
+        }
+      }
+      for (Map.Entry<Long, Integer> entry : directedEdges.entrySet()) {
+        long edge = entry.getKey();
+        long reverse = (edge & 0xFFFFFFFFL) << 32 | edge >>> 32;
+        assertEquals(
+                "edge " + edge + " is open or flipped",
+                entry.getValue(),
+                directedEdges.get(reverse));
+      }
+    }
+
+    int getEulerCharacteristic() {
+      // On a closed manifold every edge has two triangles, so E = 3F / 2.
+      return vertices.size() - triangles.size() * 3 / 2 + triangles.size();
+    }
+
+    double getSignedVolume(float originX, float originY, float originZ) {
+      double volume = 0.0;
+      for (int[] triangle : triangles) {
+        float[] a = vertices.get(triangle[0]);
+        float[] b = vertices.get(triangle[1]);
+        float[] c = vertices.get(triangle[2]);
+        double ax = a[0] - originX;
+        double ay = a[1] - originY;
+        double az = a[2] - originZ;
+        double bx = b[0] - originX;
+        double by = b[1] - originY;
+        double bz = b[2] - originZ;
+        double cx = c[0] - originX;
+        double cy = c[1] - originY;
+        double cz = c[2] - originZ;
+        volume += (ax * (by * cz - bz * cy) + ay * (bz * cx - bx * cz) + az * (bx * cy - by * cx));
+      }
+      return volume / 6.0;
+    }
+  }
+}
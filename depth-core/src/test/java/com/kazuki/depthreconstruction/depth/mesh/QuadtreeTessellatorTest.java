@@ -0,0 +1,186 @@
+package com.kazuki.depthreconstruction.depth.mesh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.kazuki.depthreconstruction.depth.DepthFrame;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class QuadtreeTessellatorTest {
+  private static final int TILES_X = 4;
+  private static final int TILES_Y = 4;
+  private static final int LEVELS = 3;
+  private static final int SIZE = 64;
+  private static final float TOLERANCE_MILLIMETERS = 5.0f;
+  private static final int UNLIMITED_BUDGET = 1 << 16;
+
+  @Test
+  public void update_flatDepthGivesTwoTrianglesPerTile() {
+    QuadtreeTessellator tessellator = newTessellator(UNLIMITED_BUDGET);
+    short[] depth = new short[SIZE * SIZE];
+    Arrays.fill(depth, (short) 1500);
+
+    tessellator.update(DepthFrame.wrap(depth, SIZE, SIZE, 1));
+
+    int tileCount = TILES_X * TILES_Y;
+    assertEquals(2 * tileCount, tessellator.getTriangleCount());
+    assertEquals(4 * tileCount, tessellator.getVertexCount());
+    assertEquals(tileCount, tessellator.getChangedTileCount());
+  }
+
+  @Test
+  public void update_stepEdgeMeshHasNoCracks() {
+    QuadtreeTessellator tessellator = newTessellator(UNLIMITED_BUDGET);
+    // A diagonal step, so it crosses tile borders at every level, next to a hole.
+    short[] depth = new short[SIZE * SIZE];
+    for (int y = 0; y < SIZE; y++) {
+      for (int x = 0; x < SIZE; x++) {
+        depth[y * SIZE + x] = (short) (x + y / 2 < 37 ? 1000 : 2500);
+      }
+    }
+    for (int y = 40; y < 50; y++) {
+      Arrays.fill(depth, y * SIZE + 5, y * SIZE + 13, (short) 0);
+    }
+
+    tessellator.update(DepthFrame.wrap(depth, SIZE, SIZE, 1));
+
+    assertTrue(tessellator.getTriangleCount() > 2 * TILES_X * TILES_Y);
+    assertCrackFree(tessellator);
+  }
+
+  @Test
+  public void update_overBudgetRaisesToleranceUntilItFits() {
+    int budget = 6 * TILES_X * TILES_Y;
+    QuadtreeTessellator tessellator = newTessellator(budget);
+
+    tessellator.update(noisyDepth());
+
+    assertTrue(tessellator.getVertexCount() <= budget);
+    assertTrue(tessellator.getToleranceMillimeters() > TOLERANCE_MILLIMETERS);
+    assertCrackFree(tessellator);
+  }
+
+  @Test
+  public void update_lowersToleranceOnlyAfterDelay() {
+    QuadtreeTessellator tessellator = newTessellator(10 * TILES_X * TILES_Y);
+    tessellator.update(noisyDepth());
+    float raisedTolerance = tessellator.getToleranceMillimeters();
+    assertTrue(raisedTolerance > TOLERANCE_MILLIMETERS);
+    short[] depth = new short[SIZE * SIZE];
+    Arrays.fill(depth, (short) 1500);
+    DepthFrame flatDepth = DepthFrame.wrap(depth, SIZE, SIZE, 1);
+
+    // The noisy frame may already have been far under the budget after raising the tolerance,
+    // so the flat frames reach the delay one update early at most.
+    tessellator.update(flatDepth);
+    for (int i = 2; i < QuadtreeTessellator.RELAX_DELAY_FRAMES - 1; i++) {
+      tessellator.update(flatDepth);
+      // Nothing changed, so nothing is rebuilt while the tolerance holds.
+      assertEquals(raisedTolerance, tessellator.getToleranceMillimeters(), 0.0f);
+      assertEquals(0, tessellator.getLastSubdividedTileCount());
+      assertEquals(0, tessellator.getChangedTileCount());
+    }
+    tessellator.update(flatDepth);
+    tessellator.update(flatDepth);
+    assertEquals(raisedTolerance / 1.5f, tessellator.getToleranceMillimeters(), 1e-3f);
+  }
+
+  @Test
+  public void update_localChangeRebuildsTileAndItsNeighbours() {
+    QuadtreeTessellator tessellator = newTessellator(UNLIMITED_BUDGET);
+    short[] depth = new short[SIZE * SIZE];
+    Arrays.fill(depth, (short) 1500);
+    tessellator.update(DepthFrame.wrap(depth, SIZE, SIZE, 1));
+
+    // Inside tile (1, 1), away from its borders. The image is flipped vertically onto t, so tile
+    // row 1 covers image rows 32 to 48.
+    for (int y = 36; y < 44; y++) {
+      Arrays.fill(depth, y * SIZE + 20, y * SIZE + 28, (short) 2000);
+    }
+    tessellator.update(DepthFrame.wrap(depth, SIZE, SIZE, 2));
+
+    Set<Integer> changedTiles = new TreeSet<>();
+    for (int i = 0; i < tessellator.getChangedTileCount(); i++) {
+      changedTiles.add(tessellator.getChangedTile(i));
+    }
+    int tile = TILES_X + 1;
+    assertEquals(
+            new TreeSet<>(Arrays.asList(tile, tile - 1, tile + 1, tile - TILES_X, tile + TILES_X)),
+            changedTiles);
+    assertEquals(1, tessellator.getLastSubdividedTileCount());
+    assertCrackFree(tessellator);
+  }
+
+  private static QuadtreeTessellator newTessellator(int vertexBudget) {
+    return new QuadtreeTessellator(TILES_X, TILES_Y, LEVELS, TOLERANCE_MILLIMETERS, vertexBudget);
+  }
+
+  private static DepthFrame noisyDepth() {
+    Random random = new Random(7);
+    short[] depth = new short[SIZE * SIZE];
+    for (int i = 0; i < depth.length; i++) {
+      depth[i] = (short) (1500 + random.nextInt(121) - 60);
+    }
+    return DepthFrame.wrap(depth, SIZE, SIZE, 1);
+  }
+
+  /**
+   * Checks that the triangles of all tiles, joined at their lattice points, cover the square
+   * without cracks: every directed edge is used once, and its reverse once more unless the edge
+   * lies on the border of the square.
+   */
+  private static void assertCrackFree(QuadtreeTessellator tessellator) {
+    short[] indices = tessellator.getIndices();
+    int latticeWidth = tessellator.getLatticeWidth();
+    Map<Long, Integer> directedEdges = new HashMap<>();
+    int triangleCount = 0;
+    for (int i = 0; i < indices.length; i += 3) {
+      int[] points = new int[3];
+      for (int corner = 0; corner < 3; corner++) {
+        int vertex = indices[i + corner] & 0xFFFF;
+        points[corner] =
+                tessellator.getVertexLatticeY(vertex) * latticeWidth
+                        + tessellator.getVertexLatticeX(vertex);
+      }
+      if (points[0] == points[1] && points[1] == points[2]) {
+        continue;
+      }
+      triangleCount++;
+      for (int corner = 0; corner < 3; corner++) {
+        long edge = (long) points[corner] << 32 | points[(corner + 1) % 3];
+        assertTrue("edge used twice", directedEdges.put(edge, 1) == null);
+      }
+    }
+    assertEquals(tessellator.getTriangleCount(), triangleCount);
+    for (long edge : directedEdges.keySet()) {
+      int from = (int) (edge >>> 32);
+      int to = (int) edge;
+      long reverse = (long) to << 32 | from;
+      if (!directedEdges.containsKey(reverse)) {
+        assertTrue(
+                "crack at edge " + from + " -> " + to,
+                isOnBorder(tessellator, from, to));
+      }
+    }
+  }
+
+  private static boolean isOnBorder(QuadtreeTessellator tessellator, int from, int to) {
+    int width = tessellator.getLatticeWidth();
+    int lastX = width - 1;
+    int lastY = tessellator.getLatticeHeight() - 1;
+    int fromX = from % width;
+    int fromY = from / width;
+    int toX = to % width;
+    int toY = to / width;
+    return (fromX == toX && (fromX == 0 || fromX == lastX))
+            || (fromY == toY && (fromY == 0 || fromY == lastY));
+  }
+}
@@ -0,0 +1,70 @@
+package com.kazuki.depthreconstruction.depth.mesh;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class StretchedTriangleFilterTest {
+  private static final int MAX_SPREAD = 100;
+  private static final short DEGENERATE = 0;
+  // Vertex 0 pads slots; vertices 1 to 3 lie on a gentle slope, 4 is across a step, 5 is a hole.
+  private static final int[] VERTEX_DEPTH = {1000, 1000, 1050, 1090, 1500, 0};
+  // A kept triangle, one across the step, one touching the hole, and a degenerate one.
+  private static final short[] TRIANGLES = {1, 2, 3, 2, 3, 4, 1, 5, 2, 3, 3, 3};
+
+  @Test
+  public void filterSlot_dropsTrianglesSpanningStepsAndHoles() {
+    StretchedTriangleFilter filter = new StretchedTriangleFilter(2, 9, MAX_SPREAD);
+
+    filter.filterSlot(1, TRIANGLES, 0, TRIANGLES.length, VERTEX_DEPTH, DEGENERATE);
+
+    assertArrayEquals(
+            new short[] {1, 2, 3, 0, 0, 0, 0, 0, 0},
+            Arrays.copyOfRange(filter.getIndices(), 9, 18));
+    assertEquals(1, filter.getTriangleCount());
+    assertEquals(2, filter.getDroppedTriangleCount());
+  }
+
+  @Test
+  public void filterSlot_keepsTriangleAtMaxSpread() {
+    StretchedTriangleFilter filter = new StretchedTriangleFilter(1, 3, MAX_SPREAD);
+    int[] depth = {0, 1000, 1100, 1050};
+
+    filter.filterSlot(0, new short[] {1, 2, 3}, 0, 3, depth, DEGENERATE);
+
+    assertEquals(1, filter.getTriangleCount());
+    assertEquals(0, filter.getDroppedTriangleCount());
+  }
+
+  @Test
+  public void filterSlot_disabledKeepsEveryTriangle() {
+    StretchedTriangleFilter filter =
+            new StretchedTriangleFilter(1, 9, StretchedTriangleFilter.DISABLED);
+
+    filter.filterSlot(0, TRIANGLES, 0, TRIANGLES.length, VERTEX_DEPTH, DEGENERATE);
+
+    assertArrayEquals(new short[] {1, 2, 3, 2, 3, 4, 1, 5, 2}, filter.getIndices());
+    assertEquals(3, filter.getTriangleCount());
+    assertEquals(0, filter.getDroppedTriangleCount());
+  }
+
+  @Test
+  public void filterSlot_recordsOnlySlotsWhoseIndicesChanged() {
+    StretchedTriangleFilter filter = new StretchedTriangleFilter(2, 9, MAX_SPREAD);
+    filter.filterSlot(0, TRIANGLES, 0, TRIANGLES.length, VERTEX_DEPTH, DEGENERATE);
+    filter.filterSlot(1, TRIANGLES, 0, TRIANGLES.length, VERTEX_DEPTH, DEGENERATE);
+    assertEquals(2, filter.getChangedSlotCount());
+
+    filter.clearChangedSlots();
+    filter.filterSlot(0, TRIANGLES, 0, TRIANGLES.length, VERTEX_DEPTH, DEGENERATE);
+    filter.setMaxSpreadMillimeters(StretchedTriangleFilter.DISABLED);
+    filter.filterSlot(1, TRIANGLES, 0, TRIANGLES.length, VERTEX_DEPTH, DEGENERATE);
+
+    assertEquals(1, filter.getChangedSlotCount());
+    assertEquals(1, filter.getChangedSlot(0));
+    assertEquals(2, filter.getDroppedTriangleCount());
+  }
+}
@@ -0,0 +1,68 @@
+package com.kazuki.depthreconstruction.depth.mesh;
+
+import static com.kazuki.depthreconstruction.depth.mesh.MarchingCubesMesherTest.fill;
+import static com.kazuki.depthreconstruction.depth.mesh.MarchingCubesMesherTest.mesh;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.kazuki.depthreconstruction.depth.fusion.TsdfVolume;
+import com.kazuki.depthreconstruction.depth.mesh.MarchingCubesMesherTest.WeldedMesh;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Runs the closedness cases of {@link MarchingCubesMesherTest} against surface nets. */
+public class SurfaceNetsMesherTest {
+  private static final float VOXEL_SIZE = MarchingCubesMesherTest.VOXEL_SIZE;
+  private static final float TRUNCATION = MarchingCubesMesherTest.TRUNCATION;
+
+  @Test
+  public void mesh_sphereIsClosedManifoldOfGenusZero() {
+    final float centerX = 0.013f;
+    final float centerY = 0.021f;
+    final float centerZ = 0.007f;
+    final float radius = 0.3f;
+    // The sphere crosses many block seams, whose cells both neighbouring blocks place vertices in.
+    TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 1024);
+    fill(volume, -2, 2, (x, y, z) -> {
+      float dx = x - centerX;
+      float dy = y - centerY;
+      float dz = z - centerZ;
+      return (float) Math.sqrt(dx * dx + dy * dy + dz * dz) - radius;
+    });
+
+    WeldedMesh mesh = mesh(volume, new SurfaceNetsMesher());
+
+    mesh.assertClosedAndConsistentlyOriented();
+    assertEquals(2, mesh.getEulerCharacteristic());
+    double sphereVolume = 4.0 / 3.0 * Math.PI * radius * radius * radius;
+    assertEquals(
+            sphereVolume, mesh.getSignedVolume(centerX, centerY, centerZ), 0.03 * sphereVolume);
+  }
+
+  @Test
+  public void mesh_randomFieldIsClosed() {
+    // The same field as the marching cubes case: the outer layer is outside, so the surface must
+    // close, also across the seams between the eight blocks.
+    final Random random = new Random(1234);
+    final int last = 2 * TsdfVolume.BLOCK_SIZE - 1;
+    TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 64);
+    fill(volume, 0, 1, (x, y, z) -> {
+      int voxelX = Math.round(x / VOXEL_SIZE - 0.5f);
+      int voxelY = Math.round(y / VOXEL_SIZE - 0.5f);
+      int voxelZ = Math.round(z / VOXEL_SIZE - 0.5f);
+      float magnitude = TRUNCATION * (0.05f + 0.95f * random.nextFloat());
+      boolean isBorder =
+              voxelX == 0 || voxelY == 0 || voxelZ == 0
+                      || voxelX == last || voxelY == last || voxelZ == last;
+      return isBorder || random.nextBoolean() ? magnitude : -magnitude;
+    });
+
+    WeldedMesh mesh = mesh(volume, new SurfaceNetsMesher());
+
+    assertTrue(mesh.triangles.size() > 1000);
+    // Ambiguous cells can make the surface touch itself along an edge, so only closedness holds.
+    mesh.assertClosed();
+  }
+}